@@ -0,0 +1,101 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks creating the attributes of the authentication result with different projections, and prints the
+ * approximate size of the attributes that each projection stores in the session.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AttributeProjectionBenchmark
+{
+    public enum Projection
+    {
+        /**
+         * All fields of the token response, and the access token as context attribute, which is the default
+         */
+        ALL(null, List.of(), false),
+
+        /**
+         * Some fields of the token response and some claims, without tokens
+         */
+        SELECTED(List.of("expires_in", "scope"), List.of("name", "email"), true),
+
+        /**
+         * All fields of the token response except the tokens, and some claims
+         */
+        NO_TOKENS(null, List.of("name", "email"), true);
+
+        private final AttributeProjection _projection;
+
+        Projection(List<String> tokenResponseFields, List<String> claims, boolean excludeTokens)
+        {
+            _projection = new AttributeProjection(tokenResponseFields, claims, excludeTokens);
+        }
+    }
+
+    @Param({"ALL", "SELECTED", "NO_TOKENS"})
+    public Projection projection;
+
+    private Map<String, Object> _tokenResponseData;
+    private Map<String, Object> _claims;
+    private String _accessToken;
+
+    @Setup
+    public void setUp()
+    {
+        _tokenResponseData = Standins.json().fromJson(CallbackRequestBenchmark.tokenResponse(new Random(42)));
+        _claims = Standins.json().fromJson(CallbackRequestBenchmark.userInfoResponse());
+        _accessToken = _tokenResponseData.get("access_token").toString();
+
+        AttributeProjection attributeProjection = projection._projection;
+
+        System.out.printf("%nAttributes of %s: about %d bytes%n", projection,
+                attributeProjection.estimateSize(CallbackRequestBenchmark.SUBJECT, _accessToken,
+                        attributeProjection.selectSubjectAttributes(_tokenResponseData, _claims)));
+    }
+
+    @Benchmark
+    public AuthenticationAttributes project()
+    {
+        return projection._projection.project(CallbackRequestBenchmark.SUBJECT, _accessToken, _tokenResponseData,
+                _claims, Map.of());
+    }
+}
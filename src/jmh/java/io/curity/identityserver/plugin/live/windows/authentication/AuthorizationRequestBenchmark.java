@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.Access.WRITE;
+
+/**
+ * Benchmarks the index handler, which redirects the user agent to Windows Live.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthorizationRequestBenchmark
+{
+    @Param({"SESSION", "SIGNED", "ENCRYPTED"})
+    public StateMode stateMode;
+
+    private WindowsLiveAuthenticatorPluginConfig _configuration;
+    private WindowsLiveAuthenticatorManagedObject _managedObject;
+    private Request _request;
+    private Response _response;
+
+    @TearDown
+    public void tearDown()
+    {
+        _managedObject.close();
+    }
+
+    @Setup
+    public void setUp()
+    {
+        // Request every scope, so that scope handling is as expensive as it gets
+        _configuration = Standins.configuration(Map.ofEntries(
+                Map.entry("isOfflineAccount", true),
+                Map.entry("isSingleSignin", true),
+                Map.entry("isBirthdayInfo", true),
+                Map.entry("getCalendarsInfo", WRITE),
+                Map.entry("isContactsBirthday", true),
+                Map.entry("isContactsCreate", true),
+                Map.entry("isCalendarAndEvents", true),
+                Map.entry("isContactsPhotos", true),
+                Map.entry("isContactsOneDrive", true),
+                Map.entry("isEmailsAccess", true),
+                Map.entry("isEventsCreate", true),
+                Map.entry("isIMAP", true),
+                Map.entry("isPhoneNumbersAccess", true),
+                Map.entry("isPhotosAccess", true),
+                Map.entry("isPostalAddresses", true),
+                Map.entry("getOneDriveAccess", WRITE),
+                Map.entry("isWorkProfileInfo", true),
+                Map.entry("isOneNoteAccess", true),
+                Map.entry("getStateMode", stateMode),
+                Map.entry("getStateKeys", List.of(Standins.STATE_KEY))));
+        _managedObject = new WindowsLiveAuthenticatorManagedObject(_configuration);
+        _request = Standins.request(Collections.emptyMap(), Map.of("User-Agent", Standins.USER_AGENT));
+        _response = Standins.response();
+    }
+
+    /**
+     * A complete GET to the index handler, including the creation of the handler, as the server does per request.
+     */
+    @Benchmark
+    public String get()
+    {
+        try
+        {
+            new WindowsLiveAuthenticatorRequestHandler(_configuration, _managedObject).get(_request, _response);
+        }
+        catch (Standins.StandinException e)
+        {
+            return e.getLocation();
+        }
+
+        throw new IllegalStateException("Expected a redirect");
+    }
+
+    /**
+     * Building the scopes and the static part of the authorization request, which is done once per configuration.
+     */
+    @Benchmark
+    public String compileAuthorizationRequestTemplate()
+    {
+        return AuthorizationRequestTemplate.compile(_configuration, _managedObject.getDiscoveryCache()).getScope();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+import se.curity.identityserver.sdk.service.Json;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the callback handler against canned upstream responses, as a whole and phase by phase.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CallbackRequestBenchmark
+{
+    static final String SUBJECT = "AAAAAAAAAAAAAAAAAAAAAIkzqFVrSaSaFHy782bbtaQ";
+    static final String STATE = "5c0e3e7a-2a4b-4d0c-9b62-3f0e5f4a1c2d";
+    static final String CODE = "M.C507_BAY.2.U.6a1f0c2e-9f4b-4a63-8a3e-b4e1f2f7c8d9";
+
+    private static final JsonFieldExtractor SELECTED_FIELDS = JsonFieldExtractor.of(
+            List.of("access_token", "expires_in", "scope"));
+
+    @Param({"SESSION", "SIGNED", "ENCRYPTED"})
+    public StateMode stateMode;
+
+    private WindowsLiveAuthenticatorPluginConfig _configuration;
+    private WindowsLiveAuthenticatorManagedObject _managedObject;
+    private Response _response;
+    private String _state;
+    private Json _json;
+    private String _tokenResponse;
+    private byte[] _tokenResponseBytes;
+
+    @TearDown
+    public void tearDown()
+    {
+        _managedObject.close();
+    }
+
+    @Setup
+    public void setUp()
+    {
+        _tokenResponse = tokenResponse(new Random(42));
+        _tokenResponseBytes = _tokenResponse.getBytes(StandardCharsets.UTF_8);
+        _json = Standins.json();
+        _configuration = Standins.configuration(Map.of(
+                "getWebServiceClientFactory", Standins.webServiceClientFactory(this::exchange),
+                "getJson", _json,
+                "getStateMode", stateMode,
+                "getStateKeys", List.of(Standins.STATE_KEY),
+
+                // Every call uses the same state and code, from the same client
+                "getReplayFilterCapacity", 0,
+                "getCallbackClientRate", 0,
+                "getCallbackSessionLimit", 0));
+        _managedObject = new WindowsLiveAuthenticatorManagedObject(_configuration);
+
+        // Stateless state values can be used more than once within their lifetime, so one is enough
+        StateCodec stateCodec = _managedObject.getStateCodec();
+
+        _state = stateCodec != null ? stateCodec.create(STATE) : STATE;
+        _configuration.getSessionManager().put(Attribute.of("state", STATE));
+        _configuration.getSessionManager().put(Attribute.of(StateCodec.BINDING_ATTRIBUTE, STATE));
+        _response = Standins.response();
+    }
+
+    /**
+     * A complete GET to the callback handler, including the creation of the handler and the request model.
+     */
+    @Benchmark
+    public Optional<AuthenticationResult> get()
+    {
+        CallbackRequestHandler handler = new CallbackRequestHandler(_configuration, _managedObject);
+        CallbackGetRequestModel requestModel = handler.preProcess(
+                Standins.request(Map.of("code", CODE, "state", _state), Map.of("User-Agent", Standins.USER_AGENT)),
+                _response);
+
+        return handler.get(requestModel, _response);
+    }
+
+    @Benchmark
+    public byte[] encodeTokenRequestBody()
+    {
+        return _managedObject.getTokenRequestEncoder().encode(CODE,
+                _configuration.getAuthenticatorInformationProvider(), _configuration.getExceptionFactory());
+    }
+
+    /**
+     * Encodes the token request body the way the callback handler used to, from a map of all parameters, as a
+     * baseline for {@link #encodeTokenRequestBody()}.
+     */
+    @Benchmark
+    public byte[] encodeTokenRequestBodyWithUrlEncoder()
+    {
+        Map<String, String> data = new HashMap<>(5);
+
+        data.put("client_id", _configuration.getClientId());
+        data.put("client_secret", _configuration.getClientSecret().orElseThrow());
+        data.put("code", CODE);
+        data.put("grant_type", "authorization_code");
+        data.put("redirect_uri", Standins.AUTHENTICATION_URI + "/callback");
+
+        StringBuilder body = new StringBuilder();
+
+        data.forEach((name, value) -> body.append(URLEncoder.encode(name, StandardCharsets.UTF_8))
+                .append('=')
+                .append(URLEncoder.encode(value, StandardCharsets.UTF_8))
+                .append('&'));
+
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Map<String, Object> parseTokenResponse()
+    {
+        return _json.fromJson(_tokenResponse);
+    }
+
+    @Benchmark
+    public Map<String, Object> extractAllTokenResponseFields() throws IOException
+    {
+        return JsonFieldExtractor.ALL_FIELDS.extract(new ByteArrayInputStream(_tokenResponseBytes));
+    }
+
+    @Benchmark
+    public Map<String, Object> extractSelectedTokenResponseFields() throws IOException
+    {
+        return SELECTED_FIELDS.extract(new ByteArrayInputStream(_tokenResponseBytes));
+    }
+
+    private Standins.Reply exchange(String method, URI uri, Map<String, String> headers, Object body)
+    {
+        if (uri.getPath().endsWith("/token"))
+        {
+            return Standins.Reply.json(200, _tokenResponse);
+        }
+        else if (uri.getPath().endsWith("/userinfo"))
+        {
+            return Standins.Reply.json(200, userInfoResponse());
+        }
+
+        return Standins.Reply.json(404, "{\"error\":\"not_found\"}");
+    }
+
+    /**
+     * @return a token response with tokens of about the size that Microsoft issues
+     */
+    static String tokenResponse(Random random)
+    {
+        return "{\"token_type\":\"Bearer\"," +
+                "\"scope\":\"User.Read profile openid email\"," +
+                "\"expires_in\":3599," +
+                "\"ext_expires_in\":3599," +
+                "\"access_token\":\"" + token(random, 1800) + "\"," +
+                "\"refresh_token\":\"" + token(random, 1200) + "\"," +
+                "\"id_token\":\"" + token(random, 1400) + "\"}";
+    }
+
+    static String userInfoResponse()
+    {
+        return userInfoResponse(SUBJECT);
+    }
+
+    static String userInfoResponse(String subject)
+    {
+        return "{\"sub\":\"" + subject + "\",\"name\":\"Ada Lovelace\",\"family_name\":\"Lovelace\"," +
+                "\"given_name\":\"Ada\",\"picture\":\"https://graph.microsoft.com/v1.0/me/photo/$value\"," +
+                "\"email\":\"ada@example.com\"}";
+    }
+
+    private static String token(Random random, int length)
+    {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        StringBuilder token = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++)
+        {
+            token.append(i % 400 == 399 ? '.' : alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+
+        return token.toString();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares encoding a token request with a cached client assertion to signing an assertion for every token request,
+ * for both kinds of keys.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientAssertionBenchmark
+{
+    @Param({"RS256", "ES256"})
+    public String algorithm;
+
+    private WindowsLiveAuthenticatorPluginConfig _configuration;
+    private WindowsLiveAuthenticatorManagedObject _managedObject;
+    private PrivateKey _key;
+    private String _signatureAlgorithm;
+    private String _encodedHeader;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException
+    {
+        boolean rsa = "RS256".equals(algorithm);
+        String key = rsa ? Standins.CLIENT_ASSERTION_RSA_KEY : Standins.CLIENT_ASSERTION_EC_KEY;
+
+        _configuration = Standins.configuration(Map.of(
+                "getClientAssertionKey", key,
+                "getClientAssertionCertificate", rsa
+                        ? Standins.CLIENT_ASSERTION_RSA_CERTIFICATE
+                        : Standins.CLIENT_ASSERTION_EC_CERTIFICATE));
+        _managedObject = new WindowsLiveAuthenticatorManagedObject(_configuration);
+        _key = KeyFactory.getInstance(rsa ? "RSA" : "EC").generatePrivate(new PKCS8EncodedKeySpec(
+                Base64.getMimeDecoder().decode(key.replaceAll("-----[A-Z ]+-----", ""))));
+        _signatureAlgorithm = rsa ? "SHA256withRSA" : "SHA256withECDSAinP1363Format";
+        _encodedHeader = base64Url("{\"alg\":\"" + algorithm + "\",\"typ\":\"JWT\"}");
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        _managedObject.close();
+    }
+
+    @Benchmark
+    public byte[] encodeWithCachedAssertion()
+    {
+        return _managedObject.getTokenRequestEncoder().encode(CallbackRequestBenchmark.CODE,
+                _configuration.getAuthenticatorInformationProvider(), _configuration.getExceptionFactory());
+    }
+
+    /**
+     * Signs a new assertion, as a token request would without the cache, but does not encode the rest of the body.
+     */
+    @Benchmark
+    public String signPerRequest() throws GeneralSecurityException
+    {
+        long now = System.currentTimeMillis() / 1000;
+        String signingInput = _encodedHeader + "." + base64Url("{\"aud\":\"https://login.microsoftonline.com" +
+                IdentityPlatformStandin.TOKEN_PATH + "\",\"iss\":\"" + _configuration.getClientId() + "\",\"sub\":\"" +
+                _configuration.getClientId() + "\",\"jti\":\"" + UUID.randomUUID() + "\",\"iat\":" + now +
+                ",\"nbf\":" + now + ",\"exp\":" + (now + 600) + "}");
+        Signature signature = Signature.getInstance(_signatureAlgorithm);
+
+        signature.initSign(_key);
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        return signingInput + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signature.sign());
+    }
+
+    private static String base64Url(String value)
+    {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
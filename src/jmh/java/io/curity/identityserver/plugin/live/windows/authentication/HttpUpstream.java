@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An upstream for the stand-in web service clients that sends requests over the network, e.g. to an
+ * {@link IdentityPlatformStandin}.
+ *
+ * <p>The body processors of the SDK are opaque, so request bodies are only sent when the processor happens to be a
+ * {@link HttpRequest.BodyPublisher}. The stand-in does not look at request bodies.</p>
+ *
+ * <p>The bodies of error responses are streamed, as they would be by the server, so that what the plugin does not read
+ * of them is not received; other bodies are received in full before they are returned.</p>
+ */
+final class HttpUpstream implements Standins.Upstream
+{
+    private final HttpClient _httpClient;
+
+    HttpUpstream()
+    {
+        _httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
+    @Override
+    public Standins.Reply exchange(String method, URI uri, Map<String, String> headers, Object body)
+    {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).method(method,
+                body instanceof HttpRequest.BodyPublisher
+                        ? (HttpRequest.BodyPublisher) body
+                        : HttpRequest.BodyPublishers.noBody());
+
+        headers.forEach(request::header);
+
+        try
+        {
+            HttpResponse<Object> response = _httpClient.send(request.build(), HttpUpstream::bodyOf);
+            Map<String, String> responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+            response.headers().map().forEach((name, values) -> responseHeaders.put(name, values.get(0)));
+
+            return response.body() instanceof InputStream
+                    ? Standins.Reply.streamed(response.statusCode(), responseHeaders, (InputStream) response.body())
+                    : new Standins.Reply(response.statusCode(), responseHeaders, (byte[]) response.body());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Interrupted while waiting for " + uri, e);
+        }
+    }
+
+    /**
+     * @return a subscriber that streams the body of an error response, and receives other bodies in full
+     */
+    private static HttpResponse.BodySubscriber<Object> bodyOf(HttpResponse.ResponseInfo responseInfo)
+    {
+        return responseInfo.statusCode() >= 400
+                ? HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), body -> body)
+                : HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), body -> body);
+    }
+
+    /**
+     * Act like a user agent that follows a redirect to the given location, without following any further redirects.
+     *
+     * @return the location that the response redirects to
+     */
+    String follow(String location)
+    {
+        Standins.Reply reply = exchange("GET", URI.create(location), Map.of(), null);
+
+        if (reply.getStatusCode() / 100 != 3)
+        {
+            throw new IllegalStateException("Expected a redirect from " + location + " but got " +
+                    reply.getStatusCode());
+        }
+
+        return reply.getHeaders().get("Location");
+    }
+}
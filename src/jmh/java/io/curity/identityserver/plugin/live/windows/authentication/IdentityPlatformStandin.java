@@ -0,0 +1,961 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * An embeddable stand-in for the parts of the Microsoft identity platform and Microsoft Graph that the authenticator
+ * uses. It listens on the loopback interface, so point both {@code login-host} and {@code graph-host} at
+ * {@link #getHost()} and use the {@code HTTP} upstream scheme.
+ *
+ * <p>Tokens are issued for the default client ID of the {@link Standins#configuration(Map) stand-in configuration},
+ * and the ID token is signed with a key that is published at the usual JWKS endpoint. The discovery metadata of any
+ * tenant points at the endpoints of the {@code common} tenant, and has an ETag that never changes.</p>
+ *
+ * <p>Every endpoint has a {@link Behavior} that can inject latency, server errors and throttling (429 with
+ * {@code Retry-After}) while the stand-in is running.</p>
+ *
+ * <p>Codes can be redeemed once, like at Microsoft; redeeming a code again fails with {@code invalid_grant}. The
+ * token endpoint is also reachable at {@link #getAlternateHost()}, which has a behavior of its own, so that hedged
+ * token requests can be tested against two hosts that share the codes.</p>
+ *
+ * <p>Each code is issued to one of a number of {@link #setUsers(int) users}, who each have their own subject and
+ * profile. The profile at {@code /v1.0/me} has an ETag, and is not sent again when it matches
+ * {@code If-None-Match}. Microsoft Graph also serves the manager, photo metadata and license details of the user, the
+ * {@link #setGroupsPerUser(int) groups} of the user in pages, and JSON batches of requests for these resources. The
+ * thumbnails of the photo of the user have an ETag like the profile, and every seventh user has no photo.</p>
+ */
+final class IdentityPlatformStandin implements AutoCloseable
+{
+    static final String AUTHORIZE_PATH = "/common/oauth2/v2.0/authorize";
+    static final String TOKEN_PATH = "/common/oauth2/v2.0/token";
+    static final String JWKS_PATH = "/common/discovery/v2.0/keys";
+    static final String DISCOVERY_SUFFIX = "/v2.0/.well-known/openid-configuration";
+    static final String USERINFO_PATH = "/oidc/userinfo";
+    static final String GRAPH_VERSION = "/v1.0";
+    static final String PROFILE_PATH = GRAPH_VERSION + "/me";
+    static final String BATCH_PATH = GraphBatch.PATH;
+    static final String PHOTOS_PATH = "/me/photos/";
+    static final String TENANT_ID = "9188040d-6c67-4c5b-b112-36a304b66dad";
+
+    private static final String KEY_ID = "standin-signing-key";
+    private static final String DISCOVERY_ETAG = "\"standin-discovery\"";
+    private static final int WRITE_CHUNK_BYTES = 65536;
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final Behavior _tokenBehavior = new Behavior();
+    private final Behavior _alternateTokenBehavior = new Behavior();
+    private final Behavior _userInfoBehavior = new Behavior();
+    private final Behavior _profileBehavior = new Behavior();
+    private final Behavior _lookupBehavior = new Behavior();
+    private final Behavior _batchBehavior = new Behavior();
+    private final Behavior _photoBehavior = new Behavior();
+    private final Map<String, Behavior> _behaviors = new HashMap<>();
+
+    // The token response, split where the user is prefixed to the access token
+    private final String _tokenResponsePrefix;
+    private final String _tokenResponseSuffix;
+
+    // The user that each code that has not been redeemed yet was issued to
+    private final Map<String, Integer> _codes = new ConcurrentHashMap<>();
+
+    private volatile int _users = 1;
+    private volatile int _groupsPerUser;
+
+    private final String _jwks;
+
+    private IdentityPlatformStandin(HttpServer server, int threads) throws GeneralSecurityException
+    {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+
+        keyPairGenerator.initialize(2048);
+
+        KeyPair signingKey = keyPairGenerator.generateKeyPair();
+
+        _server = server;
+        _executor = Executors.newFixedThreadPool(threads);
+        _jwks = jwks((RSAPublicKey) signingKey.getPublic());
+
+        String tokenResponse = CallbackRequestBenchmark.tokenResponse(new Random(42))
+                .replaceFirst("\"id_token\":\"[^\"]*\"", "\"id_token\":\"" + idToken(signingKey.getPrivate()) + "\"");
+        int accessToken = tokenResponse.indexOf("\"access_token\":\"") + "\"access_token\":\"".length();
+
+        _tokenResponsePrefix = tokenResponse.substring(0, accessToken);
+        _tokenResponseSuffix = tokenResponse.substring(accessToken);
+
+        _behaviors.put(TOKEN_PATH, _tokenBehavior);
+        _behaviors.put(USERINFO_PATH, _userInfoBehavior);
+        _behaviors.put(PROFILE_PATH, _profileBehavior);
+        _behaviors.put(BATCH_PATH, _batchBehavior);
+
+        server.createContext(AUTHORIZE_PATH, this::authorize);
+        server.createContext(TOKEN_PATH, faulty(exchange -> isAlternate(exchange)
+                ? _alternateTokenBehavior
+                : _tokenBehavior, this::token));
+        server.createContext(USERINFO_PATH, faulty(exchange -> _userInfoBehavior, this::userInfo));
+        server.createContext(GRAPH_VERSION + "/", faulty(exchange -> graphBehavior(exchange.getRequestURI().getPath()),
+                this::graph));
+        server.createContext(JWKS_PATH, exchange -> send(exchange, 200, _jwks));
+        server.createContext("/", this::discovery);
+        server.setExecutor(_executor);
+    }
+
+    /**
+     * Start a stand-in on an ephemeral port of the loopback interface.
+     *
+     * @param threads the number of threads that serve requests, which bounds the concurrency of the stand-in
+     */
+    static IdentityPlatformStandin start(int threads) throws IOException
+    {
+        // Without TCP_NODELAY, small responses wait for delayed ACKs and every request takes ~40 ms longer
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        IdentityPlatformStandin standin;
+
+        try
+        {
+            standin = new IdentityPlatformStandin(server, threads);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not create a signing key", e);
+        }
+
+        server.start();
+
+        return standin;
+    }
+
+    /**
+     * @return the host and port to configure as login and Graph host
+     */
+    String getHost()
+    {
+        return "127.0.0.1:" + _server.getAddress().getPort();
+    }
+
+    /**
+     * @return another name of the host, to configure as alternate login host
+     */
+    String getAlternateHost()
+    {
+        return "localhost:" + _server.getAddress().getPort();
+    }
+
+    Behavior getTokenBehavior()
+    {
+        return _tokenBehavior;
+    }
+
+    /**
+     * @return the behavior of the token endpoint when it is reached at the {@link #getAlternateHost() alternate host}
+     */
+    Behavior getAlternateTokenBehavior()
+    {
+        return _alternateTokenBehavior;
+    }
+
+    Behavior getUserInfoBehavior()
+    {
+        return _userInfoBehavior;
+    }
+
+    Behavior getProfileBehavior()
+    {
+        return _profileBehavior;
+    }
+
+    /**
+     * @return the behavior of the manager, photo, license details and pages of groups of a user in Graph
+     */
+    Behavior getLookupBehavior()
+    {
+        return _lookupBehavior;
+    }
+
+    Behavior getBatchBehavior()
+    {
+        return _batchBehavior;
+    }
+
+    /**
+     * @return the behavior of the thumbnails of the photo of a user, as opposed to the metadata of the photo
+     */
+    Behavior getPhotoBehavior()
+    {
+        return _photoBehavior;
+    }
+
+    /**
+     * @param users the number of users that codes are issued to, at random. The first user has the subject of
+     *              {@link CallbackRequestBenchmark#SUBJECT}. The ID token is the same for all users.
+     */
+    void setUsers(int users)
+    {
+        _users = users;
+    }
+
+    /**
+     * @param groupsPerUser the number of groups that each user is a member of. Users share groups, like in a
+     *                      directory where many people are in the same teams.
+     */
+    void setGroupsPerUser(int groupsPerUser)
+    {
+        _groupsPerUser = groupsPerUser;
+    }
+
+    /**
+     * @return the behavior of the endpoint with the given path, or null if there is no such endpoint
+     */
+    Behavior getBehavior(String path)
+    {
+        return _behaviors.get(path);
+    }
+
+    @Override
+    public void close()
+    {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Act like a user that has already authenticated and consented: redirect straight back with a code.
+     */
+    private void authorize(HttpExchange exchange) throws IOException
+    {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String code = UUID.randomUUID().toString();
+        String location = query.get("redirect_uri") + "?code=" + code + "&state=" + query.get("state");
+
+        _codes.put(code, ThreadLocalRandom.current().nextInt(_users));
+
+        exchange.getResponseHeaders().set("Location", location);
+        send(exchange, 302, "{}");
+    }
+
+    private void token(HttpExchange exchange) throws IOException
+    {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+
+        if (!"POST".equals(exchange.getRequestMethod()))
+        {
+            send(exchange, 405, "{\"error\":\"invalid_request\"}");
+
+            return;
+        }
+
+        Map<String, String> parameters = parseQuery(body);
+
+        if (!isClientAuthenticated(parameters))
+        {
+            send(exchange, 401, "{\"error\":\"invalid_client\",\"error_description\":\"The client could not be " +
+                    "authenticated\"}");
+
+            return;
+        }
+
+        Integer user = _codes.remove(parameters.get("code"));
+
+        if (user == null)
+        {
+            send(exchange, 400, "{\"error\":\"invalid_grant\",\"error_description\":\"The code was already " +
+                    "redeemed or is not valid\"}");
+
+            return;
+        }
+
+        // The access token identifies the user to the userinfo and profile endpoints
+        send(exchange, 200, _tokenResponsePrefix + user + "." + _tokenResponseSuffix);
+    }
+
+    /**
+     * @return true if the token request has a client secret, or a client assertion that identifies a certificate and
+     * has not expired. The signature is not verified, since the stand-in does not know the certificates.
+     */
+    private static boolean isClientAuthenticated(Map<String, String> parameters)
+    {
+        String assertion = parameters.get("client_assertion");
+
+        if (assertion == null)
+        {
+            return parameters.get("client_secret") != null;
+        }
+
+        String[] parts = assertion.split("\\.");
+
+        if (!ClientAssertionSigner.ASSERTION_TYPE.equals(parameters.get("client_assertion_type")) || parts.length != 3)
+        {
+            return false;
+        }
+
+        Base64.Decoder decoder = Base64.getUrlDecoder();
+        Map<?, ?> header = (Map<?, ?>) StandinJson.parse(new String(decoder.decode(parts[0]), StandardCharsets.UTF_8));
+        Map<?, ?> claims = (Map<?, ?>) StandinJson.parse(new String(decoder.decode(parts[1]), StandardCharsets.UTF_8));
+
+        return header.get("x5t") != null && claims.get("exp") instanceof Number &&
+                ((Number) claims.get("exp")).longValue() > System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * The discovery metadata of the tenant in the path, or 404 for any other path that no other context handles
+     */
+    private void discovery(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+
+        drain(exchange.getRequestBody());
+
+        if (!path.endsWith(DISCOVERY_SUFFIX) || path.indexOf('/', 1) != path.length() - DISCOVERY_SUFFIX.length())
+        {
+            send(exchange, 404, "{\"error\":\"not_found\"}");
+
+            return;
+        }
+
+        if (DISCOVERY_ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+        {
+            send(exchange, new Standins.Reply(304, Map.of("ETag", DISCOVERY_ETAG), new byte[0]));
+
+            return;
+        }
+
+        String base = "http://" + getHost();
+
+        send(exchange, new Standins.Reply(200, Map.of("Content-Type", "application/json", "ETag", DISCOVERY_ETAG),
+                ("{\"token_endpoint\":\"" + base + TOKEN_PATH + "\"," +
+                "\"token_endpoint_auth_methods_supported\":[\"client_secret_post\",\"private_key_jwt\"," +
+                "\"client_secret_basic\"],\"jwks_uri\":\"" + base + JWKS_PATH + "\"," +
+                "\"response_modes_supported\":[\"query\",\"fragment\",\"form_post\"]," +
+                "\"subject_types_supported\":[\"pairwise\"],\"id_token_signing_alg_values_supported\":[\"RS256\"]," +
+                "\"response_types_supported\":[\"code\",\"id_token\",\"code id_token\",\"id_token token\"]," +
+                "\"scopes_supported\":[\"openid\",\"profile\",\"email\",\"offline_access\"]," +
+                "\"issuer\":\"https://login.microsoftonline.com/{tenantid}/v2.0\"," +
+                "\"authorization_endpoint\":\"" + base + AUTHORIZE_PATH + "\"," +
+                "\"userinfo_endpoint\":\"https://graph.microsoft.com/oidc/userinfo\"," +
+                "\"tenant_region_scope\":null,\"cloud_instance_name\":\"microsoftonline.com\"}")
+                        .getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void userInfo(HttpExchange exchange) throws IOException
+    {
+        int user = authenticate(exchange);
+
+        if (user >= 0)
+        {
+            send(exchange, 200, CallbackRequestBenchmark.userInfoResponse(subject(user)));
+        }
+    }
+
+    private void graph(HttpExchange exchange) throws IOException
+    {
+        int user = authenticate(exchange);
+
+        if (user < 0)
+        {
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath();
+
+        if (BATCH_PATH.equals(path))
+        {
+            batch(exchange, user);
+        }
+        else
+        {
+            send(exchange, graphResource(path.substring(GRAPH_VERSION.length()), exchange.getRequestURI().getRawQuery(),
+                    exchange.getRequestHeaders().getFirst("If-None-Match"), user));
+        }
+    }
+
+    /**
+     * Answer the requests of a JSON batch, each with the faults of the behavior of its resource but without its
+     * latency, like Graph does when it runs the requests concurrently.
+     */
+    private void batch(HttpExchange exchange, int user) throws IOException
+    {
+        Map<?, ?> batch = (Map<?, ?>) StandinJson.parse(new String(exchange.getRequestBody().readAllBytes(),
+                StandardCharsets.UTF_8));
+        List<Object> responses = new ArrayList<>();
+
+        for (Object item : (List<?>) batch.get("requests"))
+        {
+            Map<?, ?> request = (Map<?, ?>) item;
+            String url = request.get("url").toString();
+            String path = url.indexOf('?') < 0 ? url : url.substring(0, url.indexOf('?'));
+            Map<?, ?> headers = request.get("headers") instanceof Map ? (Map<?, ?>) request.get("headers") : Map.of();
+            Behavior behavior = graphBehavior(GRAPH_VERSION + path);
+
+            behavior._requests.incrementAndGet();
+
+            Standins.Reply fault = behavior.fault();
+            Standins.Reply reply = fault != null
+                    ? fault
+                    : graphResource(path, url.indexOf('?') < 0 ? null : url.substring(url.indexOf('?') + 1),
+                            (String) headers.get("If-None-Match"), user);
+            Map<String, Object> response = new LinkedHashMap<>();
+
+            response.put("id", request.get("id"));
+            response.put("status", reply.getStatusCode());
+            response.put("headers", reply.getHeaders());
+
+            if (reply.getBody().length > 0)
+            {
+                response.put("body", StandinJson.parse(new String(reply.getBody(), StandardCharsets.UTF_8)));
+            }
+
+            responses.add(response);
+        }
+
+        send(exchange, 200, StandinJson.write(Map.of("responses", responses)));
+    }
+
+    /**
+     * @param path the path of the resource without the version of Graph, e.g. {@code /me}
+     */
+    private Standins.Reply graphResource(String path, String query, String ifNoneMatch, int user)
+    {
+        switch (path)
+        {
+            case "/me":
+                String etag = "W/\"" + user + "-1\"";
+
+                if (etag.equals(ifNoneMatch))
+                {
+                    return new Standins.Reply(304, Map.of("ETag", etag), new byte[0]);
+                }
+
+                return new Standins.Reply(200, Map.of("Content-Type", "application/json", "ETag", etag), (
+                        "{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users/$entity\"," +
+                        "\"id\":\"" + UUID.nameUUIDFromBytes(subject(user).getBytes(StandardCharsets.UTF_8)) + "\"," +
+                        "\"displayName\":\"Ada Lovelace\",\"givenName\":\"Ada\",\"surname\":\"Lovelace\"," +
+                        "\"mail\":\"ada" + user + "@example.com\",\"jobTitle\":\"Analyst\"," +
+                        "\"officeLocation\":\"London\",\"preferredLanguage\":\"en-GB\",\"mobilePhone\":null," +
+                        "\"businessPhones\":[\"+44 20 7946 0000\"]}").getBytes(StandardCharsets.UTF_8));
+            case "/me/manager":
+                // Every fifth user has no manager
+                if (user % 5 == 4)
+                {
+                    return Standins.Reply.json(404, "{\"error\":{\"code\":\"Request_ResourceNotFound\"," +
+                            "\"message\":\"Resource 'manager' does not exist or one of its queried " +
+                            "reference-property objects are not present.\"}}");
+                }
+
+                return Standins.Reply.json(200, "{\"@odata.context\":\"https://graph.microsoft.com/v1.0/" +
+                        "$metadata#directoryObjects/$entity\",\"@odata.type\":\"#microsoft.graph.user\"," +
+                        "\"id\":\"2f1a8c3e-5b7d-4e9a-8c6f-1d3b5a7e9c2f\",\"displayName\":\"Charles Babbage\"," +
+                        "\"mail\":\"charles@example.com\",\"jobTitle\":\"Head of Analysis\"}");
+            case "/me/photo":
+                return Standins.Reply.json(200, "{\"@odata.context\":\"https://graph.microsoft.com/v1.0/" +
+                        "$metadata#users('" + user + "')/photo/$entity\",\"@odata.mediaContentType\":\"image/jpeg\"," +
+                        "\"@odata.mediaEtag\":\"W/\\\"" + user + "\\\"\",\"id\":\"648X648\",\"height\":648," +
+                        "\"width\":648}");
+            case "/me/licenseDetails":
+                return Standins.Reply.json(200, "{\"@odata.context\":\"https://graph.microsoft.com/v1.0/" +
+                        "$metadata#users('" + user + "')/licenseDetails(skuId,skuPartNumber)\",\"value\":[" +
+                        "{\"skuId\":\"6fd2c87f-b296-42f0-b197-1e91e994b900\",\"skuPartNumber\":\"ENTERPRISEPACK\"}," +
+                        "{\"skuId\":\"efccb6f7-5641-4e0e-bd10-b4976e1bf68e\",\"skuPartNumber\":\"EMS\"}]}");
+            case GroupMemberships.TRANSITIVE_URL:
+            case GroupMemberships.DIRECT_URL:
+                return groups(path, parseQuery(query), user);
+            default:
+                return path.startsWith(PHOTOS_PATH)
+                        ? photo(path.substring(PHOTOS_PATH.length()), ifNoneMatch, user)
+                        : Standins.Reply.json(404, "{\"error\":{\"code\":\"Request_ResourceNotFound\"}}");
+        }
+    }
+
+    /**
+     * A thumbnail of the photo of the user, which is about as large as a JPEG of its size
+     *
+     * @param thumbnail the thumbnail and the content, e.g. {@code 96x96/$value}
+     */
+    private static Standins.Reply photo(String thumbnail, String ifNoneMatch, int user)
+    {
+        int separator = thumbnail.indexOf('x');
+
+        // Every seventh user has no photo
+        if (user % 7 == 6 || separator < 0 || !thumbnail.endsWith("/$value"))
+        {
+            return Standins.Reply.json(404, "{\"error\":{\"code\":\"ImageNotFound\",\"message\":\"The photo " +
+                    "wasn't found.\"}}");
+        }
+
+        int size = Integer.parseInt(thumbnail.substring(0, separator));
+        String etag = "W/\"photo-" + user + "-" + size + "\"";
+
+        if (etag.equals(ifNoneMatch))
+        {
+            return new Standins.Reply(304, Map.of("ETag", etag), new byte[0]);
+        }
+
+        byte[] content = new byte[size * size / 4];
+
+        new Random(user).nextBytes(content);
+
+        return new Standins.Reply(200, Map.of("Content-Type", "image/jpeg", "ETag", etag), content);
+    }
+
+    /**
+     * A page of the groups of the user, with an absolute link to the next page like Graph has. The skip token is the
+     * offset of the next page, where Graph has an opaque value.
+     */
+    private Standins.Reply groups(String path, Map<String, String> query, int user)
+    {
+        int groups = _groupsPerUser;
+        int top = Math.min(Integer.parseInt(query.getOrDefault("$top", "100")), 999);
+        int offset = Integer.parseInt(query.getOrDefault("$skiptoken", "0"));
+        List<Object> page = new ArrayList<>();
+        Map<String, Object> body = new LinkedHashMap<>();
+
+        for (int i = offset; i < Math.min(offset + top, groups); i++)
+        {
+            // Each user is in a window of consecutive groups out of 10000
+            page.add(Map.of("@odata.type", "#microsoft.graph.group",
+                    "id", new UUID(0x5f0a3c7e2b1d4e6aL, 0x8000000000000000L | (user * 37L + i) % 10000).toString()));
+        }
+
+        body.put("@odata.context", "https://graph.microsoft.com/v1.0/$metadata#groups(id)");
+
+        if (offset + top < groups)
+        {
+            body.put("@odata.nextLink", "http://" + getHost() + "/v1.0" + path + "?$select=id&$top=" + top +
+                    "&$skiptoken=" + (offset + top));
+        }
+
+        body.put("value", page);
+
+        return Standins.Reply.json(200, StandinJson.write(body));
+    }
+
+    private Behavior graphBehavior(String path)
+    {
+        if (BATCH_PATH.equals(path))
+        {
+            return _batchBehavior;
+        }
+
+        if (path.startsWith(GRAPH_VERSION + PHOTOS_PATH))
+        {
+            return _photoBehavior;
+        }
+
+        return PROFILE_PATH.equals(path) ? _profileBehavior : _lookupBehavior;
+    }
+
+    /**
+     * @return the user that the bearer token of the request was issued to, or -1 if there is none, in which case a
+     * 401 has been sent
+     */
+    private static int authenticate(HttpExchange exchange) throws IOException
+    {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        int separator = authorization == null ? -1 : authorization.indexOf('.');
+
+        if (authorization == null || !authorization.startsWith("Bearer ") || separator < 0)
+        {
+            send(exchange, 401, "{\"error\":{\"code\":\"InvalidAuthenticationToken\"}}");
+
+            return -1;
+        }
+
+        try
+        {
+            return Integer.parseInt(authorization.substring("Bearer ".length(), separator));
+        }
+        catch (NumberFormatException e)
+        {
+            send(exchange, 401, "{\"error\":{\"code\":\"InvalidAuthenticationToken\"}}");
+
+            return -1;
+        }
+    }
+
+    private static String subject(int user)
+    {
+        return user == 0 ? CallbackRequestBenchmark.SUBJECT : CallbackRequestBenchmark.SUBJECT + user;
+    }
+
+    /**
+     * @return an ID token for the default client of the stand-in configuration that is valid for a day
+     */
+    private static String idToken(PrivateKey signingKey) throws GeneralSecurityException
+    {
+        long now = System.currentTimeMillis() / 1000;
+        Map<String, Object> header = new LinkedHashMap<>();
+        Map<String, Object> claims = new LinkedHashMap<>();
+
+        header.put("typ", "JWT");
+        header.put("alg", "RS256");
+        header.put("kid", KEY_ID);
+        claims.put("aud", Standins.configuration(Map.of()).getClientId());
+        claims.put("iss", "https://login.microsoftonline.com/" + TENANT_ID + "/v2.0");
+        claims.put("iat", now);
+        claims.put("nbf", now);
+        claims.put("exp", now + 86400);
+        claims.put("name", "Ada Lovelace");
+        claims.put("preferred_username", "ada@example.com");
+        claims.put("sub", CallbackRequestBenchmark.SUBJECT);
+        claims.put("tid", TENANT_ID);
+        claims.put("ver", "2.0");
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String signingInput = encoder.encodeToString(StandinJson.write(header).getBytes(StandardCharsets.UTF_8)) +
+                "." + encoder.encodeToString(StandinJson.write(claims).getBytes(StandardCharsets.UTF_8));
+        Signature signature = Signature.getInstance("SHA256withRSA");
+
+        signature.initSign(signingKey);
+        signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+        return signingInput + "." + encoder.encodeToString(signature.sign());
+    }
+
+    private static String jwks(RSAPublicKey publicKey)
+    {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        Map<String, Object> key = new LinkedHashMap<>();
+
+        key.put("kty", "RSA");
+        key.put("use", "sig");
+        key.put("kid", KEY_ID);
+        key.put("n", encoder.encodeToString(unsigned(publicKey.getModulus())));
+        key.put("e", encoder.encodeToString(unsigned(publicKey.getPublicExponent())));
+
+        return StandinJson.write(Map.of("keys", List.of(key)));
+    }
+
+    private static byte[] unsigned(BigInteger value)
+    {
+        byte[] bytes = value.toByteArray();
+
+        return bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+    private static boolean isAlternate(HttpExchange exchange)
+    {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+
+        return host != null && host.startsWith("localhost");
+    }
+
+    private static HttpHandler faulty(Function<HttpExchange, Behavior> behaviors, HttpHandler handler)
+    {
+        return exchange ->
+        {
+            Behavior behavior = behaviors.apply(exchange);
+
+            behavior._requests.incrementAndGet();
+
+            try
+            {
+                behavior.delay();
+
+                Standins.Reply fault = behavior.fault();
+
+                if (fault != null)
+                {
+                    drain(exchange.getRequestBody());
+                    send(exchange, fault);
+                }
+                else
+                {
+                    handler.handle(exchange);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                exchange.close();
+            }
+        };
+    }
+
+    private static void send(HttpExchange exchange, int statusCode, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+
+        try (OutputStream responseBody = exchange.getResponseBody())
+        {
+            responseBody.write(bytes);
+        }
+    }
+
+    private static void send(HttpExchange exchange, Standins.Reply reply) throws IOException
+    {
+        reply.getHeaders().forEach(exchange.getResponseHeaders()::set);
+
+        if (reply.getStatusCode() == 304)
+        {
+            // The JDK server sometimes drops the connection after a 304, which the client must not reuse then
+            exchange.getResponseHeaders().set("Connection", "close");
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+
+            return;
+        }
+
+        byte[] body = reply.getBody();
+
+        exchange.sendResponseHeaders(reply.getStatusCode(), body.length);
+
+        // The server allocates a buffer of the size of each write, so large bodies are written in chunks
+        try (OutputStream responseBody = exchange.getResponseBody())
+        {
+            for (int offset = 0; offset < body.length; offset += WRITE_CHUNK_BYTES)
+            {
+                responseBody.write(body, offset, Math.min(WRITE_CHUNK_BYTES, body.length - offset));
+            }
+        }
+    }
+
+    private static void drain(InputStream body) throws IOException
+    {
+        body.transferTo(OutputStream.nullOutputStream());
+    }
+
+    static Map<String, String> parseQuery(String rawQuery)
+    {
+        Map<String, String> parameters = new HashMap<>();
+
+        if (rawQuery == null)
+        {
+            return parameters;
+        }
+
+        for (String parameter : rawQuery.split("&"))
+        {
+            int separator = parameter.indexOf('=');
+
+            if (separator > 0)
+            {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+            }
+        }
+
+        return parameters;
+    }
+
+    static Map<String, String> parseQuery(URI uri)
+    {
+        return parseQuery(uri.getRawQuery());
+    }
+
+    /**
+     * The faults to inject into an endpoint. Settings can be changed while the stand-in is serving requests.
+     */
+    static final class Behavior
+    {
+        private final AtomicLong _requests = new AtomicLong();
+
+        private volatile long _latencyMillis;
+        private volatile long _jitterMillis;
+        private volatile double _slowRate;
+        private volatile long _slowLatencyMillis;
+        private volatile double _errorRate;
+        private volatile byte[] _errorPage;
+        private volatile double _throttleRate;
+        private volatile int _retryAfterSeconds = 1;
+        private volatile int _rateLimit;
+        private long _rateLimitWindow;
+        private int _rateLimitCount;
+
+        /**
+         * Delay every response by the given latency plus a uniformly distributed jitter.
+         */
+        Behavior latency(long latency, long jitter, TimeUnit unit)
+        {
+            _latencyMillis = unit.toMillis(latency);
+            _jitterMillis = unit.toMillis(jitter);
+
+            return this;
+        }
+
+        /**
+         * Delay a fraction of the responses by another latency, which makes for a long tail.
+         *
+         * @param slowRate the fraction of responses, between 0 and 1, that are delayed
+         */
+        Behavior slowResponses(double slowRate, long latency, TimeUnit unit)
+        {
+            _slowRate = slowRate;
+            _slowLatencyMillis = unit.toMillis(latency);
+
+            return this;
+        }
+
+        /**
+         * @param errorRate the fraction of requests, between 0 and 1, that fail with 500
+         */
+        Behavior errorRate(double errorRate)
+        {
+            _errorRate = errorRate;
+
+            return this;
+        }
+
+        /**
+         * Answer the requests that fail with 502 and an HTML page of the given size, like a proxy or a captive portal
+         * in front of the endpoint would, instead of with 500 and a JSON error.
+         *
+         * @param bytes the size of the page, or 0 to answer with a JSON error
+         */
+        Behavior errorPage(int bytes)
+        {
+            if (bytes == 0)
+            {
+                _errorPage = null;
+
+                return this;
+            }
+
+            byte[] page = new byte[bytes];
+            byte[] start = "<html><body>Bad gateway".getBytes(StandardCharsets.US_ASCII);
+
+            Arrays.fill(page, (byte) ' ');
+            System.arraycopy(start, 0, page, 0, Math.min(start.length, bytes));
+            _errorPage = page;
+
+            return this;
+        }
+
+        /**
+         * @param throttleRate      the fraction of requests, between 0 and 1, that are throttled with 429
+         * @param retryAfterSeconds the value of the {@code Retry-After} header of throttled responses
+         */
+        Behavior throttleRate(double throttleRate, int retryAfterSeconds)
+        {
+            _throttleRate = throttleRate;
+            _retryAfterSeconds = retryAfterSeconds;
+
+            return this;
+        }
+
+        /**
+         * Throttle the requests beyond the given number per second with 429, like Microsoft Graph does.
+         *
+         * @param requestsPerSecond the requests allowed per second, or 0 for no limit
+         */
+        Behavior rateLimit(int requestsPerSecond, int retryAfterSeconds)
+        {
+            _rateLimit = requestsPerSecond;
+            _retryAfterSeconds = retryAfterSeconds;
+
+            return this;
+        }
+
+        long getRequestCount()
+        {
+            return _requests.get();
+        }
+
+        /**
+         * @return the throttled or failed response to inject into a request, or null to answer it normally
+         */
+        private Standins.Reply fault()
+        {
+            double dice = ThreadLocalRandom.current().nextDouble();
+
+            if (dice < _throttleRate || isOverRateLimit())
+            {
+                return new Standins.Reply(429, Map.of("Content-Type", "application/json", "Retry-After",
+                        Integer.toString(_retryAfterSeconds)),
+                        "{\"error\":{\"code\":\"TooManyRequests\"}}".getBytes(StandardCharsets.UTF_8));
+            }
+            else if (dice < _throttleRate + _errorRate)
+            {
+                byte[] errorPage = _errorPage;
+
+                return errorPage == null
+                        ? Standins.Reply.json(500, "{\"error\":\"server_error\"}")
+                        : new Standins.Reply(502, Map.of("Content-Type", "text/html"), errorPage);
+            }
+
+            return null;
+        }
+
+        private synchronized boolean isOverRateLimit()
+        {
+            if (_rateLimit == 0)
+            {
+                return false;
+            }
+
+            long window = System.nanoTime() / 1_000_000_000L;
+
+            if (window != _rateLimitWindow)
+            {
+                _rateLimitWindow = window;
+                _rateLimitCount = 0;
+            }
+
+            return ++_rateLimitCount > _rateLimit;
+        }
+
+        private void delay() throws InterruptedException
+        {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = _latencyMillis + (_jitterMillis > 0 ? random.nextLong(_jitterMillis) : 0) +
+                    (random.nextDouble() < _slowRate ? _slowLatencyMillis : 0);
+
+            if (delay > 0)
+            {
+                Thread.sleep(delay);
+            }
+        }
+    }
+}
@@ -0,0 +1,618 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.ClaimsSource;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.GroupMembership;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.GroupsOverage;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.LoginEventDestination;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.LoginEventOverflow;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.Scheme.HTTP;
+
+/**
+ * Runs complete logins, from the index handler through the authorization endpoint to the callback handler, with a
+ * number of concurrent virtual users against an {@link IdentityPlatformStandin}, and reports latency percentiles and
+ * throughput.
+ *
+ * <p>Options are given as {@code --name=value}:</p>
+ * <ul>
+ *     <li>{@code users}: the number of concurrent virtual users (default 50)</li>
+ *     <li>{@code duration} and {@code warmup}: seconds to measure and to run before measuring (default 30 and 5)</li>
+ *     <li>{@code token-latency}, {@code token-jitter}, {@code userinfo-latency} and {@code userinfo-jitter}: the
+ *     latency in milliseconds that the stand-in adds to its responses (default 0)</li>
+ *     <li>{@code token-slow-rate} and {@code token-slow-latency}: the fraction of token responses that are delayed
+ *     by another latency in milliseconds, for a long tail (default 0)</li>
+ *     <li>{@code alternate-login-host}: {@code true} to configure the alternate host of the stand-in as Alternate
+ *     Login Host, which fails over token requests, and hedges them with a {@code hedging-budget} (default
+ *     {@code false})</li>
+ *     <li>{@code alternate-token-latency} and {@code alternate-token-jitter}: the latency in milliseconds that the
+ *     stand-in adds to token responses at its alternate host (default 0)</li>
+ *     <li>{@code hedging-percentile} and {@code hedging-budget}: the Token Request Hedging Percentile and Budget
+ *     (default 95 and 0)</li>
+ *     <li>{@code error-rate} and {@code throttle-rate}: the fraction of upstream requests that fail with 500 or 429
+ *     (default 0)</li>
+ *     <li>{@code error-page-size}: the size in bytes of an HTML page that the requests that fail are answered with,
+ *     with 502 as a proxy would, instead of a JSON error (default 0, JSON)</li>
+ *     <li>{@code error-body-limit}: the Error Body Limit (default 4096)</li>
+ *     <li>{@code userinfo-rate-limit}: the userinfo requests per second that the stand-in allows before it throttles
+ *     them with 429 and a {@code Retry-After} of {@code retry-after} seconds (default 0, no limit, and 1)</li>
+ *     <li>{@code graph-concurrency-limit} and {@code graph-throttling-wait}: the Graph Concurrency Limit and Graph
+ *     Throttling Wait (default 64 and 2000)</li>
+ *     <li>{@code subjects}: the number of distinct users that the stand-in issues codes to (default 1)</li>
+ *     <li>{@code profile-attributes}: comma separated Profile Attributes to fetch from Graph (default none)</li>
+ *     <li>{@code profile-cache-size} and {@code profile-cache-ttl}: the Profile Cache Size and TTL (default 10000
+ *     and 300)</li>
+ *     <li>{@code graph-lookups}: comma separated lookups in Graph besides the profile, {@code manager},
+ *     {@code photo} and {@code licenses}, which are sent in a batch (default none)</li>
+ *     <li>{@code enrichment-timeout}: the Enrichment Timeout (default 1000)</li>
+ *     <li>{@code profile-latency} and {@code batch-latency}: the latency in milliseconds that the stand-in adds to
+ *     profile and batch responses (default 0)</li>
+ *     <li>{@code profile-error-rate} and {@code lookup-error-rate}: the fraction of profile requests and of other
+ *     lookups that fail with 500, also within a batch (default 0)</li>
+ *     <li>{@code groups}: {@code true} to add the groups of the user as an attribute (default {@code false})</li>
+ *     <li>{@code groups-per-user}: the number of groups that each user of the stand-in is a member of (default
+ *     0)</li>
+ *     <li>{@code groups-page-size}, {@code maximum-groups} and {@code groups-overage}: the Groups Page Size, Maximum
+ *     Groups and Groups Overage (default 100, 200 and {@code OMIT})</li>
+ *     <li>{@code group-membership}: the Group Membership, {@code TRANSITIVE} or {@code DIRECT} (default
+ *     {@code TRANSITIVE})</li>
+ *     <li>{@code groups-cache-capacity} and {@code groups-cache-ttl}: the Groups Cache Capacity and TTL (default
+ *     500000 and 300)</li>
+ *     <li>{@code photo-size}: the Photo Thumbnail Size (default 0, no photos)</li>
+ *     <li>{@code photo-cache-capacity}, {@code photo-cache-ttl} and {@code photo-wait}: the Photo Cache Capacity,
+ *     TTL and Wait (default 65536, 3600 and 100)</li>
+ *     <li>{@code photo-latency}: the latency in milliseconds that the stand-in adds to thumbnails (default 0)</li>
+ *     <li>{@code client-assertion}: the key that the client authenticates with instead of the client secret,
+ *     {@code RS256} or {@code ES256} (default none)</li>
+ *     <li>{@code server-threads}: the number of threads serving the stand-in (default 200)</li>
+ *     <li>{@code tenant} and {@code discovery-refresh-interval}: the Tenant and Discovery Refresh Interval (default
+ *     {@code common} and 3600). The load starts once the discovery metadata has been fetched.</li>
+ *     <li>{@code claims-source}: where the subject is taken from, {@code USERINFO} or {@code ID_TOKEN} (default
+ *     {@code USERINFO})</li>
+ *     <li>{@code state-mode}: how the state is kept, {@code SESSION}, {@code SIGNED} or {@code ENCRYPTED} (default
+ *     {@code SESSION})</li>
+ *     <li>{@code replay-rate}: the fraction of successful callbacks that are sent again, as a replay attack would
+ *     (default 0)</li>
+ *     <li>{@code replay-filter-capacity}: the Replay Filter Capacity (default 100000)</li>
+ *     <li>{@code callback-concurrency-limit}, {@code callback-client-rate}, {@code callback-client-burst} and
+ *     {@code callback-session-limit}: the Callback Concurrency Limit, Client Rate, Client Burst and Session Limit
+ *     (default 0, 0, 50 and 5). Each virtual user has a client IP address of its own.</li>
+ *     <li>{@code callback-deadline}: the Callback Deadline in milliseconds (default 0, none)</li>
+ *     <li>{@code login-events}, {@code login-event-file}, {@code login-event-buffer-size} and
+ *     {@code login-event-overflow}: the Login Event Destination, File, Buffer Size and Overflow (default NONE, none,
+ *     8192 and DROP)</li>
+ *     <li>{@code metrics}: {@code true} to enable the metrics of the callback handler and print their summary at
+ *     the end (default {@code false})</li>
+ *     <li>{@code metrics-provider}: the Metrics Provider (default histogram)</li>
+ *     <li>{@code virtual-threads} and {@code upstream-thread-limit}: Use Virtual Threads and the Upstream Thread Limit
+ *     (default {@code true} and 256)</li>
+ *     <li>{@code warm-up-connections}: the number of connections to warm up to the stand-in when the configuration is
+ *     instantiated (default 0)</li>
+ * </ul>
+ *
+ * <p>Run it from the benchmark jar:
+ * {@code java -cp target/benchmarks.jar io.curity.identityserver.plugin.live.windows.authentication.LoadDriver}</p>
+ */
+public final class LoadDriver
+{
+    private static final Map<String, String> USER_AGENT = Map.of("User-Agent", Standins.USER_AGENT);
+
+    private final Map<String, String> _options;
+    private final Map<String, LongAdder> _failures = new ConcurrentHashMap<>();
+    private final LongAdder _replays = new LongAdder();
+    private final LongAdder _rejectedReplays = new LongAdder();
+    private final LongAdder _replayNanos = new LongAdder();
+
+    private LoadDriver(Map<String, String> options)
+    {
+        _options = options;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+
+        for (String arg : args)
+        {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+            {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        new LoadDriver(options).run();
+    }
+
+    private void run() throws Exception
+    {
+        int users = intOption("users", 50);
+        long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+
+        try (IdentityPlatformStandin standin = IdentityPlatformStandin.start(intOption("server-threads", 200)))
+        {
+            double errorRate = doubleOption("error-rate", 0);
+            double throttleRate = doubleOption("throttle-rate", 0);
+            int errorPageSize = intOption("error-page-size", 0);
+
+            standin.getTokenBehavior()
+                    .latency(intOption("token-latency", 0), intOption("token-jitter", 0), TimeUnit.MILLISECONDS)
+                    .errorRate(errorRate)
+                    .errorPage(errorPageSize)
+                    .throttleRate(throttleRate, 1)
+                    .slowResponses(doubleOption("token-slow-rate", 0), intOption("token-slow-latency", 0),
+                            TimeUnit.MILLISECONDS);
+            standin.getAlternateTokenBehavior()
+                    .latency(intOption("alternate-token-latency", 0), intOption("alternate-token-jitter", 0),
+                            TimeUnit.MILLISECONDS);
+            standin.getUserInfoBehavior()
+                    .latency(intOption("userinfo-latency", 0), intOption("userinfo-jitter", 0),
+                            TimeUnit.MILLISECONDS)
+                    .errorRate(errorRate)
+                    .errorPage(errorPageSize)
+                    .throttleRate(throttleRate, 1)
+                    .rateLimit(intOption("userinfo-rate-limit", 0), intOption("retry-after", 1));
+            standin.getProfileBehavior()
+                    .latency(intOption("profile-latency", 0), 0, TimeUnit.MILLISECONDS)
+                    .errorRate(doubleOption("profile-error-rate", 0));
+            standin.getLookupBehavior()
+                    .errorRate(doubleOption("lookup-error-rate", 0));
+            standin.getBatchBehavior()
+                    .latency(intOption("batch-latency", 0), 0, TimeUnit.MILLISECONDS);
+            standin.getPhotoBehavior()
+                    .latency(intOption("photo-latency", 0), 0, TimeUnit.MILLISECONDS);
+            standin.setUsers(intOption("subjects", 1));
+            standin.setGroupsPerUser(intOption("groups-per-user", 0));
+
+            HttpUpstream upstream = new HttpUpstream();
+            boolean alternateLoginHost = Boolean.parseBoolean(_options.getOrDefault("alternate-login-host", "false"));
+            List<String> graphLookups = List.of(_options.getOrDefault("graph-lookups", "").split(","));
+            Optional<String> clientAssertion = Optional.ofNullable(_options.get("client-assertion"));
+            boolean rsa = clientAssertion.filter("RS256"::equals).isPresent();
+            WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.ofEntries(
+                    Map.entry("getLoginHost", standin.getHost()),
+                    Map.entry("getGraphHost", standin.getHost()),
+                    Map.entry("getUpstreamScheme", HTTP),
+                    Map.entry("getTenant", _options.getOrDefault("tenant", "common")),
+                    Map.entry("getDiscoveryRefreshInterval", intOption("discovery-refresh-interval", 3600)),
+                    Map.entry("getClaimsSource",
+                            ClaimsSource.valueOf(_options.getOrDefault("claims-source", "USERINFO"))),
+                    Map.entry("getWarmUpConnections", intOption("warm-up-connections", 0)),
+                    Map.entry("getStateMode", StateMode.valueOf(_options.getOrDefault("state-mode", "SESSION"))),
+                    Map.entry("getStateKeys", List.of(Standins.STATE_KEY)),
+                    Map.entry("getCallbackDeadline", intOption("callback-deadline", 0)),
+                    Map.entry("getReplayFilterCapacity", intOption("replay-filter-capacity", 100000)),
+                    Map.entry("getCallbackConcurrencyLimit", intOption("callback-concurrency-limit", 0)),
+                    Map.entry("getCallbackClientRate", intOption("callback-client-rate", 0)),
+                    Map.entry("getCallbackClientBurst", intOption("callback-client-burst", 50)),
+                    Map.entry("getCallbackSessionLimit", intOption("callback-session-limit", 5)),
+                    Map.entry("getAlternateLoginHosts",
+                            alternateLoginHost ? List.of(standin.getAlternateHost()) : List.of()),
+                    Map.entry("getTokenRequestHedgingPercentile", intOption("hedging-percentile", 95)),
+                    Map.entry("getTokenRequestHedgingBudget", intOption("hedging-budget", 0)),
+                    Map.entry("getGraphConcurrencyLimit", intOption("graph-concurrency-limit", 64)),
+                    Map.entry("getGraphThrottlingWait", intOption("graph-throttling-wait", 2000)),
+                    Map.entry("getErrorBodyLimit", intOption("error-body-limit", 4096)),
+                    Map.entry("getProfileAttributes", _options.containsKey("profile-attributes")
+                            ? List.of(_options.get("profile-attributes").split(","))
+                            : List.of()),
+                    Map.entry("getProfileCacheSize", intOption("profile-cache-size", 10000)),
+                    Map.entry("getProfileCacheTtl", intOption("profile-cache-ttl", 300)),
+                    Map.entry("isManagerAttribute", graphLookups.contains("manager")),
+                    Map.entry("isPhotoAttribute", graphLookups.contains("photo")),
+                    Map.entry("isLicensesAttribute", graphLookups.contains("licenses")),
+                    Map.entry("isGroupsAttribute", Boolean.parseBoolean(_options.getOrDefault("groups", "false"))),
+                    Map.entry("getGroupsPageSize", intOption("groups-page-size", 100)),
+                    Map.entry("getMaximumGroups", intOption("maximum-groups", 200)),
+                    Map.entry("getGroupsOverage",
+                            GroupsOverage.valueOf(_options.getOrDefault("groups-overage", "OMIT"))),
+                    Map.entry("getGroupMembership",
+                            GroupMembership.valueOf(_options.getOrDefault("group-membership", "TRANSITIVE"))),
+                    Map.entry("getGroupsCacheCapacity", intOption("groups-cache-capacity", 500000)),
+                    Map.entry("getGroupsCacheTtl", intOption("groups-cache-ttl", 300)),
+                    Map.entry("getPhotoThumbnailSize", intOption("photo-size", 0)),
+                    Map.entry("getPhotoCacheCapacity", intOption("photo-cache-capacity", 65536)),
+                    Map.entry("getPhotoCacheTtl", intOption("photo-cache-ttl", 3600)),
+                    Map.entry("getPhotoWait", intOption("photo-wait", 100)),
+                    Map.entry("getClientAssertionKey", clientAssertion.map(algorithm -> rsa
+                            ? Standins.CLIENT_ASSERTION_RSA_KEY
+                            : Standins.CLIENT_ASSERTION_EC_KEY)),
+                    Map.entry("getClientAssertionCertificate", clientAssertion.map(algorithm -> rsa
+                            ? Standins.CLIENT_ASSERTION_RSA_CERTIFICATE
+                            : Standins.CLIENT_ASSERTION_EC_CERTIFICATE)),
+                    Map.entry("getEnrichmentTimeout", intOption("enrichment-timeout", 1000)),
+                    Map.entry("isMetricsEnabled", Boolean.parseBoolean(_options.getOrDefault("metrics", "false"))),
+                    Map.entry("getMetricsProvider", _options.getOrDefault("metrics-provider", "histogram")),
+                    Map.entry("isUseVirtualThreads",
+                            Boolean.parseBoolean(_options.getOrDefault("virtual-threads", "true"))),
+                    Map.entry("getUpstreamThreadLimit", intOption("upstream-thread-limit", 256)),
+                    Map.entry("getLoginEventDestination",
+                            LoginEventDestination.valueOf(_options.getOrDefault("login-events", "NONE"))),
+                    Map.entry("getLoginEventFile", Optional.ofNullable(_options.get("login-event-file"))),
+                    Map.entry("getLoginEventBufferSize", intOption("login-event-buffer-size", 8192)),
+                    Map.entry("getLoginEventOverflow",
+                            LoginEventOverflow.valueOf(_options.getOrDefault("login-event-overflow", "DROP"))),
+                    Map.entry("getWebServiceClientFactory", Standins.webServiceClientFactory(upstream))));
+            WindowsLiveAuthenticatorManagedObject managedObject = new WindowsLiveAuthenticatorManagedObject(
+                    configuration);
+
+            DiscoveryCache discoveryCache = managedObject.getDiscoveryCache();
+
+            // As when a configuration has been loaded for a while, which matters for tenants other than common, whose
+            // well-known endpoints the stand-in does not have
+            for (int i = 0; i < 100 && !discoveryCache.get().isDiscovered(); i++)
+            {
+                Thread.sleep(50);
+            }
+
+            long start = System.nanoTime();
+            long measureFrom = start + warmupNanos;
+            long stopAt = measureFrom + durationNanos;
+            List<VirtualUser> virtualUsers = new ArrayList<>(users);
+            CountDownLatch done = new CountDownLatch(users);
+
+            System.out.printf("Running %d virtual users against %s for %ds after a %ds warm-up%n", users,
+                    standin.getHost(), TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                    TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+
+            for (int i = 0; i < users; i++)
+            {
+                VirtualUser virtualUser = new VirtualUser(configuration, managedObject, upstream,
+                        "10.0." + i / 256 + "." + i % 256, measureFrom, stopAt, done);
+
+                virtualUsers.add(virtualUser);
+
+                Thread thread = new Thread(virtualUser, "virtual-user-" + i);
+
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            done.await();
+            managedObject.close();
+            report(virtualUsers, durationNanos);
+
+            TokenRequestHedger tokenRequestHedger = managedObject.getTokenRequestHedger();
+
+            if (tokenRequestHedger != null)
+            {
+                System.out.printf("Hedging:    %d token requests hedged, %d failed over, %d answered by the " +
+                                "alternate host%n", tokenRequestHedger.getHedgedRequests(),
+                        tokenRequestHedger.getFailovers(), tokenRequestHedger.getHedgeWins());
+            }
+
+            System.out.printf("Graph:      concurrency limit %d at the end%n",
+                    managedObject.getGraphRequestLimiter().getLimit());
+
+            ProfileCache profileCache = managedObject.getProfileCache();
+
+            if (profileCache != null)
+            {
+                System.out.printf("Profiles:   %d cached, %d hits, %d revalidated, %d fetched%n", profileCache.size(),
+                        profileCache.getHits(), profileCache.getRevalidations(), profileCache.getFetches());
+            }
+
+            GroupCache groupCache = managedObject.getGroupCache();
+
+            if (groupCache != null)
+            {
+                System.out.printf("Groups:     %s cached, %d hits%n", groupCache.describe(), groupCache.getHits());
+            }
+
+            PhotoCache photoCache = managedObject.getPhotoCache();
+
+            if (photoCache != null)
+            {
+                System.out.printf("Photos:     %s cached, %d hits, %d revalidated, %d fetched%n", photoCache.describe(),
+                        photoCache.getHits(), photoCache.getRevalidations(), photoCache.getFetches());
+            }
+
+            if (_replays.sum() > 0)
+            {
+                System.out.printf("Replays:    %d sent, %d rejected, %.1f us on average%n", _replays.sum(),
+                        _rejectedReplays.sum(), _replayNanos.sum() / 1000.0 / _replays.sum());
+            }
+
+            CallbackAdmission admission = managedObject.getCallbackAdmission();
+
+            System.out.printf("Admission:  %d admitted, %d shed overloaded, %d shed by client rate, %d shed by " +
+                    "session limit%n", admission.getAdmitted(), admission.getOverloaded(),
+                    admission.getClientLimited(), admission.getSessionLimited());
+            LoginEventRing loginEvents = managedObject.getLoginEvents();
+
+            if (loginEvents != null)
+            {
+                System.out.printf("Events:     %d published, %d dropped, %d written, %d lost%n",
+                        loginEvents.getPublished(), loginEvents.getDropped(), loginEvents.getWritten(),
+                        loginEvents.getLost());
+            }
+
+            System.out.printf("Discovery:  %d fetched, %d revalidated, %d failed%n", discoveryCache.getFetches(),
+                    discoveryCache.getRevalidations(), discoveryCache.getFailures());
+
+            ClientAssertionSigner clientAssertionSigner = managedObject.getClientAssertionSigner();
+
+            if (clientAssertionSigner != null)
+            {
+                System.out.printf("Assertions: %d signed%n", clientAssertionSigner.getSignatures());
+            }
+
+            CallbackMetrics metrics = managedObject.getCallbackMetrics();
+
+            if (metrics instanceof HistogramCallbackMetrics)
+            {
+                // Covers the warm-up too
+                ((HistogramCallbackMetrics) metrics).summarize().forEach(System.out::println);
+            }
+        }
+    }
+
+    private void report(List<VirtualUser> virtualUsers, long durationNanos)
+    {
+        long[] logins = merge(virtualUsers, true);
+        long[] callbacks = merge(virtualUsers, false);
+        double seconds = durationNanos / 1e9;
+        long failed = _failures.values().stream().mapToLong(LongAdder::sum).sum();
+
+        System.out.printf("Logins:     %d succeeded, %d failed, %.1f logins/s%n", logins.length, failed,
+                logins.length / seconds);
+        printPercentiles("Login", logins);
+        printPercentiles("Callback", callbacks);
+        _failures.forEach((reason, count) -> System.out.printf("Failures:   %s: %d%n", reason, count.sum()));
+    }
+
+    private static long[] merge(List<VirtualUser> virtualUsers, boolean wholeLogin)
+    {
+        long[] merged = virtualUsers.stream()
+                .map(user -> wholeLogin ? user.getLoginLatencies() : user.getCallbackLatencies())
+                .flatMapToLong(Arrays::stream)
+                .toArray();
+
+        Arrays.sort(merged);
+
+        return merged;
+    }
+
+    private static void printPercentiles(String name, long[] sortedNanos)
+    {
+        if (sortedNanos.length == 0)
+        {
+            return;
+        }
+
+        System.out.printf("%-11s p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n", name + ":",
+                percentile(sortedNanos, 0.50), percentile(sortedNanos, 0.95), percentile(sortedNanos, 0.99),
+                sortedNanos[sortedNanos.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sortedNanos, double percentile)
+    {
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    private int intOption(String name, int defaultValue)
+    {
+        return _options.containsKey(name) ? Integer.parseInt(_options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue)
+    {
+        return _options.containsKey(name) ? Double.parseDouble(_options.get(name)) : defaultValue;
+    }
+
+    private final class VirtualUser implements Runnable
+    {
+        private final WindowsLiveAuthenticatorPluginConfig _configuration;
+        private final WindowsLiveAuthenticatorManagedObject _managedObject;
+        private final HttpUpstream _upstream;
+        private final String _clientIpAddress;
+        private final long _measureFrom;
+        private final long _stopAt;
+        private final CountDownLatch _done;
+        private final double _replayRate = doubleOption("replay-rate", 0);
+        private final Response _response = Standins.response();
+
+        private long[] _loginLatencies = new long[1024];
+        private long[] _callbackLatencies = new long[1024];
+        private int _count;
+
+        private VirtualUser(WindowsLiveAuthenticatorPluginConfig configuration,
+                            WindowsLiveAuthenticatorManagedObject managedObject, HttpUpstream upstream,
+                            String clientIpAddress, long measureFrom, long stopAt, CountDownLatch done)
+        {
+            _clientIpAddress = clientIpAddress;
+            _configuration = configuration;
+            _managedObject = managedObject;
+            _upstream = upstream;
+            _measureFrom = measureFrom;
+            _stopAt = stopAt;
+            _done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                long now;
+
+                while ((now = System.nanoTime()) < _stopAt)
+                {
+                    login(now >= _measureFrom);
+                }
+            }
+            finally
+            {
+                _done.countDown();
+            }
+        }
+
+        private void login(boolean measure)
+        {
+            long start = System.nanoTime();
+
+            try
+            {
+                String authorizationUrl = authorize();
+                Map<String, String> callbackParameters = IdentityPlatformStandin.parseQuery(
+                        URI.create(_upstream.follow(authorizationUrl)));
+                long callbackStart = System.nanoTime();
+                CallbackRequestHandler callbackRequestHandler = new CallbackRequestHandler(_configuration,
+                        _managedObject);
+
+                Optional<AuthenticationResult> result = callbackRequestHandler.get(callbackRequestHandler.preProcess(
+                        Standins.request(callbackParameters, USER_AGENT, _clientIpAddress), _response), _response);
+
+                long end = System.nanoTime();
+
+                if (result.isEmpty())
+                {
+                    // The callback was shed with a 503, since the node has too many in flight
+                    if (measure)
+                    {
+                        _failures.computeIfAbsent("serviceUnavailable", key -> new LongAdder()).increment();
+                    }
+
+                    return;
+                }
+
+                if (measure)
+                {
+                    record(end - start, end - callbackStart);
+                }
+
+                if (_replayRate > 0 && ThreadLocalRandom.current().nextDouble() < _replayRate)
+                {
+                    replay(callbackParameters, measure);
+                }
+            }
+            catch (Standins.StandinException e)
+            {
+                if (measure)
+                {
+                    _failures.computeIfAbsent(e.getFactoryMethod(), key -> new LongAdder()).increment();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                if (measure)
+                {
+                    _failures.computeIfAbsent(e.getClass().getSimpleName(), key -> new LongAdder()).increment();
+                }
+            }
+        }
+
+        /**
+         * Send a callback again, which fails either way, but should not take a request to the token endpoint
+         */
+        private void replay(Map<String, String> callbackParameters, boolean measure)
+        {
+            long start = System.nanoTime();
+            String outcome;
+
+            try
+            {
+                CallbackRequestHandler callbackRequestHandler = new CallbackRequestHandler(_configuration,
+                        _managedObject);
+
+                outcome = callbackRequestHandler.get(callbackRequestHandler.preProcess(
+                        Standins.request(callbackParameters, USER_AGENT, _clientIpAddress), _response), _response)
+                        .isPresent() ? "succeeded" : "serviceUnavailable";
+            }
+            catch (Standins.StandinException e)
+            {
+                outcome = e.getFactoryMethod();
+            }
+
+            if (measure)
+            {
+                _replayNanos.add(System.nanoTime() - start);
+                _replays.increment();
+
+                if ("badRequestException".equals(outcome))
+                {
+                    _rejectedReplays.increment();
+                }
+            }
+        }
+
+        private String authorize()
+        {
+            try
+            {
+                new WindowsLiveAuthenticatorRequestHandler(_configuration, _managedObject)
+                        .get(Standins.request(Map.of(), USER_AGENT), _response);
+            }
+            catch (Standins.StandinException e)
+            {
+                if (e.isRedirect())
+                {
+                    return e.getLocation();
+                }
+
+                throw e;
+            }
+
+            throw new IllegalStateException("Expected a redirect to the authorization endpoint");
+        }
+
+        private void record(long loginLatency, long callbackLatency)
+        {
+            if (_count == _loginLatencies.length)
+            {
+                _loginLatencies = Arrays.copyOf(_loginLatencies, _count * 2);
+                _callbackLatencies = Arrays.copyOf(_callbackLatencies, _count * 2);
+            }
+
+            _loginLatencies[_count] = loginLatency;
+            _callbackLatencies[_count] = callbackLatency;
+            _count++;
+        }
+
+        long[] getLoginLatencies()
+        {
+            return Arrays.copyOf(_loginLatencies, _count);
+        }
+
+        long[] getCallbackLatencies()
+        {
+            return Arrays.copyOf(_callbackLatencies, _count);
+        }
+    }
+}
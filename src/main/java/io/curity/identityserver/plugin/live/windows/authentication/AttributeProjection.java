@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.attribute.Attributes;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+import se.curity.identityserver.sdk.attribute.ContextAttributes;
+import se.curity.identityserver.sdk.attribute.SubjectAttributes;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Selects which fields of the token response and which claims of the user become attributes of the authentication
+ * result.
+ *
+ * <p>The attributes end up in the session, which is stored and replicated for as long as the user is logged in, so
+ * the tokens that Microsoft issues are by far their largest part: the access, refresh and ID tokens are a few
+ * kilobytes each. By default, all fields of the token response are subject attributes and the access token is also a
+ * context attribute, as before. The configuration can limit the token response to some fields, leave out the tokens
+ * altogether, and add claims from the userinfo response or the ID token instead. The attributes that are fetched from
+ * Microsoft Graph, like the profile of the user, are added as well.</p>
+ *
+ * <p>When debug logging is enabled, the approximate size of the attributes of each result is logged.</p>
+ */
+final class AttributeProjection
+{
+    private static final Logger _logger = LoggerFactory.getLogger(AttributeProjection.class);
+
+    static final Set<String> TOKENS = Set.of("access_token", "refresh_token", "id_token");
+
+    @Nullable
+    private final Set<String> _tokenResponseFields;
+
+    private final List<String> _claims;
+    private final boolean _excludeTokens;
+    private final JsonFieldExtractor _userInfoExtractor;
+
+    /**
+     * @param tokenResponseFields the fields of the token response to add, or null for all of them
+     * @param claims              the claims of the user to add
+     * @param excludeTokens       whether to leave out the tokens, even if they are among the token response fields
+     */
+    AttributeProjection(@Nullable Collection<String> tokenResponseFields, Collection<String> claims,
+                        boolean excludeTokens)
+    {
+        _tokenResponseFields = tokenResponseFields == null ? null : new LinkedHashSet<>(tokenResponseFields);
+        _claims = List.copyOf(new LinkedHashSet<>(claims));
+        _excludeTokens = excludeTokens;
+
+        List<String> userInfoFields = new ArrayList<>(_claims.size() + 1);
+
+        userInfoFields.add("sub");
+        userInfoFields.addAll(_claims);
+        _userInfoExtractor = JsonFieldExtractor.of(userInfoFields);
+    }
+
+    static AttributeProjection of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        List<String> tokenResponseAttributes = config.getTokenResponseAttributes();
+
+        return new AttributeProjection(tokenResponseAttributes.isEmpty() ? null : tokenResponseAttributes,
+                config.getClaimAttributes(), config.isExcludeTokensFromAttributes());
+    }
+
+    /**
+     * @param fieldsUsed the fields that the callback handler uses itself, like the access token
+     * @return the extractor of the fields of the token response that are used or added as attributes
+     */
+    JsonFieldExtractor getTokenResponseExtractor(Collection<String> fieldsUsed)
+    {
+        return _tokenResponseFields == null
+                ? JsonFieldExtractor.ALL_FIELDS
+                : JsonFieldExtractor.of(_tokenResponseFields).including(fieldsUsed);
+    }
+
+    /**
+     * @return the extractor of the subject and the claims that are added as attributes from a userinfo response
+     */
+    JsonFieldExtractor getUserInfoExtractor()
+    {
+        return _userInfoExtractor;
+    }
+
+    /**
+     * @param tokenResponseData the fields of the token response
+     * @param claims            the claims of the user, from the userinfo response or the ID token
+     * @param graphAttributes   the attributes from Microsoft Graph, like the profile of the user, which are all added
+     */
+    AuthenticationAttributes project(String subject, String accessToken, Map<String, Object> tokenResponseData,
+                                     Map<String, Object> claims, Map<String, Object> graphAttributes)
+    {
+        Map<String, Object> subjectAttributes = selectSubjectAttributes(tokenResponseData, claims);
+
+        subjectAttributes.putAll(graphAttributes);
+
+        if (_logger.isDebugEnabled())
+        {
+            _logger.debug("Authentication attributes are about {} bytes, with subject attributes {}{}",
+                    estimateSize(subject, accessToken, subjectAttributes), subjectAttributes.keySet(),
+                    _excludeTokens ? "" : " and the access token as context attribute");
+        }
+
+        return AuthenticationAttributes.of(
+                SubjectAttributes.of(subject, Attributes.fromMap(subjectAttributes)),
+                _excludeTokens
+                        ? ContextAttributes.empty()
+                        : ContextAttributes.of(Attributes.of(Attribute.of("access_token", accessToken))));
+    }
+
+    Map<String, Object> selectSubjectAttributes(Map<String, Object> tokenResponseData, Map<String, Object> claims)
+    {
+        Map<String, Object> subjectAttributes = new LinkedHashMap<>();
+
+        tokenResponseData.forEach((name, value) ->
+        {
+            if ((_tokenResponseFields == null || _tokenResponseFields.contains(name)) &&
+                    !(_excludeTokens && TOKENS.contains(name)))
+            {
+                subjectAttributes.put(name, value);
+            }
+        });
+
+        for (String claim : _claims)
+        {
+            @Nullable Object value = claims.get(claim);
+
+            if (value != null)
+            {
+                subjectAttributes.put(claim, value);
+            }
+        }
+
+        return subjectAttributes;
+    }
+
+    /**
+     * @return the approximate size in bytes of the attributes of a result when serialized as JSON, assuming ASCII
+     * values
+     */
+    int estimateSize(String subject, String accessToken, Map<String, Object> subjectAttributes)
+    {
+        // {"subject":"...","subjectAttributes":{...},"contextAttributes":{...}}
+        int size = 60 + subject.length();
+
+        for (Map.Entry<String, Object> attribute : subjectAttributes.entrySet())
+        {
+            // "name":"value",
+            size += attribute.getKey().length() + String.valueOf(attribute.getValue()).length() + 6;
+        }
+
+        if (!_excludeTokens)
+        {
+            size += "access_token".length() + accessToken.length() + 6;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.ClaimsSource;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static io.curity.identityserver.plugin.live.windows.authentication.RedirectUriUtils.createRedirectUri;
+
+/**
+ * The parts of an authorization request that only depend on the configuration, compiled once per configuration
+ * instance.
+ *
+ * <p>Only the redirect URI depends on the authentication URI, which the server may resolve differently per request
+ * (e.g., when no base URL is configured), and only the authorization endpoint depends on the discovery metadata of the
+ * tenant. The query string is therefore cached together with the authentication URI and the metadata it was created
+ * for and recreated only if either changes.</p>
+ */
+final class AuthorizationRequestTemplate
+{
+    private final DiscoveryCache _discoveryCache;
+    private final Set<Scope> _scopes;
+    private final String _scope;
+    private final String _encodedClientId;
+    private final String _encodedScope;
+
+    private volatile QueryPrefix _queryPrefix;
+
+    private AuthorizationRequestTemplate(DiscoveryCache discoveryCache, String clientId, Set<Scope> scopes)
+    {
+        _discoveryCache = discoveryCache;
+        _scopes = Collections.unmodifiableSet(scopes);
+        _scope = scopes.stream().map(Scope::getValue).collect(Collectors.joining(" "));
+        _encodedClientId = urlEncode(clientId);
+        _encodedScope = urlEncode(_scope);
+    }
+
+    static AuthorizationRequestTemplate compile(WindowsLiveAuthenticatorPluginConfig config,
+                                                DiscoveryCache discoveryCache)
+    {
+        return new AuthorizationRequestTemplate(discoveryCache, config.getClientId(), scopesOf(config));
+    }
+
+    String getAuthorizationEndpoint()
+    {
+        return _discoveryCache.get().getAuthorizationEndpoint();
+    }
+
+    Set<Scope> getScopes()
+    {
+        return _scopes;
+    }
+
+    /**
+     * @return the space separated scope parameter, in the order the scopes are declared in {@link Scope}
+     */
+    String getScope()
+    {
+        return _scope;
+    }
+
+    /**
+     * Create the URL that the user agent should be redirected to in order to authenticate at Windows Live.
+     *
+     * @param state the unique state value of this authorization request
+     * @return the authorization URL including the query string
+     */
+    String createAuthorizationUrl(String state, AuthenticatorInformationProvider authenticatorInformationProvider,
+                                  ExceptionFactory exceptionFactory)
+    {
+        return getQueryPrefix(authenticatorInformationProvider, exceptionFactory).getValue() + urlEncode(state);
+    }
+
+    private QueryPrefix getQueryPrefix(AuthenticatorInformationProvider authenticatorInformationProvider,
+                                       ExceptionFactory exceptionFactory)
+    {
+        URI authenticationUri = authenticatorInformationProvider.getFullyQualifiedAuthenticationUri();
+        DiscoveryCache.Metadata metadata = _discoveryCache.get();
+        QueryPrefix queryPrefix = _queryPrefix;
+
+        if (queryPrefix == null || !queryPrefix.isFor(authenticationUri, metadata))
+        {
+            String redirectUri = createRedirectUri(authenticatorInformationProvider, exceptionFactory);
+
+            queryPrefix = new QueryPrefix(authenticationUri, metadata, metadata.getAuthorizationEndpoint() +
+                    "?client_id=" + _encodedClientId +
+                    "&redirect_uri=" + urlEncode(redirectUri) +
+                    "&response_type=code" +
+                    "&scope=" + _encodedScope +
+                    "&state=");
+
+            // Racing requests may both compute the prefix; they will compute the same value, so last one wins
+            _queryPrefix = queryPrefix;
+        }
+
+        return queryPrefix;
+    }
+
+    private static Set<Scope> scopesOf(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        Set<Scope> scopes = EnumSet.of(Scope.USER_READ);
+
+        if (config.isOfflineAccount())
+        {
+            scopes.add(Scope.OFFLINE_ACCESS);
+        }
+
+        if (config.isSingleSignin())
+        {
+            scopes.add(Scope.SIGNIN);
+        }
+
+        if (config.isBirthdayInfo())
+        {
+            scopes.add(Scope.BIRTHDAY);
+        }
+
+        switch (config.getCalendarsInfo())
+        {
+            case WRITE:
+                scopes.add(Scope.CALENDARS_UPDATE);
+            case READ:
+                scopes.add(Scope.CALENDARS);
+        }
+
+        if (config.isContactsBirthday())
+        {
+            scopes.add(Scope.CONTACTS_BIRTHDAY);
+        }
+
+        if (config.isContactsCreate())
+        {
+            scopes.add(Scope.CONTACTS_CREATE);
+        }
+
+        if (config.isCalendarAndEvents())
+        {
+            scopes.add(Scope.CONTACTS_CALENDARS);
+        }
+
+        if (config.isContactsPhotos())
+        {
+            scopes.add(Scope.CONTACTS_PHOTOS);
+        }
+
+        if (config.isContactsOneDrive())
+        {
+            scopes.add(Scope.CONTACTS_SKYDRIVE);
+        }
+
+        if (config.isEmailsAccess())
+        {
+            scopes.add(Scope.EMAILS);
+        }
+
+        if (config.isEventsCreate())
+        {
+            scopes.add(Scope.EVENTS_CREATE);
+        }
+
+        if (config.isIMAP())
+        {
+            scopes.add(Scope.IMAP);
+        }
+
+        if (config.isPhoneNumbersAccess())
+        {
+            scopes.add(Scope.PHONE_NUMBERS);
+        }
+
+        if (config.isPhotosAccess())
+        {
+            scopes.add(Scope.PHOTOS);
+        }
+
+        if (config.isPostalAddresses())
+        {
+            scopes.add(Scope.POSTAL_ADDRESSES);
+        }
+
+        switch (config.getOneDriveAccess())
+        {
+            case WRITE:
+                scopes.add(Scope.SKYDRIVE_UPDATE);
+            case READ:
+                scopes.add(Scope.SKYDRIVE);
+        }
+
+        if (config.isWorkProfileInfo())
+        {
+            scopes.add(Scope.WORK_PROFILE);
+        }
+
+        if (config.isOneNoteAccess())
+        {
+            scopes.add(Scope.ONENOTE_CREATE);
+        }
+
+        if (config.getClaimsSource() == ClaimsSource.ID_TOKEN)
+        {
+            scopes.add(Scope.OPENID);
+        }
+
+        return scopes;
+    }
+
+    private static String urlEncode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * The scopes that can be requested by this authenticator. The declaration order is the order in which they are
+     * sent, so that the scope parameter stays the same as when it was built one request at a time.
+     */
+    enum Scope
+    {
+        USER_READ("User.Read"),
+        OFFLINE_ACCESS("offline_access"),
+        SIGNIN("wl.signin"),
+        BIRTHDAY("wl.birthday"),
+        CALENDARS_UPDATE("wl.calendars_update"),
+        CALENDARS("wl.calendars"),
+        CONTACTS_BIRTHDAY("wl.contacts_birthday"),
+        CONTACTS_CREATE("wl.contacts_create"),
+        CONTACTS_CALENDARS("wl.contacts_calendars"),
+        CONTACTS_PHOTOS("wl.contacts_photos"),
+        CONTACTS_SKYDRIVE("wl.contacts_skydrive"),
+        EMAILS("wl.emails"),
+        EVENTS_CREATE("wl.events_create"),
+        IMAP("wl.imap"),
+        PHONE_NUMBERS("wl.phone_numbers"),
+        PHOTOS("wl.photos"),
+        POSTAL_ADDRESSES("wl.postal_addresses"),
+        SKYDRIVE_UPDATE("wl.skydrive_update"),
+        SKYDRIVE("wl.skydrive"),
+        WORK_PROFILE("wl.work_profile"),
+        ONENOTE_CREATE("office.onenote_create"),
+        OPENID("openid");
+
+        private final String _value;
+
+        Scope(String value)
+        {
+            _value = value;
+        }
+
+        String getValue()
+        {
+            return _value;
+        }
+    }
+
+    private static final class QueryPrefix
+    {
+        private final URI _authenticationUri;
+        private final DiscoveryCache.Metadata _metadata;
+        private final String _value;
+
+        private QueryPrefix(URI authenticationUri, DiscoveryCache.Metadata metadata, String value)
+        {
+            _authenticationUri = authenticationUri;
+            _metadata = metadata;
+            _value = value;
+        }
+
+        boolean isFor(URI authenticationUri, DiscoveryCache.Metadata metadata)
+        {
+            // The metadata is replaced as a whole when it changes, so comparing it by identity is enough
+            return _metadata == metadata && _authenticationUri.equals(authenticationUri);
+        }
+
+        String getValue()
+        {
+            return _value;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a callback may redeem its code, so that a flood of callbacks neither ties up all worker threads nor
+ * uses up the rate limit of the app registration at Microsoft.
+ *
+ * <p>A callback is shed right away, without waiting, if the node already has the maximum number of callbacks in
+ * flight, or if its client IP address has sent more callbacks than its rate allows. Once its state is known to be
+ * valid, it is also shed if that state has been used for more callbacks than allowed per minute. The state stands for
+ * the session, since it belongs to one authorization request of one user agent. It is only counted after it has been
+ * validated, so that made-up states can neither get around the limit nor take up the slots of real ones.</p>
+ *
+ * <p>The rates are token buckets that are kept without locks, as the time at which a bucket would be full again
+ * (the generic cell rate algorithm), in a fixed number of slots that keys are hashed to with a random seed. Keys that
+ * share a slot share a bucket, which can only make the limit stricter for them, and keeps the memory fixed no matter
+ * how many clients there are.</p>
+ */
+final class CallbackAdmission
+{
+    private static final Logger _logger = LoggerFactory.getLogger(CallbackAdmission.class);
+
+    // Enough that keys rarely share a slot at thousands of logins per minute, in 512 KiB per limiter
+    private static final int SLOTS = 65536;
+
+    private final int _concurrencyLimit;
+    private final AtomicInteger _inFlight = new AtomicInteger();
+
+    @Nullable
+    private final RateLimiter _clientLimiter;
+
+    @Nullable
+    private final RateLimiter _sessionLimiter;
+
+    private final LongAdder _admitted = new LongAdder();
+    private final LongAdder _overloaded = new LongAdder();
+    private final LongAdder _clientLimited = new LongAdder();
+    private final LongAdder _sessionLimited = new LongAdder();
+
+    /**
+     * @param concurrencyLimit the most callbacks in flight, or 0 for no limit
+     * @param clientRate       the callbacks per second per client IP address, or 0 for no limit
+     * @param clientBurst      the callbacks that a client IP address may send at once
+     * @param sessionLimit     the callbacks per minute per state, or 0 for no limit
+     */
+    CallbackAdmission(int concurrencyLimit, int clientRate, int clientBurst, int sessionLimit)
+    {
+        _concurrencyLimit = concurrencyLimit == 0 ? Integer.MAX_VALUE : concurrencyLimit;
+        _clientLimiter = clientRate == 0
+                ? null
+                : new RateLimiter(TimeUnit.SECONDS.toNanos(1) / clientRate, Math.max(1, clientBurst));
+        _sessionLimiter = sessionLimit == 0
+                ? null
+                : new RateLimiter(TimeUnit.MINUTES.toNanos(1) / sessionLimit, sessionLimit);
+    }
+
+    static CallbackAdmission of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        return new CallbackAdmission(config.getCallbackConcurrencyLimit(), config.getCallbackClientRate(),
+                config.getCallbackClientBurst(), config.getCallbackSessionLimit());
+    }
+
+    /**
+     * Admit a callback if the node has room for it and its client is within its rate. An admitted callback must be
+     * followed by a call to {@link #release()} when it is done.
+     *
+     * @param clientIpAddress the address of the user agent, if known
+     */
+    Decision admit(@Nullable String clientIpAddress)
+    {
+        int inFlight;
+
+        do
+        {
+            inFlight = _inFlight.get();
+
+            if (inFlight >= _concurrencyLimit)
+            {
+                _overloaded.increment();
+
+                return Decision.OVERLOADED;
+            }
+        }
+        while (!_inFlight.compareAndSet(inFlight, inFlight + 1));
+
+        long now = System.nanoTime();
+
+        if (_clientLimiter != null && !_clientLimiter.tryAcquire(clientIpAddress == null ? "" : clientIpAddress, now))
+        {
+            _inFlight.decrementAndGet();
+            _clientLimited.increment();
+
+            return Decision.CLIENT_LIMITED;
+        }
+
+        _admitted.increment();
+
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * Count a use of the given state, of an admitted callback, against the limit of its session.
+     *
+     * @param state a state that has been validated
+     * @return false if the state was used too often, in which case the callback is still to be released
+     */
+    boolean admitSession(String state)
+    {
+        if (_sessionLimiter != null && !_sessionLimiter.tryAcquire(state, System.nanoTime()))
+        {
+            _sessionLimited.increment();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    void release()
+    {
+        _inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the seconds after which a client that exceeded its rate may send another callback
+     */
+    long getClientRetryAfterSeconds()
+    {
+        return _clientLimiter == null ? 0 : _clientLimiter.getIntervalSeconds();
+    }
+
+    /**
+     * @return the seconds after which a state that was used too often may be used again
+     */
+    long getSessionRetryAfterSeconds()
+    {
+        return _sessionLimiter == null ? 0 : _sessionLimiter.getIntervalSeconds();
+    }
+
+    /**
+     * Log how many callbacks were admitted and shed since the node started.
+     */
+    void logSummary()
+    {
+        _logger.info("windows_live_callback_admission admitted={} overloaded={} client_limited={} " +
+                "session_limited={}", getAdmitted(), getOverloaded(), getClientLimited(), getSessionLimited());
+    }
+
+    long getAdmitted()
+    {
+        return _admitted.sum();
+    }
+
+    /**
+     * @return the number of callbacks that were shed because the most callbacks were in flight
+     */
+    long getOverloaded()
+    {
+        return _overloaded.sum();
+    }
+
+    /**
+     * @return the number of callbacks that were shed because their client IP address exceeded its rate
+     */
+    long getClientLimited()
+    {
+        return _clientLimited.sum();
+    }
+
+    /**
+     * @return the number of callbacks that were shed because their valid state was used too often
+     */
+    long getSessionLimited()
+    {
+        return _sessionLimited.sum();
+    }
+
+    enum Decision
+    {
+        ADMITTED,
+        OVERLOADED,
+        CLIENT_LIMITED
+    }
+
+    private static final class RateLimiter
+    {
+        private final long _intervalNanos;
+        private final long _toleranceNanos;
+        private final int _seed = new SecureRandom().nextInt();
+
+        // The time at which the bucket of each slot is full again, relative to _origin
+        private final AtomicLongArray _fullAt = new AtomicLongArray(SLOTS);
+        private final long _origin = System.nanoTime();
+
+        /**
+         * @param intervalNanos the time in which one token is added to a bucket
+         * @param burst         the number of tokens in a full bucket
+         */
+        private RateLimiter(long intervalNanos, int burst)
+        {
+            _intervalNanos = intervalNanos;
+            _toleranceNanos = intervalNanos * burst;
+        }
+
+        /**
+         * @return the whole seconds in which a token is added to a bucket, at least 1
+         */
+        long getIntervalSeconds()
+        {
+            return Math.max(1, (_intervalNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        boolean tryAcquire(String key, long now)
+        {
+            int slot = slotOf(key);
+            long relativeNow = now - _origin;
+
+            while (true)
+            {
+                long fullAt = _fullAt.get(slot);
+
+                // Taking a token pushes the time at which the bucket is full again one interval further out
+                long newFullAt = Math.max(fullAt, relativeNow) + _intervalNanos;
+
+                if (newFullAt - relativeNow > _toleranceNanos)
+                {
+                    return false;
+                }
+
+                if (_fullAt.compareAndSet(slot, fullAt, newFullAt))
+                {
+                    return true;
+                }
+            }
+        }
+
+        private int slotOf(String key)
+        {
+            int hash = key.hashCode() ^ _seed;
+
+            hash *= 0x9e3779b9;
+            hash ^= hash >>> 16;
+
+            return hash & (SLOTS - 1);
+        }
+    }
+}
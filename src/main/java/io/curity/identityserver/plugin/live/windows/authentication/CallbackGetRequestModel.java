@@ -29,10 +29,17 @@ class CallbackGetRequestModel
     @Nullable
     private final String _errorDescription;
 
-    private final String _url;
+    @Nullable
+    private final String _clientIpAddress;
+
+    @Nullable
     private final String _code;
+
+    @Nullable
     private final String _state;
 
+    private final String _url;
+
     CallbackGetRequestModel(Request request)
     {
         Function<String, ? extends RuntimeException> invalidParameter = (s) -> new RuntimeException(String.format(
@@ -43,13 +50,16 @@ class CallbackGetRequestModel
         _error = request.getQueryParameterValueOrError("error", invalidParameter);
         _errorDescription = request.getQueryParameterValueOrError("error_description", invalidParameter);
         _url = request.getUrl();
+        _clientIpAddress = request.getClientIpAddress();
     }
 
+    @Nullable
     public String getCode()
     {
         return _code;
     }
 
+    @Nullable
     public String getState()
     {
         return _state;
@@ -66,6 +76,12 @@ class CallbackGetRequestModel
         return _url;
     }
 
+    @Nullable
+    public String getClientIpAddress()
+    {
+        return _clientIpAddress;
+    }
+
     @Nullable
     public String getError()
     {
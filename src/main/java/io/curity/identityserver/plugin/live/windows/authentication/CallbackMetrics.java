@@ -0,0 +1,181 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+/**
+ * Receives measurements from the callback handler: how long each phase of a login took, how long each upstream
+ * request took per status code, and how often each kind of failure occurred.
+ *
+ * <p>Implementations must be thread safe and cheap, since they are called on the request threads.
+ * {@link #NONE} discards everything; when it is used, the handler does not even read the clock.</p>
+ *
+ * <p>Besides the built-in histograms that are logged, measurements can be sent elsewhere, like to a metrics registry
+ * of the server, by an implementation that a {@link CallbackMetricsProvider} creates and that is selected with the
+ * Metrics Provider setting.</p>
+ */
+public interface CallbackMetrics
+{
+    CallbackMetrics NONE = new CallbackMetrics()
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return false;
+        }
+
+        @Override
+        public void recordPhase(Phase phase, long nanos)
+        {
+        }
+
+        @Override
+        public void recordUpstreamRequest(Upstream upstream, int statusCode, long nanos)
+        {
+        }
+
+        @Override
+        public void countFailure(Failure failure)
+        {
+        }
+    };
+
+    /**
+     * @return false if measurements are discarded, in which case the handler does not need to take them
+     */
+    boolean isEnabled();
+
+    void recordPhase(Phase phase, long nanos);
+
+    /**
+     * @param nanos the time until the response status and headers were received
+     */
+    void recordUpstreamRequest(Upstream upstream, int statusCode, long nanos);
+
+    void countFailure(Failure failure);
+
+    /**
+     * Report the measurements since the previous report, every Metrics Log Interval.
+     */
+    default void logSummary()
+    {
+    }
+
+    /**
+     * Release what the implementation holds, when the configuration that it was created for is replaced.
+     */
+    default void close()
+    {
+    }
+
+    enum Phase
+    {
+        VALIDATE_STATE,
+        TOKEN_EXCHANGE,
+        USER_INFO,
+        ID_TOKEN_VALIDATION,
+
+        /**
+         * Fetching the profile and the other attributes from Microsoft Graph, if any
+         */
+        ENRICHMENT,
+
+        /**
+         * Waiting for the photo of the user, if it is not cached
+         */
+        PHOTO,
+        ATTRIBUTES,
+
+        /**
+         * The whole callback, from validating the state to the authentication result
+         */
+        TOTAL
+    }
+
+    enum Upstream
+    {
+        TOKEN, USER_INFO, PROFILE, BATCH, GROUPS, PHOTO
+    }
+
+    enum Failure
+    {
+        INVALID_STATE,
+        ACCESS_DENIED,
+        AUTHORIZATION_ERROR,
+        TOKEN_ERROR_RESPONSE,
+        TOKEN_MALFORMED_RESPONSE,
+        TOKEN_TIMEOUT,
+        USER_INFO_ERROR_RESPONSE,
+        USER_INFO_MALFORMED_RESPONSE,
+        USER_INFO_TIMEOUT,
+
+        /**
+         * Microsoft Graph throttled the userinfo request for longer than the login could wait
+         */
+        USER_INFO_THROTTLED,
+        INVALID_ID_TOKEN,
+
+        /**
+         * The profile could not be fetched from Microsoft Graph, and a stale cached profile was used instead
+         */
+        PROFILE_STALE,
+
+        /**
+         * The profile could not be fetched from Microsoft Graph, and there was no cached profile to use instead
+         */
+        PROFILE_UNAVAILABLE,
+
+        /**
+         * A lookup in Microsoft Graph besides the profile failed, and its attribute was left out
+         */
+        GRAPH_LOOKUP_ERROR,
+
+        /**
+         * Not all pages of the groups of the user could be read, and the groups were left out
+         */
+        GROUPS_ERROR,
+
+        /**
+         * The user is a member of more than the maximum number of groups
+         */
+        GROUPS_OVERAGE,
+
+        /**
+         * The photo could not be downloaded from Microsoft Graph, and a stale cached photo was used if there was one
+         */
+        PHOTO_ERROR,
+
+        /**
+         * The photo was not downloaded within the wait of a login, which continued without it or with a stale one
+         */
+        PHOTO_TIMEOUT,
+
+        /**
+         * The state or code of the callback was used before, and the callback was rejected without redeeming the code
+         */
+        REPLAYED,
+
+        /**
+         * The most callbacks were in flight already, and the callback was shed
+         */
+        OVERLOADED,
+
+        /**
+         * The client IP address or the valid state of the callback exceeded its rate, and the callback was shed
+         */
+        RATE_LIMITED
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+/**
+ * Creates the {@link CallbackMetrics} of an authenticator when metrics are enabled and the Metrics Provider setting
+ * names this provider.
+ *
+ * <p>Providers are found with {@link java.util.ServiceLoader}, so a jar that is put in the plugin directory next to
+ * this plugin registers one by listing its class in
+ * {@code META-INF/services/io.curity.identityserver.plugin.live.windows.authentication.CallbackMetricsProvider}.</p>
+ */
+public interface CallbackMetricsProvider
+{
+    /**
+     * @return the name that the Metrics Provider setting selects this provider by, other than histogram, which is the
+     * name of the built-in metrics
+     */
+    String getName();
+
+    /**
+     * @param authenticatorId the id of the authenticator that the measurements are taken for
+     * @return metrics that are used until the configuration of the authenticator changes, when they are closed
+     */
+    CallbackMetrics create(String authenticatorId);
+}
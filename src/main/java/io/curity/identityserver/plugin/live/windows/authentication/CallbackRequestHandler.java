@@ -16,57 +16,144 @@
 
 package io.curity.identityserver.plugin.live.windows.authentication;
 
+import io.curity.identityserver.plugin.live.windows.authentication.CallbackMetrics.Failure;
+import io.curity.identityserver.plugin.live.windows.authentication.CallbackMetrics.Phase;
+import io.curity.identityserver.plugin.live.windows.authentication.CallbackMetrics.Upstream;
+import io.curity.identityserver.plugin.live.windows.authentication.UpstreamCallExecutor.UpstreamCall;
 import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.GroupsOverage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.curity.identityserver.sdk.Nullable;
 import se.curity.identityserver.sdk.attribute.Attribute;
-import se.curity.identityserver.sdk.attribute.Attributes;
-import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
-import se.curity.identityserver.sdk.attribute.ContextAttributes;
-import se.curity.identityserver.sdk.attribute.SubjectAttributes;
 import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
 import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.http.HttpRequest;
 import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.http.HttpStatus;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
-import se.curity.identityserver.sdk.service.HttpClient;
 import se.curity.identityserver.sdk.service.Json;
 import se.curity.identityserver.sdk.service.WebServiceClient;
-import se.curity.identityserver.sdk.service.WebServiceClientFactory;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.net.URI;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
-import static io.curity.identityserver.plugin.live.windows.authentication.RedirectUriUtils.createRedirectUri;
+import static se.curity.identityserver.sdk.web.ResponseModel.mapResponseModel;
 
 public class CallbackRequestHandler implements AuthenticatorRequestHandler<CallbackGetRequestModel>
 {
     private final static Logger _logger = LoggerFactory.getLogger(CallbackRequestHandler.class);
+    private final static int MAXIMUM_USER_INFO_ATTEMPTS = 3;
+    private final static String PROFILE_REQUEST_ID = "profile";
+    private final static String GROUPS_ATTRIBUTE = "groups";
+    private final static String PHOTO_THUMBNAIL_ATTRIBUTE = "photo_thumbnail";
+    private final static long OVERLOADED_RETRY_AFTER_SECONDS = 1;
 
     private final ExceptionFactory _exceptionFactory;
     private final WindowsLiveAuthenticatorPluginConfig _config;
-    private final Json _json;
     private final AuthenticatorInformationProvider _authenticatorInformationProvider;
-    private final WebServiceClientFactory _webServiceClientFactory;
+    private final UpstreamClients _upstreamClients;
+    private final DiscoveryCache _discoveryCache;
+    private final JsonFieldExtractor _tokenResponseExtractor;
+    private final AttributeProjection _attributeProjection;
+    private final TokenRequestEncoder _tokenRequestEncoder;
+
+    @Nullable
+    private final IdTokenValidator _idTokenValidator;
+
+    @Nullable
+    private final StateCodec _stateCodec;
+
+    @Nullable
+    private final ReplayFilter _replayFilter;
+
+    private final CallbackAdmission _admission;
+
+    @Nullable
+    private final LoginEventRing _loginEvents;
+
+    @Nullable
+    private final TokenRequestHedger _tokenRequestHedger;
 
-    public CallbackRequestHandler(WindowsLiveAuthenticatorPluginConfig config)
+    @Nullable
+    private final ProfileCache _profileCache;
+
+    @Nullable
+    private final GroupCache _groupCache;
+
+    @Nullable
+    private final PhotoCache _photoCache;
+
+    private final CallbackMetrics _metrics;
+    private final UpstreamCallExecutor _upstreamCallExecutor;
+    private final GraphRequestLimiter _graphRequestLimiter;
+    private final long _graphThrottlingWaitNanos;
+    private final long _deadlineNanos;
+    private final int _tokenRequestDeadlineShare;
+    private final Set<GraphLookup> _graphLookups;
+    private final long _enrichmentTimeoutNanos;
+    private final Json _json;
+    private final boolean _profileRequired;
+    private final String _groupsUrl;
+    private final String _groupsPath;
+    private final String _groupsFirstPageQuery;
+    private final int _maximumGroups;
+    private final GroupsOverage _groupsOverage;
+    private final long _photoWaitNanos;
+    private final int _errorBodyLimit;
+
+    public CallbackRequestHandler(WindowsLiveAuthenticatorPluginConfig config,
+                                  WindowsLiveAuthenticatorManagedObject managedObject)
     {
         _exceptionFactory = config.getExceptionFactory();
         _config = config;
-        _json = config.getJson();
-        _webServiceClientFactory = config.getWebServiceClientFactory();
         _authenticatorInformationProvider = config.getAuthenticatorInformationProvider();
+        _upstreamClients = managedObject.getUpstreamClients();
+        _discoveryCache = managedObject.getDiscoveryCache();
+        _idTokenValidator = managedObject.getIdTokenValidator();
+        _stateCodec = managedObject.getStateCodec();
+        _replayFilter = managedObject.getReplayFilter();
+        _admission = managedObject.getCallbackAdmission();
+        _loginEvents = managedObject.getLoginEvents();
+        _metrics = managedObject.getCallbackMetrics();
+        _upstreamCallExecutor = managedObject.getUpstreamCallExecutor();
+        _tokenRequestHedger = managedObject.getTokenRequestHedger();
+        _graphRequestLimiter = managedObject.getGraphRequestLimiter();
+        _graphThrottlingWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getGraphThrottlingWait());
+        _deadlineNanos = TimeUnit.MILLISECONDS.toNanos(config.getCallbackDeadline());
+        _tokenRequestDeadlineShare = config.getTokenRequestDeadlineShare();
+        _tokenResponseExtractor = managedObject.getTokenResponseExtractor();
+        _attributeProjection = managedObject.getAttributeProjection();
+        _tokenRequestEncoder = managedObject.getTokenRequestEncoder();
+        _profileCache = managedObject.getProfileCache();
+        _graphLookups = managedObject.getGraphLookups();
+        _enrichmentTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getEnrichmentTimeout());
+        _json = config.getJson();
+        _profileRequired = config.isProfileRequired();
+        _groupCache = managedObject.getGroupCache();
+        _groupsUrl = GroupMemberships.url(config.getGroupMembership());
+        _groupsPath = GroupMemberships.path(config.getGroupMembership());
+        _groupsFirstPageQuery = GroupMemberships.firstPageQuery(config.getGroupsPageSize());
+        _maximumGroups = config.getMaximumGroups();
+        _groupsOverage = config.getGroupsOverage();
+        _photoCache = managedObject.getPhotoCache();
+        _photoWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.getPhotoWait());
+        _errorBodyLimit = config.getErrorBodyLimit();
     }
 
     @Override
@@ -91,70 +178,244 @@ public class CallbackRequestHandler implements AuthenticatorRequestHandler<Callb
     @Override
     public Optional<AuthenticationResult> get(CallbackGetRequestModel requestModel, Response response)
     {
-        validateState(requestModel.getState());
+        if (!admit(requestModel, response))
+        {
+            return Optional.empty();
+        }
+
+        try
+        {
+            return handle(requestModel, response);
+        }
+        finally
+        {
+            _admission.release();
+        }
+    }
+
+    /**
+     * Shed the callback right away if it is not admitted. If the node has too many callbacks in flight, the response
+     * is a 503, and if the client sends too many callbacks, it is a 429. Both have a Retry-After header, so that
+     * clients and load balancers can tell them apart from a failed login and try again later.
+     *
+     * @return true if the callback was admitted, and false if the response was set to a 503 or 429
+     */
+    private boolean admit(CallbackGetRequestModel requestModel, Response response)
+    {
+        switch (_admission.admit(requestModel.getClientIpAddress()))
+        {
+            case ADMITTED:
+                return true;
+            case OVERLOADED:
+                _metrics.countFailure(Failure.OVERLOADED);
+                _logger.debug("Too many callbacks in flight, shedding callback");
+
+                shed(response, HttpStatus.SERVICE_UNAVAILABLE, "temporarily_unavailable",
+                        OVERLOADED_RETRY_AFTER_SECONDS);
+
+                return false;
+            default:
+                _metrics.countFailure(Failure.RATE_LIMITED);
+                _logger.debug("Client {} exceeded the callback rate, shedding callback",
+                        requestModel.getClientIpAddress());
+
+                shed(response, HttpStatus.TOO_MANY_REQUESTS, "too_many_requests",
+                        _admission.getClientRetryAfterSeconds());
+
+                return false;
+        }
+    }
+
+    private void shed(Response response, HttpStatus status, String error, long retryAfterSeconds)
+    {
+        response.addHeader("Retry-After", String.valueOf(retryAfterSeconds));
+        response.setResponseModel(mapResponseModel(Map.of("error", error)), status);
+    }
+
+    private Optional<AuthenticationResult> handle(CallbackGetRequestModel requestModel, Response response)
+    {
+        long start = now();
+
+        validateState(requestModel);
+
+        // Only a valid state is counted, so that made-up ones can neither get around the limit nor fill its slots
+        if (!_admission.admitSession(Objects.requireNonNull(requestModel.getState())))
+        {
+            _metrics.countFailure(Failure.RATE_LIMITED);
+            _logger.debug("State was returned too often, shedding callback");
+
+            shed(response, HttpStatus.TOO_MANY_REQUESTS, "too_many_requests",
+                    _admission.getSessionRetryAfterSeconds());
+
+            return Optional.empty();
+        }
+
         handleError(requestModel);
+        requireCode(requestModel);
+        rejectReplay(requestModel);
 
-        Map<String, Object> tokenResponseData = redeemCodeForTokens(requestModel);
-        var accessToken = tokenResponseData.get("access_token").toString();
-        var userInfoResponse = getUserInfo(accessToken);
-        var subject = userInfoResponse.get("sub").toString();
+        long tokenExchangeStart = recordPhase(Phase.VALIDATE_STATE, start);
 
-        AuthenticationAttributes attributes = AuthenticationAttributes.of(
-                SubjectAttributes.of(subject, Attributes.fromMap(tokenResponseData)),
-                ContextAttributes.of(Attributes.of(Attribute.of("access_token", accessToken))));
-        AuthenticationResult authenticationResult = new AuthenticationResult(attributes);
+        try
+        {
+            return Optional.of(authenticate(requestModel, start, tokenExchangeStart));
+        }
+        catch (RuntimeException e)
+        {
+            // The callback itself was valid, so whatever failed after it was getting the user from Microsoft
+            publishLoginEvent(LoginEvent.Outcome.UPSTREAM_FAILURE, requestModel, null, e.getMessage());
 
-        return Optional.of(authenticationResult);
+            throw e;
+        }
     }
 
-    private Map<String, Object> redeemCodeForTokens(CallbackGetRequestModel requestModel)
+    private AuthenticationResult authenticate(CallbackGetRequestModel requestModel, long start,
+                                              long tokenExchangeStart)
     {
-        var redirectUri = createRedirectUri(_authenticatorInformationProvider, _exceptionFactory);
+        long deadline = _deadlineNanos > 0 ? System.nanoTime() + _deadlineNanos : 0;
 
-        HttpResponse tokenResponse = getLoginWebServiceClient()
-                .withPath("/common/oauth2/v2.0/token")
-                .request()
-                .contentType("application/x-www-form-urlencoded")
-                .body(getFormEncodedBodyFrom(createPostData(_config.getClientId(), _config.getClientSecret(),
-                        requestModel.getCode(), redirectUri)))
-                .method("POST")
-                .response();
-        int statusCode = tokenResponse.statusCode();
+        // Leave the rest of the deadline for the userinfo request, unless there is none
+        long tokenTimeout = _idTokenValidator != null || deadline == 0
+                ? remainingNanos(deadline)
+                : Math.min(remainingNanos(deadline), _deadlineNanos / 100 * _tokenRequestDeadlineShare);
+        Map<String, Object> tokenResponseData = redeemCodeForTokens(requestModel, tokenTimeout);
+        var accessToken = tokenResponseData.get("access_token").toString();
+        long subjectStart = recordPhase(Phase.TOKEN_EXCHANGE, tokenExchangeStart);
+        Map<String, Object> claims;
+        long attributesStart;
 
-        if (statusCode != 200)
+        if (_idTokenValidator != null)
+        {
+            claims = validateIdToken(tokenResponseData.get("id_token"));
+            attributesStart = recordPhase(Phase.ID_TOKEN_VALIDATION, subjectStart);
+        }
+        else
         {
-            if (_logger.isInfoEnabled())
+            claims = getUserInfo(accessToken, deadline);
+            attributesStart = recordPhase(Phase.USER_INFO, subjectStart);
+        }
+
+        String subject = claims.get("sub").toString();
+        Map<String, Object> graphAttributes = Collections.emptyMap();
+
+        // Started first, so that the photo downloads while the other attributes are fetched
+        @Nullable CompletableFuture<PhotoCache.Entry> photo = _photoCache == null
+                ? null
+                : getPhoto(subject, accessToken);
+
+        if (_profileCache != null || !_graphLookups.isEmpty() || _groupCache != null)
+        {
+            graphAttributes = enrich(subject, accessToken, deadline);
+            attributesStart = recordPhase(Phase.ENRICHMENT, attributesStart);
+        }
+
+        if (photo != null)
+        {
+            @Nullable PhotoCache.Entry photoEntry = awaitPhoto(subject, photo, deadline);
+
+            if (photoEntry != null && photoEntry.getContent() != null)
             {
-                _logger.info("Got error response from token endpoint: error = {}, {}", statusCode,
-                        tokenResponse.body(HttpResponse.asString()));
+                graphAttributes = new LinkedHashMap<>(graphAttributes);
+                graphAttributes.put(PHOTO_THUMBNAIL_ATTRIBUTE, toAttribute(photoEntry));
+
+                // Lets this session, and only this one, get the photo from the photo request handler
+                _config.getSessionManager().put(Attribute.of(PhotoRequestHandler.PHOTO_REFERENCE_ATTRIBUTE,
+                        photoEntry.getReference()));
             }
 
-            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+            attributesStart = recordPhase(Phase.PHOTO, attributesStart);
+        }
+
+        AuthenticationResult authenticationResult = new AuthenticationResult(_attributeProjection.project(subject,
+                accessToken, tokenResponseData, claims, graphAttributes));
+
+        recordPhase(Phase.ATTRIBUTES, attributesStart);
+        recordPhase(Phase.TOTAL, start);
+        publishLoginEvent(LoginEvent.Outcome.SUCCESS, requestModel, subject, null);
+
+        return authenticationResult;
+    }
+
+    /**
+     * Put the event of the outcome of the login into the ring, if events are written, to be written later.
+     */
+    private void publishLoginEvent(LoginEvent.Outcome outcome, CallbackGetRequestModel requestModel,
+                                   @Nullable String subject, @Nullable String detail)
+    {
+        if (_loginEvents != null)
+        {
+            _loginEvents.publish(outcome, subject, requestModel.getClientIpAddress(), detail);
         }
+    }
 
-        return _json.fromJson(tokenResponse.body(HttpResponse.asString()));
+    private static long remainingNanos(long deadline)
+    {
+        return deadline == 0 ? Long.MAX_VALUE : deadline - System.nanoTime();
     }
 
-    private WebServiceClient getWebServiceClient(String host)
+    private long now()
     {
-        Optional<HttpClient> httpClient = _config.getHttpClient();
+        return _metrics.isEnabled() ? System.nanoTime() : 0;
+    }
 
-        if (httpClient.isPresent())
+    /**
+     * @return the end of the phase, which is the start of the next one
+     */
+    private long recordPhase(Phase phase, long phaseStart)
+    {
+        if (!_metrics.isEnabled())
         {
-            return _webServiceClientFactory.create(httpClient.get()).withHost(host);
+            return 0;
+        }
+
+        long end = System.nanoTime();
+
+        _metrics.recordPhase(phase, end - phaseStart);
+
+        return end;
+    }
+
+    private Map<String, Object> redeemCodeForTokens(CallbackGetRequestModel requestModel, long timeoutNanos)
+    {
+        var body = _tokenRequestEncoder.createBody(requestModel.getCode(), _authenticatorInformationProvider,
+                _exceptionFactory);
+        String tokenPath = _discoveryCache.get().getTokenPath();
+        UpstreamResponse tokenResponse;
+
+        if (_tokenRequestHedger != null)
+        {
+            tokenResponse = callUpstream(Upstream.TOKEN, () -> _tokenRequestHedger.send(host ->
+                    measure(Upstream.TOKEN, () -> requestTokens(_upstreamClients.getClient(host), tokenPath, body),
+                            _tokenResponseExtractor), timeoutNanos));
         }
         else
         {
-            return _webServiceClientFactory.create(URI.create("https://" + host));
+            tokenResponse = callUpstream(Upstream.TOKEN, () -> _upstreamCallExecutor.call(
+                    measure(Upstream.TOKEN, () -> requestTokens(_upstreamClients.getLoginClient(), tokenPath, body),
+                            _tokenResponseExtractor), timeoutNanos));
+        }
+
+        if (tokenResponse.getStatusCode() != 200)
+        {
+            _metrics.countFailure(Failure.TOKEN_ERROR_RESPONSE);
+            _logger.info("Got error response from token endpoint: {}", tokenResponse.getError());
+
+            throw upstreamErrorException("Windows Live", tokenResponse.getError());
         }
-    }
 
-    private WebServiceClient getLoginWebServiceClient() {
-        return getWebServiceClient("login.microsoftonline.com");
+        return tokenResponse.getData();
     }
 
-    private WebServiceClient getUserInfoWebServiceClient() {
-        return getWebServiceClient("graph.microsoft.com");
+    private static HttpResponse requestTokens(WebServiceClient client, String tokenPath,
+                                              HttpRequest.BodyProcessor body)
+    {
+        return client
+                .withPath(tokenPath)
+                .request()
+                .contentType("application/x-www-form-urlencoded")
+                .body(body)
+                .method("POST")
+                .response();
     }
 
     private void handleError(CallbackGetRequestModel requestModel)
@@ -163,6 +424,8 @@ public class CallbackRequestHandler implements AuthenticatorRequestHandler<Callb
         {
             if ("access_denied".equals(requestModel.getError()))
             {
+                _metrics.countFailure(Failure.ACCESS_DENIED);
+                publishLoginEvent(LoginEvent.Outcome.ACCESS_DENIED, requestModel, null, requestModel.getError());
                 _logger.debug("Got an error from WindowsLive: {} - {}", requestModel.getError(), requestModel
                         .getErrorDescription());
 
@@ -170,6 +433,8 @@ public class CallbackRequestHandler implements AuthenticatorRequestHandler<Callb
                         _authenticatorInformationProvider.getAuthenticationBaseUri().toASCIIString());
             }
 
+            _metrics.countFailure(Failure.AUTHORIZATION_ERROR);
+            publishLoginEvent(LoginEvent.Outcome.UPSTREAM_FAILURE, requestModel, null, requestModel.getError());
             _logger.warn("Got an error from WindowsLive: {} - {}", requestModel.getError(), requestModel
                     .getErrorDescription());
 
@@ -177,95 +442,811 @@ public class CallbackRequestHandler implements AuthenticatorRequestHandler<Callb
         }
     }
 
-    private static Map<String, String> createPostData(String clientId, String clientSecret, String code, String
-            callbackUri)
+    private void validateState(CallbackGetRequestModel requestModel)
+    {
+        @Nullable String state = requestModel.getState();
+
+        if (state == null)
+        {
+            _metrics.countFailure(Failure.INVALID_STATE);
+            _logger.debug("Callback has no state");
+
+            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_INPUT, "No state provided");
+        }
+
+        if (_stateCodec != null)
+        {
+            try
+            {
+                @Nullable Attribute binding = _config.getSessionManager().get(StateCodec.BINDING_ATTRIBUTE);
+
+                _stateCodec.validate(state, binding != null ? binding.getValueOfType(String.class) : null);
+                _logger.debug("State is valid");
+
+                return;
+            }
+            catch (StateCodec.InvalidStateException e)
+            {
+                _metrics.countFailure(Failure.INVALID_STATE);
+                publishLoginEvent(LoginEvent.Outcome.STATE_MISMATCH, requestModel, null, e.getMessage());
+                _logger.debug("State is not valid: {}", e.getMessage());
+
+                throw _exceptionFactory.badRequestException(ErrorCode.INVALID_SERVER_STATE, "Bad state provided");
+            }
+        }
+
+        @Nullable Attribute sessionAttribute = _config.getSessionManager().get("state");
+
+        if (sessionAttribute != null && state.equals(sessionAttribute.getValueOfType(String.class)))
+        {
+            _logger.debug("State matches session");
+        }
+        else
+        {
+            _metrics.countFailure(Failure.INVALID_STATE);
+            publishLoginEvent(LoginEvent.Outcome.STATE_MISMATCH, requestModel, null, null);
+            _logger.debug("State did not match session");
+
+            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_SERVER_STATE, "Bad state provided");
+        }
+    }
+
+    /**
+     * Reject a callback that has neither an error, which is handled before, nor a code.
+     */
+    private void requireCode(CallbackGetRequestModel requestModel)
+    {
+        if (requestModel.getCode() == null)
+        {
+            _logger.debug("Callback has neither a code nor an error");
+
+            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_INPUT, "No code provided");
+        }
+    }
+
+    /**
+     * Reject a callback whose state or code was used before, without making any request to redeem the code.
+     */
+    private void rejectReplay(CallbackGetRequestModel requestModel)
+    {
+        if (_replayFilter == null)
+        {
+            return;
+        }
+
+        // Both are remembered, so that neither can be used again together with a new value of the other
+        boolean firstUse = _replayFilter.markUsed(requestModel.getState()) &
+                _replayFilter.markUsed(requestModel.getCode());
+
+        if (!firstUse)
+        {
+            _metrics.countFailure(Failure.REPLAYED);
+            publishLoginEvent(LoginEvent.Outcome.REPLAYED, requestModel, null, null);
+            _logger.debug("State or code was used before");
+
+            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_INPUT, "State or code was already used");
+        }
+    }
+
+    private Map<String, Object> validateIdToken(Object idToken)
+    {
+        try
+        {
+            return _idTokenValidator.validate(idToken);
+        }
+        catch (IdTokenValidator.InvalidIdTokenException e)
+        {
+            _metrics.countFailure(Failure.INVALID_ID_TOKEN);
+            _logger.info("Got an invalid ID token from the token endpoint: {}", e.getMessage());
+
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
+        }
+    }
+
+    /**
+     * Get the user info from Microsoft Graph, retrying when Graph throttles the request. Retries wait in the
+     * {@link GraphRequestLimiter} for as long as Graph asked, as far as the deadline and the throttling wait allow.
+     */
+    private Map<String, Object> getUserInfo(String accessToken, long deadline)
+    {
+        long throttlingWaitEnd = System.nanoTime() + _graphThrottlingWaitNanos;
+        UpstreamCall<UpstreamResponse> request = measure(Upstream.USER_INFO, () -> _upstreamClients.getGraphClient()
+                .withPath("/oidc/userinfo")
+                .request()
+                .accept("application/json")
+                .header("Authorization", "Bearer " + accessToken)
+                .get()
+                .response(), _attributeProjection.getUserInfoExtractor());
+
+        for (int attempt = 1; ; attempt++)
+        {
+            UpstreamResponse userInfoResponse = callUpstream(Upstream.USER_INFO, () -> callGraph(request,
+                    Math.min(remainingNanos(deadline), throttlingWaitEnd - System.nanoTime()), deadline, true));
+            int statusCode = userInfoResponse.getStatusCode();
+
+            if (statusCode == 200)
+            {
+                return userInfoResponse.getData();
+            }
+
+            boolean throttled = UpstreamResponse.isThrottled(statusCode);
+
+            if (throttled && attempt < MAXIMUM_USER_INFO_ATTEMPTS)
+            {
+                _logger.debug("Microsoft Graph throttled the userinfo request with status {}, retry after {} ms",
+                        statusCode, TimeUnit.NANOSECONDS.toMillis(userInfoResponse.getRetryAfterNanos()));
+
+                continue;
+            }
+
+            _metrics.countFailure(throttled ? Failure.USER_INFO_THROTTLED : Failure.USER_INFO_ERROR_RESPONSE);
+            _logger.info("Got error response from userinfo endpoint: {}", userInfoResponse.getError());
+
+            throw upstreamErrorException("Microsoft Graph", userInfoResponse.getError());
+        }
+    }
+
+    /**
+     * @param service the name of the service, to tell the user
+     * @return the exception for an error response from the token or userinfo endpoint, by the kind of its error: a bad
+     * request if the code was rejected, since the user can log in again, a configuration error if the client was
+     * rejected, and otherwise an error of the external service, with the error if the response had one
+     */
+    private RuntimeException upstreamErrorException(String service, UpstreamError error)
+    {
+        switch (error.getKind())
+        {
+            case INVALID_GRANT:
+                return _exceptionFactory.badRequestException(ErrorCode.INVALID_INPUT,
+                        "The login expired or was already completed, please log in again");
+            case CLIENT_REJECTED:
+                return _exceptionFactory.internalServerException(ErrorCode.CONFIGURATION_ERROR,
+                        service + " rejected the client with error " + error.getError());
+            case THROTTLED:
+                return _exceptionFactory.externalServiceException(service + " is throttling requests");
+            case UNAVAILABLE:
+                return _exceptionFactory.externalServiceException(service + " is unavailable, try again later");
+            default:
+                return error.getError() == null
+                        ? _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR)
+                        : _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR,
+                        service + " returned error " + error.getError());
+        }
+    }
+
+    /**
+     * Get the attributes from Microsoft Graph: the profile of the user, from the cache if it is fresh, the results of
+     * the other lookups, and the groups of the user, from the cache if they are cached. When there is more than one
+     * request, they are sent in one batch, so that each lookup adds no round trip; only further pages of groups take
+     * requests of their own. A lookup that fails is left out, except for the profile, which may be taken from the
+     * cache while it is stale.
+     *
+     * @return the attributes, by their name for the other lookups and the groups, or by the names of the properties
+     * for the profile
+     */
+    private Map<String, Object> enrich(String subject, String accessToken, long deadline)
+    {
+        @Nullable ProfileCache.Entry cached = _profileCache == null ? null : _profileCache.get(subject);
+        boolean fetchProfile = _profileCache != null && (cached == null || !_profileCache.isFresh(cached));
+        @Nullable GroupMemberships groups = _groupCache == null ? null : _groupCache.get(subject);
+        boolean fetchGroups = _groupCache != null && groups == null;
+        long enrichmentDeadline = System.nanoTime() + _enrichmentTimeoutNanos;
+
+        if (deadline != 0 && deadline - enrichmentDeadline < 0)
+        {
+            enrichmentDeadline = deadline;
+        }
+
+        Map<String, Object> attributes = new LinkedHashMap<>();
+
+        if (!_graphLookups.isEmpty() || (fetchProfile && fetchGroups))
+        {
+            GraphBatch batch = new GraphBatch();
+
+            if (fetchProfile)
+            {
+                @Nullable String etag = cached == null ? null : cached.getEtag();
+
+                batch.add(PROFILE_REQUEST_ID, "/me?" + _profileCache.getQuery(),
+                        etag == null ? Collections.emptyMap() : Map.of("If-None-Match", etag));
+            }
+
+            for (GraphLookup lookup : _graphLookups)
+            {
+                batch.add(lookup.getAttribute(), lookup.getUrl(), Collections.emptyMap());
+            }
+
+            if (fetchGroups)
+            {
+                batch.add(GROUPS_ATTRIBUTE, _groupsUrl + "?" + _groupsFirstPageQuery, Collections.emptyMap());
+            }
+
+            Map<String, GraphBatch.Response> responses = sendBatch(batch, accessToken, enrichmentDeadline);
+
+            if (fetchProfile)
+            {
+                @Nullable GraphBatch.Response response = responses.get(PROFILE_REQUEST_ID);
+
+                attributes.putAll(response == null
+                        ? useProfile(subject, cached, 0, Collections.emptyMap(), null)
+                        : useProfile(subject, cached, response.getStatusCode(), response.getBody(),
+                                response.getHeader("ETag")));
+            }
+
+            for (GraphLookup lookup : _graphLookups)
+            {
+                @Nullable GraphBatch.Response response = responses.get(lookup.getAttribute());
+                @Nullable Object value = null;
+
+                if (response != null && response.getStatusCode() == 200)
+                {
+                    value = lookup.toAttribute(response.getBody());
+                }
+                else if (response == null || response.getStatusCode() != 404)
+                {
+                    // 404 means that the user has no such thing, like a manager
+                    _metrics.countFailure(Failure.GRAPH_LOOKUP_ERROR);
+                    _logger.debug("Leaving out the {} attribute, the lookup failed with status {}",
+                            lookup.getAttribute(), response == null ? "none" : response.getStatusCode());
+                }
+
+                if (value != null)
+                {
+                    attributes.put(lookup.getAttribute(), value);
+                }
+            }
+
+            if (fetchGroups)
+            {
+                @Nullable GraphBatch.Response response = responses.get(GROUPS_ATTRIBUTE);
+
+                if (response != null && response.getStatusCode() == 200)
+                {
+                    groups = getGroups(subject, accessToken, response.getBody(), enrichmentDeadline);
+                }
+                else
+                {
+                    _metrics.countFailure(Failure.GROUPS_ERROR);
+                    _logger.debug("Leaving out the groups attribute, the first page failed with status {}",
+                            response == null ? "none" : response.getStatusCode());
+                }
+            }
+        }
+        else if (fetchProfile)
+        {
+            attributes.putAll(getProfile(subject, accessToken, cached, enrichmentDeadline));
+        }
+        else if (fetchGroups)
+        {
+            groups = getGroups(subject, accessToken, null, enrichmentDeadline);
+        }
+
+        if (!fetchProfile && cached != null)
+        {
+            attributes.putAll(cached.getProfile());
+        }
+
+        if (groups != null)
+        {
+            addGroups(attributes, groups);
+        }
+
+        return attributes;
+    }
+
+    /**
+     * Read the groups of the user page by page, following the next link of each page until there is none or the
+     * Maximum Groups is exceeded, and cache them. Each page is added to the groups as soon as it has been read, so
+     * only the IDs of one page are held as strings at a time.
+     *
+     * @param firstPage the first page if it was read in a batch, or null to read it here
+     * @return the groups, or null if not all pages could be read in time
+     */
+    @Nullable
+    private GroupMemberships getGroups(String subject, String accessToken, @Nullable Map<String, Object> firstPage,
+                                       long enrichmentDeadline)
     {
-        Map<String, String> data = new HashMap<>(5);
+        GroupMemberships.Collector collector = new GroupMemberships.Collector(_maximumGroups);
+        @Nullable Map<String, Object> page = firstPage != null
+                ? firstPage
+                : getGroupsPage(accessToken, _groupsPath, _groupsFirstPageQuery, enrichmentDeadline);
 
-        data.put("client_id", clientId);
-        data.put("client_secret", clientSecret);
-        data.put("code", code);
-        data.put("grant_type", "authorization_code");
-        data.put("redirect_uri", callbackUri);
+        while (page != null)
+        {
+            @Nullable String nextLink = collector.addPage(page);
+
+            if (nextLink == null)
+            {
+                GroupMemberships groups = collector.finish();
+
+                _groupCache.put(subject, groups);
+
+                return groups;
+            }
+
+            URI nextPage = URI.create(nextLink);
+
+            // The link is absolute, and the access token must only be sent to Graph
+            if (!_config.getGraphHost().equalsIgnoreCase(nextPage.getRawAuthority()))
+            {
+                _logger.info("Not following the link to the next page of groups, it is not on the Graph host: {}",
+                        nextPage.getRawAuthority());
+
+                break;
+            }
+
+            page = getGroupsPage(accessToken, nextPage.getRawPath(), Objects.toString(nextPage.getRawQuery(), ""),
+                    enrichmentDeadline);
+        }
 
-        return data;
+        _metrics.countFailure(Failure.GROUPS_ERROR);
+
+        return null;
     }
 
-    private static HttpRequest.BodyProcessor getFormEncodedBodyFrom(Map<String, String> data)
+    /**
+     * @return the fields of the page, or null if it could not be read
+     */
+    @Nullable
+    private Map<String, Object> getGroupsPage(String accessToken, String path, String query,
+                                              long enrichmentDeadline)
     {
-        StringBuilder stringBuilder = new StringBuilder();
+        UpstreamCall<UpstreamResponse> request = measure(Upstream.GROUPS, () -> _upstreamClients.getGraphClient()
+                .withPath(path)
+                .withQuery(query)
+                .request()
+                .accept("application/json")
+                .header("Authorization", "Bearer " + accessToken)
+                .get()
+                .response(), GroupMemberships.PAGE_EXTRACTOR);
+
+        try
+        {
+            UpstreamResponse pageResponse = callGraph(request,
+                    Math.min(remainingNanos(enrichmentDeadline), _graphThrottlingWaitNanos), enrichmentDeadline,
+                    false);
 
-        data.entrySet().forEach(e -> appendParameter(stringBuilder, e));
+            if (pageResponse.getStatusCode() == 200)
+            {
+                return pageResponse.getData();
+            }
 
-        return HttpRequest.fromString(stringBuilder.toString());
+            _logger.info("Got error response from Microsoft Graph for a page of groups: {}",
+                    pageResponse.getError());
+        }
+        catch (TimeoutException e)
+        {
+            _logger.info("Request for a page of groups did not complete within {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(_enrichmentTimeoutNanos));
+        }
+        catch (GraphRequestLimiter.ThrottledException | IOException e)
+        {
+            _logger.info("Could not get a page of groups from Microsoft Graph: {}", e.getMessage());
+        }
+
+        return null;
     }
 
-    private static void appendParameter(StringBuilder stringBuilder, Map.Entry<String, String> entry)
+    /**
+     * Add the groups attribute, or when the user is a member of more than the Maximum Groups, do what the Groups
+     * Overage says.
+     */
+    private void addGroups(Map<String, Object> attributes, GroupMemberships groups)
     {
-        String key = entry.getKey();
-        String value = entry.getValue();
-        String encodedKey = urlEncodeString(key);
-        stringBuilder.append(encodedKey);
+        if (!groups.isOverage())
+        {
+            attributes.put(GROUPS_ATTRIBUTE, groups.getIds());
+
+            return;
+        }
 
-        if (!Objects.isNull(value))
+        _metrics.countFailure(Failure.GROUPS_OVERAGE);
+
+        if (_groupsOverage == GroupsOverage.FAIL)
+        {
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR,
+                    "The user is a member of more groups than the login can include");
+        }
+
+        if (_groupsOverage == GroupsOverage.TRUNCATE)
         {
-            String encodedValue = urlEncodeString(value);
-            stringBuilder.append("=").append(encodedValue);
+            attributes.put(GROUPS_ATTRIBUTE, groups.getIds());
         }
 
-        stringBuilder.append("&");
+        attributes.put("groups_overage", true);
     }
 
-    private static String urlEncodeString(String unencodedString)
+    /**
+     * Get the photo of the user from the cache, or start to download it in the background if it is not cached or is
+     * stale.
+     *
+     * @return the photo, which is complete if it was cached and fresh
+     */
+    private CompletableFuture<PhotoCache.Entry> getPhoto(String subject, String accessToken)
+    {
+        String reference = PhotoCache.reference(subject);
+        @Nullable PhotoCache.Entry cached = _photoCache.get(reference);
+
+        if (cached != null && _photoCache.isFresh(cached))
+        {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return _photoCache.download(reference,
+                () -> _upstreamCallExecutor.submit(() -> downloadPhoto(reference, accessToken, cached)));
+    }
+
+    /**
+     * Wait for the photo of the user for at most the Photo Wait. If it takes longer, it is still downloaded and cached
+     * for the next login.
+     *
+     * @return the photo, or the stale cached photo if the download failed or is not done, or null if there is none
+     */
+    @Nullable
+    private PhotoCache.Entry awaitPhoto(String subject, CompletableFuture<PhotoCache.Entry> download, long deadline)
     {
         try
         {
-            return URLEncoder.encode(unencodedString, StandardCharsets.UTF_8.name());
+            return download.get(Math.min(_photoWaitNanos, remainingNanos(deadline)), TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            _metrics.countFailure(Failure.PHOTO_TIMEOUT);
+            _logger.debug("The photo of the user was not downloaded in time, continuing without waiting for it");
+        }
+        catch (ExecutionException e)
+        {
+            _metrics.countFailure(Failure.PHOTO_ERROR);
+            _logger.info("Could not download the photo of the user: {}", e.getCause().toString());
         }
-        catch (UnsupportedEncodingException e)
+        catch (InterruptedException e)
         {
-            throw new RuntimeException("This server cannot support UTF-8!", e);
+            Thread.currentThread().interrupt();
         }
+
+        return _photoCache.get(PhotoCache.reference(subject));
     }
 
-    private void validateState(String state)
+    /**
+     * Download the photo of the user, revalidating the cached photo if there is one, and cache it. This runs in the
+     * background, with the Enrichment Timeout as its deadline.
+     *
+     * @return the photo, or the cached photo if the download failed
+     */
+    @Nullable
+    private PhotoCache.Entry downloadPhoto(String reference, String accessToken, @Nullable PhotoCache.Entry cached)
     {
-        @Nullable Attribute sessionAttribute = _config.getSessionManager().get("state");
+        @Nullable String etag = cached == null ? null : cached.getEtag();
+        long downloadDeadline = System.nanoTime() + _enrichmentTimeoutNanos;
+        UpstreamCall<UpstreamResponse> request = measure(Upstream.PHOTO, () ->
+        {
+            HttpRequest.Builder builder = _upstreamClients.getGraphClient()
+                    .withPath(_photoCache.getPath())
+                    .request()
+                    .accept("image/*")
+                    .header("Authorization", "Bearer " + accessToken);
 
-        if (sessionAttribute != null && state.equals(sessionAttribute.getValueOfType(String.class)))
+            if (etag != null)
+            {
+                builder.header("If-None-Match", etag);
+            }
+
+            return builder.get().response();
+        }, response -> UpstreamResponse.readContent(response, PhotoCache.MAXIMUM_PHOTO_BYTES, 0));
+
+        try
         {
-            _logger.debug("State matches session");
+            UpstreamResponse photoResponse = callGraph(request,
+                    Math.min(remainingNanos(downloadDeadline), _graphThrottlingWaitNanos), downloadDeadline, false);
+
+            switch (photoResponse.getStatusCode())
+            {
+                case 200:
+                    return _photoCache.put(reference, photoResponse.getContent(), photoResponse.getContentType(),
+                            photoResponse.getEtag());
+                case 304:
+                    if (cached != null)
+                    {
+                        return _photoCache.revalidated(cached);
+                    }
+
+                    break;
+                case 404:
+                    // The user has no photo, which is cached so that it is not asked for again until it is stale
+                    return _photoCache.put(reference, null, null, null);
+                default:
+                    break;
+            }
+
+            _logger.info("Got error response from Microsoft Graph for the photo: error = {}",
+                    photoResponse.getStatusCode());
         }
-        else
+        catch (TimeoutException e)
         {
-            _logger.debug("State did not match session");
+            _logger.info("Request for the photo did not complete within {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(_enrichmentTimeoutNanos));
+        }
+        catch (GraphRequestLimiter.ThrottledException | IOException e)
+        {
+            _logger.info("Could not get the photo from Microsoft Graph: {}", e.getMessage());
+        }
 
-            throw _exceptionFactory.badRequestException(ErrorCode.INVALID_SERVER_STATE, "Bad state provided");
+        _metrics.countFailure(Failure.PHOTO_ERROR);
+
+        return cached;
+    }
+
+    /**
+     * @return the reference to the photo, its content type and size, which is all that the login keeps of it
+     */
+    private Map<String, Object> toAttribute(PhotoCache.Entry photo)
+    {
+        Map<String, Object> attribute = new LinkedHashMap<>(4);
+
+        attribute.put("ref", photo.getReference());
+
+        if (photo.getContentType() != null)
+        {
+            attribute.put("contentType", photo.getContentType());
         }
+
+        attribute.put("size", _photoCache.getSize());
+
+        return attribute;
     }
 
-    private Map<String, Object> getUserInfo(String accessToken)
+    /**
+     * @return the responses to the requests of the batch by their ID, without those that got no response because the
+     * whole batch failed
+     */
+    private Map<String, GraphBatch.Response> sendBatch(GraphBatch batch, String accessToken, long enrichmentDeadline)
     {
-        HttpResponse tokenResponse = getUserInfoWebServiceClient()
-                .withPath("/oidc/userinfo")
+        HttpRequest.BodyProcessor body = HttpRequest.fromString(batch.toJson(_json));
+        UpstreamCall<UpstreamResponse> request = measure(Upstream.BATCH, () -> _upstreamClients.getGraphClient()
+                .withPath(GraphBatch.PATH)
                 .request()
+                .contentType("application/json")
                 .accept("application/json")
                 .header("Authorization", "Bearer " + accessToken)
-                .get()
-                .response();
-        int statusCode = tokenResponse.statusCode();
+                .body(body)
+                .method("POST")
+                .response(), GraphBatch.RESPONSE_EXTRACTOR);
+
+        try
+        {
+            UpstreamResponse batchResponse = callGraph(request,
+                    Math.min(remainingNanos(enrichmentDeadline), _graphThrottlingWaitNanos), enrichmentDeadline,
+                    false);
+
+            if (batchResponse.getStatusCode() == 200)
+            {
+                return GraphBatch.parseResponses(batchResponse.getData());
+            }
+
+            _logger.info("Got error response from Microsoft Graph for the batch: {}", batchResponse.getError());
+        }
+        catch (TimeoutException e)
+        {
+            _logger.info("Batch request to Microsoft Graph did not complete within {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(_enrichmentTimeoutNanos));
+        }
+        catch (GraphRequestLimiter.ThrottledException | IOException e)
+        {
+            _logger.info("Could not send the batch request to Microsoft Graph: {}", e.getMessage());
+        }
+
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Fetch the profile of the user on its own, revalidating the cached profile if there is one.
+     */
+    private Map<String, Object> getProfile(String subject, String accessToken, @Nullable ProfileCache.Entry cached,
+                                           long enrichmentDeadline)
+    {
+        @Nullable String etag = cached == null ? null : cached.getEtag();
+        UpstreamCall<UpstreamResponse> request = measure(Upstream.PROFILE, () ->
+        {
+            HttpRequest.Builder builder = _upstreamClients.getGraphClient()
+                    .withPath("/v1.0/me")
+                    .withQuery(_profileCache.getQuery())
+                    .request()
+                    .accept("application/json")
+                    .header("Authorization", "Bearer " + accessToken);
+
+            if (etag != null)
+            {
+                builder.header("If-None-Match", etag);
+            }
+
+            return builder.get().response();
+        }, _profileCache.getExtractor());
+
+        try
+        {
+            // The Enrichment Timeout is usually far shorter than the Callback Deadline, so that a profile request
+            // that times out says little about the load on Graph
+            UpstreamResponse profileResponse = callGraph(request,
+                    Math.min(remainingNanos(enrichmentDeadline), _graphThrottlingWaitNanos), enrichmentDeadline,
+                    false);
+
+            if (profileResponse.getStatusCode() != 200 && profileResponse.getStatusCode() != 304)
+            {
+                _logger.info("Got error response from Microsoft Graph for the profile: {}",
+                        profileResponse.getError());
+            }
+
+            return useProfile(subject, cached, profileResponse.getStatusCode(), profileResponse.getData(),
+                    profileResponse.getEtag());
+        }
+        catch (TimeoutException e)
+        {
+            _logger.info("Request for the profile did not complete within {} ms",
+                    TimeUnit.NANOSECONDS.toMillis(_enrichmentTimeoutNanos));
+        }
+        catch (GraphRequestLimiter.ThrottledException | IOException e)
+        {
+            _logger.info("Could not get the profile from Microsoft Graph: {}", e.getMessage());
+        }
+
+        return useProfile(subject, cached, 0, Collections.emptyMap(), null);
+    }
+
+    /**
+     * Cache the profile from a response, or fall back to the cached profile if the response is not a profile.
+     *
+     * @param statusCode the status code of the response, or 0 if there is none
+     * @return the profile, or an empty map if there is none and it is not required
+     */
+    private Map<String, Object> useProfile(String subject, @Nullable ProfileCache.Entry cached, int statusCode,
+                                           Map<String, Object> data, @Nullable String etag)
+    {
+        if (statusCode == 200)
+        {
+            return _profileCache.put(subject, data, etag).getProfile();
+        }
+        else if (statusCode == 304 && cached != null)
+        {
+            return _profileCache.revalidated(subject, cached).getProfile();
+        }
+        else if (cached != null)
+        {
+            _metrics.countFailure(Failure.PROFILE_STALE);
+            _logger.debug("Using the stale cached profile of the user");
+
+            return cached.getProfile();
+        }
 
-        if (statusCode != 200)
+        _metrics.countFailure(Failure.PROFILE_UNAVAILABLE);
+
+        if (_profileRequired)
+        {
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR,
+                    "Could not get the profile of the user from Microsoft Graph");
+        }
+
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Send a request to Microsoft Graph when the limiter allows it, and let the limiter adapt to the response.
+     *
+     * @param maximumWaitNanos the longest time to wait for the limiter
+     * @param timeoutIsLoad    whether a timeout lowers the limit like a throttled response does
+     */
+    private UpstreamResponse callGraph(UpstreamCall<UpstreamResponse> request, long maximumWaitNanos, long deadline,
+                                       boolean timeoutIsLoad)
+            throws IOException, TimeoutException, GraphRequestLimiter.ThrottledException
+    {
+        _graphRequestLimiter.acquire(maximumWaitNanos);
+
+        UpstreamResponse response;
+
+        try
+        {
+            response = _upstreamCallExecutor.call(request, remainingNanos(deadline));
+        }
+        catch (TimeoutException e)
+        {
+            if (timeoutIsLoad)
+            {
+                _graphRequestLimiter.release(0, 0);
+            }
+            else
+            {
+                _graphRequestLimiter.release();
+            }
+
+            throw e;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            _graphRequestLimiter.release();
+
+            throw e;
+        }
+
+        _graphRequestLimiter.release(response.getStatusCode(), response.getRetryAfterNanos());
+
+        return response;
+    }
+
+    /**
+     * Wrap a request so that it is measured and its response is read on the thread that sends it.
+     */
+    private UpstreamCall<UpstreamResponse> measure(Upstream upstream, Supplier<HttpResponse> request,
+                                                   JsonFieldExtractor extractor)
+    {
+        return measure(upstream, request, response -> UpstreamResponse.read(response, extractor,
+                _errorBodyLimit));
+    }
+
+    private UpstreamCall<UpstreamResponse> measure(Upstream upstream, Supplier<HttpResponse> request,
+                                                   ResponseReader reader)
+    {
+        return () ->
         {
-            if (_logger.isInfoEnabled())
+            long start = now();
+            HttpResponse response = request.get();
+
+            if (_metrics.isEnabled())
             {
-                _logger.info("Got error response from userinfo endpoint: error = {}, {}", statusCode,
-                        tokenResponse.body(HttpResponse.asString()));
+                _metrics.recordUpstreamRequest(upstream, response.statusCode(), System.nanoTime() - start);
             }
 
+            return reader.read(response);
+        };
+    }
+
+    /**
+     * Send a request and read its response within the given time, by the executor or the hedger. Only the request
+     * and reading the response happen on their threads; all errors are raised on the request thread.
+     */
+    private UpstreamResponse callUpstream(Upstream upstream, UpstreamExchange exchange)
+    {
+        try
+        {
+            return exchange.run();
+        }
+        catch (TimeoutException e)
+        {
+            _metrics.countFailure(upstream == Upstream.TOKEN ? Failure.TOKEN_TIMEOUT : Failure.USER_INFO_TIMEOUT);
+            _logger.warn("Request to the {} endpoint did not complete within the deadline of the callback",
+                    upstream.name().toLowerCase());
+
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR,
+                    upstream == Upstream.TOKEN
+                            ? "The token endpoint of Windows Live did not respond in time"
+                            : "The userinfo endpoint of Microsoft Graph did not respond in time");
+        }
+        catch (GraphRequestLimiter.ThrottledException e)
+        {
+            _metrics.countFailure(Failure.USER_INFO_THROTTLED);
+            _logger.info("Did not send request to the {} endpoint: {}", upstream.name().toLowerCase(),
+                    e.getMessage());
+
+            throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR,
+                    "Microsoft Graph is throttling requests");
+        }
+        catch (IOException e)
+        {
+            _metrics.countFailure(upstream == Upstream.TOKEN
+                    ? Failure.TOKEN_MALFORMED_RESPONSE
+                    : Failure.USER_INFO_MALFORMED_RESPONSE);
+            _logger.info("Could not read response from {} endpoint: {}", upstream.name().toLowerCase(),
+                    e.getMessage());
+
             throw _exceptionFactory.internalServerException(ErrorCode.EXTERNAL_SERVICE_ERROR);
         }
+    }
+
+    private interface UpstreamExchange
+    {
+        UpstreamResponse run() throws IOException, TimeoutException, GraphRequestLimiter.ThrottledException;
+    }
 
-        return _json.fromJson(tokenResponse.body(HttpResponse.asString()));
+    private interface ResponseReader
+    {
+        UpstreamResponse read(HttpResponse response) throws IOException;
     }
 }
@@ -0,0 +1,296 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.WebServiceClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens connections to the hosts that the callback handler uses before users need them, so that the first logins
+ * after a node starts do not pay for DNS lookups and TCP and TLS handshakes.
+ *
+ * <p>Connections are opened by sending a number of concurrent requests to cheap endpoints of each host. The HTTP
+ * client keeps the connections in its pool afterwards. The responses themselves are ignored; only requests that fail
+ * to get any response, or that do not get one within {@link #TIMEOUT_SECONDS}, count as failures.</p>
+ *
+ * <p>Warm-ups run on threads of their own, which are kept between warm-ups but exit when they have been idle
+ * for a while, so that a slow host never holds up the background tasks of the authenticator. A warm-up that is due
+ * while the previous one is still running is skipped.</p>
+ */
+final class ConnectionWarmer implements AutoCloseable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(ConnectionWarmer.class);
+
+    static final long TIMEOUT_SECONDS = 10;
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    private final List<Target> _targets;
+    private final int _connectionsPerHost;
+    private final ThreadPoolExecutor _executor;
+    private final AtomicBoolean _running = new AtomicBoolean();
+
+    @Nullable
+    private volatile Result _lastResult;
+
+    /**
+     * @param loginPath  the path of a cheap endpoint of the login host
+     * @param threadName the name of the threads of the warmer
+     */
+    ConnectionWarmer(UpstreamClients upstreamClients, String loginHost, String loginPath, String graphHost,
+                     int connectionsPerHost, String threadName)
+    {
+        _connectionsPerHost = connectionsPerHost;
+        _targets = List.of(
+                new Target(loginHost, upstreamClients.getLoginClient().withPath(loginPath)),
+                new Target(graphHost, upstreamClients.getGraphClient().withPath("/oidc/userinfo")));
+
+        // One thread for each request, and one that waits for them
+        int threads = requests() + 1;
+
+        _executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable ->
+        {
+            Thread thread = new Thread(runnable, threadName);
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Warm up connections right away, and then every interval, if there is one. The given scheduler only starts the
+     * warm-ups, which run on the threads of the warmer.
+     *
+     * @param intervalSeconds the time between warm-ups, or 0 to only warm up once
+     */
+    void start(ScheduledExecutorService scheduler, int intervalSeconds)
+    {
+        if (intervalSeconds > 0)
+        {
+            scheduler.scheduleWithFixedDelay(this::startWarmUp, 0, intervalSeconds, TimeUnit.SECONDS);
+        }
+        else
+        {
+            scheduler.execute(this::startWarmUp);
+        }
+    }
+
+    private void startWarmUp()
+    {
+        if (!_running.compareAndSet(false, true))
+        {
+            _logger.debug("Skipping warm-up of connections to Windows Live, the previous one is still running");
+
+            return;
+        }
+
+        try
+        {
+            _executor.execute(() ->
+            {
+                try
+                {
+                    warmUp();
+                }
+                finally
+                {
+                    _running.set(false);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The warmer is closed
+            _running.set(false);
+        }
+    }
+
+    /**
+     * Open the configured number of connections to each host, and wait until all requests have completed, but at
+     * most {@link #TIMEOUT_SECONDS}, after which the requests that are still running are cancelled.
+     *
+     * @return the outcome, which is also logged
+     */
+    Result warmUp()
+    {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        AtomicInteger failures = new AtomicInteger();
+        List<Future<?>> requests = new ArrayList<>(requests());
+
+        try
+        {
+            for (Target target : _targets)
+            {
+                for (int i = 0; i < _connectionsPerHost; i++)
+                {
+                    requests.add(_executor.submit(() -> send(target, failures)));
+                }
+            }
+
+            for (Future<?> request : requests)
+            {
+                request.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (TimeoutException e)
+        {
+            _logger.debug("Warm-up requests did not complete within {} seconds, cancelling them", TIMEOUT_SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException | RejectedExecutionException e)
+        {
+            // send() handles its own failures, so this only happens when the warmer is closed
+            _logger.debug("Warm-up was stopped", e);
+        }
+
+        for (Future<?> request : requests)
+        {
+            if (request.cancel(true))
+            {
+                failures.incrementAndGet();
+            }
+        }
+
+        Result result = new Result(requests(), failures.get(), (System.nanoTime() - start) / 1_000_000);
+
+        _lastResult = result;
+
+        if (result.getFailures() > 0)
+        {
+            _logger.warn("Warmed up connections to Windows Live in {} ms, but {} of {} requests failed",
+                    result.getDurationMillis(), result.getFailures(), result.getRequests());
+        }
+        else
+        {
+            _logger.info("Warmed up {} connections to Windows Live in {} ms", result.getRequests(),
+                    result.getDurationMillis());
+        }
+
+        return result;
+    }
+
+    /**
+     * Stop the threads of the warmer, cancelling a warm-up that is running.
+     */
+    @Override
+    public void close()
+    {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * @return the outcome of the last warm-up, or null if none has completed yet
+     */
+    @Nullable
+    Result getLastResult()
+    {
+        return _lastResult;
+    }
+
+    private int requests()
+    {
+        return _connectionsPerHost * _targets.size();
+    }
+
+    private static void send(Target target, AtomicInteger failures)
+    {
+        try
+        {
+            HttpResponse response = target._client.request().get().response();
+
+            // Read the body, so that the connection can be returned to the pool
+            try (InputStream body = response.body(HttpResponse.asInputStream()))
+            {
+                body.transferTo(OutputStream.nullOutputStream());
+            }
+
+            _logger.trace("Warm-up request to {} got status {}", target._host, response.statusCode());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            failures.incrementAndGet();
+
+            _logger.debug("Warm-up request to {} failed", target._host, e);
+        }
+    }
+
+    static final class Result
+    {
+        private final int _requests;
+        private final int _failures;
+        private final long _durationMillis;
+
+        private Result(int requests, int failures, long durationMillis)
+        {
+            _requests = requests;
+            _failures = failures;
+            _durationMillis = durationMillis;
+        }
+
+        int getRequests()
+        {
+            return _requests;
+        }
+
+        int getFailures()
+        {
+            return _failures;
+        }
+
+        long getDurationMillis()
+        {
+            return _durationMillis;
+        }
+    }
+
+    private static final class Target
+    {
+        private final String _host;
+        private final WebServiceClient _client;
+
+        private Target(String host, WebServiceClient client)
+        {
+            _host = host;
+            _client = client;
+        }
+    }
+}
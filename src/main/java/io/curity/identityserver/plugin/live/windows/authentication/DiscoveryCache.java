@@ -0,0 +1,334 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpRequest;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The endpoints of the configured tenant, from its OpenID Connect discovery metadata.
+ *
+ * <p>The metadata is fetched in the background when the configuration is loaded, and again at the refresh interval
+ * with the ETag of the last document, so that the identity platform answers 304 without a body if it has not changed.
+ * Requests only read the metadata that was fetched last, and never wait for a fetch. Until the first fetch succeeds,
+ * the well-known endpoints of the tenant are used. When a fetch fails, the last metadata is kept and the fetch is
+ * retried sooner.</p>
+ *
+ * <p>The token endpoint and the signing keys are requested with the client of the login host, so metadata that puts
+ * them on another host is not used.</p>
+ */
+final class DiscoveryCache
+{
+    private static final Logger _logger = LoggerFactory.getLogger(DiscoveryCache.class);
+
+    private static final Pattern TENANT = Pattern.compile("[A-Za-z0-9][A-Za-z0-9.-]*");
+    private static final Pattern TENANT_ID = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final long RETRY_INTERVAL_SECONDS = 30;
+
+    private final UpstreamClients _upstreamClients;
+    private final Json _json;
+    private final String _loginHost;
+    private final String _path;
+    private final long _refreshIntervalSeconds;
+
+    private final LongAdder _fetches = new LongAdder();
+    private final LongAdder _revalidations = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+
+    private volatile Metadata _metadata;
+
+    DiscoveryCache(String scheme, String loginHost, String tenant, UpstreamClients upstreamClients, Json json,
+                   long refreshIntervalSeconds)
+    {
+        _upstreamClients = upstreamClients;
+        _json = json;
+        _loginHost = loginHost;
+        _path = "/" + tenant + "/v2.0/.well-known/openid-configuration";
+        _refreshIntervalSeconds = refreshIntervalSeconds;
+
+        // Microsoft puts the ID of the tenant that issued a token in the issuer, which is only known in advance if
+        // the tenant is configured by its ID
+        String base = "/" + tenant;
+        String origin = scheme + "://" + loginHost;
+
+        _metadata = new Metadata(origin + base + "/oauth2/v2.0/authorize", origin + base + "/oauth2/v2.0/token",
+                base + "/oauth2/v2.0/token", base + "/discovery/v2.0/keys",
+                origin + "/" + (TENANT_ID.matcher(tenant).matches() ? tenant : "{tenantid}") + "/v2.0", null, false);
+    }
+
+    /**
+     * @throws RuntimeException a configuration exception if the tenant is not a valid path segment
+     */
+    static DiscoveryCache of(WindowsLiveAuthenticatorPluginConfig config, UpstreamClients upstreamClients)
+    {
+        String tenant = config.getTenant().trim();
+
+        if (!TENANT.matcher(tenant).matches())
+        {
+            throw config.getExceptionFactory().configurationException("Invalid tenant " + tenant + ", expected " +
+                    "common, organizations, consumers, or the ID or a domain name of a tenant");
+        }
+
+        return new DiscoveryCache(config.getUpstreamScheme().name().toLowerCase(), config.getLoginHost(), tenant,
+                upstreamClients, config.getJson(), config.getDiscoveryRefreshInterval());
+    }
+
+    /**
+     * Fetch the metadata right away, and then again at the refresh interval, or sooner after a fetch failed.
+     */
+    void start(ScheduledExecutorService scheduler)
+    {
+        scheduler.execute(() -> refresh(scheduler));
+    }
+
+    /**
+     * @return the metadata that was fetched last, or the well-known endpoints of the tenant if none has been
+     */
+    Metadata get()
+    {
+        return _metadata;
+    }
+
+    /**
+     * @return the path of the discovery metadata on the login host
+     */
+    String getPath()
+    {
+        return _path;
+    }
+
+    long getFetches()
+    {
+        return _fetches.sum();
+    }
+
+    /**
+     * @return the number of fetches that the identity platform answered with 304
+     */
+    long getRevalidations()
+    {
+        return _revalidations.sum();
+    }
+
+    long getFailures()
+    {
+        return _failures.sum();
+    }
+
+    private void refresh(ScheduledExecutorService scheduler)
+    {
+        long delaySeconds = fetch() ? _refreshIntervalSeconds : Math.min(RETRY_INTERVAL_SECONDS,
+                _refreshIntervalSeconds);
+
+        try
+        {
+            scheduler.schedule(() -> refresh(scheduler), delaySeconds, TimeUnit.SECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            _logger.debug("Not refreshing the discovery metadata anymore, since the configuration was closed");
+        }
+    }
+
+    /**
+     * @return true if the metadata is up to date
+     */
+    private boolean fetch()
+    {
+        Metadata current = _metadata;
+
+        try
+        {
+            HttpRequest.Builder builder = _upstreamClients.getLoginClient()
+                    .withPath(_path)
+                    .request()
+                    .accept("application/json");
+
+            if (current._etag != null)
+            {
+                builder.header("If-None-Match", current._etag);
+            }
+
+            HttpResponse response = builder.get().response();
+
+            if (response.statusCode() == 304 && current._etag != null)
+            {
+                _revalidations.increment();
+                _logger.trace("Discovery metadata has not changed");
+
+                return true;
+            }
+
+            if (response.statusCode() != 200)
+            {
+                _failures.increment();
+                _logger.warn("Could not fetch the discovery metadata of the tenant, got status {}; keeping the " +
+                        "previous endpoints", response.statusCode());
+
+                return false;
+            }
+
+            Metadata metadata = parse(_json.fromJson(response.body(HttpResponse.asString())),
+                    response.headers().firstValue("ETag").orElse(null));
+
+            _metadata = metadata;
+            _fetches.increment();
+            _logger.debug("Fetched the discovery metadata of the tenant, token endpoint {}, issuer {}",
+                    metadata._tokenEndpoint, metadata._issuer);
+
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            _failures.increment();
+            _logger.warn("Could not fetch the discovery metadata of the tenant; keeping the previous endpoints", e);
+
+            return false;
+        }
+    }
+
+    private Metadata parse(Map<String, Object> document, @Nullable String etag)
+    {
+        URI authorizationEndpoint = endpointOf(document, "authorization_endpoint");
+        URI tokenEndpoint = loginHostEndpointOf(document, "token_endpoint");
+        URI jwksUri = loginHostEndpointOf(document, "jwks_uri");
+
+        if (!(document.get("issuer") instanceof String))
+        {
+            throw new IllegalArgumentException("Discovery metadata has no issuer");
+        }
+
+        return new Metadata(authorizationEndpoint.toString(), tokenEndpoint.toString(), tokenEndpoint.getRawPath(),
+                jwksUri.getRawPath(), (String) document.get("issuer"), etag, true);
+    }
+
+    private URI loginHostEndpointOf(Map<String, Object> document, String name)
+    {
+        URI endpoint = endpointOf(document, name);
+
+        if (!_loginHost.equalsIgnoreCase(endpoint.getRawAuthority()))
+        {
+            throw new IllegalArgumentException("Discovery metadata has " + name + " " + endpoint + " that is not " +
+                    "on the login host " + _loginHost);
+        }
+
+        return endpoint;
+    }
+
+    private static URI endpointOf(Map<String, Object> document, String name)
+    {
+        Object value = document.get(name);
+
+        if (!(value instanceof String))
+        {
+            throw new IllegalArgumentException("Discovery metadata has no " + name);
+        }
+
+        URI endpoint = URI.create((String) value);
+
+        if (!endpoint.isAbsolute() || endpoint.getRawAuthority() == null || endpoint.getRawPath() == null)
+        {
+            throw new IllegalArgumentException("Discovery metadata has " + name + " " + value + " that is not an " +
+                    "absolute URL");
+        }
+
+        return endpoint;
+    }
+
+    static final class Metadata
+    {
+        private final String _authorizationEndpoint;
+        private final String _tokenEndpoint;
+        private final String _tokenPath;
+        private final String _jwksPath;
+        private final String _issuer;
+
+        @Nullable
+        private final String _etag;
+
+        private final boolean _discovered;
+
+        private Metadata(String authorizationEndpoint, String tokenEndpoint, String tokenPath, String jwksPath,
+                         String issuer, @Nullable String etag, boolean discovered)
+        {
+            _authorizationEndpoint = authorizationEndpoint;
+            _tokenEndpoint = tokenEndpoint;
+            _tokenPath = tokenPath;
+            _jwksPath = jwksPath;
+            _issuer = issuer;
+            _etag = etag;
+            _discovered = discovered;
+        }
+
+        String getAuthorizationEndpoint()
+        {
+            return _authorizationEndpoint;
+        }
+
+        String getTokenEndpoint()
+        {
+            return _tokenEndpoint;
+        }
+
+        /**
+         * @return the path of the token endpoint on the login host
+         */
+        String getTokenPath()
+        {
+            return _tokenPath;
+        }
+
+        /**
+         * @return the path of the signing keys on the login host
+         */
+        String getJwksPath()
+        {
+            return _jwksPath;
+        }
+
+        /**
+         * @return the issuer of ID tokens, in which {@code {tenantid}} stands for the tenant that issued a token
+         * if the tenant is common, organizations or consumers
+         */
+        String getIssuer()
+        {
+            return _issuer;
+        }
+
+        /**
+         * @return true if the metadata was fetched, and false if it has the well-known endpoints of the tenant
+         */
+        boolean isDiscovered()
+        {
+            return _discovered;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.service.Json;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends login events to a file as JSON lines, one object per line, and flushes the file after each batch.
+ */
+final class FileLoginEventSink implements LoginEventSink
+{
+    private final Json _json;
+    private final Writer _writer;
+
+    /**
+     * @throws IOException if the file cannot be opened for appending
+     */
+    FileLoginEventSink(Path file, Json json) throws IOException
+    {
+        _json = json;
+        _writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void write(List<LoginEvent> events) throws IOException
+    {
+        for (LoginEvent event : events)
+        {
+            _writer.write(_json.toJson(event.toMap()));
+            _writer.write('\n');
+        }
+
+        _writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _writer.close();
+    }
+}
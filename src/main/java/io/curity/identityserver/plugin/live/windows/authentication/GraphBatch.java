@@ -0,0 +1,152 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A JSON batch of requests to Microsoft Graph, which sends several GET requests in one round trip.
+ *
+ * <p>Graph answers a batch with 200 as long as it could read it, and gives each request a response of its own, in
+ * any order. A request that fails does not affect the others, so the caller decides for each response what to do
+ * with it.</p>
+ */
+final class GraphBatch
+{
+    static final String PATH = "/v1.0/$batch";
+
+    /**
+     * Extracts the responses from the body of the response to a batch
+     */
+    static final JsonFieldExtractor RESPONSE_EXTRACTOR = JsonFieldExtractor.of(List.of("responses"));
+
+    private final List<Map<String, Object>> _requests = new ArrayList<>(4);
+
+    /**
+     * @param id      the ID of the request, which identifies its response
+     * @param url     the URL of the request relative to the version of Graph, e.g. {@code /me}
+     * @param headers the headers of the request, besides the authorization, which applies to the whole batch
+     */
+    GraphBatch add(String id, String url, Map<String, String> headers)
+    {
+        Map<String, Object> request = new LinkedHashMap<>(4);
+
+        request.put("id", id);
+        request.put("method", "GET");
+        request.put("url", url);
+
+        if (!headers.isEmpty())
+        {
+            request.put("headers", headers);
+        }
+
+        _requests.add(request);
+
+        return this;
+    }
+
+    boolean isEmpty()
+    {
+        return _requests.isEmpty();
+    }
+
+    String toJson(Json json)
+    {
+        return json.toJson(Map.of("requests", _requests));
+    }
+
+    /**
+     * @param data the extracted fields of the response to the batch
+     * @return the responses to the requests of the batch by their ID. Requests without a response are missing.
+     */
+    static Map<String, Response> parseResponses(Map<String, Object> data)
+    {
+        if (!(data.get("responses") instanceof List))
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, Response> responses = new HashMap<>();
+
+        for (Object item : (List<?>) data.get("responses"))
+        {
+            if (item instanceof Map)
+            {
+                Map<?, ?> response = (Map<?, ?>) item;
+
+                if (response.get("id") != null && response.get("status") instanceof Number)
+                {
+                    responses.put(response.get("id").toString(), new Response(
+                            ((Number) response.get("status")).intValue(), response.get("headers"),
+                            response.get("body")));
+                }
+            }
+        }
+
+        return responses;
+    }
+
+    static final class Response
+    {
+        private final int _statusCode;
+        private final Map<String, String> _headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Object> _body = new LinkedHashMap<>();
+
+        private Response(int statusCode, @Nullable Object headers, @Nullable Object body)
+        {
+            _statusCode = statusCode;
+
+            if (headers instanceof Map)
+            {
+                ((Map<?, ?>) headers).forEach((name, value) -> _headers.put(name.toString(), String.valueOf(value)));
+            }
+
+            if (body instanceof Map)
+            {
+                ((Map<?, ?>) body).forEach((name, value) -> _body.put(name.toString(), value));
+            }
+        }
+
+        int getStatusCode()
+        {
+            return _statusCode;
+        }
+
+        @Nullable
+        String getHeader(String name)
+        {
+            return _headers.get(name);
+        }
+
+        /**
+         * @return the body of the response if it is a JSON object, or otherwise an empty map
+         */
+        Map<String, Object> getBody()
+        {
+            return _body;
+        }
+    }
+}
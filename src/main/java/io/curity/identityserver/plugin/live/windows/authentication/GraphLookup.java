@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The lookups in Microsoft Graph, besides the profile, that can each add an attribute to a login. They are sent
+ * together with the profile request in one {@link GraphBatch}.
+ */
+enum GraphLookup
+{
+    /**
+     * The manager of the user, as a map of their id, displayName, mail and jobTitle
+     */
+    MANAGER("manager", "/me/manager?$select=id,displayName,mail,jobTitle")
+            {
+                @Override
+                @Nullable
+                Object toAttribute(Map<String, Object> body)
+                {
+                    Map<String, Object> manager = new LinkedHashMap<>();
+
+                    body.forEach((name, value) ->
+                    {
+                        if (!name.startsWith("@odata.") && value != null)
+                        {
+                            manager.put(name, value);
+                        }
+                    });
+
+                    return manager.isEmpty() ? null : manager;
+                }
+            },
+
+    /**
+     * The metadata of the photo of the user, as a map of its contentType, width and height
+     */
+    PHOTO("photo", "/me/photo")
+            {
+                @Override
+                @Nullable
+                Object toAttribute(Map<String, Object> body)
+                {
+                    Map<String, Object> photo = new LinkedHashMap<>();
+
+                    putIfPresent(photo, "contentType", body.get("@odata.mediaContentType"));
+                    putIfPresent(photo, "width", body.get("width"));
+                    putIfPresent(photo, "height", body.get("height"));
+
+                    return photo.isEmpty() ? null : photo;
+                }
+            },
+
+    /**
+     * The licenses of the user, as a list of their SKU part numbers
+     */
+    LICENSES("licenses", "/me/licenseDetails?$select=skuId,skuPartNumber")
+            {
+                @Override
+                @Nullable
+                Object toAttribute(Map<String, Object> body)
+                {
+                    if (!(body.get("value") instanceof List))
+                    {
+                        return null;
+                    }
+
+                    List<Object> licenses = new ArrayList<>();
+
+                    for (Object license : (List<?>) body.get("value"))
+                    {
+                        if (license instanceof Map && ((Map<?, ?>) license).get("skuPartNumber") != null)
+                        {
+                            licenses.add(((Map<?, ?>) license).get("skuPartNumber"));
+                        }
+                    }
+
+                    return licenses;
+                }
+            };
+
+    private final String _attribute;
+    private final String _url;
+
+    GraphLookup(String attribute, String url)
+    {
+        _attribute = attribute;
+        _url = url;
+    }
+
+    static Set<GraphLookup> of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        Set<GraphLookup> lookups = EnumSet.noneOf(GraphLookup.class);
+
+        if (config.isManagerAttribute())
+        {
+            lookups.add(MANAGER);
+        }
+
+        if (config.isPhotoAttribute())
+        {
+            lookups.add(PHOTO);
+        }
+
+        if (config.isLicensesAttribute())
+        {
+            lookups.add(LICENSES);
+        }
+
+        return lookups;
+    }
+
+    /**
+     * @return the name of the attribute, which is also the ID of the request in a batch
+     */
+    String getAttribute()
+    {
+        return _attribute;
+    }
+
+    /**
+     * @return the URL of the request relative to the version of Graph, as a batch expects it
+     */
+    String getUrl()
+    {
+        return _url;
+    }
+
+    /**
+     * @param body the body of a successful response
+     * @return the value of the attribute, or null if the response has none
+     */
+    @Nullable
+    abstract Object toAttribute(Map<String, Object> body);
+
+    private static void putIfPresent(Map<String, Object> map, String name, @Nullable Object value)
+    {
+        if (value != null)
+        {
+            map.put(name, value);
+        }
+    }
+}
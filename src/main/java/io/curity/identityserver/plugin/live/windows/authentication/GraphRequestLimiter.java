@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests to Microsoft Graph that this node has in flight, and holds requests back while Graph
+ * has asked for a pause with {@code Retry-After}.
+ *
+ * <p>The limit adapts to Graph like TCP congestion control does (AIMD): every response that is not throttled raises
+ * it by one divided by the limit, so about one per limit of responses, up to the configured maximum, and every
+ * throttled response (429 or 503) or timed out request halves it. The limit is halved at most once per
+ * {@link #DECREASE_INTERVAL_NANOS}, since the requests that were in flight when Graph started throttling tend to be
+ * throttled together.</p>
+ *
+ * <p>A {@code Retry-After} of a throttled response holds back all requests until it has passed; a throttled response
+ * without one holds them back for a second. The requests that
+ * waited are then spread out by a random jitter, so that they do not hit Graph all at once. A request that would have
+ * to wait longer than the caller can afford is rejected right away instead, with a {@link ThrottledException}.</p>
+ */
+final class GraphRequestLimiter
+{
+    private static final Logger _logger = LoggerFactory.getLogger(GraphRequestLimiter.class);
+
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MINIMUM_JITTER_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // The pause after a throttled response without Retry-After
+    private static final long DEFAULT_RETRY_AFTER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _changed = _lock.newCondition();
+    private final int _maximumLimit;
+
+    // Guarded by _lock
+    private double _limit;
+    private int _inFlight;
+    private long _blockedUntil;
+    private long _lastDecrease;
+    private boolean _blocked;
+
+    /**
+     * @param maximumLimit the most requests that may be in flight at a time, which is also the initial limit
+     */
+    GraphRequestLimiter(int maximumLimit)
+    {
+        _maximumLimit = maximumLimit;
+        _limit = maximumLimit;
+        _lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Wait until a request may be sent. Every successful call must be followed by a call to
+     * {@link #release(int, long)} or {@link #release()}.
+     *
+     * @param maximumWaitNanos the longest time to wait
+     * @throws ThrottledException if a request could not be sent within the given time
+     */
+    void acquire(long maximumWaitNanos) throws ThrottledException, InterruptedIOException
+    {
+        long start = System.nanoTime();
+        long jitter = -1;
+
+        _lock.lock();
+
+        try
+        {
+            while (true)
+            {
+                long now = System.nanoTime();
+                long waited = now - start;
+                long wait;
+
+                if (_blocked && now - _blockedUntil >= 0)
+                {
+                    _blocked = false;
+                }
+
+                if (_blocked && jitter < 0)
+                {
+                    jitter = ThreadLocalRandom.current().nextLong(Math.max(MINIMUM_JITTER_NANOS,
+                            (_blockedUntil - now) / 4));
+                }
+
+                // A request that was held back waits for its jitter too, even when the pause is over
+                if (jitter >= 0 && _blockedUntil + jitter - now > 0)
+                {
+                    wait = _blockedUntil + jitter - now;
+                }
+                else if (_inFlight < (int) _limit)
+                {
+                    _inFlight++;
+
+                    return;
+                }
+                else
+                {
+                    wait = maximumWaitNanos - waited;
+                }
+
+                if (wait <= 0 || waited + wait > maximumWaitNanos)
+                {
+                    throw new ThrottledException(jitter >= 0
+                            ? "Microsoft Graph asked to wait " + TimeUnit.NANOSECONDS.toMillis(_blockedUntil - now) +
+                            " ms, which is longer than the login can wait"
+                            : "Too many requests to Microsoft Graph are in flight (" + _inFlight + ")");
+                }
+
+                _changed.awaitNanos(wait);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting to send a request to Microsoft Graph");
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Release a request that was allowed by {@link #acquire(long)} and adapt the limit to its outcome.
+     *
+     * @param statusCode      the status code of the response, or 0 if the request timed out
+     * @param retryAfterNanos the time that Graph asked to wait, or 0
+     */
+    void release(int statusCode, long retryAfterNanos)
+    {
+        _lock.lock();
+
+        try
+        {
+            long now = System.nanoTime();
+
+            _inFlight--;
+
+            if (UpstreamResponse.isThrottled(statusCode) || statusCode == 0)
+            {
+                if (now - _lastDecrease >= DECREASE_INTERVAL_NANOS)
+                {
+                    _limit = Math.max(1, _limit / 2);
+                    _lastDecrease = now;
+                    _logger.debug("Microsoft Graph is throttling, lowered the limit of requests in flight to {}",
+                            (int) _limit);
+                }
+
+                long pause = retryAfterNanos > 0 ? retryAfterNanos : DEFAULT_RETRY_AFTER_NANOS;
+
+                if (statusCode != 0 && (!_blocked || now + pause - _blockedUntil > 0))
+                {
+                    _blocked = true;
+                    _blockedUntil = now + pause;
+                }
+            }
+            else if (statusCode > 0)
+            {
+                _limit = Math.min(_maximumLimit, _limit + 1 / _limit);
+            }
+
+            _changed.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Release a request that was allowed by {@link #acquire(long)} without adapting the limit, e.g. because it failed
+     * for a reason unrelated to the load on Graph.
+     */
+    void release()
+    {
+        _lock.lock();
+
+        try
+        {
+            _inFlight--;
+            _changed.signalAll();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    int getLimit()
+    {
+        _lock.lock();
+
+        try
+        {
+            return (int) _limit;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    static final class ThrottledException extends Exception
+    {
+        ThrottledException(String message)
+        {
+            super(message);
+        }
+    }
+}
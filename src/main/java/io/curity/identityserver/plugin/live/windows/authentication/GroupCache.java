@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the group memberships of users by their subject for a TTL, so that a user who logs in again does not walk
+ * all pages of their groups again.
+ *
+ * <p>The memory of the cache is bounded by the total number of groups of the cached users, since that varies far
+ * more between users than the size of anything else. When a new entry would exceed it, the entries that were used
+ * least recently are removed first. Memberships of more groups than the capacity are not cached at all.</p>
+ */
+final class GroupCache
+{
+    // Counted as groups, for the map entry, the subject and the arrays
+    private static final int ENTRY_OVERHEAD = 8;
+
+    private final long _capacity;
+    private final long _ttlNanos;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // Guarded by _lock, in the order of access
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _weight;
+
+    private final LongAdder _hits = new LongAdder();
+
+    /**
+     * @param capacity the most groups to cache, over all users
+     */
+    GroupCache(long capacity, long ttlNanos)
+    {
+        _capacity = capacity;
+        _ttlNanos = ttlNanos;
+    }
+
+    /**
+     * @return a cache of the groups of users, or null if the Groups Attribute is not added
+     */
+    @Nullable
+    static GroupCache of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        if (!config.isGroupsAttribute())
+        {
+            return null;
+        }
+
+        return new GroupCache(config.getGroupsCacheCapacity(), TimeUnit.SECONDS.toNanos(config.getGroupsCacheTtl()));
+    }
+
+    /**
+     * @return the cached memberships of the given subject, or null if they are not cached or have expired
+     */
+    @Nullable
+    GroupMemberships get(String subject)
+    {
+        long now = System.nanoTime();
+
+        _lock.lock();
+
+        try
+        {
+            @Nullable Entry entry = _entries.get(subject);
+
+            if (entry == null)
+            {
+                return null;
+            }
+
+            if (now - entry._cachedAt > _ttlNanos)
+            {
+                remove(subject);
+
+                return null;
+            }
+
+            _hits.increment();
+
+            return entry._memberships;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    void put(String subject, GroupMemberships memberships)
+    {
+        long weight = memberships.size() + ENTRY_OVERHEAD;
+
+        if (weight > _capacity)
+        {
+            return;
+        }
+
+        _lock.lock();
+
+        try
+        {
+            remove(subject);
+
+            Iterator<Entry> leastRecentlyUsed = _entries.values().iterator();
+
+            while (_weight + weight > _capacity && leastRecentlyUsed.hasNext())
+            {
+                _weight -= leastRecentlyUsed.next()._weight;
+                leastRecentlyUsed.remove();
+            }
+
+            _entries.put(subject, new Entry(memberships, weight, System.nanoTime()));
+            _weight += weight;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    // Must hold _lock
+    private void remove(String subject)
+    {
+        @Nullable Entry entry = _entries.remove(subject);
+
+        if (entry != null)
+        {
+            _weight -= entry._weight;
+        }
+    }
+
+    /**
+     * @return the number of lookups that found unexpired memberships
+     */
+    long getHits()
+    {
+        return _hits.sum();
+    }
+
+    /**
+     * @return the number of cached users and their groups
+     */
+    String describe()
+    {
+        _lock.lock();
+
+        try
+        {
+            return _entries.size() + " users, " + (_weight - ENTRY_OVERHEAD * _entries.size()) + " groups";
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    private static final class Entry
+    {
+        private final GroupMemberships _memberships;
+        private final long _weight;
+        private final long _cachedAt;
+
+        private Entry(GroupMemberships memberships, long weight, long cachedAt)
+        {
+            _memberships = memberships;
+            _weight = weight;
+            _cachedAt = cachedAt;
+        }
+    }
+}
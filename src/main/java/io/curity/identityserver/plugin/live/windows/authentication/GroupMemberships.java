@@ -0,0 +1,232 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.GroupMembership;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * The IDs of the groups that a user is a member of, as read from the pages of {@code /me/transitiveMemberOf} or
+ * {@code /me/memberOf} in Microsoft Graph.
+ *
+ * <p>Group IDs are GUIDs, so they are kept as two longs each, sorted and without duplicates, which takes 16 bytes per
+ * group instead of about 80 for a string. This matters because memberships are cached for many users, and users can
+ * be members of hundreds of groups. They are only turned into strings for the attribute of a login.</p>
+ */
+final class GroupMemberships
+{
+    /**
+     * The URL of the groups that the user is a member of, directly or through other groups, without other directory
+     * objects like roles, relative to the version of Graph as a batch expects it
+     */
+    static final String TRANSITIVE_URL = "/me/transitiveMemberOf/microsoft.graph.group";
+
+    /**
+     * The URL of the groups that the user is a direct member of
+     */
+    static final String DIRECT_URL = "/me/memberOf/microsoft.graph.group";
+
+    /**
+     * Extracts the groups and the link to the next page from a page
+     */
+    static final JsonFieldExtractor PAGE_EXTRACTOR = JsonFieldExtractor.of(List.of("value", "@odata.nextLink"));
+
+    // The most and least significant bits of each GUID, in order
+    private final long[] _guids;
+
+    // IDs that are not GUIDs, which Graph does not issue, so that they are not lost if it did
+    private final List<String> _otherIds;
+
+    private final boolean _overage;
+
+    private GroupMemberships(long[] guids, List<String> otherIds, boolean overage)
+    {
+        _guids = guids;
+        _otherIds = otherIds;
+        _overage = overage;
+    }
+
+    /**
+     * @return the URL of the groups of the given kind of membership, relative to the version of Graph
+     */
+    static String url(GroupMembership membership)
+    {
+        return membership == GroupMembership.TRANSITIVE ? TRANSITIVE_URL : DIRECT_URL;
+    }
+
+    /**
+     * @return the path of the groups of the given kind of membership
+     */
+    static String path(GroupMembership membership)
+    {
+        return "/v1.0" + url(membership);
+    }
+
+    /**
+     * @return the query of the first page
+     */
+    static String firstPageQuery(int pageSize)
+    {
+        return "$select=id&$top=" + pageSize;
+    }
+
+    /**
+     * @return the group IDs as strings, in the order of the GUIDs
+     */
+    List<String> getIds()
+    {
+        List<String> ids = new ArrayList<>(size());
+
+        for (int i = 0; i < _guids.length; i += 2)
+        {
+            ids.add(new UUID(_guids[i], _guids[i + 1]).toString());
+        }
+
+        ids.addAll(_otherIds);
+
+        return ids;
+    }
+
+    int size()
+    {
+        return _guids.length / 2 + _otherIds.size();
+    }
+
+    /**
+     * @return true if the user is a member of more groups than the maximum, and only the first groups are included
+     */
+    boolean isOverage()
+    {
+        return _overage;
+    }
+
+    /**
+     * Collects the groups of a user while the pages are read, one page at a time, until the maximum is reached.
+     */
+    static final class Collector
+    {
+        private final int _maximum;
+        private final Set<UUID> _guids = new TreeSet<>();
+        private final Set<String> _otherIds = new LinkedHashSet<>();
+        private boolean _overage;
+
+        /**
+         * @param maximum the most groups to collect
+         */
+        Collector(int maximum)
+        {
+            _maximum = maximum;
+        }
+
+        /**
+         * @param page the extracted fields of a page
+         * @return the link to the next page, or null if there is none or the maximum has been exceeded
+         */
+        @Nullable
+        String addPage(Map<String, Object> page)
+        {
+            if (page.get("value") instanceof List)
+            {
+                for (Object group : (List<?>) page.get("value"))
+                {
+                    if (group instanceof Map && ((Map<?, ?>) group).get("id") != null && !add(
+                            ((Map<?, ?>) group).get("id").toString()))
+                    {
+                        _overage = true;
+
+                        return null;
+                    }
+                }
+            }
+
+            @Nullable Object nextLink = page.get("@odata.nextLink");
+
+            if (nextLink != null && size() >= _maximum)
+            {
+                // There are more groups, even if the next page may hold none that are new
+                _overage = true;
+
+                return null;
+            }
+
+            return nextLink == null ? null : nextLink.toString();
+        }
+
+        /**
+         * @return false if the group is new but the maximum has been reached
+         */
+        private boolean add(String id)
+        {
+            @Nullable UUID guid = parseGuid(id);
+
+            if (guid == null)
+            {
+                return _otherIds.contains(id) || (size() < _maximum && _otherIds.add(id));
+            }
+
+            return _guids.contains(guid) || (size() < _maximum && _guids.add(guid));
+        }
+
+        /**
+         * @return the GUID, or null if the ID is not a GUID in the canonical form that it would be formatted in
+         */
+        @Nullable
+        private static UUID parseGuid(String id)
+        {
+            try
+            {
+                UUID guid = UUID.fromString(id);
+
+                return id.length() == 36 && guid.toString().equalsIgnoreCase(id) ? guid : null;
+            }
+            catch (IllegalArgumentException e)
+            {
+                return null;
+            }
+        }
+
+        private int size()
+        {
+            return _guids.size() + _otherIds.size();
+        }
+
+        GroupMemberships finish()
+        {
+            long[] guids = new long[_guids.size() * 2];
+            int i = 0;
+
+            for (UUID guid : _guids)
+            {
+                guids[i++] = guid.getMostSignificantBits();
+                guids[i++] = guid.getLeastSignificantBits();
+            }
+
+            return new GroupMemberships(guids, _otherIds.isEmpty()
+                    ? Collections.emptyList()
+                    : List.copyOf(_otherIds), _overage);
+        }
+    }
+}
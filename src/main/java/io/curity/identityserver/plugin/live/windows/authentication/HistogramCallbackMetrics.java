@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a {@link LatencyHistogram} per phase and per upstream and status code, and a counter per kind of failure, and
+ * periodically logs a summary of them.
+ *
+ * <p>The summary is logged at info level, as one line per histogram and one line with all failure counters, with
+ * space separated {@code key=value} pairs that log processors can parse. Each summary covers the interval since the
+ * previous one; lines for histograms without any values in the interval are left out.</p>
+ */
+final class HistogramCallbackMetrics implements CallbackMetrics
+{
+    private static final Logger _logger = LoggerFactory.getLogger(HistogramCallbackMetrics.class);
+
+    private final Map<Phase, LatencyHistogram> _phases = new EnumMap<>(Phase.class);
+    private final Map<Upstream, ConcurrentMap<Integer, LatencyHistogram>> _upstreamRequests =
+            new EnumMap<>(Upstream.class);
+    private final Map<Failure, LongAdder> _failures = new EnumMap<>(Failure.class);
+
+    HistogramCallbackMetrics()
+    {
+        for (Phase phase : Phase.values())
+        {
+            _phases.put(phase, new LatencyHistogram());
+        }
+
+        for (Upstream upstream : Upstream.values())
+        {
+            _upstreamRequests.put(upstream, new ConcurrentHashMap<>());
+        }
+
+        for (Failure failure : Failure.values())
+        {
+            _failures.put(failure, new LongAdder());
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return true;
+    }
+
+    @Override
+    public void recordPhase(Phase phase, long nanos)
+    {
+        _phases.get(phase).record(nanos);
+    }
+
+    @Override
+    public void recordUpstreamRequest(Upstream upstream, int statusCode, long nanos)
+    {
+        ConcurrentMap<Integer, LatencyHistogram> byStatusCode = _upstreamRequests.get(upstream);
+        LatencyHistogram histogram = byStatusCode.get(statusCode);
+
+        if (histogram == null)
+        {
+            histogram = byStatusCode.computeIfAbsent(statusCode, key -> new LatencyHistogram());
+        }
+
+        histogram.record(nanos);
+    }
+
+    @Override
+    public void countFailure(Failure failure)
+    {
+        _failures.get(failure).increment();
+    }
+
+    /**
+     * Log a summary of the measurements since the previous summary, and start over.
+     */
+    @Override
+    public void logSummary()
+    {
+        for (String line : summarize())
+        {
+            _logger.info(line);
+        }
+    }
+
+    List<String> summarize()
+    {
+        List<String> lines = new ArrayList<>();
+
+        _phases.forEach((phase, histogram) ->
+                addLine(lines, "phase=" + phase.name().toLowerCase(), histogram.snapshotAndReset()));
+        _upstreamRequests.forEach((upstream, byStatusCode) -> byStatusCode.forEach((statusCode, histogram) ->
+                addLine(lines, "upstream=" + upstream.name().toLowerCase() + " status=" + statusCode,
+                        histogram.snapshotAndReset())));
+
+        StringBuilder failures = new StringBuilder("windows_live_callback_failures");
+
+        _failures.forEach((failure, counter) ->
+                failures.append(' ').append(failure.name().toLowerCase()).append('=').append(counter.sumThenReset()));
+        lines.add(failures.toString());
+
+        return lines;
+    }
+
+    private static void addLine(List<String> lines, String labels, LatencyHistogram.Snapshot snapshot)
+    {
+        if (snapshot.getCount() == 0)
+        {
+            return;
+        }
+
+        lines.add(String.format(Locale.ROOT,
+                "windows_live_callback_latency %s count=%d p50_ms=%.3f p90_ms=%.3f p99_ms=%.3f max_ms=%.3f",
+                labels, snapshot.getCount(), millis(snapshot.getValueAtPercentile(50)),
+                millis(snapshot.getValueAtPercentile(90)), millis(snapshot.getValueAtPercentile(99)),
+                millis(snapshot.getMax())));
+    }
+
+    private static double millis(long micros)
+    {
+        return micros / 1000.0;
+    }
+}
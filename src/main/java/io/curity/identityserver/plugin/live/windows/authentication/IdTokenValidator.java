@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.service.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Clock;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Validates ID tokens issued by the Microsoft identity platform locally, i.e., without calling any Microsoft
+ * endpoint except to fetch signing keys.
+ *
+ * <p>Tokens from the {@code common} endpoint can be issued by any tenant, so the issuer is validated against the
+ * tenant ID in the {@code tid} claim, as recommended for multi-tenant applications. The issuer is taken from the
+ * discovery metadata of the tenant, which has a {@code {tenantid}} placeholder for such tenants, and the issuer of
+ * the one tenant otherwise.</p>
+ */
+final class IdTokenValidator
+{
+    private static final long ALLOWED_CLOCK_SKEW_SECONDS = 60;
+
+    private final JwksKeyCache _keys;
+    private final DiscoveryCache _discoveryCache;
+    private final Json _json;
+    private final String _clientId;
+    private final Clock _clock;
+
+    IdTokenValidator(JwksKeyCache keys, DiscoveryCache discoveryCache, Json json, String clientId, Clock clock)
+    {
+        _keys = keys;
+        _discoveryCache = discoveryCache;
+        _json = json;
+        _clientId = clientId;
+        _clock = clock;
+    }
+
+    /**
+     * @return the claims of the ID token
+     * @throws InvalidIdTokenException if the token is malformed, not signed by a known key or not valid for this
+     *                                 client at this time
+     */
+    Map<String, Object> validate(Object idToken) throws InvalidIdTokenException
+    {
+        if (!(idToken instanceof String))
+        {
+            throw new InvalidIdTokenException("Token response did not contain an ID token");
+        }
+
+        String[] parts = ((String) idToken).split("\\.", -1);
+
+        if (parts.length != 3)
+        {
+            throw new InvalidIdTokenException("ID token is not a signed JWT");
+        }
+
+        Map<String, Object> header = decode(parts[0]);
+
+        if (!"RS256".equals(header.get("alg")))
+        {
+            throw new InvalidIdTokenException("ID token is signed with unsupported algorithm " + header.get("alg"));
+        }
+
+        Object keyId = header.get("kid");
+        PublicKey key = keyId instanceof String ? _keys.getKey((String) keyId) : null;
+
+        if (key == null)
+        {
+            throw new InvalidIdTokenException("ID token is signed with unknown key " + keyId);
+        }
+
+        verifySignature(key, parts);
+
+        Map<String, Object> claims = decode(parts[1]);
+
+        validateClaims(claims);
+
+        return claims;
+    }
+
+    private void verifySignature(PublicKey key, String[] parts) throws InvalidIdTokenException
+    {
+        try
+        {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+
+            signature.initVerify(key);
+            signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+
+            if (!signature.verify(Base64.getUrlDecoder().decode(parts[2])))
+            {
+                throw new InvalidIdTokenException("ID token signature is not valid");
+            }
+        }
+        catch (GeneralSecurityException | IllegalArgumentException e)
+        {
+            throw new InvalidIdTokenException("ID token signature could not be verified", e);
+        }
+    }
+
+    private void validateClaims(Map<String, Object> claims) throws InvalidIdTokenException
+    {
+        Object audience = claims.get("aud");
+
+        if (!(_clientId.equals(audience) || audience instanceof List && ((List<?>) audience).contains(_clientId)))
+        {
+            throw new InvalidIdTokenException("ID token is issued to another audience: " + audience);
+        }
+
+        Object tenantId = claims.get("tid");
+        String issuer = _discoveryCache.get().getIssuer();
+
+        if (!(tenantId instanceof String) || !issuer.replace("{tenantid}", (String) tenantId).equals(claims.get("iss")))
+        {
+            throw new InvalidIdTokenException("ID token has unexpected issuer " + claims.get("iss"));
+        }
+
+        long now = _clock.instant().getEpochSecond();
+
+        if (!(claims.get("exp") instanceof Number) ||
+                ((Number) claims.get("exp")).longValue() + ALLOWED_CLOCK_SKEW_SECONDS < now)
+        {
+            throw new InvalidIdTokenException("ID token has expired");
+        }
+
+        if (claims.get("nbf") instanceof Number &&
+                ((Number) claims.get("nbf")).longValue() - ALLOWED_CLOCK_SKEW_SECONDS > now)
+        {
+            throw new InvalidIdTokenException("ID token is not yet valid");
+        }
+
+        if (!(claims.get("sub") instanceof String))
+        {
+            throw new InvalidIdTokenException("ID token has no subject");
+        }
+    }
+
+    private Map<String, Object> decode(String part) throws InvalidIdTokenException
+    {
+        try
+        {
+            return _json.fromJson(new String(Base64.getUrlDecoder().decode(part), StandardCharsets.UTF_8));
+        }
+        catch (RuntimeException e)
+        {
+            throw new InvalidIdTokenException("ID token is not well-formed", e);
+        }
+    }
+
+    static final class InvalidIdTokenException extends Exception
+    {
+        InvalidIdTokenException(String message)
+        {
+            super(message);
+        }
+
+        InvalidIdTokenException(String message, Throwable cause)
+        {
+            super(message, cause);
+        }
+    }
+}
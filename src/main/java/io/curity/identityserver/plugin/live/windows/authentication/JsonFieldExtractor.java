@@ -0,0 +1,538 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the members of a JSON object with given names while reading it from a stream.
+ *
+ * <p>The response bodies of the token and userinfo endpoints are JSON objects of which only a few members are used.
+ * Instead of reading the whole body into a string and parsing all of it into a map, this reads the body once and only
+ * creates values for the wanted members. Other values, like refresh tokens that are several kilobytes, are skipped
+ * without being copied.</p>
+ *
+ * <p>Instances are immutable and can be shared between threads.</p>
+ */
+final class JsonFieldExtractor
+{
+    private static final int BUFFER_SIZE = 2048;
+    private static final int MAX_DEPTH = 64;
+
+    /**
+     * Extracts all members, which is the same as parsing the object into a map.
+     */
+    static final JsonFieldExtractor ALL_FIELDS = new JsonFieldExtractor(null);
+
+    @Nullable
+    private final String[] _fields;
+
+    private JsonFieldExtractor(@Nullable String[] fields)
+    {
+        _fields = fields;
+    }
+
+    /**
+     * @param fields the names of the members to extract
+     */
+    static JsonFieldExtractor of(Collection<String> fields)
+    {
+        return new JsonFieldExtractor(new LinkedHashSet<>(fields).toArray(new String[0]));
+    }
+
+    /**
+     * @return a copy of this extractor that also extracts the given members, or this extractor if it already does
+     */
+    JsonFieldExtractor including(Collection<String> fields)
+    {
+        if (_fields == null)
+        {
+            return this;
+        }
+
+        LinkedHashSet<String> allFields = new LinkedHashSet<>(List.of(_fields));
+
+        return allFields.addAll(fields) ? new JsonFieldExtractor(allFields.toArray(new String[0])) : this;
+    }
+
+    /**
+     * Read a JSON object from the given stream, which is not closed.
+     *
+     * @return the wanted members that the object has, in the order they appear in it. Nested objects and arrays are
+     * returned as maps and lists, numbers as {@link Long} if they are integers that fit and otherwise as
+     * {@link Double}.
+     * @throws IOException if the stream could not be read or did not contain a JSON object
+     */
+    Map<String, Object> extract(InputStream json) throws IOException
+    {
+        return new Parser(new InputStreamReader(json, StandardCharsets.UTF_8)).parseTopLevelObject();
+    }
+
+    @Nullable
+    private String match(CharSequence name)
+    {
+        if (_fields == null)
+        {
+            return name.toString();
+        }
+
+        for (String field : _fields)
+        {
+            if (field.contentEquals(name))
+            {
+                return field;
+            }
+        }
+
+        return null;
+    }
+
+    private final class Parser
+    {
+        private final Reader _reader;
+        private final char[] _buffer = new char[BUFFER_SIZE];
+        private final StringBuilder _name = new StringBuilder(32);
+        private int _position;
+        private int _limit;
+
+        private Parser(Reader reader)
+        {
+            _reader = reader;
+        }
+
+        Map<String, Object> parseTopLevelObject() throws IOException
+        {
+            expect(nextNonWhitespace(), '{');
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            int c = nextNonWhitespace();
+
+            if (c == '}')
+            {
+                return result;
+            }
+
+            while (true)
+            {
+                expect(c, '"');
+                _name.setLength(0);
+                readString(_name);
+                expect(nextNonWhitespace(), ':');
+
+                @Nullable String field = match(_name);
+
+                if (field != null)
+                {
+                    result.put(field, readValue(nextNonWhitespace(), 1));
+                }
+                else
+                {
+                    skipValue(nextNonWhitespace(), 1);
+                }
+
+                c = nextNonWhitespace();
+
+                if (c == '}')
+                {
+                    return result;
+                }
+
+                expect(c, ',');
+                c = nextNonWhitespace();
+            }
+        }
+
+        @Nullable
+        private Object readValue(int c, int depth) throws IOException
+        {
+            checkDepth(depth);
+
+            switch (c)
+            {
+                case '"':
+                    StringBuilder value = new StringBuilder();
+
+                    readString(value);
+
+                    return value.toString();
+                case '{':
+                    return readObject(depth);
+                case '[':
+                    return readArray(depth);
+                case 't':
+                    readLiteral("rue");
+
+                    return Boolean.TRUE;
+                case 'f':
+                    readLiteral("alse");
+
+                    return Boolean.FALSE;
+                case 'n':
+                    readLiteral("ull");
+
+                    return null;
+                default:
+                    return readNumber(c);
+            }
+        }
+
+        private Map<String, Object> readObject(int depth) throws IOException
+        {
+            Map<String, Object> result = new LinkedHashMap<>();
+            int c = nextNonWhitespace();
+
+            if (c == '}')
+            {
+                return result;
+            }
+
+            while (true)
+            {
+                expect(c, '"');
+
+                StringBuilder name = new StringBuilder();
+
+                readString(name);
+                expect(nextNonWhitespace(), ':');
+                result.put(name.toString(), readValue(nextNonWhitespace(), depth + 1));
+
+                c = nextNonWhitespace();
+
+                if (c == '}')
+                {
+                    return result;
+                }
+
+                expect(c, ',');
+                c = nextNonWhitespace();
+            }
+        }
+
+        private List<Object> readArray(int depth) throws IOException
+        {
+            List<Object> result = new ArrayList<>();
+            int c = nextNonWhitespace();
+
+            if (c == ']')
+            {
+                return result;
+            }
+
+            while (true)
+            {
+                result.add(readValue(c, depth + 1));
+
+                c = nextNonWhitespace();
+
+                if (c == ']')
+                {
+                    return result;
+                }
+
+                expect(c, ',');
+                c = nextNonWhitespace();
+            }
+        }
+
+        private Number readNumber(int first) throws IOException
+        {
+            StringBuilder number = new StringBuilder(16);
+            boolean integral = true;
+            int c = first;
+
+            while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))
+            {
+                integral &= c != '.' && c != 'e' && c != 'E';
+                number.append((char) c);
+                c = next();
+            }
+
+            if (number.length() == 0)
+            {
+                throw malformed("Unexpected character " + describe(first));
+            }
+
+            if (c >= 0)
+            {
+                _position--;
+            }
+
+            try
+            {
+                if (integral && number.length() < 19)
+                {
+                    return Long.parseLong(number.toString());
+                }
+
+                return Double.parseDouble(number.toString());
+            }
+            catch (NumberFormatException e)
+            {
+                throw malformed("Malformed number " + number);
+            }
+        }
+
+        private void readLiteral(String rest) throws IOException
+        {
+            for (int i = 0; i < rest.length(); i++)
+            {
+                if (next() != rest.charAt(i))
+                {
+                    throw malformed("Malformed literal");
+                }
+            }
+        }
+
+        /**
+         * Read the rest of a string whose opening quote has been read.
+         */
+        private void readString(StringBuilder target) throws IOException
+        {
+            while (true)
+            {
+                int start = _position;
+
+                while (_position < _limit)
+                {
+                    char c = _buffer[_position];
+
+                    if (c == '"' || c == '\\')
+                    {
+                        break;
+                    }
+
+                    _position++;
+                }
+
+                target.append(_buffer, start, _position - start);
+
+                if (_position == _limit)
+                {
+                    if (!fill())
+                    {
+                        throw malformed("Unterminated string");
+                    }
+
+                    continue;
+                }
+
+                if (_buffer[_position++] == '"')
+                {
+                    return;
+                }
+
+                target.append(readEscape());
+            }
+        }
+
+        private char readEscape() throws IOException
+        {
+            int c = next();
+
+            switch (c)
+            {
+                case '"':
+                case '\\':
+                case '/':
+                    return (char) c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int value = 0;
+
+                    for (int i = 0; i < 4; i++)
+                    {
+                        int digit = Character.digit(next(), 16);
+
+                        if (digit < 0)
+                        {
+                            throw malformed("Malformed unicode escape");
+                        }
+
+                        value = value << 4 | digit;
+                    }
+
+                    return (char) value;
+                default:
+                    throw malformed("Malformed escape " + describe(c));
+            }
+        }
+
+        private void skipValue(int c, int depth) throws IOException
+        {
+            checkDepth(depth);
+
+            switch (c)
+            {
+                case '"':
+                    skipString();
+                    break;
+                case '{':
+                    skipContainer('}', depth);
+                    break;
+                case '[':
+                    skipContainer(']', depth);
+                    break;
+                default:
+                    readValue(c, depth);
+            }
+        }
+
+        private void skipString() throws IOException
+        {
+            while (true)
+            {
+                while (_position < _limit)
+                {
+                    char c = _buffer[_position++];
+
+                    if (c == '"')
+                    {
+                        return;
+                    }
+
+                    if (c == '\\')
+                    {
+                        readEscape();
+                    }
+                }
+
+                if (!fill())
+                {
+                    throw malformed("Unterminated string");
+                }
+            }
+        }
+
+        private void skipContainer(char end, int depth) throws IOException
+        {
+            int c = nextNonWhitespace();
+
+            if (c == end)
+            {
+                return;
+            }
+
+            while (true)
+            {
+                if (end == '}')
+                {
+                    expect(c, '"');
+                    skipString();
+                    expect(nextNonWhitespace(), ':');
+                    c = nextNonWhitespace();
+                }
+
+                skipValue(c, depth + 1);
+
+                c = nextNonWhitespace();
+
+                if (c == end)
+                {
+                    return;
+                }
+
+                expect(c, ',');
+                c = nextNonWhitespace();
+            }
+        }
+
+        private int nextNonWhitespace() throws IOException
+        {
+            int c;
+
+            do
+            {
+                c = next();
+            }
+            while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+
+            return c;
+        }
+
+        private int next() throws IOException
+        {
+            if (_position == _limit && !fill())
+            {
+                return -1;
+            }
+
+            return _buffer[_position++];
+        }
+
+        private boolean fill() throws IOException
+        {
+            int read = _reader.read(_buffer, 0, _buffer.length);
+
+            if (read <= 0)
+            {
+                return false;
+            }
+
+            _position = 0;
+            _limit = read;
+
+            return true;
+        }
+
+        private void expect(int actual, char expected) throws IOException
+        {
+            if (actual != expected)
+            {
+                throw malformed("Expected '" + expected + "' but got " + describe(actual));
+            }
+        }
+
+        private void checkDepth(int depth) throws IOException
+        {
+            if (depth > MAX_DEPTH)
+            {
+                throw malformed("Too deeply nested");
+            }
+        }
+
+        private String describe(int c)
+        {
+            return c < 0 ? "end of input" : "'" + (char) c + "'";
+        }
+
+        private IOException malformed(String message)
+        {
+            return new IOException("Malformed JSON: " + message);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpResponse;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The signing keys of the Microsoft identity platform, from the {@code jwks_uri} of the discovery metadata of the
+ * tenant, keyed by key ID.
+ *
+ * <p>Keys are refreshed in the background at a fixed interval. When a token is signed with a key that is not known,
+ * e.g. because Microsoft rotated its keys since the last refresh, the keys are fetched again right away. Such
+ * on-demand refreshes are rate limited, so that tokens with made up key IDs cannot be used to flood the identity
+ * platform with requests.</p>
+ */
+final class JwksKeyCache
+{
+    private static final Logger _logger = LoggerFactory.getLogger(JwksKeyCache.class);
+
+    private final UpstreamClients _upstreamClients;
+    private final DiscoveryCache _discoveryCache;
+    private final Json _json;
+    private final long _minimumRefreshIntervalNanos;
+    private final AtomicLong _lastRefreshAttempt;
+
+    private volatile Map<String, PublicKey> _keys = Collections.emptyMap();
+
+    JwksKeyCache(UpstreamClients upstreamClients, DiscoveryCache discoveryCache, Json json,
+                 ScheduledExecutorService scheduler, Duration refreshInterval, Duration minimumRefreshInterval)
+    {
+        _upstreamClients = upstreamClients;
+        _discoveryCache = discoveryCache;
+        _json = json;
+        _minimumRefreshIntervalNanos = minimumRefreshInterval.toNanos();
+        _lastRefreshAttempt = new AtomicLong(System.nanoTime() - _minimumRefreshIntervalNanos);
+
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, refreshInterval.toSeconds(), TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get the key with the given ID, fetching the keys again if it is not known and the keys have not been fetched
+     * recently.
+     *
+     * @return the key, or null if there is no such key
+     */
+    @Nullable
+    PublicKey getKey(String keyId)
+    {
+        PublicKey key = _keys.get(keyId);
+
+        if (key == null && tryClaimRefresh())
+        {
+            _logger.debug("Key with ID {} is not known, fetching keys again", keyId);
+
+            fetch();
+            key = _keys.get(keyId);
+        }
+
+        return key;
+    }
+
+    private void refresh()
+    {
+        _lastRefreshAttempt.set(System.nanoTime());
+
+        fetch();
+    }
+
+    private boolean tryClaimRefresh()
+    {
+        long now = System.nanoTime();
+        long lastRefreshAttempt = _lastRefreshAttempt.get();
+
+        return now - lastRefreshAttempt >= _minimumRefreshIntervalNanos &&
+                _lastRefreshAttempt.compareAndSet(lastRefreshAttempt, now);
+    }
+
+    private void fetch()
+    {
+        try
+        {
+            HttpResponse response = _upstreamClients.getLoginClient()
+                    .withPath(_discoveryCache.get().getJwksPath())
+                    .request()
+                    .accept("application/json")
+                    .get()
+                    .response();
+
+            if (response.statusCode() != 200)
+            {
+                _logger.warn("Could not fetch the signing keys of the identity platform, got status {}; keeping " +
+                        "{} previously fetched keys", response.statusCode(), _keys.size());
+
+                return;
+            }
+
+            Map<String, PublicKey> keys = parseKeys(_json.fromJson(response.body(HttpResponse.asString())));
+
+            if (keys.isEmpty())
+            {
+                _logger.warn("Identity platform returned no usable signing keys; keeping {} previously fetched keys",
+                        _keys.size());
+
+                return;
+            }
+
+            _keys = keys;
+
+            _logger.debug("Fetched {} signing keys of the identity platform: {}", keys.size(), keys.keySet());
+        }
+        catch (RuntimeException e)
+        {
+            _logger.warn("Could not fetch the signing keys of the identity platform; keeping {} previously fetched " +
+                    "keys", _keys.size(), e);
+        }
+    }
+
+    private static Map<String, PublicKey> parseKeys(Map<String, Object> jwks)
+    {
+        Object keys = jwks.get("keys");
+
+        if (!(keys instanceof List))
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, PublicKey> result = new HashMap<>();
+
+        for (Object key : (List<?>) keys)
+        {
+            if (!(key instanceof Map))
+            {
+                continue;
+            }
+
+            Map<?, ?> jwk = (Map<?, ?>) key;
+
+            if (!"RSA".equals(jwk.get("kty")) || (jwk.get("use") != null && !"sig".equals(jwk.get("use"))) ||
+                    !(jwk.get("kid") instanceof String))
+            {
+                continue;
+            }
+
+            try
+            {
+                Base64.Decoder decoder = Base64.getUrlDecoder();
+                BigInteger modulus = new BigInteger(1, decoder.decode((String) jwk.get("n")));
+                BigInteger exponent = new BigInteger(1, decoder.decode((String) jwk.get("e")));
+
+                result.put((String) jwk.get("kid"),
+                        KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+            }
+            catch (GeneralSecurityException | RuntimeException e)
+            {
+                _logger.debug("Ignoring key {} that could not be parsed", jwk.get("kid"), e);
+            }
+        }
+
+        return Collections.unmodifiableMap(result);
+    }
+}
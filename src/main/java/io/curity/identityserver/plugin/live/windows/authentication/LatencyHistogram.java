@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies that many threads can record into without locking.
+ *
+ * <p>Like HdrHistogram, values are counted in buckets whose width grows with the value: each power of two is split
+ * into 16 linear sub-buckets, so a recorded value is off by less than 1/16 (6.25%) from the lower bound of its
+ * bucket. Values are recorded in microseconds, up to about 19 hours. Recording is a single atomic increment.</p>
+ *
+ * <p>{@link #snapshotAndReset()} moves the counts recorded so far into a {@link Snapshot}, so that each periodic
+ * summary covers the interval since the previous one. Values recorded while a snapshot is taken end up in either that
+ * snapshot or the next one.</p>
+ */
+final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 36;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * @param nanos the latency in nanoseconds
+     */
+    void record(long nanos)
+    {
+        _counts.incrementAndGet(bucketOf(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_VALUE)));
+    }
+
+    Snapshot snapshotAndReset()
+    {
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = _counts.getAndSet(i, 0);
+        }
+
+        return new Snapshot(counts);
+    }
+
+    static int bucketOf(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) Math.max(micros, 0);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the smallest value in microseconds that is counted in the given bucket
+     */
+    static long lowerBoundOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static final class Snapshot
+    {
+        private final long[] _counts;
+        private final long _count;
+
+        private Snapshot(long[] counts)
+        {
+            long count = 0;
+
+            for (long bucketCount : counts)
+            {
+                count += bucketCount;
+            }
+
+            _counts = counts;
+            _count = count;
+        }
+
+        long getCount()
+        {
+            return _count;
+        }
+
+        /**
+         * @param percentile a percentile between 0 and 100
+         * @return the lower bound, in microseconds, of the bucket that holds the given percentile, or 0 if nothing
+         * was recorded
+         */
+        long getValueAtPercentile(double percentile)
+        {
+            if (_count == 0)
+            {
+                return 0;
+            }
+
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * _count));
+            long seen = 0;
+
+            for (int i = 0; i < _counts.length; i++)
+            {
+                seen += _counts[i];
+
+                if (seen >= rank)
+                {
+                    return lowerBoundOf(i);
+                }
+            }
+
+            return lowerBoundOf(_counts.length - 1);
+        }
+
+        /**
+         * @return the lower bound, in microseconds, of the highest bucket that has a value, or 0 if nothing was
+         * recorded
+         */
+        long getMax()
+        {
+            for (int i = _counts.length - 1; i >= 0; i--)
+            {
+                if (_counts[i] > 0)
+                {
+                    return lowerBoundOf(i);
+                }
+            }
+
+            return 0;
+        }
+    }
+}
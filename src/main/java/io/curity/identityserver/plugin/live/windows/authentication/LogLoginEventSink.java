@@ -0,0 +1,49 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.util.List;
+
+/**
+ * Logs each login event as a JSON object at info level, to a logger of its own, so that the log configuration can
+ * route the events to an appender of their own.
+ */
+final class LogLoginEventSink implements LoginEventSink
+{
+    private static final Logger _logger = LoggerFactory.getLogger("io.curity.identityserver.plugin.live.windows." +
+            "LoginEvents");
+
+    private final Json _json;
+
+    LogLoginEventSink(Json json)
+    {
+        _json = json;
+    }
+
+    @Override
+    public void write(List<LoginEvent> events)
+    {
+        for (LoginEvent event : events)
+        {
+            _logger.info(_json.toJson(event.toMap()));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The outcome of one login, as it is written to a {@link LoginEventSink}.
+ *
+ * <p>Instances are the slots of a {@link LoginEventRing}, which are allocated once and filled in again for every
+ * event, so an event is only valid while it is being written.</p>
+ */
+final class LoginEvent
+{
+    private long _timestamp;
+    private Outcome _outcome;
+
+    @Nullable
+    private String _subject;
+
+    @Nullable
+    private String _clientIpAddress;
+
+    @Nullable
+    private String _detail;
+
+    void set(long timestamp, Outcome outcome, @Nullable String subject, @Nullable String clientIpAddress,
+             @Nullable String detail)
+    {
+        _timestamp = timestamp;
+        _outcome = outcome;
+        _subject = subject;
+        _clientIpAddress = clientIpAddress;
+        _detail = detail;
+    }
+
+    /**
+     * Forget the values of the event, so that the slot does not keep them reachable until it is filled in again.
+     */
+    void clear()
+    {
+        _subject = null;
+        _clientIpAddress = null;
+        _detail = null;
+    }
+
+    /**
+     * @return the time of the event in milliseconds since the epoch
+     */
+    long getTimestamp()
+    {
+        return _timestamp;
+    }
+
+    Outcome getOutcome()
+    {
+        return _outcome;
+    }
+
+    /**
+     * @return the subject of a successful login, or null for other outcomes
+     */
+    @Nullable
+    String getSubject()
+    {
+        return _subject;
+    }
+
+    @Nullable
+    String getClientIpAddress()
+    {
+        return _clientIpAddress;
+    }
+
+    /**
+     * @return what went wrong, like the error that the user agent was sent back with, or null if nothing did or it
+     * is not known
+     */
+    @Nullable
+    String getDetail()
+    {
+        return _detail;
+    }
+
+    /**
+     * @return the members of the event as a JSON object, leaving out those without a value
+     */
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+
+        map.put("timestamp", Instant.ofEpochMilli(_timestamp).toString());
+        map.put("outcome", _outcome.name().toLowerCase());
+
+        if (_subject != null)
+        {
+            map.put("sub", _subject);
+        }
+
+        if (_clientIpAddress != null)
+        {
+            map.put("client_ip", _clientIpAddress);
+        }
+
+        if (_detail != null)
+        {
+            map.put("detail", _detail);
+        }
+
+        return map;
+    }
+
+    enum Outcome
+    {
+        SUCCESS,
+
+        /**
+         * The user did not consent, or cancelled the login at Microsoft
+         */
+        ACCESS_DENIED,
+
+        /**
+         * The state of the callback was not valid or did not match the session
+         */
+        STATE_MISMATCH,
+
+        /**
+         * The state or code of the callback was used before
+         */
+        REPLAYED,
+
+        /**
+         * Microsoft returned an error, or the tokens or the user could not be got from it
+         */
+        UPSTREAM_FAILURE
+    }
+}
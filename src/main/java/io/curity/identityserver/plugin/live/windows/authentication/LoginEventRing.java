@@ -0,0 +1,322 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.LoginEventOverflow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes login events from the request threads and writes them in batches to a {@link LoginEventSink} on a thread of
+ * its own, so that a login only pays for putting its event into the ring.
+ *
+ * <p>The ring is a fixed array of {@link LoginEvent} slots that are allocated once, with a sequence number per slot,
+ * as in the bounded queue of Dmitry Vyukov. A request thread claims the next slot by advancing the tail with a
+ * compare-and-set, fills the slot in and then publishes it by advancing its sequence number. The single consumer reads
+ * the slots that are published in order, without any lock, writes them to the sink, and hands them back to the
+ * producers of the next lap by advancing their sequence numbers again. When there is nothing to write, the consumer
+ * sleeps for a short while instead of being woken up, so that publishing never has to signal it.</p>
+ *
+ * <p>When all slots hold events that are not written yet, an event is dropped and counted, or, with the BLOCK
+ * overflow, the login waits until the consumer has made room, but at most {@link #MAXIMUM_BLOCK_MILLIS}, after which
+ * the event is dropped and counted all the same, so that a sink that hangs cannot hang the logins.</p>
+ */
+final class LoginEventRing
+{
+    private static final Logger _logger = LoggerFactory.getLogger(LoginEventRing.class);
+
+    private static final int MAXIMUM_BATCH_SIZE = 256;
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long BLOCK_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    static final long MAXIMUM_BLOCK_MILLIS = 100;
+    private static final long CLOSE_WAIT_MILLIS = 1000;
+
+    private final LoginEvent[] _slots;
+    private final int _mask;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _tail = new AtomicLong();
+    private final LoginEventSink _sink;
+    private final boolean _block;
+    private final Thread _consumer;
+
+    // Only read and written by the consumer
+    private long _head;
+
+    private volatile boolean _closed;
+
+    private final LongAdder _published = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final LongAdder _written = new LongAdder();
+    private final LongAdder _lost = new LongAdder();
+
+    /**
+     * @param capacity the number of events that can wait to be written, rounded up to a power of two
+     */
+    LoginEventRing(int capacity, LoginEventSink sink, LoginEventOverflow overflow, String threadName)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+
+        _slots = new LoginEvent[size];
+        _mask = size - 1;
+        _sequences = new AtomicLongArray(size);
+
+        for (int i = 0; i < size; i++)
+        {
+            _slots[i] = new LoginEvent();
+            _sequences.set(i, i);
+        }
+
+        _sink = sink;
+        _block = overflow == LoginEventOverflow.BLOCK;
+        _consumer = new Thread(this::consume, threadName);
+        _consumer.setDaemon(true);
+        _consumer.start();
+    }
+
+    /**
+     * @return a ring that writes to the configured Login Event Destination, or null if it is NONE
+     * @throws RuntimeException a configuration exception if the Login Event File is missing or cannot be opened
+     */
+    @Nullable
+    static LoginEventRing of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        LoginEventSink sink;
+
+        switch (config.getLoginEventDestination())
+        {
+            case LOG:
+                sink = new LogLoginEventSink(config.getJson());
+                break;
+            case FILE:
+                String file = config.getLoginEventFile()
+                        .orElseThrow(() -> config.getExceptionFactory().configurationException(
+                                "A Login Event File is required when the Login Event Destination is FILE"));
+
+                try
+                {
+                    sink = new FileLoginEventSink(Path.of(file.trim()), config.getJson());
+                }
+                catch (IOException | InvalidPathException e)
+                {
+                    throw config.getExceptionFactory().configurationException("Cannot open the Login Event File " +
+                            file + ": " + e.getMessage());
+                }
+                break;
+            default:
+                return null;
+        }
+
+        return new LoginEventRing(config.getLoginEventBufferSize(), sink, config.getLoginEventOverflow(),
+                "windows-live-" + config.id() + "-login-events");
+    }
+
+    /**
+     * Put an event into the ring, to be written later.
+     *
+     * @return true if the event was put into the ring, and false if it was dropped because the ring was full, for
+     * longer than {@link #MAXIMUM_BLOCK_MILLIS} with the BLOCK overflow, or closed
+     */
+    boolean publish(LoginEvent.Outcome outcome, @Nullable String subject, @Nullable String clientIpAddress,
+                    @Nullable String detail)
+    {
+        long timestamp = System.currentTimeMillis();
+        long blockDeadline = 0;
+
+        while (!_closed)
+        {
+            long tail = _tail.get();
+            int slot = (int) tail & _mask;
+            long sequence = _sequences.get(slot);
+
+            if (sequence == tail)
+            {
+                if (_tail.compareAndSet(tail, tail + 1))
+                {
+                    _slots[slot].set(timestamp, outcome, subject, clientIpAddress, detail);
+                    _sequences.set(slot, tail + 1);
+                    _published.increment();
+
+                    return true;
+                }
+            }
+            else if (sequence < tail)
+            {
+                // The slot still holds the event of the previous lap, which the consumer has not written yet
+                if (!_block)
+                {
+                    break;
+                }
+
+                long now = System.nanoTime();
+
+                if (blockDeadline == 0)
+                {
+                    blockDeadline = now + TimeUnit.MILLISECONDS.toNanos(MAXIMUM_BLOCK_MILLIS);
+                }
+                else if (now - blockDeadline >= 0)
+                {
+                    break;
+                }
+
+                LockSupport.parkNanos(BLOCK_WAIT_NANOS);
+            }
+
+            // Otherwise another thread claimed the slot first, and the next one is tried
+        }
+
+        _dropped.increment();
+
+        return false;
+    }
+
+    /**
+     * Stop taking events, write those that are in the ring, and close the sink, waiting a while for that to finish.
+     */
+    void close()
+    {
+        _closed = true;
+        LockSupport.unpark(_consumer);
+
+        try
+        {
+            _consumer.join(CLOSE_WAIT_MILLIS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        logSummary();
+    }
+
+    /**
+     * Log how many events were published, dropped, written and lost since the ring was created.
+     */
+    void logSummary()
+    {
+        _logger.info("windows_live_login_events published={} dropped={} written={} lost={}", getPublished(),
+                getDropped(), getWritten(), getLost());
+    }
+
+    long getPublished()
+    {
+        return _published.sum();
+    }
+
+    /**
+     * @return the number of events that were not put into the ring, because it was full or closed
+     */
+    long getDropped()
+    {
+        return _dropped.sum();
+    }
+
+    long getWritten()
+    {
+        return _written.sum();
+    }
+
+    /**
+     * @return the number of events that were taken from the ring but that the sink failed to write
+     */
+    long getLost()
+    {
+        return _lost.sum();
+    }
+
+    private void consume()
+    {
+        List<LoginEvent> batch = new ArrayList<>(MAXIMUM_BATCH_SIZE);
+
+        while (true)
+        {
+            // Read before the slots, so that all events that were published before the ring was closed are written
+            boolean closed = _closed;
+
+            while (batch.size() < MAXIMUM_BATCH_SIZE)
+            {
+                long position = _head + batch.size();
+                int slot = (int) position & _mask;
+
+                if (_sequences.get(slot) != position + 1)
+                {
+                    break;
+                }
+
+                batch.add(_slots[slot]);
+            }
+
+            if (!batch.isEmpty())
+            {
+                write(batch);
+            }
+            else if (closed)
+            {
+                break;
+            }
+            else
+            {
+                LockSupport.parkNanos(IDLE_WAIT_NANOS);
+            }
+        }
+
+        try
+        {
+            _sink.close();
+        }
+        catch (IOException e)
+        {
+            _logger.warn("Could not close the sink of login events", e);
+        }
+    }
+
+    private void write(List<LoginEvent> batch)
+    {
+        try
+        {
+            _sink.write(batch);
+            _written.add(batch.size());
+        }
+        catch (IOException | RuntimeException e)
+        {
+            _lost.add(batch.size());
+            _logger.warn("Could not write {} login events", batch.size(), e);
+        }
+
+        for (LoginEvent event : batch)
+        {
+            event.clear();
+            _sequences.set((int) _head & _mask, _head + _slots.length);
+            _head++;
+        }
+
+        batch.clear();
+    }
+}
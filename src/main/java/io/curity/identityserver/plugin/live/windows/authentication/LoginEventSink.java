@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the login events of a {@link LoginEventRing}.
+ *
+ * <p>Implementations are only called on the thread of the ring, so they do not need to be thread safe, and may be
+ * slow, which only makes events wait in the ring.</p>
+ */
+interface LoginEventSink
+{
+    /**
+     * @param events the events in the order they were published, which are only valid until this returns
+     * @throws IOException if the events could not be written, in which case they are lost
+     */
+    void write(List<LoginEvent> events) throws IOException;
+
+    /**
+     * Release what the sink holds, after the last events were written.
+     */
+    default void close() throws IOException
+    {
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Caches thumbnails of the photos of users in Microsoft Graph, so that a login does not have to download a photo that
+ * rarely changes.
+ *
+ * <p>Photos are cached by a reference that is derived from the subject of the user, which is what the login gets as an
+ * attribute instead of the photo, so that photos are never kept in sessions. A cached photo is fresh for the TTL.
+ * After that, it is revalidated with its ETag, and Graph answers 304 without the photo if it has not changed. Users
+ * without a photo are cached too, so that they are not asked for on every login.</p>
+ *
+ * <p>The memory of the cache is bounded by the bytes of the photos. When a new photo would exceed it, the photos that
+ * were used least recently are removed first. Concurrent logins of the same user share one download.</p>
+ */
+final class PhotoCache
+{
+    /**
+     * The sizes of thumbnails that Graph has
+     */
+    static final Set<Integer> SIZES = Set.of(48, 64, 96, 120, 240, 360, 432, 504, 648);
+
+    /**
+     * The largest photo that is read, which is several times the size of the largest thumbnail
+     */
+    static final int MAXIMUM_PHOTO_BYTES = 512 * 1024;
+
+    // Counted as bytes, for the map entry, the reference, the content type and the ETag
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final int _size;
+    private final String _path;
+    private final long _capacityBytes;
+    private final long _ttlNanos;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // Guarded by _lock, in the order of access
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long _bytes;
+
+    private final Map<String, CompletableFuture<Entry>> _downloads = new ConcurrentHashMap<>();
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _revalidations = new LongAdder();
+    private final LongAdder _fetches = new LongAdder();
+
+    /**
+     * @param size the width and height of the thumbnails
+     */
+    PhotoCache(int size, long capacityBytes, long ttlNanos)
+    {
+        _size = size;
+        _path = "/v1.0/me/photos/" + size + "x" + size + "/$value";
+        _capacityBytes = capacityBytes;
+        _ttlNanos = ttlNanos;
+    }
+
+    /**
+     * @return a cache of thumbnails of the configured size, or null if the Photo Thumbnail Size is 0
+     * @throws RuntimeException a configuration exception if the size is not one that Graph has
+     */
+    @Nullable
+    static PhotoCache of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        int size = config.getPhotoThumbnailSize();
+
+        if (size == 0)
+        {
+            return null;
+        }
+
+        if (!SIZES.contains(size))
+        {
+            throw config.getExceptionFactory().configurationException("Invalid photo thumbnail size " + size +
+                    ", Microsoft Graph has thumbnails of 48, 64, 96, 120, 240, 360, 432, 504 and 648 pixels");
+        }
+
+        return new PhotoCache(size, config.getPhotoCacheCapacity() * 1024L,
+                TimeUnit.SECONDS.toNanos(config.getPhotoCacheTtl()));
+    }
+
+    /**
+     * @return the path of the thumbnail in Graph
+     */
+    String getPath()
+    {
+        return _path;
+    }
+
+    int getSize()
+    {
+        return _size;
+    }
+
+    /**
+     * @return the reference of the photo of the given subject, which does not reveal the subject
+     */
+    static String reference(String subject)
+    {
+        return hash(subject.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String hash(byte[] input)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(input);
+
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return the cached photo with the given reference, even if it is no longer fresh, or null if there is none
+     */
+    @Nullable
+    Entry get(String reference)
+    {
+        @Nullable Entry entry = find(reference);
+
+        if (entry != null && isFresh(entry))
+        {
+            _hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return the cached photo with the given reference, like {@link #get(String)}, but without counting a hit, since
+     * it is not for a login
+     */
+    @Nullable
+    Entry find(String reference)
+    {
+        _lock.lock();
+
+        try
+        {
+            return _entries.get(reference);
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the given entry may be used without revalidating it
+     */
+    boolean isFresh(Entry entry)
+    {
+        return System.nanoTime() - entry._fetchedAt <= _ttlNanos;
+    }
+
+    /**
+     * Start to download the photo with the given reference, or join the download that is already running.
+     *
+     * @param start starts the download, and is only called if there is none running
+     * @return the download, which is removed when it completes
+     */
+    CompletableFuture<Entry> download(String reference, Supplier<CompletableFuture<Entry>> start)
+    {
+        @Nullable CompletableFuture<Entry> running = _downloads.get(reference);
+
+        if (running != null)
+        {
+            return running;
+        }
+
+        CompletableFuture<Entry> download = new CompletableFuture<>();
+
+        running = _downloads.putIfAbsent(reference, download);
+
+        if (running != null)
+        {
+            return running;
+        }
+
+        download.whenComplete((entry, error) -> _downloads.remove(reference, download));
+        start.get().whenComplete((entry, error) ->
+        {
+            if (error != null)
+            {
+                download.completeExceptionally(error);
+            }
+            else
+            {
+                download.complete(entry);
+            }
+        });
+
+        return download;
+    }
+
+    /**
+     * Cache a photo that was downloaded from Graph.
+     *
+     * @param content     the photo, or null if the user has none
+     * @param contentType the media type of the photo
+     * @param etag        the ETag of the photo, if it had one
+     * @return the entry of the photo
+     */
+    Entry put(String reference, @Nullable byte[] content, @Nullable String contentType, @Nullable String etag)
+    {
+        Entry entry = new Entry(reference, content, contentType, etag, System.nanoTime());
+
+        _fetches.increment();
+        store(entry);
+
+        return entry;
+    }
+
+    /**
+     * Make a cached photo fresh again, after Graph has answered that it has not changed.
+     *
+     * @return the entry of the photo
+     */
+    Entry revalidated(Entry entry)
+    {
+        Entry revalidatedEntry = new Entry(entry._reference, entry._content, entry._contentType, entry._etag,
+                System.nanoTime());
+
+        _revalidations.increment();
+        store(revalidatedEntry);
+
+        return revalidatedEntry;
+    }
+
+    private void store(Entry entry)
+    {
+        long weight = entry.getWeight();
+
+        if (weight > _capacityBytes)
+        {
+            return;
+        }
+
+        _lock.lock();
+
+        try
+        {
+            @Nullable Entry previous = _entries.remove(entry._reference);
+
+            if (previous != null)
+            {
+                _bytes -= previous.getWeight();
+            }
+
+            Iterator<Entry> leastRecentlyUsed = _entries.values().iterator();
+
+            while (_bytes + weight > _capacityBytes && leastRecentlyUsed.hasNext())
+            {
+                _bytes -= leastRecentlyUsed.next().getWeight();
+                leastRecentlyUsed.remove();
+            }
+
+            _entries.put(entry._reference, entry);
+            _bytes += weight;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of logins that found a fresh photo
+     */
+    long getHits()
+    {
+        return _hits.sum();
+    }
+
+    /**
+     * @return the number of stale photos that Graph confirmed to be unchanged
+     */
+    long getRevalidations()
+    {
+        return _revalidations.sum();
+    }
+
+    /**
+     * @return the number of photos that were downloaded, or found to be missing
+     */
+    long getFetches()
+    {
+        return _fetches.sum();
+    }
+
+    /**
+     * @return the number of cached photos and the bytes that they take
+     */
+    String describe()
+    {
+        _lock.lock();
+
+        try
+        {
+            return _entries.size() + " photos, " + _bytes / 1024 + " KiB";
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    static final class Entry
+    {
+        private final String _reference;
+
+        @Nullable
+        private final byte[] _content;
+
+        @Nullable
+        private final String _contentType;
+
+        @Nullable
+        private final String _etag;
+
+        @Nullable
+        private final String _entityTag;
+
+        private final long _fetchedAt;
+
+        private Entry(String reference, @Nullable byte[] content, @Nullable String contentType, @Nullable String etag,
+                      long fetchedAt)
+        {
+            _reference = reference;
+            _content = content;
+            _contentType = contentType;
+            _etag = etag;
+            _entityTag = content == null ? null : "\"" + hash(content) + "\"";
+            _fetchedAt = fetchedAt;
+        }
+
+        String getReference()
+        {
+            return _reference;
+        }
+
+        /**
+         * @return the photo, or null if the user has none. The array must not be modified.
+         */
+        @Nullable
+        byte[] getContent()
+        {
+            return _content;
+        }
+
+        @Nullable
+        String getContentType()
+        {
+            return _contentType;
+        }
+
+        /**
+         * @return the ETag of the photo in Graph, which is what it is revalidated with
+         */
+        @Nullable
+        String getEtag()
+        {
+            return _etag;
+        }
+
+        /**
+         * @return the ETag that the photo is served with, which is a hash of its content, or null if there is none
+         */
+        @Nullable
+        String getEntityTag()
+        {
+            return _entityTag;
+        }
+
+        private long getWeight()
+        {
+            return ENTRY_OVERHEAD + (_content == null ? 0 : _content.length);
+        }
+    }
+}
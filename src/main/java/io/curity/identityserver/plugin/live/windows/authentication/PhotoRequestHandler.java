@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.authentication.AuthenticationResult;
+import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
+import se.curity.identityserver.sdk.http.HttpStatus;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.SessionManager;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import static se.curity.identityserver.sdk.web.ResponseModel.mapResponseModel;
+
+/**
+ * Serves the thumbnail that a login added as the photo_thumbnail attribute, by the reference in that attribute, to the
+ * browser whose session the login ran in.
+ *
+ * <p>A GET with the reference as the ref query parameter returns the photo from the cache of the authenticator, as a
+ * data URI in a JSON object, with an ETag and a Cache-Control header that lets the browser keep it for the Photo Cache
+ * TTL. Only the session that the photo was added in can get it. A photo that has been evicted from the cache since is
+ * not found, just like a reference that the session does not own, so that the response does not reveal which
+ * references exist.</p>
+ */
+public class PhotoRequestHandler implements AuthenticatorRequestHandler<Request>
+{
+    /**
+     * The name of the session attribute that holds the reference of the photo of the last login of the session
+     */
+    static final String PHOTO_REFERENCE_ATTRIBUTE = "photo-reference";
+
+    private static final String DEFAULT_CONTENT_TYPE = "image/jpeg";
+
+    private final ExceptionFactory _exceptionFactory;
+    private final SessionManager _sessionManager;
+    private final String _cacheControl;
+
+    @Nullable
+    private final PhotoCache _photoCache;
+
+    public PhotoRequestHandler(WindowsLiveAuthenticatorPluginConfig config,
+                               WindowsLiveAuthenticatorManagedObject managedObject)
+    {
+        _exceptionFactory = config.getExceptionFactory();
+        _sessionManager = config.getSessionManager();
+        _photoCache = managedObject.getPhotoCache();
+        _cacheControl = "private, max-age=" + config.getPhotoCacheTtl();
+    }
+
+    @Override
+    public Request preProcess(Request request, Response response)
+    {
+        if (request.isGetRequest())
+        {
+            return request;
+        }
+        else
+        {
+            throw _exceptionFactory.methodNotAllowed();
+        }
+    }
+
+    @Override
+    public Optional<AuthenticationResult> get(Request request, Response response)
+    {
+        Function<String, ? extends RuntimeException> invalidParameter = (s) -> new RuntimeException(String.format(
+                "Expected only one query string parameter named %s, but found multiple.", s));
+
+        @Nullable String reference = request.getQueryParameterValueOrError("ref", invalidParameter);
+        @Nullable PhotoCache.Entry photo = reference != null && _photoCache != null && isOwnedBySession(reference)
+                ? _photoCache.find(reference)
+                : null;
+        @Nullable byte[] content = photo == null ? null : photo.getContent();
+
+        if (photo == null || content == null)
+        {
+            response.setResponseModel(mapResponseModel(Map.of("error", "not_found")), HttpStatus.NOT_FOUND);
+
+            return Optional.empty();
+        }
+
+        String entityTag = photo.getEntityTag();
+
+        response.addHeader("ETag", entityTag);
+        response.addHeader("Cache-Control", _cacheControl);
+
+        if (matches(request.getHeaders().firstValue("If-None-Match").orElse(null), entityTag))
+        {
+            response.setResponseModel(mapResponseModel(Map.of()), HttpStatus.NOT_MODIFIED);
+
+            return Optional.empty();
+        }
+
+        String contentType = photo.getContentType() != null ? photo.getContentType() : DEFAULT_CONTENT_TYPE;
+        Map<String, Object> body = new LinkedHashMap<>(4);
+
+        body.put("ref", reference);
+        body.put("contentType", contentType);
+        body.put("size", _photoCache.getSize());
+        body.put("dataUri", "data:" + contentType + ";base64," + Base64.getEncoder().encodeToString(content));
+
+        response.setResponseModel(mapResponseModel(body), HttpStatus.OK);
+
+        return Optional.empty();
+    }
+
+    @Override
+    public Optional<AuthenticationResult> post(Request request, Response response)
+    {
+        throw _exceptionFactory.methodNotAllowed();
+    }
+
+    private boolean isOwnedBySession(String reference)
+    {
+        @Nullable Attribute attribute = _sessionManager.get(PHOTO_REFERENCE_ATTRIBUTE);
+
+        return attribute != null && reference.equals(attribute.getValueOfType(String.class));
+    }
+
+    /**
+     * @return true if the If-None-Match header lists the given entity tag, or is a wildcard
+     */
+    private static boolean matches(@Nullable String ifNoneMatch, String entityTag)
+    {
+        if (ifNoneMatch == null)
+        {
+            return false;
+        }
+
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            String trimmed = candidate.trim();
+
+            // Weak comparison, as for GET requests
+            if (trimmed.equals("*") || trimmed.equals(entityTag) || trimmed.equals("W/" + entityTag))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the profiles of users in Microsoft Graph by their subject, so that a login does not have to fetch a profile
+ * that rarely changes.
+ *
+ * <p>A cached profile is fresh for the TTL, and is used as it is. After that, it is stale: the handler revalidates it
+ * with its ETag, and Graph answers 304 without a body if it has not changed, which makes it fresh again. A stale
+ * profile may still be used when Graph fails, for at most the maximum staleness; after that, it is removed.</p>
+ *
+ * <p>The cache holds at most a given number of profiles, and removes the one that was used least recently when it is
+ * full. Every operation takes a lock, but only for a lookup or an update of a linked hash map.</p>
+ */
+final class ProfileCache
+{
+    private final Set<String> _attributes;
+    private final String _query;
+    private final JsonFieldExtractor _extractor;
+    private final int _maximumSize;
+    private final long _ttlNanos;
+    private final long _maximumStalenessNanos;
+    private final ReentrantLock _lock = new ReentrantLock();
+
+    // Guarded by _lock, in the order of access
+    private final LinkedHashMap<String, Entry> _entries;
+
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _revalidations = new LongAdder();
+    private final LongAdder _fetches = new LongAdder();
+
+    /**
+     * @param attributes the properties of the profile to fetch
+     */
+    ProfileCache(List<String> attributes, int maximumSize, long ttlNanos, long maximumStalenessNanos)
+    {
+        LinkedHashSet<String> fields = new LinkedHashSet<>(attributes);
+
+        _attributes = Set.copyOf(fields);
+        _query = "$select=" + String.join(",", fields);
+
+        // Graph has the ETag of an entity in the body, and not always in the headers
+        fields.add("@odata.etag");
+        _extractor = JsonFieldExtractor.of(fields);
+        _maximumSize = maximumSize;
+        _ttlNanos = ttlNanos;
+        _maximumStalenessNanos = maximumStalenessNanos;
+        _entries = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > _maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @return a cache of the configured Profile Attributes, or null if there are none
+     */
+    @Nullable
+    static ProfileCache of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        List<String> attributes = config.getProfileAttributes();
+
+        if (attributes.isEmpty())
+        {
+            return null;
+        }
+
+        return new ProfileCache(attributes, config.getProfileCacheSize(),
+                TimeUnit.SECONDS.toNanos(config.getProfileCacheTtl()),
+                TimeUnit.SECONDS.toNanos(config.getProfileMaximumStaleness()));
+    }
+
+    /**
+     * @return the query of a request to /me that selects the cached properties
+     */
+    String getQuery()
+    {
+        return _query;
+    }
+
+    /**
+     * @return the extractor of the cached properties and the ETag from a response of /me, which is needed when the
+     * response is not part of a batch
+     */
+    JsonFieldExtractor getExtractor()
+    {
+        return _extractor;
+    }
+
+    /**
+     * @return the cached profile of the given subject, or null if there is none that may still be used
+     */
+    @Nullable
+    Entry get(String subject)
+    {
+        if (_maximumSize == 0)
+        {
+            return null;
+        }
+
+        long now = System.nanoTime();
+
+        _lock.lock();
+
+        try
+        {
+            @Nullable Entry entry = _entries.get(subject);
+
+            if (entry == null)
+            {
+                return null;
+            }
+
+            if (now - entry._fetchedAt > _ttlNanos + _maximumStalenessNanos)
+            {
+                _entries.remove(subject);
+
+                return null;
+            }
+
+            if (isFresh(entry, now))
+            {
+                _hits.increment();
+            }
+
+            return entry;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the given entry may be used without revalidating it
+     */
+    boolean isFresh(Entry entry)
+    {
+        return isFresh(entry, System.nanoTime());
+    }
+
+    private boolean isFresh(Entry entry, long now)
+    {
+        return now - entry._fetchedAt <= _ttlNanos;
+    }
+
+    /**
+     * Cache a profile that was fetched from Graph.
+     *
+     * @param data       the fields of the response, of which only the cached properties are kept
+     * @param etagHeader the ETag header of the response, if it had one
+     * @return the entry of the profile
+     */
+    Entry put(String subject, Map<String, Object> data, @Nullable String etagHeader)
+    {
+        Map<String, Object> profile = new LinkedHashMap<>(data);
+        @Nullable Object etagMember = profile.get("@odata.etag");
+        @Nullable String etag = etagHeader;
+
+        profile.keySet().retainAll(_attributes);
+
+        if (etag == null && etagMember instanceof String)
+        {
+            etag = (String) etagMember;
+        }
+
+        Entry entry = new Entry(Collections.unmodifiableMap(profile), etag, System.nanoTime());
+
+        _fetches.increment();
+        store(subject, entry);
+
+        return entry;
+    }
+
+    /**
+     * Make a cached profile fresh again, after Graph has answered that it has not changed.
+     *
+     * @return the entry of the profile
+     */
+    Entry revalidated(String subject, Entry entry)
+    {
+        Entry revalidatedEntry = new Entry(entry._profile, entry._etag, System.nanoTime());
+
+        _revalidations.increment();
+        store(subject, revalidatedEntry);
+
+        return revalidatedEntry;
+    }
+
+    private void store(String subject, Entry entry)
+    {
+        if (_maximumSize == 0)
+        {
+            return;
+        }
+
+        _lock.lock();
+
+        try
+        {
+            _entries.put(subject, entry);
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lookups that found a fresh profile
+     */
+    long getHits()
+    {
+        return _hits.sum();
+    }
+
+    /**
+     * @return the number of stale profiles that Graph confirmed to be unchanged
+     */
+    long getRevalidations()
+    {
+        return _revalidations.sum();
+    }
+
+    /**
+     * @return the number of profiles that were fetched with a body
+     */
+    long getFetches()
+    {
+        return _fetches.sum();
+    }
+
+    int size()
+    {
+        _lock.lock();
+
+        try
+        {
+            return _entries.size();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    static final class Entry
+    {
+        private final Map<String, Object> _profile;
+
+        @Nullable
+        private final String _etag;
+
+        private final long _fetchedAt;
+
+        private Entry(Map<String, Object> profile, @Nullable String etag, long fetchedAt)
+        {
+            _profile = profile;
+            _etag = etag;
+            _fetchedAt = fetchedAt;
+        }
+
+        Map<String, Object> getProfile()
+        {
+            return _profile;
+        }
+
+        @Nullable
+        String getEtag()
+        {
+            return _etag;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers the state values and codes of callbacks for a window of time, so that a callback that uses one again can
+ * be rejected before its code is sent to the token endpoint.
+ *
+ * <p>Values are kept as 64-bit fingerprints, keyed with a random seed, in open-addressing tables that are split into
+ * stripes with a lock each. Each stripe has two generations. New values go into the current one, and when the window
+ * has passed, the current generation becomes the previous one and the previous one is cleared. A value is therefore
+ * remembered for at least the window and at most twice that. The memory is fixed by the capacity: when a generation
+ * of a stripe is full before the window has passed, it is rotated early, which shortens how long values are
+ * remembered instead of growing. A new value has the fingerprint of a remembered one with a probability of about one
+ * in 10<sup>12</sup> even when millions are remembered, so legitimate callbacks are practically never rejected.</p>
+ */
+final class ReplayFilter
+{
+    /**
+     * How long the identity platform accepts a code, which state values need to be remembered for at the least
+     */
+    static final long CODE_LIFETIME_SECONDS = 600;
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] _stripes = new Stripe[STRIPES];
+    private final long _windowNanos;
+    private final long _seed = new SecureRandom().nextLong();
+    private final LongSupplier _nanoTime;
+
+    private final LongAdder _replays = new LongAdder();
+    private final LongAdder _earlyRotations = new LongAdder();
+
+    /**
+     * @param capacity the number of values to remember per window
+     */
+    ReplayFilter(int capacity, Duration window)
+    {
+        this(capacity, window, System::nanoTime);
+    }
+
+    /**
+     * @param nanoTime the source of the time in nanoseconds, like {@link System#nanoTime()}
+     */
+    ReplayFilter(int capacity, Duration window, LongSupplier nanoTime)
+    {
+        _nanoTime = nanoTime;
+
+        int capacityPerStripe = Math.max(1, (capacity + STRIPES - 1) / STRIPES);
+
+        // Tables are at most half full, so that probes stay short
+        int tableSize = Integer.highestOneBit(capacityPerStripe * 2 - 1) << 1;
+
+        for (int i = 0; i < STRIPES; i++)
+        {
+            _stripes[i] = new Stripe(capacityPerStripe, tableSize);
+        }
+
+        _windowNanos = window.toNanos();
+    }
+
+    /**
+     * @return a filter that remembers values for the State Lifetime, or the lifetime of codes if that is longer, or
+     * null if the Replay Filter Capacity is 0
+     */
+    @Nullable
+    static ReplayFilter of(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        if (config.getReplayFilterCapacity() == 0)
+        {
+            return null;
+        }
+
+        return new ReplayFilter(config.getReplayFilterCapacity(),
+                Duration.ofSeconds(Math.max(config.getStateLifetime(), CODE_LIFETIME_SECONDS)));
+    }
+
+    /**
+     * Remember the given value as used.
+     *
+     * @return true if the value was not used before within the window, and false if this is a replay
+     */
+    boolean markUsed(String value)
+    {
+        long fingerprint = fingerprint(value);
+
+        // The top bits pick the stripe and the bottom bits the slot, so that the two are independent
+        boolean firstUse = _stripes[(int) (fingerprint >>> 60)].add(fingerprint, _nanoTime.getAsLong());
+
+        if (!firstUse)
+        {
+            _replays.increment();
+        }
+
+        return firstUse;
+    }
+
+    /**
+     * @return the number of values that were used again
+     */
+    long getReplays()
+    {
+        return _replays.sum();
+    }
+
+    /**
+     * @return the number of times that a generation was full before the window had passed
+     */
+    long getEarlyRotations()
+    {
+        return _earlyRotations.sum();
+    }
+
+    /**
+     * @return the number of seconds that values are remembered for at the least
+     */
+    long getWindowSeconds()
+    {
+        return TimeUnit.NANOSECONDS.toSeconds(_windowNanos);
+    }
+
+    private long fingerprint(String value)
+    {
+        long hash = _seed;
+
+        // FNV-1a over the characters, followed by the finalizer of MurmurHash3 to spread them over all bits
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        // 0 marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    private final class Stripe
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final int _capacity;
+        private final int _mask;
+
+        // Guarded by _lock
+        private long[] _current;
+        private long[] _previous;
+        private int _size;
+        private long _rotatedAt;
+
+        private Stripe(int capacity, int tableSize)
+        {
+            _rotatedAt = _nanoTime.getAsLong();
+            _capacity = capacity;
+            _mask = tableSize - 1;
+            _current = new long[tableSize];
+            _previous = new long[tableSize];
+        }
+
+        boolean add(long fingerprint, long now)
+        {
+            _lock.lock();
+
+            try
+            {
+                if (now - _rotatedAt >= _windowNanos)
+                {
+                    rotate(now);
+                }
+
+                if (contains(_current, fingerprint) || contains(_previous, fingerprint))
+                {
+                    return false;
+                }
+
+                if (_size == _capacity)
+                {
+                    _earlyRotations.increment();
+                    rotate(now);
+                }
+
+                insert(_current, fingerprint);
+                _size++;
+
+                return true;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        private void rotate(long now)
+        {
+            long[] cleared = _previous;
+
+            Arrays.fill(cleared, 0);
+
+            // All values in the current generation were added within a window of the last rotation, so they are
+            // older than the window after two
+            if (now - _rotatedAt >= 2 * _windowNanos)
+            {
+                Arrays.fill(_current, 0);
+            }
+
+            _previous = _current;
+            _current = cleared;
+            _size = 0;
+            _rotatedAt = now;
+        }
+
+        private boolean contains(long[] table, long fingerprint)
+        {
+            for (int slot = (int) fingerprint & _mask; table[slot] != 0; slot = (slot + 1) & _mask)
+            {
+                if (table[slot] == fingerprint)
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void insert(long[] table, long fingerprint)
+        {
+            int slot = (int) fingerprint & _mask;
+
+            while (table[slot] != 0)
+            {
+                slot = (slot + 1) & _mask;
+            }
+
+            table[slot] = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import se.curity.identityserver.sdk.Nullable;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Creates and validates self-contained state values, so that the state of each authorization request does not have
+ * to be kept in the session.
+ *
+ * <p>A state value holds a random nonce, the time it was issued and a hash of a binding secret. The binding secret
+ * is a random value that is kept in the session of the browser that starts the login, under
+ * {@link #BINDING_ATTRIBUTE}, so that a state value that an attacker obtained for a login of their own is rejected in
+ * the session of anyone else. One secret serves all logins of a session, so the session is written once per session
+ * instead of once per login.</p>
+ *
+ * <p>The value is protected with one of a list of keys: with {@link StateMode#SIGNED} it is authenticated with
+ * HMAC-SHA256, with {@link StateMode#ENCRYPTED} it is also encrypted, using AES-256-GCM. The first key protects new
+ * values and all keys are accepted, so keys can be rotated by adding a new key first and removing the old one once
+ * the values it protected have expired. Each value starts with a short ID of its key, so that validating it takes a
+ * single MAC or decryption regardless of the number of keys.</p>
+ *
+ * <p>Unlike state kept in the session, a value can be replayed until it expires, which is why the lifetime should be
+ * kept short.</p>
+ */
+final class StateCodec
+{
+    /**
+     * The name of the session attribute that holds the binding secret of the browser.
+     */
+    static final String BINDING_ATTRIBUTE = "state-binding";
+
+    private static final byte VERSION = 1;
+    private static final int KEY_ID_LENGTH = 4;
+    private static final int HEADER_LENGTH = 1 + KEY_ID_LENGTH;
+    private static final int NONCE_LENGTH = 16;
+    private static final int BINDING_LENGTH = 16;
+    private static final int CLAIMS_LENGTH = NONCE_LENGTH + Long.BYTES + BINDING_LENGTH;
+    private static final int MAC_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int MINIMUM_KEY_LENGTH = 32;
+    private static final long ALLOWED_CLOCK_SKEW_SECONDS = 30;
+
+    private static final ThreadLocal<Mac> _macs = ThreadLocal.withInitial(() ->
+            getInstance("HmacSHA256", Mac::getInstance));
+    private static final ThreadLocal<Cipher> _ciphers = ThreadLocal.withInitial(() ->
+            getInstance("AES/GCM/NoPadding", Cipher::getInstance));
+
+    private final StateMode _mode;
+    private final List<StateKey> _keys;
+    private final long _lifetimeSeconds;
+    private final Clock _clock;
+    private final StateGenerator _random;
+
+    /**
+     * @param mode {@link StateMode#SIGNED} or {@link StateMode#ENCRYPTED}
+     * @param keys the keys, of at least 32 bytes each; the first one protects new values
+     * @throws IllegalArgumentException if there are no keys, or a key is too short
+     */
+    StateCodec(StateMode mode, List<byte[]> keys, Duration lifetime, StateGenerator random, Clock clock)
+    {
+        if (mode == StateMode.SESSION)
+        {
+            throw new IllegalArgumentException("State kept in the session is not encoded");
+        }
+
+        if (keys.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one state key is needed in " + mode + " state mode");
+        }
+
+        List<StateKey> stateKeys = new ArrayList<>(keys.size());
+
+        for (byte[] key : keys)
+        {
+            if (key.length < MINIMUM_KEY_LENGTH)
+            {
+                throw new IllegalArgumentException("State keys must be at least " + MINIMUM_KEY_LENGTH + " bytes");
+            }
+
+            stateKeys.add(new StateKey(mode, key));
+        }
+
+        _mode = mode;
+        _keys = List.copyOf(stateKeys);
+        _lifetimeSeconds = lifetime.toSeconds();
+        _random = random;
+        _clock = clock;
+    }
+
+    /**
+     * @param bindingSecret the binding secret that is kept in the session of the browser that starts the login
+     * @return a new state value, which is URL safe
+     */
+    String create(String bindingSecret)
+    {
+        StateKey key = _keys.get(0);
+        ByteBuffer claims = ByteBuffer.allocate(CLAIMS_LENGTH);
+        byte[] nonce = new byte[NONCE_LENGTH];
+
+        _random.nextBytes(nonce);
+        claims.put(nonce).putLong(_clock.instant().getEpochSecond()).put(bind(bindingSecret));
+
+        byte[] value = _mode == StateMode.SIGNED ? sign(key, claims.array()) : encrypt(key, claims.array());
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value);
+    }
+
+    /**
+     * @param state         the state value that was returned by the identity platform
+     * @param bindingSecret the binding secret that is kept in the session of the browser that ends the login, if any
+     * @throws InvalidStateException if the value was not created by this codec with one of its keys, has expired or
+     *                               was created for another session
+     */
+    void validate(String state, @Nullable String bindingSecret) throws InvalidStateException
+    {
+        byte[] value;
+
+        try
+        {
+            value = Base64.getUrlDecoder().decode(state);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new InvalidStateException("State is not base64url encoded");
+        }
+
+        if (value.length < HEADER_LENGTH || value[0] != VERSION)
+        {
+            throw new InvalidStateException("State has an unknown format");
+        }
+
+        StateKey key = findKey(value);
+        ByteBuffer claims = ByteBuffer.wrap(_mode == StateMode.SIGNED ? verify(key, value) : decrypt(key, value));
+        long issuedAt = claims.position(NONCE_LENGTH).getLong();
+        long now = _clock.instant().getEpochSecond();
+
+        if (issuedAt + _lifetimeSeconds < now)
+        {
+            throw new InvalidStateException("State has expired");
+        }
+
+        if (issuedAt - ALLOWED_CLOCK_SKEW_SECONDS > now)
+        {
+            throw new InvalidStateException("State is issued in the future");
+        }
+
+        if (bindingSecret == null)
+        {
+            throw new InvalidStateException("Session has no state binding");
+        }
+
+        byte[] binding = new byte[BINDING_LENGTH];
+
+        claims.get(binding);
+
+        if (!MessageDigest.isEqual(binding, bind(bindingSecret)))
+        {
+            throw new InvalidStateException("State was issued to another session");
+        }
+    }
+
+    private StateKey findKey(byte[] value) throws InvalidStateException
+    {
+        for (StateKey key : _keys)
+        {
+            if (Arrays.equals(key._id, 0, KEY_ID_LENGTH, value, 1, HEADER_LENGTH))
+            {
+                return key;
+            }
+        }
+
+        throw new InvalidStateException("State is protected with an unknown key");
+    }
+
+    private static byte[] sign(StateKey key, byte[] claims)
+    {
+        byte[] value = new byte[HEADER_LENGTH + CLAIMS_LENGTH + MAC_LENGTH];
+
+        writeHeader(key, value);
+        System.arraycopy(claims, 0, value, HEADER_LENGTH, CLAIMS_LENGTH);
+
+        try
+        {
+            Mac mac = key.initMac();
+
+            mac.update(value, 0, HEADER_LENGTH + CLAIMS_LENGTH);
+            mac.doFinal(value, HEADER_LENGTH + CLAIMS_LENGTH);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not sign state", e);
+        }
+
+        return value;
+    }
+
+    private static byte[] verify(StateKey key, byte[] value) throws InvalidStateException
+    {
+        if (value.length != HEADER_LENGTH + CLAIMS_LENGTH + MAC_LENGTH)
+        {
+            throw new InvalidStateException("State has an unexpected length");
+        }
+
+        Mac mac = key.initMac();
+
+        mac.update(value, 0, HEADER_LENGTH + CLAIMS_LENGTH);
+
+        if (!MessageDigest.isEqual(mac.doFinal(), Arrays.copyOfRange(value, HEADER_LENGTH + CLAIMS_LENGTH,
+                value.length)))
+        {
+            throw new InvalidStateException("State has an invalid signature");
+        }
+
+        return Arrays.copyOfRange(value, HEADER_LENGTH, HEADER_LENGTH + CLAIMS_LENGTH);
+    }
+
+    private byte[] encrypt(StateKey key, byte[] claims)
+    {
+        byte[] value = new byte[HEADER_LENGTH + IV_LENGTH + CLAIMS_LENGTH + TAG_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+
+        _random.nextBytes(iv);
+        writeHeader(key, value);
+        System.arraycopy(iv, 0, value, HEADER_LENGTH, IV_LENGTH);
+
+        try
+        {
+            Cipher cipher = _ciphers.get();
+
+            cipher.init(Cipher.ENCRYPT_MODE, key._key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+            cipher.updateAAD(value, 0, HEADER_LENGTH);
+            cipher.doFinal(claims, 0, CLAIMS_LENGTH, value, HEADER_LENGTH + IV_LENGTH);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Could not encrypt state", e);
+        }
+
+        return value;
+    }
+
+    private static byte[] decrypt(StateKey key, byte[] value) throws InvalidStateException
+    {
+        if (value.length != HEADER_LENGTH + IV_LENGTH + CLAIMS_LENGTH + TAG_LENGTH)
+        {
+            throw new InvalidStateException("State has an unexpected length");
+        }
+
+        try
+        {
+            Cipher cipher = _ciphers.get();
+
+            cipher.init(Cipher.DECRYPT_MODE, key._key,
+                    new GCMParameterSpec(TAG_LENGTH * 8, value, HEADER_LENGTH, IV_LENGTH));
+            cipher.updateAAD(value, 0, HEADER_LENGTH);
+
+            return cipher.doFinal(value, HEADER_LENGTH + IV_LENGTH, CLAIMS_LENGTH + TAG_LENGTH);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new InvalidStateException("State could not be decrypted");
+        }
+    }
+
+    private static void writeHeader(StateKey key, byte[] value)
+    {
+        value[0] = VERSION;
+        System.arraycopy(key._id, 0, value, 1, KEY_ID_LENGTH);
+    }
+
+    private static byte[] bind(String bindingSecret)
+    {
+        byte[] hash = sha256(bindingSecret.getBytes(StandardCharsets.UTF_8));
+
+        return Arrays.copyOf(hash, BINDING_LENGTH);
+    }
+
+    private static byte[] sha256(byte[] input)
+    {
+        return getInstance("SHA-256", MessageDigest::getInstance).digest(input);
+    }
+
+    private static <T> T getInstance(String algorithm, AlgorithmLookup<T> lookup)
+    {
+        try
+        {
+            return lookup.getInstance(algorithm);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("This server does not support " + algorithm, e);
+        }
+    }
+
+    private interface AlgorithmLookup<T>
+    {
+        T getInstance(String algorithm) throws GeneralSecurityException;
+    }
+
+    private static final class StateKey
+    {
+        private final byte[] _id;
+        private final SecretKeySpec _key;
+
+        private StateKey(StateMode mode, byte[] key)
+        {
+            _id = Arrays.copyOf(sha256(key), KEY_ID_LENGTH);
+
+            // Derive a key per mode, so that the same configured key is never used with two algorithms
+            byte[] derivedKey = deriveKey(key, "windows-live-state-" + mode.name().toLowerCase());
+
+            _key = new SecretKeySpec(derivedKey, mode == StateMode.SIGNED ? "HmacSHA256" : "AES");
+        }
+
+        private Mac initMac()
+        {
+            Mac mac = _macs.get();
+
+            try
+            {
+                mac.init(_key);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("Could not use state key", e);
+            }
+
+            return mac;
+        }
+
+        private static byte[] deriveKey(byte[] key, String label)
+        {
+            try
+            {
+                Mac mac = Mac.getInstance("HmacSHA256");
+
+                mac.init(new SecretKeySpec(key, "HmacSHA256"));
+
+                return mac.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException("This server does not support HmacSHA256", e);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalArgumentException("State key cannot be used", e);
+            }
+        }
+    }
+
+    static final class InvalidStateException extends Exception
+    {
+        InvalidStateException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Generates random state values and nonces for authorization requests.
+ *
+ * <p>{@link java.util.UUID#randomUUID()} draws from a single {@link SecureRandom} shared by the whole JVM, which
+ * becomes a point of contention when many logins start at the same time. This generator instead spreads threads
+ * over a number of independently seeded DRBG instances, about two per processor, and is reseeded from the
+ * platform's entropy source on a schedule.</p>
+ *
+ * <p>Most of the cost of a DRBG request is fixed, so each instance generates a block of bytes at a time and hands
+ * them out in order. Bytes are never handed out twice, and the blocks are discarded when the instances are
+ * reseeded.</p>
+ */
+final class StateGenerator
+{
+    private static final Logger _logger = LoggerFactory.getLogger(StateGenerator.class);
+    private static final Base64.Encoder _encoder = Base64.getUrlEncoder().withoutPadding();
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private final Stripe[] _stripes;
+    private final int _mask;
+    private final int _entropyBytes;
+
+    /**
+     * @param entropyBits the number of random bits in a state value, which is rounded up to whole bytes
+     */
+    StateGenerator(int entropyBits)
+    {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+        _stripes = new Stripe[stripes];
+        _mask = stripes - 1;
+        _entropyBytes = (entropyBits + 7) / 8;
+
+        for (int i = 0; i < stripes; i++)
+        {
+            _stripes[i] = new Stripe(createSecureRandom());
+        }
+    }
+
+    /**
+     * @return a new state value of the configured entropy, encoded as base64url without padding
+     */
+    String next()
+    {
+        byte[] bytes = new byte[_entropyBytes];
+
+        nextBytes(bytes);
+
+        return _encoder.encodeToString(bytes);
+    }
+
+    /**
+     * Fill the given array with random bytes.
+     */
+    void nextBytes(byte[] bytes)
+    {
+        _stripes[(int) Thread.currentThread().getId() & _mask].nextBytes(bytes);
+    }
+
+    /**
+     * Reseed all instances with fresh entropy from the platform. This is called periodically by the managed object.
+     */
+    void reseed()
+    {
+        for (Stripe stripe : _stripes)
+        {
+            stripe.reseed();
+        }
+
+        _logger.trace("Reseeded {} state generator instances", _stripes.length);
+    }
+
+    private static final class Stripe
+    {
+        private final SecureRandom _random;
+        private final byte[] _block = new byte[BLOCK_SIZE];
+        private int _position = BLOCK_SIZE;
+
+        private Stripe(SecureRandom random)
+        {
+            _random = random;
+        }
+
+        synchronized void nextBytes(byte[] bytes)
+        {
+            if (bytes.length > BLOCK_SIZE)
+            {
+                _random.nextBytes(bytes);
+
+                return;
+            }
+
+            int copied = 0;
+
+            while (copied < bytes.length)
+            {
+                if (_position == BLOCK_SIZE)
+                {
+                    _random.nextBytes(_block);
+                    _position = 0;
+                }
+
+                int length = Math.min(bytes.length - copied, BLOCK_SIZE - _position);
+
+                System.arraycopy(_block, _position, bytes, copied, length);
+                Arrays.fill(_block, _position, _position + length, (byte) 0);
+                _position += length;
+                copied += length;
+            }
+        }
+
+        synchronized void reseed()
+        {
+            try
+            {
+                _random.reseed();
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // Instances that are not DRBGs, e.g. NativePRNG, mix in fresh entropy by themselves
+            }
+
+            Arrays.fill(_block, (byte) 0);
+            _position = BLOCK_SIZE;
+        }
+    }
+
+    private static SecureRandom createSecureRandom()
+    {
+        try
+        {
+            return SecureRandom.getInstance("DRBG");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            _logger.debug("DRBG is not available, using the default SecureRandom for state values");
+
+            return new SecureRandom();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpRequest;
+import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static io.curity.identityserver.plugin.live.windows.authentication.RedirectUriUtils.createRedirectUri;
+
+/**
+ * Encodes the form body of token requests, compiled once per configuration instance.
+ *
+ * <p>All parameters except the authorization code only depend on the configuration, so they are form encoded once
+ * into a byte array that ends with {@code code=}. Encoding a request copies that array and percent-encodes the code
+ * straight into the copy. As for {@link AuthorizationRequestTemplate}, the redirect URI depends on the authentication
+ * URI, so the encoded prefix is cached together with the authentication URI it was created for.</p>
+ *
+ * <p>When the client authenticates with a signed client assertion instead of a secret, the assertion is part of the
+ * prefix too. It is replaced every few minutes, and the prefix is encoded again for the new one.</p>
+ */
+final class TokenRequestEncoder
+{
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final String _encodedClientId;
+
+    @Nullable
+    private final String _encodedClientSecret;
+
+    @Nullable
+    private final ClientAssertionSigner _clientAssertionSigner;
+
+    private volatile BodyPrefix _bodyPrefix;
+
+    private TokenRequestEncoder(String clientId, @Nullable String clientSecret,
+                                @Nullable ClientAssertionSigner clientAssertionSigner)
+    {
+        _encodedClientId = "client_id=" + formEncode(clientId);
+        _encodedClientSecret = clientSecret == null ? null : "&client_secret=" + formEncode(clientSecret);
+        _clientAssertionSigner = clientAssertionSigner;
+    }
+
+    /**
+     * @param clientAssertionSigner the signer of client assertions, or null to send the client secret
+     */
+    static TokenRequestEncoder compile(WindowsLiveAuthenticatorPluginConfig config,
+                                       @Nullable ClientAssertionSigner clientAssertionSigner)
+    {
+        return new TokenRequestEncoder(config.getClientId(), config.getClientSecret().orElse(null),
+                clientAssertionSigner);
+    }
+
+    /**
+     * @param code the authorization code to redeem
+     * @return the body of the token request for the given code
+     */
+    HttpRequest.BodyProcessor createBody(String code, AuthenticatorInformationProvider authenticatorInformationProvider,
+                                         ExceptionFactory exceptionFactory)
+    {
+        return HttpRequest.fromByteArray(encode(code, authenticatorInformationProvider, exceptionFactory));
+    }
+
+    /**
+     * @return the form encoded body of the token request for the given code, in UTF-8
+     */
+    byte[] encode(String code, AuthenticatorInformationProvider authenticatorInformationProvider,
+                  ExceptionFactory exceptionFactory)
+    {
+        byte[] prefix = getBodyPrefix(authenticatorInformationProvider, exceptionFactory).getValue();
+
+        for (int i = 0; i < code.length(); i++)
+        {
+            if (code.charAt(i) >= 0x80)
+            {
+                // Codes are ASCII in practice, but encode anything else correctly too
+                return appendEncoded(prefix, code.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int length = prefix.length;
+
+        for (int i = 0; i < code.length(); i++)
+        {
+            length += encodedLength(code.charAt(i));
+        }
+
+        byte[] body = Arrays.copyOf(prefix, length);
+        int position = prefix.length;
+
+        for (int i = 0; i < code.length(); i++)
+        {
+            position = appendEncoded(body, position, code.charAt(i));
+        }
+
+        return body;
+    }
+
+    private BodyPrefix getBodyPrefix(AuthenticatorInformationProvider authenticatorInformationProvider,
+                                     ExceptionFactory exceptionFactory)
+    {
+        URI authenticationUri = authenticatorInformationProvider.getFullyQualifiedAuthenticationUri();
+        @Nullable String clientAssertion = _clientAssertionSigner == null ? null : _clientAssertionSigner.get();
+        BodyPrefix bodyPrefix = _bodyPrefix;
+
+        if (bodyPrefix == null || !bodyPrefix.isFor(authenticationUri, clientAssertion))
+        {
+            String redirectUri = createRedirectUri(authenticatorInformationProvider, exceptionFactory);
+            String clientCredentials = clientAssertion == null
+                    ? _encodedClientSecret
+                    : "&client_assertion_type=" + formEncode(ClientAssertionSigner.ASSERTION_TYPE) +
+                    "&client_assertion=" + formEncode(clientAssertion);
+
+            bodyPrefix = new BodyPrefix(authenticationUri, clientAssertion, (_encodedClientId + clientCredentials +
+                    "&grant_type=authorization_code" +
+                    "&redirect_uri=" + formEncode(redirectUri) +
+                    "&code=").getBytes(StandardCharsets.US_ASCII));
+
+            _bodyPrefix = bodyPrefix;
+        }
+
+        return bodyPrefix;
+    }
+
+    private static byte[] appendEncoded(byte[] prefix, byte[] value)
+    {
+        int length = prefix.length;
+
+        for (byte b : value)
+        {
+            length += encodedLength(b & 0xFF);
+        }
+
+        byte[] body = Arrays.copyOf(prefix, length);
+        int position = prefix.length;
+
+        for (byte b : value)
+        {
+            position = appendEncoded(body, position, b & 0xFF);
+        }
+
+        return body;
+    }
+
+    /**
+     * Form encode a byte the way {@link URLEncoder} does.
+     *
+     * @return the position after the encoded byte
+     */
+    private static int appendEncoded(byte[] target, int position, int b)
+    {
+        if (isUnreserved(b))
+        {
+            target[position++] = (byte) b;
+        }
+        else if (b == ' ')
+        {
+            target[position++] = '+';
+        }
+        else
+        {
+            target[position++] = '%';
+            target[position++] = HEX_DIGITS[b >> 4];
+            target[position++] = HEX_DIGITS[b & 0xF];
+        }
+
+        return position;
+    }
+
+    private static int encodedLength(int b)
+    {
+        return isUnreserved(b) || b == ' ' ? 1 : 3;
+    }
+
+    private static boolean isUnreserved(int b)
+    {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') ||
+                b == '.' || b == '-' || b == '*' || b == '_';
+    }
+
+    private static String formEncode(String value)
+    {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static final class BodyPrefix
+    {
+        private final URI _authenticationUri;
+
+        @Nullable
+        private final String _clientAssertion;
+
+        private final byte[] _value;
+
+        private BodyPrefix(URI authenticationUri, @Nullable String clientAssertion, byte[] value)
+        {
+            _authenticationUri = authenticationUri;
+            _clientAssertion = clientAssertion;
+            _value = value;
+        }
+
+        boolean isFor(URI authenticationUri, @Nullable String clientAssertion)
+        {
+            // The signer hands out the same instance until it signs a new assertion, so the identity is enough
+            return _authenticationUri.equals(authenticationUri) && _clientAssertion == clientAssertion;
+        }
+
+        byte[] getValue()
+        {
+            return _value;
+        }
+    }
+}
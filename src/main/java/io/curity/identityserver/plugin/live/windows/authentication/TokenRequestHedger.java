@@ -0,0 +1,458 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.authentication.UpstreamCallExecutor.UpstreamCall;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Sends token requests to the host of the Microsoft identity platform that has been fastest recently, and hedges them
+ * by sending a second request to another host when the first one is slow.
+ *
+ * <p>Each host has a score, which is a moving average of the time its token requests took, with a penalty for server
+ * errors and failed requests. Requests go to the host with the lowest score, but the configured order is kept unless
+ * another host is clearly faster, so that requests do not flap between hosts that perform about the same. A host
+ * without a score yet is tried first, so that it gets one.</p>
+ *
+ * <p>When the first request has not been answered after the hedging delay, which is a percentile of the latencies of
+ * recent token requests, the same request is sent to the next best host and the first successful response is used.
+ * Since an authorization code can only be redeemed once, and either request may be the one that redeems it:</p>
+ *
+ * <ul>
+ * <li>a request is only hedged while no response has been received, never retried after one, so an error response
+ * like {@code invalid_grant} is final unless the other request is still running;</li>
+ * <li>a request is hedged at most once, and the request that loses is cancelled;</li>
+ * <li>when one request fails and the other is still running, the outcome of the other one is awaited, since a
+ * failure of one may well be because the other redeemed the code;</li>
+ * <li>a request that could not connect to its host at all is sent to the next host right away, since it cannot
+ * have redeemed the code.</li>
+ * </ul>
+ *
+ * <p>Hedging a request is not free of risk either: when both hosts get the request, the code is redeemed twice, and
+ * RFC 6749, section 4.1.2, says that the authorization server must deny the second attempt and should revoke the
+ * tokens that were issued for the first. The rules above keep the login from using the denied response while the other
+ * is outstanding, but if Microsoft revokes the tokens of the winning response, the login is left with revoked tokens.
+ * This is why hedging is limited to the slowest requests, and is off unless a budget is configured. A budget of 0
+ * still fails over requests that never reached their host.</p>
+ *
+ * <p>Hedging adds load on Microsoft when it is slow, so only a configured percentage of token requests may be
+ * hedged. Each request adds that percentage to a small budget, and each hedge takes a whole request from it.</p>
+ *
+ * <p>The score of a host is only updated by requests that were not cancelled because the other host won, since such
+ * a request is only known to be slower than the winner, and its latency would make its host look faster than it is.
+ * Requests that are cancelled because no host answered in time count as failures of their host.</p>
+ */
+final class TokenRequestHedger
+{
+    private static final Logger _logger = LoggerFactory.getLogger(TokenRequestHedger.class);
+
+    private static final long INITIAL_HEDGING_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MINIMUM_HEDGING_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MINIMUM_SAMPLES = 20;
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // A new latency makes up 1/5 of the score of a host
+    private static final int SCORE_WEIGHT = 5;
+
+    // A host is passed over for one later in the configured order when its score is over 1.2 times the best score
+    private static final double PREFERENCE = 1.2;
+
+    // The budget holds at most 10 hedges, in hundredths of a request
+    private static final int MAXIMUM_CREDITS = 10 * 100;
+
+    private final Endpoint[] _endpoints;
+    private final UpstreamCallExecutor _executor;
+    private final double _percentile;
+    private final int _budget;
+    private final LatencyHistogram _latencies = new LatencyHistogram();
+    private final AtomicInteger _credits = new AtomicInteger();
+    private final LongAdder _hedgedRequests = new LongAdder();
+    private final LongAdder _hedgeWins = new LongAdder();
+    private final LongAdder _failovers = new LongAdder();
+
+    private volatile long _hedgingDelayNanos = INITIAL_HEDGING_DELAY_NANOS;
+
+    /**
+     * @param hosts      the hosts to send token requests to, in order of preference; at least two
+     * @param percentile the percentile of recent token request latencies after which a request is hedged
+     * @param budget     the percentage of token requests that may be hedged
+     * @param executor   the executor that runs the requests, which cannot be {@link UpstreamCallExecutor#DIRECT}
+     */
+    TokenRequestHedger(List<String> hosts, int percentile, int budget, UpstreamCallExecutor executor)
+    {
+        if (hosts.size() < 2)
+        {
+            throw new IllegalArgumentException("At least two hosts are needed to hedge requests");
+        }
+
+        _endpoints = hosts.stream().map(Endpoint::new).toArray(Endpoint[]::new);
+        _executor = executor;
+        _percentile = percentile;
+        _budget = budget;
+    }
+
+    /**
+     * Send a token request, hedging it if it is slow.
+     *
+     * @param request      creates the request to a given host; it must be safe to send to every host
+     * @param timeoutNanos the time to wait for a response from any host
+     * @throws TimeoutException if no request completed in time, in which case all requests have been cancelled
+     * @throws IOException      if all requests failed
+     */
+    UpstreamResponse send(Function<String, UpstreamCall<UpstreamResponse>> request, long timeoutNanos)
+            throws IOException, TimeoutException
+    {
+        if (timeoutNanos <= 0)
+        {
+            throw new TimeoutException("No time left for the request");
+        }
+
+        long start = System.nanoTime();
+
+        _credits.accumulateAndGet(_budget, (credits, budget) -> Math.min(credits + budget, MAXIMUM_CREDITS));
+
+        Endpoint primary = selectPrimary();
+        Endpoint alternate = selectAlternate(primary);
+        CompletionService<UpstreamResponse> completions = _executor.newCompletionService();
+        List<Future<UpstreamResponse>> pending = new ArrayList<>(2);
+        boolean alternateSent = false;
+        boolean mayHedge = _budget > 0;
+        @Nullable Future<UpstreamResponse> firstFailure = null;
+
+        // Set when the outcome is decided, before the requests that lost are cancelled
+        AtomicBoolean decided = new AtomicBoolean();
+        boolean timedOut = false;
+
+        Future<UpstreamResponse> primaryRequest = completions.submit(attempt(primary, request, decided));
+
+        pending.add(primaryRequest);
+
+        try
+        {
+            while (true)
+            {
+                long remaining = timeoutNanos - (System.nanoTime() - start);
+                long wait = mayHedge ? Math.min(_hedgingDelayNanos, remaining) : remaining;
+                @Nullable Future<UpstreamResponse> completed = remaining > 0
+                        ? completions.poll(wait, TimeUnit.NANOSECONDS)
+                        : null;
+
+                if (completed == null)
+                {
+                    if (!mayHedge || System.nanoTime() - start >= timeoutNanos)
+                    {
+                        timedOut = true;
+
+                        throw new TimeoutException("No response from " + primary._host +
+                                (alternateSent ? " or " + alternate._host : "") + " in time");
+                    }
+
+                    mayHedge = false;
+
+                    if (takeCredit())
+                    {
+                        _logger.debug("No response from {} after {} ms, hedging the token request to {}",
+                                primary._host, TimeUnit.NANOSECONDS.toMillis(_hedgingDelayNanos), alternate._host);
+                        _hedgedRequests.increment();
+                        alternateSent = true;
+                        pending.add(completions.submit(attempt(alternate, request, decided)));
+                    }
+
+                    continue;
+                }
+
+                pending.remove(completed);
+                mayHedge = false;
+
+                try
+                {
+                    UpstreamResponse response = completed.get();
+
+                    if (response.getStatusCode() == 200)
+                    {
+                        if (completed != primaryRequest)
+                        {
+                            _hedgeWins.increment();
+                        }
+
+                        return response;
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    if (pending.isEmpty() && !alternateSent && wasNotSent(e.getCause()))
+                    {
+                        _logger.debug("Could not connect to {}, sending the token request to {}: {}", primary._host,
+                                alternate._host, e.getCause().toString());
+                        _failovers.increment();
+                        alternateSent = true;
+                        pending.add(completions.submit(attempt(alternate, request, decided)));
+
+                        continue;
+                    }
+                }
+
+                if (firstFailure == null)
+                {
+                    firstFailure = completed;
+                }
+
+                if (pending.isEmpty())
+                {
+                    return getDone(firstFailure);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for the token request");
+        }
+        finally
+        {
+            decided.set(!timedOut);
+
+            for (Future<UpstreamResponse> loser : pending)
+            {
+                loser.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Recompute the hedging delay from the latencies recorded since the previous time. This is called periodically
+     * by the managed object. The delay is kept when too few requests were made to tell.
+     */
+    void updateHedgingDelay()
+    {
+        LatencyHistogram.Snapshot snapshot = _latencies.snapshotAndReset();
+
+        if (snapshot.getCount() >= MINIMUM_SAMPLES)
+        {
+            _hedgingDelayNanos = Math.max(MINIMUM_HEDGING_DELAY_NANOS,
+                    TimeUnit.MICROSECONDS.toNanos(snapshot.getValueAtPercentile(_percentile)));
+        }
+
+        if (_logger.isDebugEnabled())
+        {
+            StringBuilder scores = new StringBuilder();
+
+            for (Endpoint endpoint : _endpoints)
+            {
+                scores.append(' ').append(endpoint._host).append('=')
+                        .append(TimeUnit.NANOSECONDS.toMillis(endpoint._score.get())).append("ms");
+            }
+
+            _logger.debug("Token request hedging delay is {} ms, host scores:{}",
+                    TimeUnit.NANOSECONDS.toMillis(_hedgingDelayNanos), scores);
+        }
+    }
+
+    long getHedgedRequests()
+    {
+        return _hedgedRequests.sum();
+    }
+
+    /**
+     * @return the number of hedged or failed over requests where the response from the alternate host was used
+     */
+    long getHedgeWins()
+    {
+        return _hedgeWins.sum();
+    }
+
+    long getFailovers()
+    {
+        return _failovers.sum();
+    }
+
+    private boolean takeCredit()
+    {
+        int credits;
+
+        do
+        {
+            credits = _credits.get();
+
+            if (credits < 100)
+            {
+                return false;
+            }
+        }
+        while (!_credits.compareAndSet(credits, credits - 100));
+
+        return true;
+    }
+
+    private Endpoint selectPrimary()
+    {
+        long best = Long.MAX_VALUE;
+
+        for (Endpoint endpoint : _endpoints)
+        {
+            best = Math.min(best, endpoint._score.get());
+        }
+
+        for (Endpoint endpoint : _endpoints)
+        {
+            if (endpoint._score.get() <= best * PREFERENCE)
+            {
+                return endpoint;
+            }
+        }
+
+        return _endpoints[0];
+    }
+
+    private Endpoint selectAlternate(Endpoint primary)
+    {
+        @Nullable Endpoint alternate = null;
+
+        for (Endpoint endpoint : _endpoints)
+        {
+            if (endpoint != primary && (alternate == null || endpoint._score.get() < alternate._score.get()))
+            {
+                alternate = endpoint;
+            }
+        }
+
+        return alternate;
+    }
+
+    /**
+     * @param decided set when another request decided the outcome, after which this request no longer updates the
+     *                score of its host
+     */
+    private Callable<UpstreamResponse> attempt(Endpoint endpoint,
+                                               Function<String, UpstreamCall<UpstreamResponse>> request,
+                                               AtomicBoolean decided)
+    {
+        UpstreamCall<UpstreamResponse> call = request.apply(endpoint._host);
+
+        return () ->
+        {
+            long start = System.nanoTime();
+            UpstreamResponse response;
+
+            try
+            {
+                response = call.call();
+            }
+            catch (IOException | RuntimeException e)
+            {
+                if (!decided.get())
+                {
+                    endpoint.update(System.nanoTime() - start + FAILURE_PENALTY_NANOS);
+                }
+
+                throw e;
+            }
+
+            long latency = System.nanoTime() - start;
+
+            if (decided.get())
+            {
+                // The request completed after it lost, and its response is not used
+                return response;
+            }
+
+            _latencies.record(latency);
+            endpoint.update(response.getStatusCode() >= 500 || response.getStatusCode() == 429
+                    ? latency + FAILURE_PENALTY_NANOS
+                    : latency);
+
+            return response;
+        };
+    }
+
+    /**
+     * @return true if the given failure happened before the request was sent, so that it cannot have redeemed the code
+     */
+    private static boolean wasNotSent(Throwable failure)
+    {
+        for (@Nullable Throwable cause = failure; cause != null; cause = cause.getCause())
+        {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException ||
+                    cause instanceof NoRouteToHostException)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static UpstreamResponse getDone(Future<UpstreamResponse> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            throw UpstreamCallExecutor.unwrap(e);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while reading the token response");
+        }
+    }
+
+    private static final class Endpoint
+    {
+        private final String _host;
+
+        // The moving average of latencies in nanoseconds, or 0 if no request has been sent to the host yet
+        private final AtomicLong _score = new AtomicLong();
+
+        private Endpoint(String host)
+        {
+            _host = host;
+        }
+
+        void update(long latency)
+        {
+            long sample = Math.max(1, latency);
+
+            _score.updateAndGet(score -> score == 0 ? sample : score + (sample - score) / SCORE_WEIGHT);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking requests to Microsoft with a timeout.
+ *
+ * <p>The request handler API is synchronous, so the request thread waits for the outcome either way. Running the
+ * request on another thread lets it stop waiting when the timeout expires, instead of for as long as the upstream
+ * takes, and the request is then cancelled by interrupting the thread it runs on. Requests run on virtual threads
+ * when the JVM supports them (Java 21 and later) and that is enabled, so that the requests in flight do not each hold
+ * a platform thread in addition to the request thread; otherwise they run on a bounded pool of daemon platform
+ * threads. When all threads of the pool are busy, requests wait in line for one, and the time that they wait counts
+ * against their timeout, so that a burst of slow requests cannot make the pool grow without bounds.</p>
+ *
+ * <p>Background requests, which {@link #submit(UpstreamCall)} runs, may themselves send requests with a timeout and
+ * wait for them. They run on a pool of their own, so that they never hold the threads that the requests they wait for
+ * need, which would leave those requests in line until their timeouts expired once all threads were taken.</p>
+ *
+ * <p>{@link #DIRECT} runs requests on the calling thread and ignores timeouts. It is used when no deadline is
+ * configured, token requests are not hedged and no attributes or photos are fetched from Graph, so that callbacks
+ * behave as they did before.</p>
+ */
+final class UpstreamCallExecutor implements AutoCloseable
+{
+    private static final Logger _logger = LoggerFactory.getLogger(UpstreamCallExecutor.class);
+    private static final long IDLE_THREAD_SECONDS = 60;
+
+    static final UpstreamCallExecutor DIRECT = new UpstreamCallExecutor(null, null);
+
+    @Nullable
+    private final ExecutorService _executor;
+
+    @Nullable
+    private final ExecutorService _backgroundExecutor;
+
+    private UpstreamCallExecutor(@Nullable ExecutorService executor, @Nullable ExecutorService backgroundExecutor)
+    {
+        _executor = executor;
+        _backgroundExecutor = backgroundExecutor;
+    }
+
+    /**
+     * @param preferVirtualThreads whether to run requests on virtual threads if the JVM supports them
+     * @param threadLimit          the most platform threads to run requests on, and the most to run background
+     *                             requests on, which are stopped again after a minute without requests
+     * @param threadNamePrefix     the prefix of the names of platform threads
+     */
+    static UpstreamCallExecutor create(boolean preferVirtualThreads, int threadLimit, String threadNamePrefix)
+    {
+        @Nullable ExecutorService executor = preferVirtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+
+        if (executor != null)
+        {
+            // Virtual threads are not pooled, so background requests cannot take them from other requests
+            return new UpstreamCallExecutor(executor, executor);
+        }
+
+        return new UpstreamCallExecutor(newPool(threadLimit, threadNamePrefix),
+                newPool(threadLimit, threadNamePrefix + "background-"));
+    }
+
+    private static ExecutorService newPool(int threadLimit, String threadNamePrefix)
+    {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threadLimit, threadLimit, IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable ->
+        {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadNumber.incrementAndGet());
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        pool.allowCoreThreadTimeOut(true);
+
+        return pool;
+    }
+
+    /**
+     * Run the given request and wait at most the given time for it to complete.
+     *
+     * @param timeoutNanos the time to wait; if it is not positive, the request is not started at all
+     * @throws TimeoutException if the request did not complete in time, in which case it has been cancelled
+     * @throws IOException      if the request failed
+     */
+    <T> T call(UpstreamCall<T> call, long timeoutNanos) throws IOException, TimeoutException
+    {
+        if (_executor == null)
+        {
+            return call.call();
+        }
+
+        if (timeoutNanos <= 0)
+        {
+            throw new TimeoutException("No time left for the request");
+        }
+
+        Future<T> future = _executor.submit(call::call);
+
+        try
+        {
+            return future.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(true);
+
+            throw e;
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException("Interrupted while waiting for the request");
+        }
+        catch (ExecutionException e)
+        {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Run the given request in the background, without a timeout of its own, so that callers can stop waiting for it
+     * without cancelling it. The request may send requests of its own with {@link #call(UpstreamCall, long)}.
+     *
+     * @throws IllegalStateException if this is {@link #DIRECT}, which cannot run requests in the background
+     */
+    <T> CompletableFuture<T> submit(UpstreamCall<T> call)
+    {
+        if (_backgroundExecutor == null)
+        {
+            throw new IllegalStateException("Requests run on the calling thread");
+        }
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        try
+        {
+            _backgroundExecutor.execute(() ->
+            {
+                try
+                {
+                    future.complete(call.call());
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    /**
+     * @return the cause of the given exception if it is an {@link IOException}, which the caller throws
+     * @throws RuntimeException the cause of the given exception, if it is unchecked
+     */
+    static IOException unwrap(ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+
+        if (cause instanceof IOException)
+        {
+            return (IOException) cause;
+        }
+
+        if (cause instanceof RuntimeException)
+        {
+            throw (RuntimeException) cause;
+        }
+
+        if (cause instanceof Error)
+        {
+            throw (Error) cause;
+        }
+
+        return new IOException(cause);
+    }
+
+    /**
+     * @return a service that runs requests on the threads of this executor and hands out their futures in the order
+     * they complete
+     * @throws IllegalStateException if this is {@link #DIRECT}, which cannot run requests concurrently
+     */
+    <T> CompletionService<T> newCompletionService()
+    {
+        if (_executor == null)
+        {
+            throw new IllegalStateException("Requests run on the calling thread");
+        }
+
+        return new ExecutorCompletionService<>(_executor);
+    }
+
+    @Override
+    public void close()
+    {
+        if (_executor != null)
+        {
+            _executor.shutdownNow();
+        }
+
+        if (_backgroundExecutor != null && _backgroundExecutor != _executor)
+        {
+            _backgroundExecutor.shutdownNow();
+        }
+    }
+
+    @Nullable
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try
+        {
+            // Looked up reflectively, since the plug-in is compiled for Java 17
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            _logger.debug("Virtual threads are not available, running requests on platform threads");
+
+            return null;
+        }
+    }
+
+    interface UpstreamCall<T>
+    {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import se.curity.identityserver.sdk.service.HttpClient;
+import se.curity.identityserver.sdk.service.WebServiceClient;
+import se.curity.identityserver.sdk.service.WebServiceClientFactory;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients used to communicate with the Microsoft identity platform and Microsoft Graph, created once per
+ * configuration and host.
+ *
+ * <p>A {@link WebServiceClient} is immutable; {@code withPath} and the other {@code with} methods return new
+ * instances. The clients can therefore be shared by all concurrent requests, which lets them reuse the pooled
+ * connections of the underlying HTTP client instead of each login setting up its own. The size of the connection pool
+ * and how long idle connections are kept are settings of the HTTP client facility that is configured for the
+ * authenticator.</p>
+ */
+final class UpstreamClients
+{
+    private final WindowsLiveAuthenticatorPluginConfig _config;
+    private final WebServiceClientFactory _webServiceClientFactory;
+    private final Map<String, WebServiceClient> _clientsByHost = new ConcurrentHashMap<>();
+    private final WebServiceClient _loginClient;
+    private final WebServiceClient _graphClient;
+
+    UpstreamClients(WindowsLiveAuthenticatorPluginConfig config)
+    {
+        _config = config;
+        _webServiceClientFactory = config.getWebServiceClientFactory();
+        _loginClient = getClient(config.getLoginHost());
+        _graphClient = getClient(config.getGraphHost());
+    }
+
+    WebServiceClient getLoginClient()
+    {
+        return _loginClient;
+    }
+
+    WebServiceClient getGraphClient()
+    {
+        return _graphClient;
+    }
+
+    /**
+     * @param host the host, and optionally port, to send requests to
+     * @return the client for the given host, which is created the first time it is asked for
+     */
+    WebServiceClient getClient(String host)
+    {
+        return _clientsByHost.computeIfAbsent(host, this::create);
+    }
+
+    private WebServiceClient create(String host)
+    {
+        Optional<HttpClient> httpClient = _config.getHttpClient();
+
+        if (httpClient.isPresent())
+        {
+            return _webServiceClientFactory.create(httpClient.get()).withHost(host);
+        }
+        else
+        {
+            return _webServiceClientFactory.create(URI.create(
+                    _config.getUpstreamScheme().name().toLowerCase() + "://" + host));
+        }
+    }
+}
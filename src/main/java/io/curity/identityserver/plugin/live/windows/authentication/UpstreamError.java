@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * An error response from Microsoft, classified by its OAuth error, or by its status if it has none.
+ *
+ * <p>At most a limited number of bytes of the body are read, and the rest is left unread, so that a large error page,
+ * like one of a proxy between the server and Microsoft, costs no more than a small one. If the body is JSON and was
+ * read in full, the error is taken from it, both in the form of the token endpoint,
+ * {@code {"error": "invalid_grant", "error_description": "..."}}, and in the form of Microsoft Graph,
+ * {@code {"error": {"code": "...", "message": "..."}}}. Otherwise, what was read of the body is kept to be logged.</p>
+ */
+final class UpstreamError
+{
+    private static final JsonFieldExtractor ERROR_FIELDS = JsonFieldExtractor.of(List.of("error",
+            "error_description"));
+
+    // The error may be told to the user, so a value that does not look like an error code is not taken as one
+    private static final Pattern ERROR_CODE = Pattern.compile("[A-Za-z0-9_.-]{1,64}");
+
+    private final int _statusCode;
+    private final Kind _kind;
+
+    @Nullable
+    private final String _error;
+
+    @Nullable
+    private final String _description;
+
+    @Nullable
+    private final String _body;
+
+    private final boolean _truncated;
+
+    private UpstreamError(int statusCode, @Nullable String error, @Nullable String description,
+                          @Nullable String body, boolean truncated)
+    {
+        _statusCode = statusCode;
+        _kind = classify(statusCode, error);
+        _error = error;
+        _description = description;
+        _body = body;
+        _truncated = truncated;
+    }
+
+    /**
+     * Read the error from a response that is not successful. An error body that cannot be read is left out, since the
+     * status is still known.
+     *
+     * @param maximumBytes the most bytes of the body to read, or 0 to not read it
+     */
+    static UpstreamError read(HttpResponse response, int maximumBytes)
+    {
+        int statusCode = response.statusCode();
+        byte[] bytes;
+
+        // Closing the body before its end aborts the response, instead of receiving the rest of it
+        try (InputStream body = response.body(HttpResponse.asInputStream()))
+        {
+            bytes = maximumBytes == 0 ? new byte[0] : body.readNBytes(maximumBytes + 1);
+        }
+        catch (IOException e)
+        {
+            bytes = new byte[0];
+        }
+
+        if (bytes.length == 0)
+        {
+            return new UpstreamError(statusCode, null, null, null, false);
+        }
+
+        boolean truncated = bytes.length > maximumBytes;
+        int length = truncated ? maximumBytes : bytes.length;
+
+        if (!truncated && isJson(response))
+        {
+            try
+            {
+                Map<String, Object> fields = ERROR_FIELDS.extract(new ByteArrayInputStream(bytes));
+                Object error = fields.get("error");
+                Object description = fields.get("error_description");
+
+                if (error instanceof Map)
+                {
+                    description = ((Map<?, ?>) error).get("message");
+                    error = ((Map<?, ?>) error).get("code");
+                }
+
+                if (error instanceof String && ERROR_CODE.matcher((String) error).matches())
+                {
+                    return new UpstreamError(statusCode, (String) error,
+                            description instanceof String ? (String) description : null, null, false);
+                }
+            }
+            catch (IOException e)
+            {
+                // Not an object, so the body is logged as it is
+            }
+        }
+
+        return new UpstreamError(statusCode, null, null,
+                new String(bytes, 0, length, StandardCharsets.UTF_8), truncated);
+    }
+
+    private static boolean isJson(HttpResponse response)
+    {
+        return response.headers().firstValue("Content-Type")
+                .map(contentType -> contentType.toLowerCase(Locale.ROOT).contains("json"))
+                .orElse(false);
+    }
+
+    private static Kind classify(int statusCode, @Nullable String error)
+    {
+        if (error != null)
+        {
+            switch (error)
+            {
+                case "invalid_grant":
+                    return Kind.INVALID_GRANT;
+                case "invalid_client":
+                case "unauthorized_client":
+                case "unsupported_grant_type":
+                case "invalid_scope":
+                    return Kind.CLIENT_REJECTED;
+                case "TooManyRequests":
+                case "activityLimitReached":
+                    return Kind.THROTTLED;
+                case "server_error":
+                case "temporarily_unavailable":
+                case "serviceNotAvailable":
+                    return Kind.UNAVAILABLE;
+                default:
+                    break;
+            }
+        }
+
+        if (UpstreamResponse.isThrottled(statusCode))
+        {
+            return statusCode == 429 ? Kind.THROTTLED : Kind.UNAVAILABLE;
+        }
+
+        return statusCode >= 500 ? Kind.UNAVAILABLE : Kind.OTHER;
+    }
+
+    Kind getKind()
+    {
+        return _kind;
+    }
+
+    /**
+     * @return the OAuth error, or the code of a Microsoft Graph error, or null if the body did not have one
+     */
+    @Nullable
+    String getError()
+    {
+        return _error;
+    }
+
+    /**
+     * @return the status, and the error and its description, or what was read of the body if it had no error
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("status ").append(_statusCode);
+
+        if (_error != null)
+        {
+            builder.append(", error ").append(_error);
+
+            if (_description != null)
+            {
+                builder.append(": ").append(_description);
+            }
+        }
+        else if (_body != null)
+        {
+            builder.append(", body ").append(_body);
+
+            if (_truncated)
+            {
+                builder.append(" (truncated)");
+            }
+        }
+
+        return builder.toString();
+    }
+
+    enum Kind
+    {
+        /**
+         * The code was rejected, because it expired, was already redeemed or was issued for another redirect URI
+         */
+        INVALID_GRANT,
+
+        /**
+         * The client, its credentials or what it asked for were rejected, which only the configuration can fix
+         */
+        CLIENT_REJECTED,
+
+        /**
+         * Microsoft is throttling the requests of the client
+         */
+        THROTTLED,
+
+        /**
+         * Microsoft, or a server in between, failed or is overloaded
+         */
+        UNAVAILABLE,
+
+        OTHER
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.http.HttpResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The outcome of a request to Microsoft: the extracted fields of a successful response, or its content when it is not
+ * JSON, or the error of an error response, the ETag of a successful response, and how long to wait before retrying a
+ * throttled request.
+ */
+final class UpstreamResponse
+{
+    private final int _statusCode;
+    private final Map<String, Object> _data;
+
+    @Nullable
+    private final UpstreamError _error;
+
+    private final long _retryAfterNanos;
+
+    @Nullable
+    private final String _etag;
+
+    @Nullable
+    private final byte[] _content;
+
+    @Nullable
+    private final String _contentType;
+
+    private UpstreamResponse(int statusCode, Map<String, Object> data, @Nullable UpstreamError error,
+                             long retryAfterNanos, @Nullable String etag, @Nullable byte[] content,
+                             @Nullable String contentType)
+    {
+        _statusCode = statusCode;
+        _data = data;
+        _error = error;
+        _retryAfterNanos = retryAfterNanos;
+        _etag = etag;
+        _content = content;
+        _contentType = contentType;
+    }
+
+    /**
+     * @param errorBodyLimit the most bytes of the body of an error response to read
+     */
+    static UpstreamResponse read(HttpResponse response, JsonFieldExtractor extractor, int errorBodyLimit)
+            throws IOException
+    {
+        int statusCode = response.statusCode();
+
+        if (statusCode != 200)
+        {
+            return readError(response, errorBodyLimit);
+        }
+
+        try (InputStream body = response.body(HttpResponse.asInputStream()))
+        {
+            return new UpstreamResponse(statusCode, extractor.extract(body), null, 0,
+                    response.headers().firstValue("ETag").orElse(null), null, null);
+        }
+    }
+
+    /**
+     * Read a response whose content is not JSON, like a photo.
+     *
+     * @param maximumBytes   the largest content to read
+     * @param errorBodyLimit the most bytes of the body of an error response to read
+     * @throws IOException if the content is larger than the maximum
+     */
+    static UpstreamResponse readContent(HttpResponse response, int maximumBytes, int errorBodyLimit)
+            throws IOException
+    {
+        int statusCode = response.statusCode();
+
+        if (statusCode != 200)
+        {
+            return readError(response, errorBodyLimit);
+        }
+
+        try (InputStream body = response.body(HttpResponse.asInputStream()))
+        {
+            byte[] content = body.readNBytes(maximumBytes + 1);
+
+            if (content.length > maximumBytes)
+            {
+                throw new IOException("The response is larger than " + maximumBytes + " bytes");
+            }
+
+            return new UpstreamResponse(statusCode, Collections.emptyMap(), null, 0,
+                    response.headers().firstValue("ETag").orElse(null), content,
+                    response.headers().firstValue("Content-Type").orElse(null));
+        }
+    }
+
+    private static UpstreamResponse readError(HttpResponse response, int errorBodyLimit)
+    {
+        int statusCode = response.statusCode();
+        long retryAfterNanos = isThrottled(statusCode)
+                ? parseRetryAfter(response.headers().firstValue("Retry-After"), Instant.now())
+                : 0;
+
+        return new UpstreamResponse(statusCode, Collections.emptyMap(), UpstreamError.read(response, errorBodyLimit),
+                retryAfterNanos, null, null, null);
+    }
+
+    /**
+     * @return true if the given status code means that the server is throttling requests or is overloaded, which
+     * Microsoft signals with 429 and 503
+     */
+    static boolean isThrottled(int statusCode)
+    {
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    /**
+     * @param retryAfter the value of a {@code Retry-After} header, which is a number of seconds or an HTTP date
+     * @return the time to wait in nanoseconds, or 0 if there is no valid header
+     */
+    static long parseRetryAfter(Optional<String> retryAfter, Instant now)
+    {
+        if (retryAfter.isEmpty())
+        {
+            return 0;
+        }
+
+        String value = retryAfter.get().trim();
+
+        try
+        {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+        }
+        catch (NumberFormatException e)
+        {
+            // Not a number of seconds, so it may be a date
+        }
+
+        try
+        {
+            Instant until = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+
+            return Math.max(0, Duration.between(now, until).toNanos());
+        }
+        catch (DateTimeParseException | ArithmeticException e)
+        {
+            return 0;
+        }
+    }
+
+    int getStatusCode()
+    {
+        return _statusCode;
+    }
+
+    Map<String, Object> getData()
+    {
+        return _data;
+    }
+
+    /**
+     * @return the error of a response that was not successful, or null if it was
+     */
+    @Nullable
+    UpstreamError getError()
+    {
+        return _error;
+    }
+
+    /**
+     * @return the time in nanoseconds that a throttled response asked to wait before retrying, or 0 if it did not
+     */
+    long getRetryAfterNanos()
+    {
+        return _retryAfterNanos;
+    }
+
+    /**
+     * @return the ETag header of a successful response, or null if it had none
+     */
+    @Nullable
+    String getEtag()
+    {
+        return _etag;
+    }
+
+    /**
+     * @return the content of a successful response that was not read as JSON, or null if it was
+     */
+    @Nullable
+    byte[] getContent()
+    {
+        return _content;
+    }
+
+    /**
+     * @return the Content-Type header of a successful response that was not read as JSON, or null if it had none
+     */
+    @Nullable
+    String getContentType()
+    {
+        return _contentType;
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.ClaimsSource.ID_TOKEN;
+
+/**
+ * Holds everything that is derived from a {@link WindowsLiveAuthenticatorPluginConfig} and that can be shared by all
+ * requests. The server creates a new instance whenever the configuration changes and closes the old one.
+ */
+public final class WindowsLiveAuthenticatorManagedObject extends ManagedObject<WindowsLiveAuthenticatorPluginConfig>
+{
+    private static final long STATE_GENERATOR_RESEED_INTERVAL_MINUTES = 10;
+    private static final long HEDGING_DELAY_UPDATE_INTERVAL_SECONDS = 10;
+    private static final String BUILT_IN_METRICS_PROVIDER = "histogram";
+
+    private final AuthorizationRequestTemplate _authorizationRequestTemplate;
+    private final TokenRequestEncoder _tokenRequestEncoder;
+    private final UpstreamClients _upstreamClients;
+    private final DiscoveryCache _discoveryCache;
+    private final ScheduledExecutorService _scheduler;
+    private final StateGenerator _stateGenerator;
+    private final CallbackMetrics _callbackMetrics;
+    private final UpstreamCallExecutor _upstreamCallExecutor;
+    private final JsonFieldExtractor _tokenResponseExtractor;
+    private final AttributeProjection _attributeProjection;
+    private final GraphRequestLimiter _graphRequestLimiter;
+
+    @Nullable
+    private final IdTokenValidator _idTokenValidator;
+
+    @Nullable
+    private final ClientAssertionSigner _clientAssertionSigner;
+
+    @Nullable
+    private final ConnectionWarmer _connectionWarmer;
+
+    @Nullable
+    private final StateCodec _stateCodec;
+
+    @Nullable
+    private final ReplayFilter _replayFilter;
+
+    private final CallbackAdmission _callbackAdmission;
+
+    @Nullable
+    private final TokenRequestHedger _tokenRequestHedger;
+
+    @Nullable
+    private final ProfileCache _profileCache;
+
+    private final Set<GraphLookup> _graphLookups;
+
+    @Nullable
+    private final GroupCache _groupCache;
+
+    @Nullable
+    private final PhotoCache _photoCache;
+
+    @Nullable
+    private final LoginEventRing _loginEvents;
+
+    public WindowsLiveAuthenticatorManagedObject(WindowsLiveAuthenticatorPluginConfig configuration)
+    {
+        super(configuration);
+
+        _upstreamClients = new UpstreamClients(configuration);
+        _discoveryCache = DiscoveryCache.of(configuration, _upstreamClients);
+        _authorizationRequestTemplate = AuthorizationRequestTemplate.compile(configuration, _discoveryCache);
+
+        // The audience is the token endpoint of the tenant, which does not depend on the metadata being fetched
+        _clientAssertionSigner = ClientAssertionSigner.of(configuration, _discoveryCache.get().getTokenEndpoint());
+        _tokenRequestEncoder = TokenRequestEncoder.compile(configuration, _clientAssertionSigner);
+        _stateGenerator = new StateGenerator(configuration.getStateEntropy());
+        _stateCodec = configuration.getStateMode() == StateMode.SESSION
+                ? null
+                : createStateCodec(configuration, _stateGenerator);
+        _replayFilter = ReplayFilter.of(configuration);
+        _callbackAdmission = CallbackAdmission.of(configuration);
+
+        List<String> loginHosts = Stream.concat(Stream.of(configuration.getLoginHost()),
+                configuration.getAlternateLoginHosts().stream().map(String::trim))
+                .distinct()
+                .collect(Collectors.toList());
+
+        _profileCache = ProfileCache.of(configuration);
+        _graphLookups = GraphLookup.of(configuration);
+        _groupCache = GroupCache.of(configuration);
+        _photoCache = PhotoCache.of(configuration);
+        _attributeProjection = AttributeProjection.of(configuration);
+        _tokenResponseExtractor = _attributeProjection.getTokenResponseExtractor(
+                configuration.getClaimsSource() == ID_TOKEN
+                        ? List.of("access_token", "id_token")
+                        : List.of("access_token"));
+
+        // Everything above can reject the configuration, and is done before any thread is started, so that a
+        // rejected configuration does not leave threads behind. The ring of login events is the last thing that can
+        // reject it, and starts its thread only once its sink is open.
+        _loginEvents = LoginEventRing.of(configuration);
+        _upstreamCallExecutor = configuration.getCallbackDeadline() > 0 || loginHosts.size() > 1 ||
+                _profileCache != null || !_graphLookups.isEmpty() || _groupCache != null || _photoCache != null
+                ? UpstreamCallExecutor.create(configuration.isUseVirtualThreads(),
+                        configuration.getUpstreamThreadLimit(), "windows-live-" + configuration.id() + "-upstream-")
+                : UpstreamCallExecutor.DIRECT;
+        _graphRequestLimiter = new GraphRequestLimiter(configuration.getGraphConcurrencyLimit());
+        _scheduler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "windows-live-" + configuration.id() + "-background");
+
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        // Stop the threads that were started if anything below fails
+        try
+        {
+            _scheduler.scheduleWithFixedDelay(_stateGenerator::reseed, STATE_GENERATOR_RESEED_INTERVAL_MINUTES,
+                    STATE_GENERATOR_RESEED_INTERVAL_MINUTES, TimeUnit.MINUTES);
+
+            // Runs before anything else on the scheduler, so that the first fetch of the signing keys uses the
+            // discovered endpoint
+            _discoveryCache.start(_scheduler);
+
+            if (_clientAssertionSigner != null)
+            {
+                // Signs the first assertion right away, so that the first token request does not have to
+                _scheduler.scheduleWithFixedDelay(_clientAssertionSigner::refresh, 0,
+                        _clientAssertionSigner.getRefreshIntervalSeconds(), TimeUnit.SECONDS);
+            }
+
+            if (loginHosts.size() > 1)
+            {
+                _tokenRequestHedger = new TokenRequestHedger(loginHosts,
+                        configuration.getTokenRequestHedgingPercentile(), configuration.getTokenRequestHedgingBudget(),
+                        _upstreamCallExecutor);
+                _scheduler.scheduleWithFixedDelay(_tokenRequestHedger::updateHedgingDelay,
+                        HEDGING_DELAY_UPDATE_INTERVAL_SECONDS, HEDGING_DELAY_UPDATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            }
+            else
+            {
+                _tokenRequestHedger = null;
+            }
+
+            _callbackMetrics = configuration.isMetricsEnabled()
+                    ? createCallbackMetrics(configuration)
+                    : CallbackMetrics.NONE;
+
+            if (configuration.isMetricsEnabled() && configuration.getMetricsLogInterval() > 0)
+            {
+                _scheduler.scheduleAtFixedRate(this::logSummary, configuration.getMetricsLogInterval(),
+                        configuration.getMetricsLogInterval(), TimeUnit.SECONDS);
+            }
+
+            if (configuration.getWarmUpConnections() > 0)
+            {
+                _connectionWarmer = new ConnectionWarmer(_upstreamClients, configuration.getLoginHost(),
+                        _discoveryCache.getPath(), configuration.getGraphHost(), configuration.getWarmUpConnections(),
+                        "windows-live-" + configuration.id() + "-warm-up");
+                _connectionWarmer.start(_scheduler, configuration.getWarmUpInterval());
+            }
+            else
+            {
+                _connectionWarmer = null;
+            }
+
+            if (configuration.getClaimsSource() == ID_TOKEN)
+            {
+                JwksKeyCache keys = new JwksKeyCache(_upstreamClients, _discoveryCache, configuration.getJson(),
+                        _scheduler, Duration.ofSeconds(configuration.getSigningKeysRefreshInterval()),
+                        Duration.ofSeconds(configuration.getSigningKeysMinimumRefreshInterval()));
+
+                _idTokenValidator = new IdTokenValidator(keys, _discoveryCache, configuration.getJson(),
+                        configuration.getClientId(), Clock.systemUTC());
+            }
+            else
+            {
+                _idTokenValidator = null;
+            }
+        }
+        catch (RuntimeException | Error e)
+        {
+            close();
+
+            throw e;
+        }
+    }
+
+    private void logSummary()
+    {
+        _callbackMetrics.logSummary();
+        _callbackAdmission.logSummary();
+
+        if (_loginEvents != null)
+        {
+            _loginEvents.logSummary();
+        }
+    }
+
+    /**
+     * @return the built-in metrics, or those of the provider that the Metrics Provider setting names
+     */
+    private static CallbackMetrics createCallbackMetrics(WindowsLiveAuthenticatorPluginConfig configuration)
+    {
+        String name = configuration.getMetricsProvider().trim();
+
+        if (name.equals(BUILT_IN_METRICS_PROVIDER))
+        {
+            return new HistogramCallbackMetrics();
+        }
+
+        for (CallbackMetricsProvider provider : ServiceLoader.load(CallbackMetricsProvider.class,
+                WindowsLiveAuthenticatorManagedObject.class.getClassLoader()))
+        {
+            if (provider.getName().equals(name))
+            {
+                return provider.create(configuration.id());
+            }
+        }
+
+        throw configuration.getExceptionFactory().configurationException("No Metrics Provider named " + name +
+                " was found");
+    }
+
+    private static StateCodec createStateCodec(WindowsLiveAuthenticatorPluginConfig configuration,
+                                               StateGenerator stateGenerator)
+    {
+        try
+        {
+            List<byte[]> keys = configuration.getStateKeys().stream()
+                    .map(key -> Base64.getDecoder().decode(key.trim()))
+                    .collect(Collectors.toList());
+
+            return new StateCodec(configuration.getStateMode(), keys,
+                    Duration.ofSeconds(configuration.getStateLifetime()), stateGenerator, Clock.systemUTC());
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw configuration.getExceptionFactory().configurationException("Invalid state keys: " +
+                    e.getMessage());
+        }
+    }
+
+    AuthorizationRequestTemplate getAuthorizationRequestTemplate()
+    {
+        return _authorizationRequestTemplate;
+    }
+
+    TokenRequestEncoder getTokenRequestEncoder()
+    {
+        return _tokenRequestEncoder;
+    }
+
+    /**
+     * @return the signer of client assertions, or null if the client authenticates with its secret
+     */
+    @Nullable
+    ClientAssertionSigner getClientAssertionSigner()
+    {
+        return _clientAssertionSigner;
+    }
+
+    UpstreamClients getUpstreamClients()
+    {
+        return _upstreamClients;
+    }
+
+    DiscoveryCache getDiscoveryCache()
+    {
+        return _discoveryCache;
+    }
+
+    /**
+     * @return the validator of ID tokens, or null if the subject is not taken from the ID token
+     */
+    @Nullable
+    IdTokenValidator getIdTokenValidator()
+    {
+        return _idTokenValidator;
+    }
+
+    /**
+     * @return the extractor of the fields of the token response that are used by the callback handler or added as
+     * subject attributes
+     */
+    JsonFieldExtractor getTokenResponseExtractor()
+    {
+        return _tokenResponseExtractor;
+    }
+
+    AttributeProjection getAttributeProjection()
+    {
+        return _attributeProjection;
+    }
+
+    StateGenerator getStateGenerator()
+    {
+        return _stateGenerator;
+    }
+
+    UpstreamCallExecutor getUpstreamCallExecutor()
+    {
+        return _upstreamCallExecutor;
+    }
+
+    GraphRequestLimiter getGraphRequestLimiter()
+    {
+        return _graphRequestLimiter;
+    }
+
+    CallbackMetrics getCallbackMetrics()
+    {
+        return _callbackMetrics;
+    }
+
+    /**
+     * @return the codec of self-contained state values, or null if state is kept in the session
+     */
+    @Nullable
+    StateCodec getStateCodec()
+    {
+        return _stateCodec;
+    }
+
+    /**
+     * @return the filter of replayed callbacks, or null if callbacks are not checked for replays
+     */
+    @Nullable
+    ReplayFilter getReplayFilter()
+    {
+        return _replayFilter;
+    }
+
+    CallbackAdmission getCallbackAdmission()
+    {
+        return _callbackAdmission;
+    }
+
+    /**
+     * @return the hedger of token requests, or null if there are no alternate login hosts
+     */
+    @Nullable
+    TokenRequestHedger getTokenRequestHedger()
+    {
+        return _tokenRequestHedger;
+    }
+
+    /**
+     * @return the cache of profiles, or null if no profile attributes are fetched
+     */
+    @Nullable
+    ProfileCache getProfileCache()
+    {
+        return _profileCache;
+    }
+
+    /**
+     * @return the lookups in Microsoft Graph besides the profile, which may be none
+     */
+    Set<GraphLookup> getGraphLookups()
+    {
+        return _graphLookups;
+    }
+
+    /**
+     * @return the cache of the groups of users, or null if groups are not added as an attribute
+     */
+    @Nullable
+    GroupCache getGroupCache()
+    {
+        return _groupCache;
+    }
+
+    /**
+     * @return the cache of photos, or null if photos are not fetched
+     */
+    @Nullable
+    PhotoCache getPhotoCache()
+    {
+        return _photoCache;
+    }
+
+    /**
+     * @return the connection warmer, or null if connections are not warmed up
+     */
+    @Nullable
+    ConnectionWarmer getConnectionWarmer()
+    {
+        return _connectionWarmer;
+    }
+
+    /**
+     * @return the ring that login events are written from, or null if no events are written
+     */
+    @Nullable
+    LoginEventRing getLoginEvents()
+    {
+        return _loginEvents;
+    }
+
+    @Override
+    public void close()
+    {
+        _scheduler.shutdownNow();
+        _upstreamCallExecutor.close();
+
+        if (_connectionWarmer != null)
+        {
+            _connectionWarmer.close();
+        }
+
+        if (_loginEvents != null)
+        {
+            _loginEvents.close();
+        }
+
+        // Not created yet if the constructor failed before it
+        if (_callbackMetrics != null)
+        {
+            _callbackMetrics.close();
+        }
+    }
+}
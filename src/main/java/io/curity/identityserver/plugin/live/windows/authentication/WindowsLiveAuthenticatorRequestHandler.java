@@ -19,40 +19,42 @@ package io.curity.identityserver.plugin.live.windows.authentication;
 import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
 import se.curity.identityserver.sdk.attribute.Attribute;
 import se.curity.identityserver.sdk.authentication.AuthenticationResult;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
 import se.curity.identityserver.sdk.http.RedirectStatusCode;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
+import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 
-import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
-import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
-
-import static io.curity.identityserver.plugin.live.windows.authentication.RedirectUriUtils.createRedirectUri;
 
 public class WindowsLiveAuthenticatorRequestHandler implements AuthenticatorRequestHandler<Request>
 {
     private static final Logger _logger = LoggerFactory.getLogger(WindowsLiveAuthenticatorRequestHandler.class);
-    private static final String AUTHORIZATION_ENDPOINT = "https://login.microsoftonline.com/common/oauth2/v2.0/authorize";
 
     private final WindowsLiveAuthenticatorPluginConfig _config;
     private final AuthenticatorInformationProvider _authenticatorInformationProvider;
     private final ExceptionFactory _exceptionFactory;
+    private final AuthorizationRequestTemplate _authorizationRequestTemplate;
+    private final StateGenerator _stateGenerator;
+
+    @Nullable
+    private final StateCodec _stateCodec;
 
-    public WindowsLiveAuthenticatorRequestHandler(WindowsLiveAuthenticatorPluginConfig config)
+    public WindowsLiveAuthenticatorRequestHandler(WindowsLiveAuthenticatorPluginConfig config,
+                                                  WindowsLiveAuthenticatorManagedObject managedObject)
     {
         _config = config;
         _exceptionFactory = config.getExceptionFactory();
         _authenticatorInformationProvider = config.getAuthenticatorInformationProvider();
+        _authorizationRequestTemplate = managedObject.getAuthorizationRequestTemplate();
+        _stateCodec = managedObject.getStateCodec();
+        _stateGenerator = managedObject.getStateGenerator();
     }
 
     @Override
@@ -60,126 +62,45 @@ public class WindowsLiveAuthenticatorRequestHandler implements AuthenticatorRequ
     {
         _logger.debug("GET request received for authentication");
 
-        String redirectUri = createRedirectUri(_authenticatorInformationProvider, _exceptionFactory);
-        String state = UUID.randomUUID().toString();
-        Map<String, Collection<String>> queryStringArguments = new LinkedHashMap<>(5);
-        Set<String> scopes = new LinkedHashSet<>(7);
-
-        _config.getSessionManager().put(Attribute.of("state", state));
-
-        queryStringArguments.put("client_id", Collections.singleton(_config.getClientId()));
-        queryStringArguments.put("redirect_uri", Collections.singleton(redirectUri));
-        queryStringArguments.put("state", Collections.singleton(state));
-        queryStringArguments.put("response_type", Collections.singleton("code"));
-
-        handleScopes(scopes);
-        queryStringArguments.put("scope", Collections.singleton(String.join(" ", scopes)));
-
-        _logger.debug("Redirecting to {} with query string arguments {}", AUTHORIZATION_ENDPOINT,
-                queryStringArguments);
-
-        throw _exceptionFactory.redirectException(AUTHORIZATION_ENDPOINT,
-                RedirectStatusCode.MOVED_TEMPORARILY, queryStringArguments, false);
-    }
-
-    private void handleScopes(Set<String> scopes)
-    {
-        scopes.add("User.Read");
-        if (_config.isOfflineAccount())
-        {
-            scopes.add("offline_access");
-        }
-
-        if (_config.isSingleSignin())
-        {
-            scopes.add("wl.signin");
-        }
-
-        if (_config.isBirthdayInfo())
-        {
-            scopes.add("wl.birthday");
-        }
-
-        switch (_config.getCalendarsInfo())
-        {
-            case WRITE:
-                scopes.add("wl.calendars_update");
-            case READ:
-                scopes.add("wl.calendars");
-        }
-
-        if (_config.isContactsBirthday())
-        {
-            scopes.add("wl.contacts_birthday");
-        }
-
-        if (_config.isContactsCreate())
-        {
-            scopes.add("wl.contacts_create");
-        }
+        SessionManager sessionManager = _config.getSessionManager();
+        String state;
 
-        if (_config.isCalendarAndEvents())
+        if (_stateCodec != null)
         {
-            scopes.add("wl.contacts_calendars");
+            state = _stateCodec.create(getBindingSecret(sessionManager));
         }
-
-        if (_config.isContactsPhotos())
+        else
         {
-            scopes.add("wl.contacts_photos");
-        }
+            state = _stateGenerator.next();
 
-        if (_config.isContactsOneDrive())
-        {
-            scopes.add("wl.contacts_skydrive");
+            sessionManager.put(Attribute.of("state", state));
         }
 
-        if (_config.isEmailsAccess())
-        {
-            scopes.add("wl.emails");
-        }
+        String authorizationUrl = _authorizationRequestTemplate.createAuthorizationUrl(state,
+                _authenticatorInformationProvider, _exceptionFactory);
 
-        if (_config.isEventsCreate())
-        {
-            scopes.add("wl.events_create");
-        }
-
-        if (_config.isIMAP())
-        {
-            scopes.add("wl.imap");
-        }
+        _logger.debug("Redirecting to {}", authorizationUrl);
 
-        if (_config.isPhoneNumbersAccess())
-        {
-            scopes.add("wl.phone_numbers");
-        }
-
-        if (_config.isPhotosAccess())
-        {
-            scopes.add("wl.photos");
-        }
+        throw _exceptionFactory.redirectException(authorizationUrl,
+                RedirectStatusCode.MOVED_TEMPORARILY, Collections.emptyMap(), false);
+    }
 
-        if (_config.isPostalAddresses())
-        {
-            scopes.add("wl.postal_addresses");
-        }
+    /**
+     * @return the secret that binds state values to the session, which is created on the first login of the session
+     */
+    private String getBindingSecret(SessionManager sessionManager)
+    {
+        @Nullable Attribute attribute = sessionManager.get(StateCodec.BINDING_ATTRIBUTE);
+        @Nullable String bindingSecret = attribute != null ? attribute.getValueOfType(String.class) : null;
 
-        switch (_config.getOneDriveAccess())
+        if (bindingSecret == null)
         {
-            case WRITE:
-                scopes.add("wl.skydrive_update");
-            case READ:
-                scopes.add("wl.skydrive");
-        }
+            bindingSecret = _stateGenerator.next();
 
-        if (_config.isWorkProfileInfo())
-        {
-            scopes.add("wl.work_profile");
+            sessionManager.put(Attribute.of(StateCodec.BINDING_ATTRIBUTE, bindingSecret));
         }
 
-        if (_config.isOneNoteAccess())
-        {
-            scopes.add("office.onenote_create");
-        }
+        return bindingSecret;
     }
 
     @Override
@@ -19,7 +19,10 @@ package io.curity.identityserver.plugin.live.windows.config;
 import se.curity.identityserver.sdk.config.Configuration;
 import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
 import se.curity.identityserver.sdk.config.annotation.DefaultEnum;
+import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
+import se.curity.identityserver.sdk.config.annotation.DefaultString;
 import se.curity.identityserver.sdk.config.annotation.Description;
+import se.curity.identityserver.sdk.config.annotation.RangeConstraint;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.HttpClient;
 import se.curity.identityserver.sdk.service.Json;
@@ -27,6 +30,7 @@ import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.WebServiceClientFactory;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 
+import java.util.List;
 import java.util.Optional;
 
 @SuppressWarnings("InterfaceNeverImplemented")
@@ -35,8 +39,24 @@ public interface WindowsLiveAuthenticatorPluginConfig extends Configuration
     @Description("Client ID")
     String getClientId();
 
-    @Description("Client secret")
-    String getClientSecret();
+    @Description("Client secret, which is not used when a Client Assertion Key is configured")
+    Optional<String> getClientSecret();
+
+    @Description("A PEM encoded PKCS#8 private key, RSA or EC on the P-256 curve, that authenticates the client to " +
+            "the token endpoint with a signed client assertion instead of the client secret. Its certificate must be " +
+            "registered for the application in Microsoft Entra ID.")
+    Optional<String> getClientAssertionKey();
+
+    @Description("The PEM encoded certificate of the Client Assertion Key, whose thumbprint tells Microsoft which " +
+            "certificate to validate the assertions with")
+    Optional<String> getClientAssertionCertificate();
+
+    @Description("The number of seconds that a client assertion is valid. An assertion is signed once and sent with " +
+            "all token requests until two thirds of its lifetime have passed, and is replaced in the background " +
+            "before then.")
+    @DefaultInteger(600)
+    @RangeConstraint(min = 60, max = 3600)
+    int getClientAssertionLifetime();
 
     @Description("Request a scope (wl.offline_access) that gives the ability to read and update a user's info at any " +
             "time. Without this scope, an app can access the user's info only while the user is signed in to Live " +
@@ -136,6 +156,399 @@ public interface WindowsLiveAuthenticatorPluginConfig extends Configuration
     @Description("The HTTP client with any proxy and TLS settings that will be used to connect to windows live")
     Optional<HttpClient> getHttpClient();
 
+    @Description("The tenant whose users can log in: common, organizations, consumers, or the ID or a domain name " +
+            "of a tenant. Its endpoints are taken from its OpenID Connect discovery metadata.")
+    @DefaultString("common")
+    String getTenant();
+
+    @Description("The host (and optional port) of the Microsoft identity platform, where users authenticate and " +
+            "codes are redeemed for tokens. Only change this to test against a local stand-in.")
+    @DefaultString("login.microsoftonline.com")
+    String getLoginHost();
+
+    @Description("The host (and optional port) of Microsoft Graph, which provides user info. Only change this to " +
+            "test against a local stand-in.")
+    @DefaultString("graph.microsoft.com")
+    String getGraphHost();
+
+    enum Scheme
+    {
+        HTTPS, HTTP
+    }
+
+    @Description("The scheme used to reach the login and Graph hosts. When an HTTP client is configured, its scheme " +
+            "is used for back-channel requests instead. Only use HTTP to test against a local stand-in.")
+    @DefaultEnum("HTTPS")
+    Scheme getUpstreamScheme();
+
+    @Description("The number of connections to open to each of the login and Graph hosts when the configuration is " +
+            "loaded, so that the first logins do not have to wait for connections to be set up. 0 disables warm-up.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 64)
+    int getWarmUpConnections();
+
+    @Description("The number of seconds between repeated warm-ups, which keeps connections open when there are no " +
+            "logins. 0 only warms up connections when the configuration is loaded.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 3600)
+    int getWarmUpInterval();
+
+    enum ClaimsSource
+    {
+        USERINFO, ID_TOKEN
+    }
+
+    @Description("Where the subject of the user is taken from. USERINFO asks Microsoft Graph for it, which takes an " +
+            "extra request per login. ID_TOKEN requests an ID token (the openid scope) and validates it locally " +
+            "using the signing keys of the identity platform, without making any request to Microsoft Graph.")
+    @DefaultEnum("USERINFO")
+    ClaimsSource getClaimsSource();
+
+    enum StateMode
+    {
+        SESSION, SIGNED, ENCRYPTED
+    }
+
+    @Description("How the state of authorization requests is kept. SESSION stores it in the session, which takes a " +
+            "write and a read of the session store per login. SIGNED sends it to Microsoft and back as a value that " +
+            "is signed with the first of the State Keys, ENCRYPTED also encrypts that value. These modes bind the " +
+            "value to a random secret that is written to the session once, on its first login, and read per login, " +
+            "and a state value can be used more than once within its lifetime.")
+    @DefaultEnum("SESSION")
+    StateMode getStateMode();
+
+    @Description("Base64 encoded random keys of at least 32 bytes that protect state values in the SIGNED and " +
+            "ENCRYPTED state modes. The first key protects new values and all keys are accepted, so to rotate keys, " +
+            "add the new key first and remove the old one after the State Lifetime has passed.")
+    List<String> getStateKeys();
+
+    @Description("The number of seconds that a state value in the SIGNED and ENCRYPTED state modes is valid, which " +
+            "is how long a user can take to log in at Microsoft")
+    @DefaultInteger(600)
+    @RangeConstraint(min = 60, max = 3600)
+    int getStateLifetime();
+
+    @Description("The number of random bits in the state of an authorization request in the SESSION state mode")
+    @DefaultInteger(128)
+    @RangeConstraint(min = 96, max = 256)
+    int getStateEntropy();
+
+    @Description("The number of state values and codes that are remembered per State Lifetime, but at least 10 " +
+            "minutes, so that callbacks that use one again are rejected before the code is redeemed. When more " +
+            "arrive in that time, the oldest are forgotten sooner. Each takes 32 bytes. 0 disables the check.")
+    @DefaultInteger(100000)
+    @RangeConstraint(min = 0, max = 10000000)
+    int getReplayFilterCapacity();
+
+    @Description("The number of milliseconds that the requests to Microsoft when a user returns from logging in may " +
+            "take in total. Requests that are still running when their share of this time runs out are cancelled, " +
+            "and the login fails. 0 lets requests take as long as the HTTP client allows.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 120000)
+    int getCallbackDeadline();
+
+    @Description("The number of logins that this node may handle at a time after users return from Microsoft. " +
+            "Further logins fail right away instead of waiting, with a 503 response and a Retry-After header. 0, the " +
+            "default, allows any number.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 10000)
+    int getCallbackConcurrencyLimit();
+
+    @Description("The number of logins per second that one client IP address may return from Microsoft with, on " +
+            "average. Further logins fail right away, with a 429 response and a Retry-After header. 0 allows any " +
+            "number. Users behind the same NAT gateway or corporate proxy share one address, and so does all " +
+            "traffic when the server sits behind a reverse proxy or load balancer that does not pass on the client " +
+            "address, so only enable this when client addresses are known to be those of the users.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 10000)
+    int getCallbackClientRate();
+
+    @Description("The number of logins that one client IP address may return from Microsoft with at once, above the " +
+            "Callback Client Rate")
+    @DefaultInteger(50)
+    @RangeConstraint(min = 1, max = 10000)
+    int getCallbackClientBurst();
+
+    @Description("The number of times per minute that the valid state of one authorization request may be returned " +
+            "with. Further attempts fail right away, with a 429 response and a Retry-After header. 0 allows any " +
+            "number.")
+    @DefaultInteger(5)
+    @RangeConstraint(min = 0, max = 1000)
+    int getCallbackSessionLimit();
+
+    @Description("The percentage of the Callback Deadline that the token request may use when a userinfo request " +
+            "follows it. The userinfo request gets the rest.")
+    @DefaultInteger(60)
+    @RangeConstraint(min = 10, max = 90)
+    int getTokenRequestDeadlineShare();
+
+    @Description("The most requests to Microsoft Graph that this node may have in flight at a time. When Graph " +
+            "throttles requests, the limit is halved, and it grows back by about one request per limit of responses " +
+            "that are not throttled.")
+    @DefaultInteger(64)
+    @RangeConstraint(min = 1, max = 1024)
+    int getGraphConcurrencyLimit();
+
+    @Description("The most milliseconds that a login waits for Microsoft Graph when Graph throttles requests, and " +
+            "asks with Retry-After to wait before retrying them, or when the Graph Concurrency Limit is reached. The " +
+            "wait never goes past the Callback Deadline. 0 fails such logins right away.")
+    @DefaultInteger(2000)
+    @RangeConstraint(min = 0, max = 60000)
+    int getGraphThrottlingWait();
+
+    @Description("The most bytes of an error response from Microsoft that are read, to find the OAuth error in it " +
+            "and log it. The rest of the response is not read. 0 reads none, so errors are only told apart by status.")
+    @DefaultInteger(4096)
+    @RangeConstraint(min = 0, max = 65536)
+    int getErrorBodyLimit();
+
+    @Description("Other hosts (and optional ports) of the Microsoft identity platform where codes can be redeemed, " +
+            "e.g. login.microsoft.com. When any are given, token requests go to whichever of these and the Login " +
+            "Host has been fastest recently, and a token request is only sent to another host when the first " +
+            "cannot be reached. With a Token Request Hedging Budget, a token request that is not answered within " +
+            "the Token Request Hedging Percentile of recent latencies is also sent once more to the next fastest " +
+            "host, the first successful response is used and the other request is cancelled. A hedged request " +
+            "redeems the same code twice if both hosts get it, and RFC 6749 section 4.1.2 lets Microsoft deny the " +
+            "second attempt and revoke the tokens issued for the first, which would fail the login or leave it with " +
+            "revoked tokens.")
+    List<String> getAlternateLoginHosts();
+
+    @Description("The percentile of the latencies of recent token requests after which a token request is sent to " +
+            "an Alternate Login Host as well")
+    @DefaultInteger(95)
+    @RangeConstraint(min = 50, max = 99)
+    int getTokenRequestHedgingPercentile();
+
+    @Description("The percentage of token requests that may be sent to an Alternate Login Host as well when they " +
+            "are slow, which limits the extra load when Microsoft is slow. 0, the default, turns hedging off and " +
+            "only sends a request to another host when the first host cannot be reached. Only raise it when logins " +
+            "may fail, or be left with revoked tokens, once in a while when a code is redeemed twice.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 100)
+    int getTokenRequestHedgingBudget();
+
+    @Description("Run requests with a Callback Deadline, hedged token requests and requests for attributes from " +
+            "Microsoft Graph on virtual threads if the JVM supports them, instead of on platform threads")
+    @DefaultBoolean(true)
+    boolean isUseVirtualThreads();
+
+    @Description("The most platform threads that requests to Microsoft run on when virtual threads are not used. " +
+            "When all of them are busy, further requests wait for one, and the wait counts against the Callback " +
+            "Deadline. Photos are downloaded in the background on as many threads again.")
+    @DefaultInteger(256)
+    @RangeConstraint(min = 1, max = 4096)
+    int getUpstreamThreadLimit();
+
+    @Description("Measure how long each phase of the callback and each request to Microsoft takes, and count " +
+            "failures by kind")
+    @DefaultBoolean(false)
+    boolean isMetricsEnabled();
+
+    @Description("The name of the implementation that takes the measurements when metrics are enabled. histogram " +
+            "keeps latency histograms and failure counters and logs them. Other names select the " +
+            "CallbackMetricsProvider with that name, which a jar in the plugin directory registers as a Java service.")
+    @DefaultString("histogram")
+    String getMetricsProvider();
+
+    @Description("The number of seconds between the summaries of the measurements that are logged when metrics are " +
+            "enabled, which include the counts of admitted and shed callbacks and of login events. 0 disables the " +
+            "summary.")
+    @DefaultInteger(60)
+    @RangeConstraint(min = 0, max = 86400)
+    int getMetricsLogInterval();
+
+    enum LoginEventDestination
+    {
+        NONE, LOG, FILE
+    }
+
+    @Description("Where to write an event for the outcome of every login: success with the subject, access " +
+            "denied, state that did not match, a replayed callback, or a failure at Microsoft. LOG writes them as " +
+            "JSON to the LoginEvents logger and FILE appends them as JSON lines to the Login Event File. Events are " +
+            "written in batches by a background thread, so logins do not wait for them.")
+    @DefaultEnum("NONE")
+    LoginEventDestination getLoginEventDestination();
+
+    @Description("The file that login events are appended to when the Login Event Destination is FILE")
+    Optional<String> getLoginEventFile();
+
+    @Description("The number of login events that can wait to be written, rounded up to a power of two")
+    @DefaultInteger(8192)
+    @RangeConstraint(min = 16, max = 1048576)
+    int getLoginEventBufferSize();
+
+    enum LoginEventOverflow
+    {
+        DROP, BLOCK
+    }
+
+    @Description("What a login does when the login event buffer is full: DROP its event, or BLOCK until there is " +
+            "room, which makes logins wait for the events to be written, but for at most 100 milliseconds, after " +
+            "which the event is dropped. Dropped events are counted and logged with the metrics summary and when " +
+            "the authenticator is stopped.")
+    @DefaultEnum("DROP")
+    LoginEventOverflow getLoginEventOverflow();
+
+    @Description("The fields of the token response to add as subject attributes. If none are given, all fields are " +
+            "added. Listing only the fields that are needed avoids reading the others, like the refresh token, into " +
+            "memory.")
+    List<String> getTokenResponseAttributes();
+
+    @Description("The claims of the user to add as subject attributes, e.g. email or name. They are taken from the " +
+            "userinfo response, or from the ID token when the Claims Source is ID_TOKEN.")
+    List<String> getClaimAttributes();
+
+    @Description("Leave the access, refresh and ID tokens out of the attributes of the login, even when they are " +
+            "listed as Token Response Attributes, and do not add the access token as a context attribute. The " +
+            "tokens are a few kilobytes each, and the attributes are kept in the session.")
+    @DefaultBoolean(false)
+    boolean isExcludeTokensFromAttributes();
+
+    @Description("The properties of the user in Microsoft Graph to add as subject attributes, e.g. displayName, mail " +
+            "or jobTitle. They are fetched from /me after the user has logged in, and cached per user. If none are " +
+            "given, the profile is not fetched.")
+    List<String> getProfileAttributes();
+
+    @Description("The most profiles to cache. When the cache is full, the profile that was used least recently is " +
+            "removed. 0 fetches the profile on every login.")
+    @DefaultInteger(10000)
+    @RangeConstraint(min = 0, max = 1000000)
+    int getProfileCacheSize();
+
+    @Description("The number of seconds that a cached profile is used without asking Microsoft Graph. After that, " +
+            "it is revalidated with If-None-Match, which costs a request but no body when the profile is unchanged.")
+    @DefaultInteger(300)
+    @RangeConstraint(min = 0, max = 86400)
+    int getProfileCacheTtl();
+
+    @Description("The number of seconds after the Profile Cache TTL that a cached profile may still be used when " +
+            "Microsoft Graph fails or does not respond within the Enrichment Timeout")
+    @DefaultInteger(3600)
+    @RangeConstraint(min = 0, max = 604800)
+    int getProfileMaximumStaleness();
+
+    @Description("Add the manager of the user in Microsoft Graph as the manager attribute, with their id, " +
+            "displayName, mail and jobTitle")
+    @DefaultBoolean(false)
+    boolean isManagerAttribute();
+
+    @Description("Add the metadata of the photo of the user in Microsoft Graph, its contentType, width and height, " +
+            "as the photo attribute")
+    @DefaultBoolean(false)
+    boolean isPhotoAttribute();
+
+    @Description("Add the SKU part numbers of the licenses of the user in Microsoft Graph, e.g. ENTERPRISEPACK, as " +
+            "the licenses attribute")
+    @DefaultBoolean(false)
+    boolean isLicensesAttribute();
+
+    @Description("Add the IDs of the groups that the user is a member of in Microsoft Graph as the groups " +
+            "attribute. The pages of groups are read one at a time, and cached per user.")
+    @DefaultBoolean(false)
+    boolean isGroupsAttribute();
+
+    enum GroupMembership
+    {
+        TRANSITIVE, DIRECT
+    }
+
+    @Description("Which groups the groups attribute holds. TRANSITIVE holds the groups that the user is a member of " +
+            "directly or through nested groups, like the groups claim of Microsoft tokens, so that access that is " +
+            "granted to a group also applies to the members of its nested groups. DIRECT only holds the groups that " +
+            "the user was added to, which are fewer and quicker to read.")
+    @DefaultEnum("TRANSITIVE")
+    GroupMembership getGroupMembership();
+
+    @Description("The number of groups to ask Microsoft Graph for per page")
+    @DefaultInteger(100)
+    @RangeConstraint(min = 1, max = 999)
+    int getGroupsPageSize();
+
+    @Description("The most groups to read for a user. Users that are members of more groups are handled according " +
+            "to the Groups Overage.")
+    @DefaultInteger(200)
+    @RangeConstraint(min = 1, max = 10000)
+    int getMaximumGroups();
+
+    enum GroupsOverage
+    {
+        TRUNCATE, OMIT, FAIL
+    }
+
+    @Description("What to do when a user is a member of more than the Maximum Groups. TRUNCATE adds the groups that " +
+            "were read, OMIT leaves out the groups attribute, and FAIL fails the login. Both TRUNCATE and OMIT add " +
+            "the groups_overage attribute, so that the groups can be looked up in another way.")
+    @DefaultEnum("OMIT")
+    GroupsOverage getGroupsOverage();
+
+    @Description("The most group IDs to cache, over all users, at about 16 bytes each. When the cache is full, the " +
+            "groups of the user that logged in least recently are removed. 0 reads the groups on every login.")
+    @DefaultInteger(500000)
+    @RangeConstraint(min = 0, max = 50000000)
+    int getGroupsCacheCapacity();
+
+    @Description("The number of seconds that the cached groups of a user are used before they are read again")
+    @DefaultInteger(300)
+    @RangeConstraint(min = 0, max = 86400)
+    int getGroupsCacheTtl();
+
+    @Description("The width and height in pixels of the thumbnail of the photo of the user to fetch from Microsoft " +
+            "Graph, one of 48, 64, 96, 120, 240, 360, 432, 504 or 648. The photo is cached by the authenticator, and " +
+            "the login gets a reference to it as the photo_thumbnail attribute, never the photo itself. The browser " +
+            "that logged in can get the photo from the photo endpoint of the authenticator, with the reference as " +
+            "the ref query parameter, while it is cached. 0 does not fetch photos.")
+    @DefaultInteger(0)
+    @RangeConstraint(min = 0, max = 648)
+    int getPhotoThumbnailSize();
+
+    @Description("The most kilobytes of photos to cache. When the cache is full, the photos that were used least " +
+            "recently are removed.")
+    @DefaultInteger(65536)
+    @RangeConstraint(min = 0, max = 4194304)
+    int getPhotoCacheCapacity();
+
+    @Description("The number of seconds that a cached photo is used without asking Microsoft Graph. After that, it " +
+            "is revalidated with If-None-Match, which costs a request but no photo when it is unchanged.")
+    @DefaultInteger(3600)
+    @RangeConstraint(min = 0, max = 604800)
+    int getPhotoCacheTtl();
+
+    @Description("The most milliseconds that a login waits for a photo that is not cached or must be revalidated. " +
+            "The photo is still downloaded after that, within the Enrichment Timeout, and used by the next login of " +
+            "the user.")
+    @DefaultInteger(100)
+    @RangeConstraint(min = 0, max = 5000)
+    int getPhotoWait();
+
+    @Description("The most milliseconds that a login waits for the profile and the other attributes from Microsoft " +
+            "Graph, which are fetched with one batch request when there are several. An attribute that fails or is " +
+            "not fetched in time is left out. The wait never goes past the Callback Deadline.")
+    @DefaultInteger(1000)
+    @RangeConstraint(min = 100, max = 60000)
+    int getEnrichmentTimeout();
+
+    @Description("Fail the login when the profile cannot be fetched and no cached profile can be used, instead of " +
+            "leaving out the Profile Attributes")
+    @DefaultBoolean(false)
+    boolean isProfileRequired();
+
+    @Description("The number of seconds between refreshes of the signing keys used to validate ID tokens")
+    @DefaultInteger(3600)
+    @RangeConstraint(min = 60, max = 86400)
+    int getSigningKeysRefreshInterval();
+
+    @Description("The minimum number of seconds between fetches of the signing keys when an ID token is signed with " +
+            "a key that is not known, e.g. because the keys were rotated")
+    @DefaultInteger(60)
+    @RangeConstraint(min = 1, max = 3600)
+    int getSigningKeysMinimumRefreshInterval();
+
+    @Description("The number of seconds between refreshes of the discovery metadata of the tenant. Logins keep using " +
+            "the last metadata while it is refreshed, and when it cannot be fetched.")
+    @DefaultInteger(3600)
+    @RangeConstraint(min = 60, max = 86400)
+    int getDiscoveryRefreshInterval();
+
     SessionManager getSessionManager();
 
     ExceptionFactory getExceptionFactory();
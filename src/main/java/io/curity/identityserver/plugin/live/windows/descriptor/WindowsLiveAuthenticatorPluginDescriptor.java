@@ -17,19 +17,24 @@
 package io.curity.identityserver.plugin.live.windows.descriptor;
 
 import io.curity.identityserver.plugin.live.windows.authentication.CallbackRequestHandler;
+import io.curity.identityserver.plugin.live.windows.authentication.PhotoRequestHandler;
+import io.curity.identityserver.plugin.live.windows.authentication.WindowsLiveAuthenticatorManagedObject;
 import io.curity.identityserver.plugin.live.windows.authentication.WindowsLiveAuthenticatorRequestHandler;
 import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
 import se.curity.identityserver.sdk.authentication.AuthenticatorRequestHandler;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
 import se.curity.identityserver.sdk.plugin.descriptor.AuthenticatorPluginDescriptor;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 
 public final class WindowsLiveAuthenticatorPluginDescriptor
         implements AuthenticatorPluginDescriptor<WindowsLiveAuthenticatorPluginConfig>
 {
     public final static String INDEX = "index";
     public final static String CALLBACK = "callback";
+    public final static String PHOTO = "photo";
 
     @Override
     public String getPluginImplementationType()
@@ -46,11 +51,19 @@ public final class WindowsLiveAuthenticatorPluginDescriptor
     @Override
     public Map<String, Class<? extends AuthenticatorRequestHandler<?>>> getAuthenticationRequestHandlerTypes()
     {
-        Map<String, Class<? extends AuthenticatorRequestHandler<?>>> handlers = new LinkedHashMap<>(2);
+        Map<String, Class<? extends AuthenticatorRequestHandler<?>>> handlers = new LinkedHashMap<>(3);
 
         handlers.put("index", WindowsLiveAuthenticatorRequestHandler.class);
         handlers.put(CALLBACK, CallbackRequestHandler.class);
+        handlers.put(PHOTO, PhotoRequestHandler.class);
 
         return handlers;
     }
+
+    @Override
+    public Optional<? extends ManagedObject<WindowsLiveAuthenticatorPluginConfig>> createManagedObject(
+            WindowsLiveAuthenticatorPluginConfig configuration)
+    {
+        return Optional.of(new WindowsLiveAuthenticatorManagedObject(configuration));
+    }
 }
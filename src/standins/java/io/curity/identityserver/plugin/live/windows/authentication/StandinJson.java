@@ -0,0 +1,316 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small tree-building JSON parser and writer backing the stand-in {@link se.curity.identityserver.sdk.service.Json}
+ * service. Like the server's implementation, it materializes the whole document as maps and lists.
+ */
+final class StandinJson
+{
+    private final String _json;
+    private int _position;
+
+    private StandinJson(String json)
+    {
+        _json = json;
+    }
+
+    static Object parse(String json)
+    {
+        StandinJson parser = new StandinJson(json);
+        Object value = parser.readValue();
+
+        parser.skipWhitespace();
+
+        if (parser._position != json.length())
+        {
+            throw new IllegalArgumentException("Trailing characters at " + parser._position);
+        }
+
+        return value;
+    }
+
+    static String write(Object value)
+    {
+        StringBuilder json = new StringBuilder();
+
+        write(value, json);
+
+        return json.toString();
+    }
+
+    private Object readValue()
+    {
+        skipWhitespace();
+
+        char c = _json.charAt(_position);
+
+        switch (c)
+        {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                return readNumber();
+        }
+    }
+
+    private Map<String, Object> readObject()
+    {
+        Map<String, Object> object = new LinkedHashMap<>();
+
+        _position++;
+        skipWhitespace();
+
+        if (_json.charAt(_position) == '}')
+        {
+            _position++;
+
+            return object;
+        }
+
+        while (true)
+        {
+            skipWhitespace();
+
+            String name = readString();
+
+            skipWhitespace();
+            expect(":");
+            object.put(name, readValue());
+            skipWhitespace();
+
+            if (_json.charAt(_position++) == '}')
+            {
+                return object;
+            }
+        }
+    }
+
+    private List<Object> readArray()
+    {
+        List<Object> array = new ArrayList<>();
+
+        _position++;
+        skipWhitespace();
+
+        if (_json.charAt(_position) == ']')
+        {
+            _position++;
+
+            return array;
+        }
+
+        while (true)
+        {
+            array.add(readValue());
+            skipWhitespace();
+
+            if (_json.charAt(_position++) == ']')
+            {
+                return array;
+            }
+        }
+    }
+
+    private String readString()
+    {
+        expect("\"");
+
+        StringBuilder value = new StringBuilder();
+
+        while (true)
+        {
+            char c = _json.charAt(_position++);
+
+            if (c == '"')
+            {
+                return value.toString();
+            }
+            else if (c == '\\')
+            {
+                char escaped = _json.charAt(_position++);
+
+                switch (escaped)
+                {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(_json.substring(_position, _position + 4), 16));
+                        _position += 4;
+                        break;
+                    default:
+                        value.append(escaped);
+                }
+            }
+            else
+            {
+                value.append(c);
+            }
+        }
+    }
+
+    private Number readNumber()
+    {
+        int start = _position;
+
+        while (_position < _json.length() && "+-0123456789.eE".indexOf(_json.charAt(_position)) >= 0)
+        {
+            _position++;
+        }
+
+        String number = _json.substring(start, _position);
+
+        if (number.indexOf('.') >= 0 || number.indexOf('e') >= 0 || number.indexOf('E') >= 0)
+        {
+            return Double.parseDouble(number);
+        }
+
+        return Long.parseLong(number);
+    }
+
+    private void expect(String token)
+    {
+        if (!_json.startsWith(token, _position))
+        {
+            throw new IllegalArgumentException("Expected " + token + " at " + _position);
+        }
+
+        _position += token.length();
+    }
+
+    private void skipWhitespace()
+    {
+        while (_position < _json.length() && Character.isWhitespace(_json.charAt(_position)))
+        {
+            _position++;
+        }
+    }
+
+    private static void write(Object value, StringBuilder json)
+    {
+        if (value == null)
+        {
+            json.append("null");
+        }
+        else if (value instanceof Map)
+        {
+            json.append('{');
+
+            boolean first = true;
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+            {
+                if (!first)
+                {
+                    json.append(',');
+                }
+
+                first = false;
+                writeString(String.valueOf(entry.getKey()), json);
+                json.append(':');
+                write(entry.getValue(), json);
+            }
+
+            json.append('}');
+        }
+        else if (value instanceof Collection)
+        {
+            json.append('[');
+
+            boolean first = true;
+
+            for (Object element : (Collection<?>) value)
+            {
+                if (!first)
+                {
+                    json.append(',');
+                }
+
+                first = false;
+                write(element, json);
+            }
+
+            json.append(']');
+        }
+        else if (value instanceof Number || value instanceof Boolean)
+        {
+            json.append(value);
+        }
+        else
+        {
+            writeString(value.toString(), json);
+        }
+    }
+
+    private static void writeString(String value, StringBuilder json)
+    {
+        json.append('"');
+
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\')
+            {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int) c));
+            }
+            else
+            {
+                json.append(c);
+            }
+        }
+
+        json.append('"');
+    }
+}
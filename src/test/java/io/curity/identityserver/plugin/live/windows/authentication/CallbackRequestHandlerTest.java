@@ -0,0 +1,261 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.errors.ErrorCode;
+import se.curity.identityserver.sdk.http.HttpStatus;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallbackRequestHandlerTest
+{
+    private static final String STATE = "5c0e3e7a-2a4b-4d0c-9b62-3f0e5f4a1c2d";
+    private static final String CODE = "M.C507_BAY.2.U.6a1f0c2e-9f4b-4a63-8a3e-b4e1f2f7c8d9";
+    private static final String CLIENT_IP_ADDRESS = "192.0.2.1";
+
+    @Test
+    void rejectsCallbackWithoutCode()
+    {
+        Standins.StandinException exception = callback(Map.of(), Map.of("state", STATE));
+
+        assertEquals("badRequestException", exception.getFactoryMethod());
+        assertEquals(ErrorCode.INVALID_INPUT, exception.getArguments()[0]);
+    }
+
+    @Test
+    void rejectsCallbackWithoutCodeWhenReplaysAreNotFiltered()
+    {
+        Standins.StandinException exception = callback(Map.of("getReplayFilterCapacity", 0),
+                Map.of("state", STATE));
+
+        assertEquals("badRequestException", exception.getFactoryMethod());
+        assertEquals(ErrorCode.INVALID_INPUT, exception.getArguments()[0]);
+    }
+
+    @Test
+    void rejectsCallbackWithoutState()
+    {
+        Standins.StandinException exception = callback(Map.of(), Map.of("code", CODE));
+
+        assertEquals("badRequestException", exception.getFactoryMethod());
+        assertEquals(ErrorCode.INVALID_INPUT, exception.getArguments()[0]);
+    }
+
+    @Test
+    void rejectsCallbackWithStateOfAnotherSession()
+    {
+        Standins.StandinException exception = callback(Map.of(), Map.of("code", CODE, "state", "another-state"));
+
+        assertEquals("badRequestException", exception.getFactoryMethod());
+        assertEquals(ErrorCode.INVALID_SERVER_STATE, exception.getArguments()[0]);
+    }
+
+    @Test
+    void shedsCallbacksOfAStateThatIsReturnedTooOften()
+    {
+        try (Login login = new Login(Map.of("getCallbackSessionLimit", 1)))
+        {
+            // Without a code, the callback fails after its state has been counted
+            assertThrows(Standins.StandinException.class, () -> login.callback(Map.of("state", STATE)));
+
+            Standins.RecordedResponse response = login.callback(Map.of("state", STATE));
+
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatus());
+            assertEquals("60", response.getHeader("Retry-After"));
+            assertNotNull(response.getModel());
+        }
+    }
+
+    @Test
+    void doesNotCountStatesThatAreNotValid()
+    {
+        try (Login login = new Login(Map.of("getCallbackSessionLimit", 1)))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                Standins.StandinException exception = assertThrows(Standins.StandinException.class,
+                        () -> login.callback(Map.of("code", CODE, "state", "another-state")));
+
+                assertEquals(ErrorCode.INVALID_SERVER_STATE, exception.getArguments()[0]);
+            }
+
+            Standins.StandinException exception = assertThrows(Standins.StandinException.class,
+                    () -> login.callback(Map.of("state", STATE)));
+
+            assertEquals(ErrorCode.INVALID_INPUT, exception.getArguments()[0]);
+        }
+    }
+
+    @Test
+    void shedsCallbacksOfAClientThatExceedsItsRate()
+    {
+        try (Login login = new Login(Map.of("getCallbackClientRate", 1, "getCallbackClientBurst", 1)))
+        {
+            assertThrows(Standins.StandinException.class, () -> login.callback(Map.of("state", STATE)));
+
+            Standins.RecordedResponse response = login.callback(Map.of("state", STATE));
+
+            assertEquals(HttpStatus.TOO_MANY_REQUESTS, response.getStatus());
+            assertEquals("1", response.getHeader("Retry-After"));
+            assertNotNull(response.getModel());
+        }
+    }
+
+    @Test
+    void shedsCallbacksWhenTooManyAreInFlight() throws Exception
+    {
+        CountDownLatch tokenRequestSent = new CountDownLatch(1);
+        CountDownLatch tokenResponseSent = new CountDownLatch(1);
+        Standins.Upstream upstream = (method, uri, headers, body) ->
+        {
+            if (uri.getPath().contains("token"))
+            {
+                tokenRequestSent.countDown();
+                await(tokenResponseSent);
+            }
+
+            return Standins.Reply.json(404, "{}");
+        };
+
+        try (Login login = new Login(Map.of("getCallbackConcurrencyLimit", 1,
+                "getWebServiceClientFactory", Standins.webServiceClientFactory(upstream))))
+        {
+            // The session is per thread, so the callback in flight starts its own login
+            CompletableFuture<Void> inFlight = CompletableFuture.runAsync(() ->
+            {
+                try (Login sameNode = login.onThisThread())
+                {
+                    assertThrows(Standins.StandinException.class,
+                            () -> sameNode.callback(Map.of("code", CODE, "state", STATE)));
+                }
+            });
+
+            assertTrue(tokenRequestSent.await(5, TimeUnit.SECONDS), "The token request was not sent");
+
+            Standins.RecordedResponse response = login.callback(Map.of("code", CODE, "state", STATE));
+
+            assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatus());
+            assertEquals("1", response.getHeader("Retry-After"));
+            assertNotNull(response.getModel());
+
+            tokenResponseSent.countDown();
+            inFlight.get(5, TimeUnit.SECONDS);
+        }
+        finally
+        {
+            tokenResponseSent.countDown();
+        }
+    }
+
+    /**
+     * Send a callback with the given query parameters in a session that started a login with {@link #STATE}.
+     *
+     * @return the exception that the handler threw
+     */
+    private static Standins.StandinException callback(Map<String, ?> settings, Map<String, String> queryParameters)
+    {
+        try (Login login = new Login(settings))
+        {
+            return assertThrows(Standins.StandinException.class, () -> login.callback(queryParameters));
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A node with a session on the current thread that started a login with {@link #STATE}.
+     */
+    private static final class Login implements AutoCloseable
+    {
+        private final WindowsLiveAuthenticatorPluginConfig _configuration;
+        private final WindowsLiveAuthenticatorManagedObject _managedObject;
+        private final CallbackRequestHandler _handler;
+        private final boolean _ownsManagedObject;
+
+        Login(Map<String, ?> settings)
+        {
+            this(Standins.configuration(settings), null);
+        }
+
+        private Login(WindowsLiveAuthenticatorPluginConfig configuration,
+                      WindowsLiveAuthenticatorManagedObject managedObject)
+        {
+            _configuration = configuration;
+            _ownsManagedObject = managedObject == null;
+            _managedObject = _ownsManagedObject ? new WindowsLiveAuthenticatorManagedObject(configuration)
+                    : managedObject;
+            _handler = new CallbackRequestHandler(configuration, _managedObject);
+
+            configuration.getSessionManager().put(Attribute.of("state", STATE));
+        }
+
+        /**
+         * @return a login of another session on the same node, on the current thread
+         */
+        Login onThisThread()
+        {
+            return new Login(_configuration, _managedObject);
+        }
+
+        /**
+         * @return the response, if the handler did not throw
+         */
+        Standins.RecordedResponse callback(Map<String, String> queryParameters)
+        {
+            Standins.RecordedResponse response = Standins.recordedResponse();
+            CallbackGetRequestModel requestModel = _handler.preProcess(Standins.request(queryParameters, Map.of(),
+                    CLIENT_IP_ADDRESS), response.asResponse());
+
+            assertFalse(_handler.get(requestModel, response.asResponse()).isPresent());
+
+            return response;
+        }
+
+        @Override
+        public void close()
+        {
+            _configuration.getSessionManager().remove("state");
+
+            if (_ownsManagedObject)
+            {
+                _managedObject.close();
+            }
+        }
+    }
+}
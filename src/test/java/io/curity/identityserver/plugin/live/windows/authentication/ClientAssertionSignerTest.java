@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientAssertionSignerTest
+{
+    private static final String AUDIENCE = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
+    private static final long LIFETIME_SECONDS = 600;
+    private static final Instant NOW = Instant.parse("2026-10-18T12:00:00Z");
+
+    private final Standins.MutableClock _clock = new Standins.MutableClock(NOW);
+
+    @Test
+    void signsRs256AssertionsThatVerifyWithTheCertificate() throws Exception
+    {
+        ClientAssertionSigner signer = signer(Standins.CLIENT_ASSERTION_RSA_KEY,
+                Standins.CLIENT_ASSERTION_RSA_CERTIFICATE);
+
+        assertVerifies(signer.get(), "RS256", "SHA256withRSA", Standins.CLIENT_ASSERTION_RSA_CERTIFICATE);
+    }
+
+    @Test
+    void signsEs256AssertionsThatVerifyWithTheCertificate() throws Exception
+    {
+        ClientAssertionSigner signer = signer(Standins.CLIENT_ASSERTION_EC_KEY,
+                Standins.CLIENT_ASSERTION_EC_CERTIFICATE);
+        String assertion = signer.get();
+
+        // A JWS signature is r and s of 32 bytes each, not a DER sequence
+        assertEquals(64, decode(assertion.split("\\.")[2]).length);
+        assertVerifies(assertion, "ES256", "SHA256withECDSAinP1363Format",
+                Standins.CLIENT_ASSERTION_EC_CERTIFICATE);
+    }
+
+    @Test
+    void reusesAssertionsForTwoThirdsOfTheirLifetime()
+    {
+        ClientAssertionSigner signer = signer(Standins.CLIENT_ASSERTION_EC_KEY,
+                Standins.CLIENT_ASSERTION_EC_CERTIFICATE);
+        String assertion = signer.get();
+
+        _clock.advance(LIFETIME_SECONDS * 2 / 3 - 1);
+        signer.refresh();
+
+        assertEquals(assertion, signer.get());
+        assertEquals(1, signer.getSignatures());
+
+        _clock.advance(1);
+        signer.refresh();
+
+        String refreshed = signer.get();
+
+        assertNotEquals(assertion, refreshed);
+        assertEquals(2, signer.getSignatures());
+        assertEquals(NOW.getEpochSecond() + LIFETIME_SECONDS * 2 / 3, claims(refreshed).get("iat"));
+        assertEquals(refreshed, signer.get());
+    }
+
+    @Test
+    void signsAssertionsThatAreAboutToExpireWhenTheyWereNotRefreshed()
+    {
+        ClientAssertionSigner signer = signer(Standins.CLIENT_ASSERTION_EC_KEY,
+                Standins.CLIENT_ASSERTION_EC_CERTIFICATE);
+        String assertion = signer.get();
+
+        // Only the background task refreshes assertions, until too little of their lifetime is left to send them
+        _clock.advance(LIFETIME_SECONDS - 30);
+        assertEquals(assertion, signer.get());
+
+        _clock.advance(1);
+        assertNotEquals(assertion, signer.get());
+        assertEquals(2, signer.getSignatures());
+    }
+
+    private ClientAssertionSigner signer(String key, String certificate)
+    {
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.of(
+                "getClientAssertionKey", key,
+                "getClientAssertionCertificate", certificate,
+                "getClientAssertionLifetime", (int) LIFETIME_SECONDS));
+
+        return ClientAssertionSigner.of(configuration, AUDIENCE, _clock);
+    }
+
+    private void assertVerifies(String assertion, String algorithm, String signatureAlgorithm, String certificatePem)
+            throws Exception
+    {
+        String[] parts = assertion.split("\\.");
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(
+                new ByteArrayInputStream(certificatePem.getBytes(StandardCharsets.US_ASCII)));
+        Map<String, Object> header = decodeJson(parts[0]);
+        Map<String, Object> claims = decodeJson(parts[1]);
+
+        assertEquals(3, parts.length);
+        assertEquals(algorithm, header.get("alg"));
+        assertEquals("JWT", header.get("typ"));
+        assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(
+                MessageDigest.getInstance("SHA-1").digest(certificate.getEncoded())), header.get("x5t"));
+
+        assertEquals(AUDIENCE, claims.get("aud"));
+        assertEquals(Standins.configuration(Map.of()).getClientId(), claims.get("iss"));
+        assertEquals(claims.get("iss"), claims.get("sub"));
+        assertEquals(NOW.getEpochSecond(), claims.get("iat"));
+        assertEquals(NOW.getEpochSecond(), claims.get("nbf"));
+        assertEquals(NOW.getEpochSecond() + LIFETIME_SECONDS, claims.get("exp"));
+        assertTrue(claims.get("jti") instanceof String);
+
+        Signature signature = Signature.getInstance(signatureAlgorithm);
+
+        signature.initVerify(certificate.getPublicKey());
+        signature.update((parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII));
+
+        assertTrue(signature.verify(decode(parts[2])), "The signature does not verify");
+    }
+
+    private static Map<String, Object> claims(String assertion)
+    {
+        return decodeJson(assertion.split("\\.")[1]);
+    }
+
+    private static Map<String, Object> decodeJson(String part)
+    {
+        try
+        {
+            return JsonFieldExtractor.ALL_FIELDS.extract(new ByteArrayInputStream(decode(part)));
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] decode(String part)
+    {
+        return Base64.getUrlDecoder().decode(part);
+    }
+}
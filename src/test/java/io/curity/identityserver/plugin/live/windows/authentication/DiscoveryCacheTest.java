@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiscoveryCacheTest
+{
+    private static final String TENANT_ID = "9188040d-6c67-4c5b-b112-36a304b66dad";
+
+    @Test
+    void usesTheWellKnownEndpointsOfTheLoginHostUntilTheMetadataIsFetched()
+    {
+        DiscoveryCache.Metadata metadata = discoveryCache("login.microsoftonline.us", TENANT_ID).get();
+
+        assertFalse(metadata.isDiscovered());
+        assertEquals("https://login.microsoftonline.us/" + TENANT_ID + "/oauth2/v2.0/authorize",
+                metadata.getAuthorizationEndpoint());
+        assertEquals("https://login.microsoftonline.us/" + TENANT_ID + "/oauth2/v2.0/token",
+                metadata.getTokenEndpoint());
+        assertEquals("/" + TENANT_ID + "/oauth2/v2.0/token", metadata.getTokenPath());
+        assertEquals("/" + TENANT_ID + "/discovery/v2.0/keys", metadata.getJwksPath());
+        assertEquals("https://login.microsoftonline.us/" + TENANT_ID + "/v2.0", metadata.getIssuer());
+    }
+
+    @Test
+    void usesATenantPlaceholderInTheIssuerUntilTheMetadataIsFetched()
+    {
+        for (String tenant : new String[]{"common", "organizations", "consumers", "contoso.onmicrosoft.com"})
+        {
+            assertEquals("https://login.microsoftonline.com/{tenantid}/v2.0",
+                    discoveryCache("login.microsoftonline.com", tenant).get().getIssuer(), tenant);
+        }
+
+        assertEquals("https://localhost:8443/{tenantid}/v2.0",
+                discoveryCache("localhost:8443", "common").get().getIssuer());
+    }
+
+    @Test
+    void usesTheIssuerOfTheFetchedMetadata() throws Exception
+    {
+        String host = "login.microsoftonline.us";
+        String issuer = "https://" + host + "/" + TENANT_ID + "/v2.0";
+        Standins.Upstream upstream = (method, uri, headers, body) -> Standins.Reply.json(200, Standins.json().toJson(
+                Map.of("issuer", issuer,
+                        "authorization_endpoint", "https://" + host + "/contoso/oauth2/v2.0/authorize",
+                        "token_endpoint", "https://" + host + "/contoso/oauth2/v2.0/token",
+                        "jwks_uri", "https://" + host + "/contoso/discovery/v2.0/keys")));
+        DiscoveryCache discoveryCache = discoveryCache(Map.of("getLoginHost", host, "getTenant", "contoso",
+                "getWebServiceClientFactory", Standins.webServiceClientFactory(upstream)));
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+
+        try
+        {
+            discoveryCache.start(scheduler);
+
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+            while (!discoveryCache.get().isDiscovered())
+            {
+                assertTrue(System.nanoTime() < deadline, "The metadata was not fetched");
+                Thread.sleep(10);
+            }
+        }
+        finally
+        {
+            scheduler.shutdownNow();
+        }
+
+        assertEquals(issuer, discoveryCache.get().getIssuer());
+        assertEquals("/contoso/discovery/v2.0/keys", discoveryCache.get().getJwksPath());
+    }
+
+    private static DiscoveryCache discoveryCache(String loginHost, String tenant)
+    {
+        return discoveryCache(Map.of("getLoginHost", loginHost, "getTenant", tenant));
+    }
+
+    private static DiscoveryCache discoveryCache(Map<String, ?> settings)
+    {
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(settings);
+
+        return DiscoveryCache.of(configuration, new UpstreamClients(configuration));
+    }
+}
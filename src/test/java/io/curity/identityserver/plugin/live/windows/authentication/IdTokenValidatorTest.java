@@ -0,0 +1,422 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.authentication.IdTokenValidator.InvalidIdTokenException;
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+import se.curity.identityserver.sdk.service.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IdTokenValidatorTest
+{
+    private static final String TENANT_ID = "9188040d-6c67-4c5b-b112-36a304b66dad";
+    private static final String OTHER_TENANT_ID = "72f988bf-86f1-41af-91ab-2d7cd011db47";
+    private static final Instant NOW = Instant.parse("2026-10-18T12:00:00Z");
+    private static final long ALLOWED_CLOCK_SKEW_SECONDS = 60;
+
+    private static final KeyPair KEY = generateKey();
+    private static final KeyPair ROTATED_KEY = generateKey();
+
+    private final Json _json = Standins.json();
+    private final AtomicInteger _keyFetches = new AtomicInteger();
+
+    // The key set that the stand-in of the identity platform serves, by key ID
+    private volatile Map<String, KeyPair> _keySet = Map.of("key-1", KEY);
+
+    @Test
+    void acceptsValidTokens() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            Map<String, Object> claims = validator.validate(sign("key-1", KEY, claims()));
+
+            assertEquals("subject", claims.get("sub"));
+            assertEquals(TENANT_ID, claims.get("tid"));
+        });
+    }
+
+    @Test
+    void validatesTheIssuerForTheTenantOfTheToken() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            // The configured tenant is common, so the issuer has a placeholder for the tenant
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY, claims("tid", OTHER_TENANT_ID,
+                    "iss", issuerOf(OTHER_TENANT_ID)))));
+
+            assertInvalid(validator, claims("iss", issuerOf(OTHER_TENANT_ID)));
+            assertInvalid(validator, claims("iss", "https://login.microsoftonline.com/{tenantid}/v2.0"));
+            assertInvalid(validator, claims("iss", "https://sts.windows.net/" + TENANT_ID + "/"));
+            assertInvalid(validator, claims("tid", null));
+            assertInvalid(validator, claims("tid", 42));
+        });
+    }
+
+    @Test
+    void validatesTheAudience() throws Exception
+    {
+        String clientId = Standins.configuration(Map.of()).getClientId();
+
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY, claims("aud",
+                    List.of("another-client", clientId)))));
+
+            assertInvalid(validator, claims("aud", "another-client"));
+            assertInvalid(validator, claims("aud", List.of("another-client")));
+            assertInvalid(validator, claims("aud", null));
+        });
+    }
+
+    @Test
+    void allowsClockSkewForExpiryAndNotBefore() throws Exception
+    {
+        long now = NOW.getEpochSecond();
+
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY,
+                    claims("exp", now - ALLOWED_CLOCK_SKEW_SECONDS))));
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY,
+                    claims("nbf", now + ALLOWED_CLOCK_SKEW_SECONDS))));
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY, claims("nbf", null))));
+
+            assertInvalid(validator, claims("exp", now - ALLOWED_CLOCK_SKEW_SECONDS - 1));
+            assertInvalid(validator, claims("nbf", now + ALLOWED_CLOCK_SKEW_SECONDS + 1));
+            assertInvalid(validator, claims("exp", null));
+            assertInvalid(validator, claims("exp", String.valueOf(now + 3600)));
+        });
+    }
+
+    @Test
+    void rejectsTokensWithoutASubject() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator -> assertInvalid(validator, claims("sub", null)));
+    }
+
+    @Test
+    void rejectsUnknownAlgorithms() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            for (String algorithm : Arrays.asList("none", "HS256", "RS512", "ES256", "PS256", "rs256", null))
+            {
+                Map<String, Object> header = new HashMap<>();
+
+                header.put("alg", algorithm);
+                header.put("kid", "key-1");
+
+                String token = sign(header, KEY, claims());
+
+                assertThrows(InvalidIdTokenException.class, () -> validator.validate(token), algorithm);
+                assertThrows(InvalidIdTokenException.class,
+                        () -> validator.validate(token.substring(0, token.lastIndexOf('.') + 1)), algorithm);
+            }
+        });
+    }
+
+    @Test
+    void rejectsTokensThatAreNotSignedByTheKey() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            String token = sign("key-1", KEY, claims());
+            String otherClaims = Base64.getUrlEncoder().withoutPadding().encodeToString(
+                    _json.toJson(claims("sub", "another-subject")).getBytes(StandardCharsets.UTF_8));
+            String[] parts = token.split("\\.");
+
+            assertThrows(InvalidIdTokenException.class,
+                    () -> validator.validate(parts[0] + "." + otherClaims + "." + parts[2]));
+            assertThrows(InvalidIdTokenException.class, () -> validator.validate(sign("key-1", ROTATED_KEY,
+                    claims())));
+        });
+    }
+
+    @Test
+    void rejectsMalformedTokens() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            String[] parts = sign("key-1", KEY, claims()).split("\\.");
+
+            for (Object token : Arrays.asList(null, 42, "", parts[0] + "." + parts[1],
+                    parts[0] + "." + parts[1] + "." + parts[2] + ".", "!." + parts[1] + "." + parts[2],
+                    parts[0] + ".e30." + parts[2], parts[0] + "." + parts[1] + ".!"))
+            {
+                assertThrows(InvalidIdTokenException.class, () -> validator.validate(token), String.valueOf(token));
+            }
+        });
+    }
+
+    @Test
+    void fetchesTheKeysAgainForAnUnknownKeyId() throws Exception
+    {
+        withValidator(Duration.ZERO, validator ->
+        {
+            int fetches = _keyFetches.get();
+
+            _keySet = Map.of("key-1", KEY, "key-2", ROTATED_KEY);
+
+            assertDoesNotThrow(() -> validator.validate(sign("key-2", ROTATED_KEY, claims())));
+            assertEquals(fetches + 1, _keyFetches.get());
+
+            // Known keys are not fetched again
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY, claims())));
+            assertEquals(fetches + 1, _keyFetches.get());
+        });
+    }
+
+    @Test
+    void limitsHowOftenTheKeysAreFetchedForUnknownKeyIds() throws Exception
+    {
+        withValidator(Duration.ofMinutes(5), validator ->
+        {
+            int fetches = _keyFetches.get();
+
+            _keySet = Map.of("key-1", KEY, "key-2", ROTATED_KEY);
+
+            // The keys were fetched when the cache was created, which was too recent to fetch them again
+            for (int i = 0; i < 10; i++)
+            {
+                assertInvalid(validator, "made-up-key-" + i, KEY, claims());
+            }
+
+            assertInvalid(validator, "key-2", ROTATED_KEY, claims());
+            assertEquals(fetches, _keyFetches.get());
+        });
+    }
+
+    @Test
+    void keepsTheKeysWhenTheyCannotBeFetched() throws Exception
+    {
+        withValidator(Duration.ZERO, validator ->
+        {
+            _keySet = Map.of();
+
+            assertInvalid(validator, "key-2", ROTATED_KEY, claims());
+            assertDoesNotThrow(() -> validator.validate(sign("key-1", KEY, claims())));
+        });
+    }
+
+    /**
+     * Run a test with a validator for the common tenant, whose keys have been fetched once.
+     */
+    private void withValidator(Duration minimumRefreshInterval, ValidatorTest test) throws Exception
+    {
+        Standins.Upstream upstream = (method, uri, headers, body) ->
+        {
+            if (uri.getPath().equals("/common/discovery/v2.0/keys"))
+            {
+                Standins.Reply reply = Standins.Reply.json(200, _json.toJson(Map.of("keys", jwks(_keySet))));
+
+                _keyFetches.incrementAndGet();
+
+                return reply;
+            }
+
+            return Standins.Reply.json(404, "{}");
+        };
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.of(
+                "getWebServiceClientFactory", Standins.webServiceClientFactory(upstream)));
+        UpstreamClients upstreamClients = new UpstreamClients(configuration);
+        DiscoveryCache discoveryCache = DiscoveryCache.of(configuration, upstreamClients);
+        ScheduledExecutorService scheduler = new FirstRunInlineScheduler();
+
+        try
+        {
+            JwksKeyCache keys = new JwksKeyCache(upstreamClients, discoveryCache, _json, scheduler,
+                    Duration.ofHours(1), minimumRefreshInterval);
+
+            assertEquals(1, _keyFetches.get());
+
+            test.run(new IdTokenValidator(keys, discoveryCache, _json, configuration.getClientId(),
+                    Clock.fixed(NOW, ZoneOffset.UTC)));
+        }
+        finally
+        {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void assertInvalid(IdTokenValidator validator, Map<String, Object> claims)
+    {
+        assertInvalid(validator, "key-1", KEY, claims);
+    }
+
+    private void assertInvalid(IdTokenValidator validator, String keyId, KeyPair key, Map<String, Object> claims)
+    {
+        String token = sign(keyId, key, claims);
+
+        assertThrows(InvalidIdTokenException.class, () -> validator.validate(token), claims.toString());
+    }
+
+    /**
+     * @param overrides pairs of claim names and values that replace those of a valid token; a null value removes the
+     *                  claim
+     */
+    private static Map<String, Object> claims(Object... overrides)
+    {
+        Map<String, Object> claims = new LinkedHashMap<>();
+
+        claims.put("aud", Standins.configuration(Map.of()).getClientId());
+        claims.put("iss", issuerOf(TENANT_ID));
+        claims.put("tid", TENANT_ID);
+        claims.put("sub", "subject");
+        claims.put("iat", NOW.getEpochSecond());
+        claims.put("nbf", NOW.getEpochSecond());
+        claims.put("exp", NOW.getEpochSecond() + 3600);
+
+        for (int i = 0; i < overrides.length; i += 2)
+        {
+            if (overrides[i + 1] == null)
+            {
+                claims.remove((String) overrides[i]);
+            }
+            else
+            {
+                claims.put((String) overrides[i], overrides[i + 1]);
+            }
+        }
+
+        return claims;
+    }
+
+    private static String issuerOf(String tenantId)
+    {
+        return "https://login.microsoftonline.com/" + tenantId + "/v2.0";
+    }
+
+    private String sign(String keyId, KeyPair key, Map<String, Object> claims)
+    {
+        return sign(Map.of("alg", "RS256", "kid", keyId, "typ", "JWT"), key, claims);
+    }
+
+    private String sign(Map<String, Object> header, KeyPair key, Map<String, Object> claims)
+    {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String signingInput = encoder.encodeToString(_json.toJson(header).getBytes(StandardCharsets.UTF_8)) + "." +
+                encoder.encodeToString(_json.toJson(claims).getBytes(StandardCharsets.UTF_8));
+
+        try
+        {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+
+            signature.initSign(key.getPrivate());
+            signature.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+
+            return signingInput + "." + encoder.encodeToString(signature.sign());
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<Map<String, Object>> jwks(Map<String, KeyPair> keySet)
+    {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        List<Map<String, Object>> keys = new ArrayList<>();
+
+        keySet.forEach((keyId, key) ->
+        {
+            RSAPublicKey publicKey = (RSAPublicKey) key.getPublic();
+
+            keys.add(Map.of("kty", "RSA", "use", "sig", "kid", keyId,
+                    "n", encoder.encodeToString(unsigned(publicKey.getModulus().toByteArray())),
+                    "e", encoder.encodeToString(unsigned(publicKey.getPublicExponent().toByteArray()))));
+        });
+
+        // Keys of other types and uses are skipped
+        keys.add(Map.of("kty", "EC", "use", "sig", "kid", "ec-key", "crv", "P-256", "x", "AA", "y", "AA"));
+        keys.add(Map.of("kty", "RSA", "use", "enc", "kid", "encryption-key", "n", "AQAB", "e", "AQAB"));
+
+        return keys;
+    }
+
+    private static byte[] unsigned(byte[] value)
+    {
+        return value[0] == 0 ? Arrays.copyOfRange(value, 1, value.length) : value;
+    }
+
+    private static KeyPair generateKey()
+    {
+        try
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+
+            generator.initialize(2048);
+
+            return generator.generateKeyPair();
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Runs the first run of a periodic task right away, so that a test does not race with it.
+     */
+    private static final class FirstRunInlineScheduler extends ScheduledThreadPoolExecutor
+    {
+        private FirstRunInlineScheduler()
+        {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+                                                         TimeUnit unit)
+        {
+            command.run();
+
+            return super.scheduleWithFixedDelay(command, delay, delay, unit);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ValidatorTest
+    {
+        void run(IdTokenValidator validator) throws Exception;
+    }
+}
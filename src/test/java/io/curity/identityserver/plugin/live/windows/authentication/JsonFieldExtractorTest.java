@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JsonFieldExtractorTest
+{
+    // The deepest nesting of the values of members that the extractor accepts
+    private static final int MAX_DEPTH = 64;
+
+    private static final JsonFieldExtractor TOKENS = JsonFieldExtractor.of(List.of("access_token", "expires_in"));
+
+    @Test
+    void extractsAllTypesOfValues() throws IOException
+    {
+        Map<String, Object> expected = new LinkedHashMap<>();
+
+        expected.put("string", "value");
+        expected.put("integer", 3600L);
+        expected.put("true", true);
+        expected.put("false", false);
+        expected.put("null", null);
+        expected.put("object", Map.of("name", "value"));
+        expected.put("array", Arrays.asList(1L, "two", null, List.of()));
+
+        assertEquals(expected, extract(JsonFieldExtractor.ALL_FIELDS, " {\n\t\"string\" : \"value\", " +
+                "\"integer\":3600, \"true\":true,\"false\":false,\"null\":null,\"object\":{\"name\":\"value\"}," +
+                "\"array\":[1,\"two\",null,[]]}\r\n"));
+        assertEquals(Map.of(), extract(JsonFieldExtractor.ALL_FIELDS, "{ }"));
+    }
+
+    @Test
+    void unescapesStrings() throws IOException
+    {
+        assertEquals("\"\\/\b\f\n\r\t", extractValue("\"\\\"\\\\\\/\\b\\f\\n\\r\\t\""));
+        assertEquals("caf\u00e9", extractValue("\"caf\\u00E9\""));
+        assertEquals("caf\u00e9 \u00e5\u00e4\u00f6", extractValue("\"caf\u00e9 \u00e5\u00e4\u00f6\""));
+    }
+
+    @Test
+    void keepsSurrogatePairs() throws IOException
+    {
+        String grinningFace = new String(Character.toChars(0x1F600));
+
+        assertEquals(grinningFace, extractValue("\"\\ud83d\\ude00\""));
+        assertEquals(grinningFace, extractValue("\"" + grinningFace + "\""));
+    }
+
+    @Test
+    void readsStringsAcrossTheBuffer() throws IOException
+    {
+        String grinningFace = new String(Character.toChars(0x1F600));
+        StringBuilder value = new StringBuilder();
+
+        // Longer than the buffer, with escapes and pairs at every offset
+        for (int i = 0; value.length() < 10000; i++)
+        {
+            value.append(i % 3 == 0 ? grinningFace : i % 3 == 1 ? "\u00e9" : "x");
+        }
+
+        String escaped = value.toString().replace("x", "\\u0078");
+
+        assertEquals(value.toString(), extractValue("\"" + escaped + "\""));
+        assertEquals(Map.of("expires_in", 3600L), extract(TOKENS, "{\"refresh_token\":\"" + escaped + "\"," +
+                "\"expires_in\":3600}"));
+    }
+
+    @Test
+    void readsNumbers() throws IOException
+    {
+        assertEquals(0L, extractValue("0"));
+        assertEquals(-42L, extractValue("-42"));
+        assertEquals(Long.MAX_VALUE / 10, extractValue(String.valueOf(Long.MAX_VALUE / 10)));
+        assertEquals(1.5, extractValue("1.5"));
+        assertEquals(-0.25, extractValue("-0.25"));
+        assertEquals(1000.0, extractValue("1e3"));
+        assertEquals(1000.0, extractValue("1E+3"));
+        assertEquals(0.0015, extractValue("1.5e-3"));
+
+        // Integers that may not fit a long are doubles
+        assertEquals(12345678901234567890.0, extractValue("12345678901234567890"));
+    }
+
+    @Test
+    void rejectsMalformedNumbers()
+    {
+        for (String number : List.of("-", "1-2", "1e", "1.2.3", "+"))
+        {
+            assertThrows(IOException.class, () -> extractValue(number), number);
+        }
+    }
+
+    @Test
+    void extractsOnlyTheWantedMembers() throws IOException
+    {
+        assertEquals(Map.of("access_token", "EwA", "expires_in", 3600L), extract(TOKENS, "{" +
+                "\"token_type\":\"bearer\"," +
+                "\"scope\":[\"openid\",{\"nested\":[[],{}]},\"escaped \\\" \\\\ \\u0022 ] }\"]," +
+                "\"access_token\":\"EwA\"," +
+                "\"id_token_claims\":{\"aud\":\"client\",\"nbf\":1.5e9,\"roles\":[true,false,null]}," +
+                "\"expires_in\":3600," +
+                "\"refresh_token\":\"M.R3\"}"));
+    }
+
+    @Test
+    void keepsTheLastValueOfDuplicateMembers() throws IOException
+    {
+        Map<String, Object> members = extract(JsonFieldExtractor.ALL_FIELDS,
+                "{\"a\":1,\"b\":2,\"a\":{\"a\":3,\"a\":4}}");
+
+        assertEquals(Map.of("a", Map.of("a", 4L), "b", 2L), members);
+        assertEquals(List.of("a", "b"), new ArrayList<>(members.keySet()));
+        assertEquals(Map.of("expires_in", 2L), extract(TOKENS, "{\"expires_in\":1,\"expires_in\":2}"));
+    }
+
+    @Test
+    void limitsNesting() throws IOException
+    {
+        String deepest = nested(MAX_DEPTH);
+        String tooDeep = nested(MAX_DEPTH + 1);
+
+        assertEquals(1, extract(JsonFieldExtractor.ALL_FIELDS, "{\"a\":" + deepest + "}").size());
+        assertEquals(Map.of(), extract(TOKENS, "{\"a\":" + deepest + "}"));
+        assertThrows(IOException.class, () -> extract(JsonFieldExtractor.ALL_FIELDS, "{\"a\":" + tooDeep + "}"));
+        assertThrows(IOException.class, () -> extract(TOKENS, "{\"a\":" + tooDeep + "}"));
+    }
+
+    @Test
+    void rejectsTruncatedInput()
+    {
+        String json = "{\"access_token\":\"EwA\\u0041\",\"scope\":[\"openid\",{\"a\":true}],\"expires_in\":3600}";
+
+        // Every prefix is missing at least the closing brace
+        for (int length = 0; length < json.length(); length++)
+        {
+            String truncated = json.substring(0, length);
+
+            assertThrows(IOException.class, () -> extract(JsonFieldExtractor.ALL_FIELDS, truncated), truncated);
+            assertThrows(IOException.class, () -> extract(TOKENS, truncated), truncated);
+        }
+    }
+
+    @Test
+    void rejectsMalformedInput()
+    {
+        for (String json : List.of("[]", "\"value\"", "{\"a\" 1}", "{\"a\":1,}", "{a:1}", "{\"a\":tru}",
+                "{\"a\":\"\\x\"}", "{\"a\":\"\\u12G4\"}", "{\"a\":[1 2]}", "{\"a\":{\"b\"}}"))
+        {
+            assertThrows(IOException.class, () -> extract(JsonFieldExtractor.ALL_FIELDS, json), json);
+            assertThrows(IOException.class, () -> extract(JsonFieldExtractor.of(List.of("b")), json), json);
+        }
+    }
+
+    /**
+     * @return the given number of arrays, each in the one before
+     */
+    private static String nested(int depth)
+    {
+        return "[".repeat(depth) + "]".repeat(depth);
+    }
+
+    private static Object extractValue(String value) throws IOException
+    {
+        return extract(JsonFieldExtractor.ALL_FIELDS, "{\"value\":" + value + "}").get("value");
+    }
+
+    private static Map<String, Object> extract(JsonFieldExtractor extractor, String json) throws IOException
+    {
+        return extractor.extract(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
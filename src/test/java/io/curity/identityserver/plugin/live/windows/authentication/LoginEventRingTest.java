@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.LoginEventOverflow;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoginEventRingTest
+{
+    @Test
+    void writesEveryEventInOrderAcrossManyLaps()
+    {
+        RecordingSink sink = new RecordingSink();
+        LoginEventRing ring = new LoginEventRing(4, sink, LoginEventOverflow.BLOCK, "test-login-events");
+
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-" + i, "192.0.2.1", null));
+        }
+
+        ring.close();
+
+        List<String> expected = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++)
+        {
+            expected.add("user-" + i);
+        }
+
+        assertEquals(expected, sink.getSubjects());
+        assertEquals(100, ring.getPublished());
+        assertEquals(100, ring.getWritten());
+        assertEquals(0, ring.getDropped());
+        assertTrue(sink.isClosed());
+    }
+
+    @Test
+    void writesPublishedEventsWhenClosed()
+    {
+        BlockingSink sink = new BlockingSink();
+        LoginEventRing ring = new LoginEventRing(64, sink, LoginEventOverflow.DROP, "test-login-events");
+
+        assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-0", null, null));
+        sink.awaitFirstWrite();
+
+        // These wait in the ring while the sink is busy with the first
+        for (int i = 1; i < 50; i++)
+        {
+            assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-" + i, null, null));
+        }
+
+        sink.release();
+        ring.close();
+
+        assertEquals(50, ring.getPublished());
+        assertEquals(ring.getPublished(), ring.getWritten());
+        assertEquals(50, sink.getSubjects().size());
+        assertTrue(sink.isClosed());
+    }
+
+    @Test
+    void dropsEventsWhenFull()
+    {
+        BlockingSink sink = new BlockingSink();
+        LoginEventRing ring = new LoginEventRing(4, sink, LoginEventOverflow.DROP, "test-login-events");
+
+        assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-0", null, null));
+        sink.awaitFirstWrite();
+
+        // The slot of the first event is only handed back when the sink returns, so three more fit
+        for (int i = 1; i < 10; i++)
+        {
+            ring.publish(LoginEvent.Outcome.SUCCESS, "user-" + i, null, null);
+        }
+
+        assertEquals(4, ring.getPublished());
+        assertEquals(6, ring.getDropped());
+
+        sink.release();
+        ring.close();
+
+        assertEquals(4, ring.getWritten());
+    }
+
+    @Test
+    void blocksForABoundedTimeWhenFull()
+    {
+        BlockingSink sink = new BlockingSink();
+        LoginEventRing ring = new LoginEventRing(2, sink, LoginEventOverflow.BLOCK, "test-login-events");
+
+        assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-0", null, null));
+        sink.awaitFirstWrite();
+        assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-1", null, null));
+
+        long start = System.nanoTime();
+
+        assertFalse(ring.publish(LoginEvent.Outcome.SUCCESS, "user-2", null, null));
+
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(waitedMillis >= LoginEventRing.MAXIMUM_BLOCK_MILLIS, "waited " + waitedMillis + " ms");
+        assertTrue(waitedMillis < 10 * LoginEventRing.MAXIMUM_BLOCK_MILLIS, "waited " + waitedMillis + " ms");
+        assertEquals(1, ring.getDropped());
+
+        sink.release();
+        ring.close();
+
+        assertEquals(2, ring.getWritten());
+    }
+
+    @Test
+    void countsEventsThatTheSinkFailsToWriteAsLost()
+    {
+        LoginEventRing ring = new LoginEventRing(4, events ->
+        {
+            throw new IOException("Disk full");
+        }, LoginEventOverflow.BLOCK, "test-login-events");
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertTrue(ring.publish(LoginEvent.Outcome.SUCCESS, "user-" + i, null, null));
+        }
+
+        ring.close();
+
+        assertEquals(10, ring.getLost());
+        assertEquals(0, ring.getWritten());
+    }
+
+    @Test
+    void dropsEventsWhenClosed()
+    {
+        LoginEventRing ring = new LoginEventRing(4, new RecordingSink(), LoginEventOverflow.BLOCK,
+                "test-login-events");
+
+        ring.close();
+
+        assertFalse(ring.publish(LoginEvent.Outcome.SUCCESS, "user-0", null, null));
+        assertEquals(1, ring.getDropped());
+        assertEquals(0, ring.getPublished());
+    }
+
+    private static class RecordingSink implements LoginEventSink
+    {
+        // Events are reused by the ring, so only their values are kept
+        private final List<String> _subjects = new ArrayList<>();
+        private volatile boolean _closed;
+
+        @Override
+        public void write(List<LoginEvent> events) throws IOException
+        {
+            synchronized (_subjects)
+            {
+                for (LoginEvent event : events)
+                {
+                    _subjects.add(event.getSubject());
+                }
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            _closed = true;
+        }
+
+        List<String> getSubjects()
+        {
+            synchronized (_subjects)
+            {
+                return new ArrayList<>(_subjects);
+            }
+        }
+
+        boolean isClosed()
+        {
+            return _closed;
+        }
+    }
+
+    /**
+     * Holds on to the first batch until it is released, like a sink that is slow to write.
+     */
+    private static final class BlockingSink extends RecordingSink
+    {
+        private final CountDownLatch _firstWrite = new CountDownLatch(1);
+        private final CountDownLatch _released = new CountDownLatch(1);
+
+        @Override
+        public void write(List<LoginEvent> events) throws IOException
+        {
+            super.write(events);
+            _firstWrite.countDown();
+
+            try
+            {
+                _released.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void awaitFirstWrite()
+        {
+            try
+            {
+                assertTrue(_firstWrite.await(5, TimeUnit.SECONDS), "The sink was not written to");
+            }
+            catch (InterruptedException e)
+            {
+                throw new AssertionError(e);
+            }
+        }
+
+        void release()
+        {
+            _released.countDown();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayFilterTest
+{
+    private static final Duration WINDOW = Duration.ofMinutes(10);
+
+    private long _now = TimeUnit.DAYS.toNanos(1);
+
+    @Test
+    void rejectsReplays()
+    {
+        ReplayFilter filter = new ReplayFilter(1000, WINDOW, () -> _now);
+
+        assertTrue(filter.markUsed("state-1"));
+        assertTrue(filter.markUsed("state-2"));
+        assertFalse(filter.markUsed("state-1"));
+        assertFalse(filter.markUsed("state-1"));
+        assertEquals(2, filter.getReplays());
+        assertEquals(0, filter.getEarlyRotations());
+    }
+
+    @Test
+    void remembersValuesForTheWindow()
+    {
+        ReplayFilter filter = new ReplayFilter(1000, WINDOW, () -> _now);
+
+        _now += WINDOW.toNanos() - 1;
+        assertTrue(filter.markUsed("state-1"));
+
+        // Used just before the first rotation, so it must survive it
+        _now += WINDOW.toNanos() - 1;
+        assertFalse(filter.markUsed("state-1"));
+
+        _now += 2;
+        assertFalse(filter.markUsed("state-1"));
+    }
+
+    @Test
+    void forgetsValuesAfterTwoWindows()
+    {
+        ReplayFilter filter = new ReplayFilter(1000, WINDOW, () -> _now);
+
+        assertTrue(filter.markUsed("state-1"));
+
+        _now += 2 * WINDOW.toNanos();
+        assertTrue(filter.markUsed("state-1"));
+        assertEquals(0, filter.getReplays());
+    }
+
+    @Test
+    void rotatesEarlyWhenFull()
+    {
+        // One value per stripe, so that the second value of a stripe rotates it before the window has passed
+        ReplayFilter filter = new ReplayFilter(16, WINDOW, () -> _now);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(filter.markUsed("state-" + i), "state-" + i);
+        }
+
+        assertTrue(filter.getEarlyRotations() > 0);
+        assertEquals(0, filter.getReplays());
+
+        // After early rotations, the first values are forgotten although the window has not passed
+        assertTrue(filter.markUsed("state-0"));
+    }
+
+    @Test
+    void remembersTheLastValuesAfterAnEarlyRotation()
+    {
+        ReplayFilter filter = new ReplayFilter(16, WINDOW, () -> _now);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            filter.markUsed("state-" + i);
+        }
+
+        // The generation that was rotated out last is still checked
+        assertFalse(filter.markUsed("state-999"));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig.StateMode;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StateCodecTest
+{
+    private static final Duration LIFETIME = Duration.ofMinutes(10);
+    private static final Instant NOW = Instant.parse("2026-10-18T12:00:00Z");
+    private static final String BINDING_SECRET = "binding-secret-of-the-session";
+
+    private final StateGenerator _random = new StateGenerator(128);
+    private final byte[] _key = randomKey();
+    private final byte[] _newKey = randomKey();
+
+    @Test
+    void validatesItsOwnState()
+    {
+        for (StateMode mode : List.of(StateMode.SIGNED, StateMode.ENCRYPTED))
+        {
+            StateCodec codec = codec(mode, List.of(_key), NOW);
+
+            assertDoesNotThrow(() -> codec.validate(codec.create(BINDING_SECRET), BINDING_SECRET));
+        }
+    }
+
+    @Test
+    void rejectsTamperedState()
+    {
+        for (StateMode mode : List.of(StateMode.SIGNED, StateMode.ENCRYPTED))
+        {
+            StateCodec codec = codec(mode, List.of(_key), NOW);
+            byte[] value = Base64.getUrlDecoder().decode(codec.create(BINDING_SECRET));
+
+            for (int i = 0; i < value.length; i++)
+            {
+                byte[] tampered = value.clone();
+
+                tampered[i] ^= 1;
+
+                String state = Base64.getUrlEncoder().withoutPadding().encodeToString(tampered);
+
+                assertThrows(StateCodec.InvalidStateException.class, () -> codec.validate(state, BINDING_SECRET),
+                        mode + " state with byte " + i + " changed");
+            }
+        }
+    }
+
+    @Test
+    void rejectsMalformedState()
+    {
+        StateCodec codec = codec(StateMode.SIGNED, List.of(_key), NOW);
+        String state = codec.create(BINDING_SECRET);
+
+        assertThrows(StateCodec.InvalidStateException.class, () -> codec.validate("not base64!", BINDING_SECRET));
+        assertThrows(StateCodec.InvalidStateException.class, () -> codec.validate("", BINDING_SECRET));
+        assertThrows(StateCodec.InvalidStateException.class,
+                () -> codec.validate(state.substring(0, state.length() - 4), BINDING_SECRET));
+    }
+
+    @Test
+    void rejectsStateOfAnotherSession()
+    {
+        StateCodec codec = codec(StateMode.ENCRYPTED, List.of(_key), NOW);
+        String state = codec.create(BINDING_SECRET);
+
+        assertThrows(StateCodec.InvalidStateException.class, () -> codec.validate(state, "another-secret"));
+        assertThrows(StateCodec.InvalidStateException.class, () -> codec.validate(state, null));
+    }
+
+    @Test
+    void rejectsExpiredState()
+    {
+        String state = codec(StateMode.SIGNED, List.of(_key), NOW).create(BINDING_SECRET);
+
+        assertDoesNotThrow(() -> codec(StateMode.SIGNED, List.of(_key), NOW.plus(LIFETIME))
+                .validate(state, BINDING_SECRET));
+        assertThrows(StateCodec.InvalidStateException.class,
+                () -> codec(StateMode.SIGNED, List.of(_key), NOW.plus(LIFETIME).plusSeconds(1))
+                        .validate(state, BINDING_SECRET));
+    }
+
+    @Test
+    void rejectsStateIssuedInTheFuture()
+    {
+        String state = codec(StateMode.SIGNED, List.of(_key), NOW.plusSeconds(60)).create(BINDING_SECRET);
+
+        assertThrows(StateCodec.InvalidStateException.class,
+                () -> codec(StateMode.SIGNED, List.of(_key), NOW).validate(state, BINDING_SECRET));
+    }
+
+    @Test
+    void acceptsStateOfEveryKeyDuringRotation()
+    {
+        for (StateMode mode : List.of(StateMode.SIGNED, StateMode.ENCRYPTED))
+        {
+            StateCodec before = codec(mode, List.of(_key), NOW);
+            StateCodec during = codec(mode, List.of(_newKey, _key), NOW);
+            StateCodec after = codec(mode, List.of(_newKey), NOW);
+            String oldState = before.create(BINDING_SECRET);
+            String newState = during.create(BINDING_SECRET);
+
+            assertDoesNotThrow(() -> during.validate(oldState, BINDING_SECRET));
+            assertDoesNotThrow(() -> during.validate(newState, BINDING_SECRET));
+            assertDoesNotThrow(() -> after.validate(newState, BINDING_SECRET));
+            assertThrows(StateCodec.InvalidStateException.class, () -> after.validate(oldState, BINDING_SECRET));
+        }
+    }
+
+    @Test
+    void rejectsStateOfAnotherMode()
+    {
+        String state = codec(StateMode.SIGNED, List.of(_key), NOW).create(BINDING_SECRET);
+
+        assertThrows(StateCodec.InvalidStateException.class,
+                () -> codec(StateMode.ENCRYPTED, List.of(_key), NOW).validate(state, BINDING_SECRET));
+    }
+
+    @Test
+    void rejectsShortKeys()
+    {
+        assertThrows(IllegalArgumentException.class, () -> codec(StateMode.SIGNED, List.of(new byte[31]), NOW));
+        assertThrows(IllegalArgumentException.class, () -> codec(StateMode.SIGNED, List.of(), NOW));
+    }
+
+    @Test
+    void createsDifferentStateEachTime()
+    {
+        StateCodec codec = codec(StateMode.SIGNED, List.of(_key), NOW);
+
+        assertNotEquals(codec.create(BINDING_SECRET), codec.create(BINDING_SECRET));
+    }
+
+    private StateCodec codec(StateMode mode, List<byte[]> keys, Instant now)
+    {
+        return new StateCodec(mode, keys, LIFETIME, _random, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private byte[] randomKey()
+    {
+        byte[] key = new byte[32];
+
+        _random.nextBytes(key);
+
+        return key;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.config.WindowsLiveAuthenticatorPluginConfig;
+import org.junit.jupiter.api.Test;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class TokenRequestEncoderTest
+{
+    private static final String AUDIENCE = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
+    private static final String CODE = "M.C507_BAY.2.U.6a1f0c2e-9f4b-4a63-8a3e-b4e1f2f7c8d9";
+    private static final String REDIRECT_URI = Standins.AUTHENTICATION_URI + "/callback";
+
+    @Test
+    void encodesRequestsWithTheClientSecret()
+    {
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.of());
+        TokenRequestEncoder encoder = TokenRequestEncoder.compile(configuration, null);
+        Map<String, String> expected = new LinkedHashMap<>();
+
+        expected.put("client_id", configuration.getClientId());
+        expected.put("client_secret", configuration.getClientSecret().orElseThrow());
+        expected.put("grant_type", "authorization_code");
+        expected.put("redirect_uri", REDIRECT_URI);
+        expected.put("code", CODE);
+
+        assertEquals(expected, encode(encoder, configuration, CODE));
+    }
+
+    @Test
+    void encodesCodesLikeTheUrlEncoder()
+    {
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.of());
+        TokenRequestEncoder encoder = TokenRequestEncoder.compile(configuration, null);
+
+        for (String code : new String[]{CODE, "a b+c/d=e&f%g*h~i", "caf\u00e9 \u00e5\u00e4\u00f6", ""})
+        {
+            String body = new String(encoder.encode(code, configuration.getAuthenticatorInformationProvider(),
+                    configuration.getExceptionFactory()), StandardCharsets.UTF_8);
+
+            assertEquals("code=" + URLEncoder.encode(code, StandardCharsets.UTF_8),
+                    body.substring(body.lastIndexOf('&') + 1));
+        }
+    }
+
+    @Test
+    void sendsTheCurrentClientAssertionInsteadOfTheSecret()
+    {
+        Standins.MutableClock clock = new Standins.MutableClock(Instant.parse("2026-10-18T12:00:00Z"));
+        WindowsLiveAuthenticatorPluginConfig configuration = Standins.configuration(Map.of(
+                "getClientAssertionKey", Standins.CLIENT_ASSERTION_EC_KEY,
+                "getClientAssertionCertificate", Standins.CLIENT_ASSERTION_EC_CERTIFICATE));
+        ClientAssertionSigner signer = ClientAssertionSigner.of(configuration, AUDIENCE, clock);
+        TokenRequestEncoder encoder = TokenRequestEncoder.compile(configuration, signer);
+        Map<String, String> expected = new LinkedHashMap<>();
+
+        expected.put("client_id", configuration.getClientId());
+        expected.put("client_assertion_type", ClientAssertionSigner.ASSERTION_TYPE);
+        expected.put("client_assertion", signer.get());
+        expected.put("grant_type", "authorization_code");
+        expected.put("redirect_uri", REDIRECT_URI);
+        expected.put("code", CODE);
+
+        assertEquals(expected, encode(encoder, configuration, CODE));
+
+        String assertion = signer.get();
+
+        clock.advance(configuration.getClientAssertionLifetime());
+        signer.refresh();
+
+        assertNotEquals(assertion, signer.get());
+        assertEquals(signer.get(), encode(encoder, configuration, CODE).get("client_assertion"));
+        assertEquals(2, signer.getSignatures());
+    }
+
+    private static Map<String, String> encode(TokenRequestEncoder encoder,
+                                              WindowsLiveAuthenticatorPluginConfig configuration, String code)
+    {
+        String body = new String(encoder.encode(code, configuration.getAuthenticatorInformationProvider(),
+                configuration.getExceptionFactory()), StandardCharsets.UTF_8);
+        Map<String, String> parameters = new LinkedHashMap<>();
+
+        for (String parameter : body.split("&"))
+        {
+            int separator = parameter.indexOf('=');
+
+            parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                    URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+        }
+
+        return parameters;
+    }
+}
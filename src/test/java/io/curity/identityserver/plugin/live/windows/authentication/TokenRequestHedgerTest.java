@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import io.curity.identityserver.plugin.live.windows.authentication.UpstreamCallExecutor.UpstreamCall;
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenRequestHedgerTest
+{
+    private static final String LOGIN_HOST = "login.live.com";
+    private static final String ALTERNATE_LOGIN_HOST = "login.microsoft.com";
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Set<String> _requestedHosts = ConcurrentHashMap.newKeySet();
+
+    @Test
+    void doesNotHedgeSlowRequestsWithoutABudget() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, 4, "test-upstream-"))
+        {
+            TokenRequestHedger hedger = new TokenRequestHedger(List.of(LOGIN_HOST, ALTERNATE_LOGIN_HOST), 95, 0,
+                    executor);
+
+            // Slower than the initial hedging delay
+            UpstreamResponse response = hedger.send(respond(Map.of(LOGIN_HOST, 1500L, ALTERNATE_LOGIN_HOST, 0L)),
+                    TIMEOUT_NANOS);
+
+            assertEquals(LOGIN_HOST, response.getData().get("host"));
+            assertEquals(Set.of(LOGIN_HOST), _requestedHosts);
+            assertEquals(0, hedger.getHedgedRequests());
+        }
+    }
+
+    @Test
+    void hedgesSlowRequestsWithABudget() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, 4, "test-upstream-"))
+        {
+            TokenRequestHedger hedger = new TokenRequestHedger(List.of(LOGIN_HOST, ALTERNATE_LOGIN_HOST), 95, 100,
+                    executor);
+
+            UpstreamResponse response = hedger.send(respond(Map.of(LOGIN_HOST, 5000L, ALTERNATE_LOGIN_HOST, 0L)),
+                    TIMEOUT_NANOS);
+
+            assertEquals(ALTERNATE_LOGIN_HOST, response.getData().get("host"));
+            assertEquals(1, hedger.getHedgedRequests());
+            assertEquals(1, hedger.getHedgeWins());
+        }
+    }
+
+    @Test
+    void failsOverRequestsThatWereNotSentWithoutABudget() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, 4, "test-upstream-"))
+        {
+            TokenRequestHedger hedger = new TokenRequestHedger(List.of(LOGIN_HOST, ALTERNATE_LOGIN_HOST), 95, 0,
+                    executor);
+
+            UpstreamResponse response = hedger.send(host ->
+            {
+                if (LOGIN_HOST.equals(host))
+                {
+                    return () ->
+                    {
+                        throw new ConnectException("Connection refused");
+                    };
+                }
+
+                return respond(Map.of(host, 0L)).apply(host);
+            }, TIMEOUT_NANOS);
+
+            assertEquals(ALTERNATE_LOGIN_HOST, response.getData().get("host"));
+            assertEquals(1, hedger.getFailovers());
+            assertEquals(0, hedger.getHedgedRequests());
+        }
+    }
+
+    /**
+     * @param latencies the milliseconds that each host takes to answer
+     */
+    private Function<String, UpstreamCall<UpstreamResponse>> respond(Map<String, Long> latencies)
+    {
+        return host -> () ->
+        {
+            _requestedHosts.add(host);
+
+            try
+            {
+                Thread.sleep(latencies.get(host));
+            }
+            catch (InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+
+            return UpstreamResponse.read(Standins.httpResponse(Standins.Reply.json(200,
+                    "{\"host\":\"" + host + "\"}")), JsonFieldExtractor.ALL_FIELDS, 0);
+        };
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2026 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package io.curity.identityserver.plugin.live.windows.authentication;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpstreamCallExecutorTest
+{
+    private static final int THREAD_LIMIT = 2;
+
+    @Test
+    void runsRequestsWithATimeout() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, THREAD_LIMIT, "test-upstream-"))
+        {
+            assertEquals("response", executor.call(() -> "response", TimeUnit.SECONDS.toNanos(1)));
+            assertThrows(TimeoutException.class, () -> executor.call(() -> sleep(1000),
+                    TimeUnit.MILLISECONDS.toNanos(50)));
+            assertThrows(TimeoutException.class, () -> executor.call(() -> "response", 0));
+        }
+    }
+
+    @Test
+    void lineRequestsUpWhenAllThreadsAreBusy() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, THREAD_LIMIT, "test-upstream-"))
+        {
+            CountDownLatch release = new CountDownLatch(1);
+            List<CompletableFuture<String>> busy = new ArrayList<>();
+
+            for (int i = 0; i < THREAD_LIMIT; i++)
+            {
+                busy.add(CompletableFuture.supplyAsync(() -> call(executor, () -> await(release), 5000)));
+            }
+
+            Thread.sleep(100);
+
+            // All threads are held, so this waits in line and runs out of time there
+            assertThrows(TimeoutException.class, () -> executor.call(() -> "response",
+                    TimeUnit.MILLISECONDS.toNanos(100)));
+
+            release.countDown();
+
+            for (CompletableFuture<String> request : busy)
+            {
+                assertEquals("released", request.get(5, TimeUnit.SECONDS));
+            }
+
+            assertEquals("response", executor.call(() -> "response", TimeUnit.SECONDS.toNanos(1)));
+        }
+    }
+
+    @Test
+    void doesNotStarveRequestsOfBackgroundRequests() throws Exception
+    {
+        try (UpstreamCallExecutor executor = UpstreamCallExecutor.create(false, THREAD_LIMIT, "test-upstream-"))
+        {
+            // Twice as many background requests as there are threads, each waiting for a request of its own, like
+            // photo downloads that send their request to Graph
+            List<CompletableFuture<String>> downloads = new ArrayList<>();
+
+            for (int i = 0; i < 2 * THREAD_LIMIT; i++)
+            {
+                downloads.add(executor.submit(() -> callOrTimeOut(executor, () -> sleep(50), 2000)));
+            }
+
+            for (CompletableFuture<String> download : downloads)
+            {
+                assertEquals("slept", download.get(5, TimeUnit.SECONDS));
+            }
+
+            long start = System.nanoTime();
+
+            assertEquals("response", executor.call(() -> "response", TimeUnit.SECONDS.toNanos(1)));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    @Test
+    void runsRequestsOnTheCallingThreadWhenDirect() throws Exception
+    {
+        Thread caller = Thread.currentThread();
+
+        assertEquals(caller, UpstreamCallExecutor.DIRECT.call(Thread::currentThread, 0));
+        assertThrows(IllegalStateException.class, () -> UpstreamCallExecutor.DIRECT.submit(() -> "response"));
+    }
+
+    private static String sleep(long millis) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+
+        return "slept";
+    }
+
+    private static String await(CountDownLatch latch) throws InterruptedIOException
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+
+        return "released";
+    }
+
+    private static String call(UpstreamCallExecutor executor, UpstreamCallExecutor.UpstreamCall<String> call,
+                               long timeoutMillis)
+    {
+        try
+        {
+            return executor.call(call, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String callOrTimeOut(UpstreamCallExecutor executor, UpstreamCallExecutor.UpstreamCall<String> call,
+                                        long timeoutMillis) throws IOException
+    {
+        try
+        {
+            return executor.call(call, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        }
+        catch (TimeoutException e)
+        {
+            return "timed out";
+        }
+    }
+}